@@ -0,0 +1,98 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cmb.benchmark;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.comcast.cmb.common.util.ExpiringCache;
+
+/**
+ * Contended cache lookups as done for every api call (queue and user lookups). Misses are served by an in-memory
+ * stand-in for the cassandra read so only the cache itself is measured. With a key space larger than the cache
+ * limit the benchmark also covers eviction.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class ExpiringCacheBenchmark {
+
+    @Param({"1000", "20000"})
+    public int numKeys;
+
+    @Param({"10000"})
+    public int cacheKeysLimit;
+
+    private ExpiringCache<String, String> cache;
+    private String[] keys;
+    private final InMemoryStore store = new InMemoryStore();
+
+    private static class InMemoryStore {
+
+        private final ConcurrentHashMap<String, String> rows = new ConcurrentHashMap<String, String>();
+
+        public String read(String key) {
+            String value = rows.get(key);
+            if (value == null) {
+                value = "value_" + key;
+                rows.put(key, value);
+            }
+            return value;
+        }
+    }
+
+    @Setup
+    public void setup() {
+
+        cache = new ExpiringCache<String, String>(cacheKeysLimit);
+        keys = new String[numKeys];
+
+        for (int i=0; i<numKeys; i++) {
+            keys[i] = "390328612038/queue_" + i;
+        }
+    }
+
+    @Benchmark
+    public String getAndSetIfNotPresent() {
+
+        final String key = keys[ThreadLocalRandom.current().nextInt(keys.length)];
+
+        return cache.getAndSetIfNotPresent(key, new Callable<String>() {
+            public String call() throws Exception {
+                return store.read(key);
+            }
+        }, 60000);
+    }
+}
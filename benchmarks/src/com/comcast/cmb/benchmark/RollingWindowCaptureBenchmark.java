@@ -0,0 +1,77 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cmb.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.comcast.cmb.common.util.RollingWindowCapture;
+
+/**
+ * Bad endpoint counting as done by the cns publisher: many threads recording failures while others check the count
+ * for an endpoint before each delivery
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class RollingWindowCaptureBenchmark {
+
+    private static final int NUM_ENDPOINTS = 100;
+
+    private RollingWindowCapture<String> window;
+    private String[] endpoints;
+
+    @Setup
+    public void setup() {
+
+        window = new RollingWindowCapture<String>(60);
+        endpoints = new String[NUM_ENDPOINTS];
+
+        for (int i=0; i<NUM_ENDPOINTS; i++) {
+            endpoints[i] = "http://endpoint" + i + ".example.com/notify";
+        }
+    }
+
+    @Benchmark
+    @Group("badEndpoints")
+    @GroupThreads(4)
+    public void addBadResponse() {
+        window.increment(endpoints[ThreadLocalRandom.current().nextInt(NUM_ENDPOINTS)]);
+    }
+
+    @Benchmark
+    @Group("badEndpoints")
+    @GroupThreads(4)
+    public int getNumBadResponses() {
+        return window.getCount(endpoints[ThreadLocalRandom.current().nextInt(NUM_ENDPOINTS)]);
+    }
+}
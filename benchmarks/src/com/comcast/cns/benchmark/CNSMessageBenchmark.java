@@ -0,0 +1,96 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cns.benchmark;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.comcast.cns.model.CNSMessage;
+import com.comcast.cns.model.CNSMessage.CNSMessageStructure;
+import com.comcast.cns.model.CNSSubscription.CnsSubscriptionProtocol;
+
+/**
+ * Protocol specific rendering of a published message, done once per subscriber and delivery attempt, and the
+ * serialization used to hand publish jobs from producer to consumer
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CNSMessageBenchmark {
+
+    private CNSMessage rawMessage;
+    private CNSMessage jsonMessage;
+    private String serialized;
+
+    @Setup
+    public void setup() throws Exception {
+
+        rawMessage = newMessage("plain text notification body");
+        rawMessage.setMessageStructure(null);
+
+        jsonMessage = newMessage("{\"default\":\"default body\",\"http\":\"http body\",\"https\":\"https body\",\"email\":\"email body\",\"cqs\":\"cqs body\"}");
+        jsonMessage.setMessageStructure(CNSMessageStructure.json);
+
+        serialized = jsonMessage.serialize();
+    }
+
+    private CNSMessage newMessage(String body) {
+
+        CNSMessage message = new CNSMessage();
+        message.setMessage(body);
+        message.setSubject("benchmark");
+        message.setTopicArn("arn:cmb:cns:ccp:390328612038:benchmark_topic");
+        message.setUserId("390328612038");
+        message.setTimestamp(new Date());
+        message.generateMessageId();
+
+        return message;
+    }
+
+    @Benchmark
+    public String renderRaw() throws Exception {
+        return rawMessage.getProtocolSpecificMessage(CnsSubscriptionProtocol.http);
+    }
+
+    @Benchmark
+    public String renderJsonStructure() throws Exception {
+        return jsonMessage.getProtocolSpecificMessage(CnsSubscriptionProtocol.https);
+    }
+
+    @Benchmark
+    public String serialize() {
+        return jsonMessage.serialize();
+    }
+
+    @Benchmark
+    public CNSMessage parseInstance() {
+        return CNSMessage.parseInstance(serialized);
+    }
+}
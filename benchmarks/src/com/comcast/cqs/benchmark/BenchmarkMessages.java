@@ -0,0 +1,77 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cqs.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.comcast.cqs.model.CQSMessage;
+import com.comcast.cqs.model.CQSMessageAttribute;
+import com.comcast.cqs.util.CQSConstants;
+
+/**
+ * Sample messages shaped like typical production traffic
+ */
+public class BenchmarkMessages {
+
+    private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789 {}\":,<>&";
+
+    public static String newBody(int size) {
+
+        Random random = new Random(size);
+        StringBuilder sb = new StringBuilder(size);
+
+        for (int i=0; i<size; i++) {
+            sb.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+
+        return sb.toString();
+    }
+
+    public static CQSMessage newMessage(int bodySize, int numMessageAttributes) throws Exception {
+
+        Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put(CQSConstants.SENDER_ID, "390328612038");
+        attributes.put(CQSConstants.SENT_TIMESTAMP, "" + System.currentTimeMillis());
+        attributes.put(CQSConstants.APPROXIMATE_RECEIVE_COUNT, "0");
+
+        Map<String, CQSMessageAttribute> messageAttributes = new HashMap<String, CQSMessageAttribute>();
+
+        for (int i=0; i<numMessageAttributes; i++) {
+            messageAttributes.put("attribute" + i, new CQSMessageAttribute("value" + i, i % 2 == 0 ? "String" : "Number"));
+        }
+
+        CQSMessage message = new CQSMessage(newBody(bodySize), attributes, messageAttributes);
+        message.setMessageId("d41d8cd98f00b204e9800998ecf8427e_0_7:" + System.nanoTime() + ":-9151314442816847872");
+        message.setReceiptHandle(message.getMessageId());
+
+        return message;
+    }
+
+    public static List<CQSMessage> newMessages(int count, int bodySize, int numMessageAttributes) throws Exception {
+
+        List<CQSMessage> messages = new ArrayList<CQSMessage>(count);
+
+        for (int i=0; i<count; i++) {
+            messages.add(newMessage(bodySize, numMessageAttributes));
+        }
+
+        return messages;
+    }
+}
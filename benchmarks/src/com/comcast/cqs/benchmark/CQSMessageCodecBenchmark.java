@@ -0,0 +1,79 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cqs.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.comcast.cqs.model.CQSMessage;
+import com.comcast.cqs.util.CQSMessageCodec;
+
+/**
+ * Encoding and decoding of the message column value in both the json and the binary format
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CQSMessageCodecBenchmark {
+
+    @Param({"100", "10000"})
+    public int bodySize;
+
+    private CQSMessage message;
+    private String json;
+    private String binary;
+
+    @Setup
+    public void setup() throws Exception {
+        message = BenchmarkMessages.newMessage(bodySize, 3);
+        json = CQSMessageCodec.encodeJSON(message);
+        binary = CQSMessageCodec.encode(message);
+    }
+
+    @Benchmark
+    public String encodeJSON() throws Exception {
+        return CQSMessageCodec.encodeJSON(message);
+    }
+
+    @Benchmark
+    public CQSMessage decodeJSON() throws Exception {
+        return CQSMessageCodec.decodeJSON(json);
+    }
+
+    @Benchmark
+    public String encodeBinary() {
+        return CQSMessageCodec.encode(message);
+    }
+
+    @Benchmark
+    public CQSMessage decodeBinary() throws Exception {
+        return CQSMessageCodec.decode(binary);
+    }
+}
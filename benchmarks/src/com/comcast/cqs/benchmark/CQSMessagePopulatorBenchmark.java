@@ -0,0 +1,95 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cqs.benchmark;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.comcast.cmb.common.controller.XmlResponseWriter;
+import com.comcast.cqs.io.CQSMessagePopulator;
+import com.comcast.cqs.model.CQSMessage;
+
+/**
+ * XML generation of a full ReceiveMessage response, as a String and streamed
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CQSMessagePopulatorBenchmark {
+
+    @Param({"1", "10"})
+    public int numMessages;
+
+    @Param({"1000"})
+    public int bodySize;
+
+    private List<CQSMessage> messages;
+    private List<String> allAttributes = Arrays.asList("All");
+
+    @Setup
+    public void setup() throws Exception {
+        messages = BenchmarkMessages.newMessages(numMessages, bodySize, 3);
+    }
+
+    @Benchmark
+    public String receiveMessageResponse() {
+        return CQSMessagePopulator.getReceiveMessageResponseAfterSerializing(messages, allAttributes, allAttributes);
+    }
+
+    @Benchmark
+    public void writeReceiveMessageResponse(Blackhole blackhole) throws Exception {
+        XmlResponseWriter out = new XmlResponseWriter(new BlackholeOutputStream(blackhole));
+        CQSMessagePopulator.writeReceiveMessageResponse(messages, allAttributes, allAttributes, out);
+        out.close();
+    }
+
+    private static class BlackholeOutputStream extends OutputStream {
+
+        private final Blackhole blackhole;
+
+        public BlackholeOutputStream(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void write(int b) {
+            blackhole.consume(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            blackhole.consume(b);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cqs.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.comcast.cqs.util.CQSCompressionCodec;
+import com.comcast.cqs.util.Util;
+
+/**
+ * Queue url hashing, done for every cassandra and redis key, and body compression for compressed queues
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CQSUtilBenchmark {
+
+    private String queueUrl = "390328612038/benchmark_queue";
+
+    @State(Scope.Benchmark)
+    public static class Body {
+
+        @Param({"1000", "65536"})
+        public int bodySize;
+
+        @Param({"deflate", "gzip"})
+        public String codecName;
+
+        private CQSCompressionCodec codec;
+        private String body;
+        private String compressed;
+
+        @Setup
+        public void setup() throws Exception {
+            codec = CQSCompressionCodec.getCodec(codecName);
+            body = BenchmarkMessages.newBody(bodySize);
+            compressed = codec.compress(body);
+        }
+    }
+
+    @Benchmark
+    public String hashQueueUrl() throws Exception {
+        return Util.hashQueueUrl(queueUrl);
+    }
+
+    @Benchmark
+    public String compress(Body body) throws Exception {
+        return body.codec.compress(body.body);
+    }
+
+    @Benchmark
+    public String decompress(Body body) throws Exception {
+        return CQSCompressionCodec.decompress(body.compressed);
+    }
+}
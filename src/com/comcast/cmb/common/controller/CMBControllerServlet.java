@@ -52,7 +52,6 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -691,11 +690,7 @@ abstract public class CMBControllerServlet extends HttpServlet {
 
 					logger.info("event=on_error queue_url=" + queue.getAbsoluteUrl());
 
-					ConcurrentLinkedQueue<AsyncContext> queueContextsList = CQSLongPollReceiver.contextQueues.get(queue.getArn());
-
-					if (queueContextsList != null && asyncContext != null) {
-						queueContextsList.remove(asyncContext);
-					}
+					CQSLongPollReceiver.unregister(queue.getArn(), asyncContext);
 
 				} else {
 					logger.info("event=on_error");
@@ -719,19 +714,16 @@ abstract public class CMBControllerServlet extends HttpServlet {
 
 				if (action != null && action.equals("ReceiveMessage")) {
 				
-					String out = CQSMessagePopulator.getReceiveMessageResponseAfterSerializing(new ArrayList<CQSMessage>(), new ArrayList<String>(), new ArrayList<String>());
-					asyncEvent.getSuppliedResponse().getWriter().println(out);
+					XmlResponseWriter out = new XmlResponseWriter(asyncEvent.getSuppliedResponse());
+					CQSMessagePopulator.writeReceiveMessageResponse(new ArrayList<CQSMessage>(), new ArrayList<String>(), new ArrayList<String>(), out);
+					out.close();
 					CQSQueue queue = ((CQSHttpServletRequest)asyncEvent.getSuppliedRequest()).getQueue();
 					asyncContext = asyncEvent.getAsyncContext(); 
 
 					if (queue != null) {
 
 						logger.debug("event=on_timeout queue_url=" + queue.getAbsoluteUrl());
-						ConcurrentLinkedQueue<AsyncContext> queueContextsList = CQSLongPollReceiver.contextQueues.get(queue.getArn());
-
-						if (queueContextsList != null && asyncContext != null) {
-							queueContextsList.remove(asyncContext);
-						}
+						CQSLongPollReceiver.unregister(queue.getArn(), asyncContext);
 
 					} else {
 						logger.debug("event=on_timeout");
@@ -769,11 +761,7 @@ abstract public class CMBControllerServlet extends HttpServlet {
 				if (queue != null) {
 
 					logger.error("event=on_timeout queue_url=" + queue.getAbsoluteUrl());
-					ConcurrentLinkedQueue<AsyncContext> queueContextsList = CQSLongPollReceiver.contextQueues.get(queue.getArn());
-
-					if (queueContextsList != null && asyncContext != null) {
-						queueContextsList.remove(asyncContext);
-					}
+					CQSLongPollReceiver.unregister(queue.getArn(), asyncContext);
 
 				} else {
 					logger.error("event=on_timeout "+getLogLine(asyncContext, request, authModule.getUserByRequest(request), 0, "timeout"));
@@ -0,0 +1,305 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cmb.common.controller;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+import javax.servlet.ServletResponse;
+
+import com.comcast.cmb.common.util.ValueAccumulator.AccumulatorName;
+
+/**
+ * Writer for xml api responses that encodes utf-8 straight into a reusable per-thread buffer and hands full
+ * blocks to the servlet output stream, so large responses are never materialized as a String. Responses that
+ * fit into a single block are written with a content length, larger ones are streamed.
+ * Class is not thread-safe, instances must be used by a single thread and closed when done
+ */
+public final class XmlResponseWriter extends Writer {
+
+	public static final int BLOCK_SIZE = 16*4096;
+
+	private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>();
+
+	private final ServletResponse response;
+	private OutputStream out;
+	private byte[] buffer;
+	private int count = 0;
+	private char highSurrogate = 0;
+	private boolean streaming = false;
+	private boolean closed = false;
+	private long ioTime = 0;
+
+	/**
+	 * Write response to the servlet output stream
+	 * @param response
+	 */
+	public XmlResponseWriter(ServletResponse response) {
+		this(response, null);
+	}
+
+	/**
+	 * Write response to an arbitrary stream
+	 * @param out
+	 */
+	public XmlResponseWriter(OutputStream out) {
+		this(null, out);
+	}
+
+	private XmlResponseWriter(ServletResponse response, OutputStream out) {
+
+		this.response = response;
+		this.out = out;
+
+		// borrow the buffer of this thread, nested writers allocate their own
+
+		buffer = buffers.get();
+
+		if (buffer == null) {
+			buffer = new byte[BLOCK_SIZE];
+		} else {
+			buffers.set(null);
+		}
+	}
+
+	/**
+	 * Write text escaped for use in xml element content or attribute values
+	 * @param str
+	 * @throws IOException
+	 */
+	public XmlResponseWriter writeEscaped(String str) throws IOException {
+
+		ensureOpen();
+
+		if (str == null) {
+			return this;
+		}
+
+		for (int i=0; i<str.length(); i++) {
+
+			char c = str.charAt(i);
+
+			switch (c) {
+			case '&':
+				writeAscii("&amp;");
+				break;
+			case '<':
+				writeAscii("&lt;");
+				break;
+			case '>':
+				writeAscii("&gt;");
+				break;
+			case '"':
+				writeAscii("&quot;");
+				break;
+			case '\'':
+				writeAscii("&apos;");
+				break;
+			case '\r':
+				writeAscii("&#xD;");
+				break;
+			default:
+				encode(c);
+			}
+		}
+
+		return this;
+	}
+
+	@Override
+	public XmlResponseWriter append(CharSequence csq) throws IOException {
+		write(String.valueOf(csq));
+		return this;
+	}
+
+	public XmlResponseWriter append(long l) throws IOException {
+		writeAscii(Long.toString(l));
+		return this;
+	}
+
+	@Override
+	public void write(String str) throws IOException {
+		write(str, 0, str.length());
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+
+		ensureOpen();
+
+		for (int i=off; i<off+len; i++) {
+			encode(str.charAt(i));
+		}
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+
+		ensureOpen();
+
+		for (int i=off; i<off+len; i++) {
+			encode(cbuf[i]);
+		}
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		ensureOpen();
+		encode((char)c);
+	}
+
+	private void writeAscii(String str) throws IOException {
+
+		if (count + str.length() > buffer.length) {
+			flushBuffer();
+		}
+
+		for (int i=0; i<str.length(); i++) {
+			buffer[count++] = (byte)str.charAt(i);
+		}
+	}
+
+	private void encode(char c) throws IOException {
+
+		if (count + 4 > buffer.length) {
+			flushBuffer();
+		}
+
+		if (highSurrogate != 0) {
+
+			char high = highSurrogate;
+			highSurrogate = 0;
+
+			if (Character.isLowSurrogate(c)) {
+				int cp = Character.toCodePoint(high, c);
+				buffer[count++] = (byte)(0xf0 | (cp >> 18));
+				buffer[count++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+				buffer[count++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+				buffer[count++] = (byte)(0x80 | (cp & 0x3f));
+				return;
+			}
+
+			// unpaired surrogate, same replacement as String.getBytes()
+
+			buffer[count++] = '?';
+
+			if (count + 4 > buffer.length) {
+				flushBuffer();
+			}
+		}
+
+		if (c < 0x80) {
+			buffer[count++] = (byte)c;
+		} else if (c < 0x800) {
+			buffer[count++] = (byte)(0xc0 | (c >> 6));
+			buffer[count++] = (byte)(0x80 | (c & 0x3f));
+		} else if (Character.isHighSurrogate(c)) {
+			highSurrogate = c;
+		} else if (Character.isLowSurrogate(c)) {
+			buffer[count++] = '?';
+		} else {
+			buffer[count++] = (byte)(0xe0 | (c >> 12));
+			buffer[count++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+			buffer[count++] = (byte)(0x80 | (c & 0x3f));
+		}
+	}
+
+	private OutputStream getOutputStream() throws IOException {
+
+		if (out == null) {
+			out = response.getOutputStream();
+		}
+
+		return out;
+	}
+
+	private void flushBuffer() throws IOException {
+
+		if (!streaming && response != null) {
+
+			// content length is unknown from here on, let the container chunk the response
+
+			response.setBufferSize(BLOCK_SIZE);
+			streaming = true;
+		}
+
+		writeBuffer();
+	}
+
+	private void writeBuffer() throws IOException {
+
+		if (count > 0) {
+			long ts1 = System.currentTimeMillis();
+			getOutputStream().write(buffer, 0, count);
+			ioTime += System.currentTimeMillis() - ts1;
+			count = 0;
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Writer closed");
+		}
+	}
+
+	/**
+	 * Pushes buffered output to the client. For servlet responses this commits the response, so only call this
+	 * when the response is not going to fit into a single block anyway.
+	 */
+	@Override
+	public void flush() throws IOException {
+		ensureOpen();
+		flushBuffer();
+		getOutputStream().flush();
+	}
+
+	/**
+	 * Write all remaining output and return the buffer to the thread. Does not close the underlying stream.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		if (closed) {
+			return;
+		}
+
+		try {
+
+			if (highSurrogate != 0) {
+				highSurrogate = 0;
+				buffer[count++] = '?';
+			}
+
+			if (!streaming && response != null) {
+				response.setContentLength(count);
+			}
+
+			writeBuffer();
+			getOutputStream().flush();
+
+		} finally {
+
+			closed = true;
+			buffers.set(buffer);
+			buffer = null;
+
+			if (response != null) {
+				CMBControllerServlet.valueAccumulator.addToCounter(AccumulatorName.IOTime, ioTime);
+			}
+		}
+	}
+}
@@ -24,7 +24,6 @@ import com.comcast.cmb.common.util.CMBErrorCodes;
 import com.comcast.cmb.common.util.CMBException;
 import com.comcast.cmb.common.util.CMBProperties;
 import com.comcast.cmb.common.util.ExpiringCache;
-import com.comcast.cmb.common.util.ExpiringCache.CacheFullException;
 
 import org.apache.log4j.Logger;
 
@@ -45,8 +44,8 @@ import java.util.concurrent.Callable;
 public class UserAuthModule implements IAuthModule {
 
 	private IUserPersistence userPersistence;
-    private static ExpiringCache<String, User> userCacheByAccessKey = new ExpiringCache<String, User>(CMBProperties.getInstance().getUserCacheSizeLimit());
-    private static ExpiringCache<String, User> userCacheByUserId = new ExpiringCache<String, User>(CMBProperties.getInstance().getUserCacheSizeLimit());
+    private static ExpiringCache<String, User> userCacheByAccessKey = new ExpiringCache<String, User>("UserCacheByAccessKey", CMBProperties.getInstance().getUserCacheSizeLimit());
+    private static ExpiringCache<String, User> userCacheByUserId = new ExpiringCache<String, User>("UserCacheByUserId", CMBProperties.getInstance().getUserCacheSizeLimit());
 
     private static final Logger logger = Logger.getLogger(UserAuthModule.class);
     
@@ -147,11 +146,7 @@ public class UserAuthModule implements IAuthModule {
         
         try {
 
-        	try {
-                user = userCacheByAccessKey.getAndSetIfNotPresent(accessKey, new UserCallableByAccessKey(accessKey), CMBProperties.getInstance().getUserCacheExpiring() * 1000);
-            } catch (CacheFullException e) {
-                user = new UserCallableByAccessKey(accessKey).call();
-            }
+        	user = userCacheByAccessKey.getAndSetIfNotPresent(accessKey, new UserCallableByAccessKey(accessKey), CMBProperties.getInstance().getUserCacheExpiring() * 1000);
             
             if (user == null) {
                 logger.error("event=authenticate access_key=" + accessKey + " error_code=invalid_accesskey");
@@ -341,11 +336,7 @@ public class UserAuthModule implements IAuthModule {
         
         try {
 
-        	try {
-                user = userCacheByAccessKey.getAndSetIfNotPresent(accessKey, new UserCallableByAccessKey(accessKey), CMBProperties.getInstance().getUserCacheExpiring() * 1000);
-            } catch (CacheFullException e) {
-                user = new UserCallableByAccessKey(accessKey).call();
-            }
+        	user = userCacheByAccessKey.getAndSetIfNotPresent(accessKey, new UserCallableByAccessKey(accessKey), CMBProperties.getInstance().getUserCacheExpiring() * 1000);
             
             if (user == null) {
                 logger.error("event=get_user_by_request access_key=" + accessKey + " error_code=invalid_accesskey");
@@ -368,11 +359,7 @@ public class UserAuthModule implements IAuthModule {
         
         try {
 
-        	try {
-                user = userCacheByUserId.getAndSetIfNotPresent(userId, new UserCallableByUserId(userId), CMBProperties.getInstance().getUserCacheExpiring() * 1000);
-            } catch (CacheFullException e) {
-                user = new UserCallableByAccessKey(userId).call();
-            }
+        	user = userCacheByUserId.getAndSetIfNotPresent(userId, new UserCallableByUserId(userId), CMBProperties.getInstance().getUserCacheExpiring() * 1000);
             
             if (user == null) {
                 logger.error("event=get_user_by_userid userId=" + userId + " error_code=invalid_userid");
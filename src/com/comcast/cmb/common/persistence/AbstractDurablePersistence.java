@@ -18,6 +18,7 @@ package com.comcast.cmb.common.persistence;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.comcast.cmb.common.util.CMBProperties;
 import com.comcast.cmb.common.util.PersistenceException;
@@ -104,20 +105,17 @@ public abstract class AbstractDurablePersistence {
 	public static final String CLUSTER_NAME = CMBProperties.getInstance().getClusterName();
 	public static final String CLUSTER_URL = CMBProperties.getInstance().getClusterUrl();
 	
-	private static long counter = 0;
+	private static final AtomicLong counter = new AtomicLong(0);
 
-	public static synchronized long newTime(long t, boolean isHidden) {   
+	public static long newTime(long t, boolean isHidden) {   
         t = t << 21;
         //top 2 bits are 0. 64th and 63rd.
         //set 21st bit if hidden
         if (isHidden) {
             t |= 0x0000000000100000L;
         }
-        //add 20 bit counter
-        if (counter == 1048575) {
-            counter = 0;
-        }
-        t += counter++;
+        //add 20 bit counter, cycling through 0..1048574 - a single atomic increment instead of a global monitor
+        t += counter.getAndIncrement() % 1048575;
         return t;
     }
     
@@ -76,6 +76,12 @@ public class CMBProperties {
 
 	private final int cqsLongPollPort;
 	private final boolean cqsLongPollEnabled;
+	private final int cqsLongPollCoalesceWindowMS;
+	private final int cqsPartitionReadThreads;
+	private final int cqsPartitionReadTimeoutMS;
+	private final String cqsCompressionCodec;
+	private final long cqsQueueDepthCacheStalenessMS;
+	private final boolean cqsQueueDepthCacheIncremental;
 	
 	private final int cnsMessageExpirationSeconds;
 	
@@ -83,6 +89,10 @@ public class CMBProperties {
 	private final List<String> acceptableHttpStatusCodes;
 
 	private final int endpointFailureCountToSuspensionThreshold;
+	private final int circuitBreakerFailureThreshold;
+	private final int circuitBreakerOpenMS;
+	private final int circuitBreakerMaxConcurrency;
+	private final int circuitBreakerLatencyTargetMS;
 	
     private final String cnsServiceUrl;
 	private final String cqsServiceUrl;
@@ -153,6 +163,10 @@ public class CMBProperties {
 
     private final int httpPublisherEndpointConnectionPoolSize;
     private final int httpPublisherEndpointConnectionsPerRouteSize;
+    private final int httpPublisherIOThreads;
+    private final int httpPublisherMaxInFlightPerRoute;
+    private final int httpPublisherMaxQueuedPerRoute;
+    private final Map<String, Integer> httpPublisherRouteConnections;
     
     private final int redisPubSubEndpointConnectionTimeoutMS;
     
@@ -164,10 +178,16 @@ public class CMBProperties {
     private final int redisConnectionsMaxTotal;
     private final String redisServerList;
     private final int redisFillerThreads;
+    private final int redisFillerPartitionThreads;
+    private final int redisFillerPageSize;
     private final int redisRevisibleThreads;
     private volatile int redisRevisibleFrequencySec;
     private final int redisRevisibleSetFrequencySec;
     private final int redisExpireTTLSec;
+    private final int redisRetentionSweepIntervalSec;
+    private final int redisRetentionSweepChunkSize;
+    private final int redisPayloadCacheMaxMessageSize;
+    private final int redisPayloadCacheMaxMessagesPerQueue;
     
     private final int cassandraThriftSocketTimeOutMS;
     private final int astyanaxMaxConnectionsPerNode;
@@ -185,12 +205,15 @@ public class CMBProperties {
     
     private final int numEPPubJobProducers;
     private final int numEPPubJobConsumers;
+    private final int cnsPublisherJobReceiveBatchSize;
     private final int numPublishJobQs;
     private final int numEPPublishJobQs;
     private final int numDeliveryHandlers;
     private final int numReDeliveryHandlers;
     private final int deliveryHandlerJobQueueLimit;
     private final int reDeliveryHandlerJobQueueLimit;
+    private final int reDeliveryTickMS;
+    private final int visibilityFlushMS;
     private final int publishJobVTO;
     private final int EPPublishJobVTO;
     private final int maxSubscriptionsPerEPPublishJob;
@@ -262,6 +285,7 @@ public class CMBProperties {
 			
 			cqsLongPollPort = Integer.parseInt(props.getProperty("cmb.cqs.longpoll.port", "5555"));
 			cqsLongPollEnabled = Boolean.parseBoolean(props.getProperty("cmb.cqs.longpoll.enable", "true"));
+			cqsLongPollCoalesceWindowMS = Integer.parseInt(props.getProperty("cmb.cqs.longpoll.coalesceWindowMS", "50"));
 			
 			cnsServiceUrl = props.getProperty("cmb.cns.service.url", "http://localhost:6061/");
 			cqsServiceUrl = props.getProperty("cmb.cqs.service.url", "http://localhost:6059/");
@@ -343,6 +367,26 @@ public class CMBProperties {
             httpPublisherEndpointConnectionPoolSize = Integer.parseInt(props.getProperty("cmb.cns.publisher.http.connectionPoolSize", "250"));
             httpPublisherEndpointConnectionsPerRouteSize = Integer.parseInt(props.getProperty("cmb.cns.publisher.http.connectionsPerRouteSize", "50"));
             httpTimeoutSeconds = Integer.parseInt(props.getProperty("cmb.cns.publisher.http.httpTimeoutSeconds", "5"));
+            httpPublisherIOThreads = Integer.parseInt(props.getProperty("cmb.cns.publisher.http.ioThreads", "" + Runtime.getRuntime().availableProcessors()));
+            httpPublisherMaxInFlightPerRoute = Integer.parseInt(props.getProperty("cmb.cns.publisher.http.maxInFlightPerRoute", "100"));
+            httpPublisherMaxQueuedPerRoute = Integer.parseInt(props.getProperty("cmb.cns.publisher.http.maxQueuedPerRoute", "1000"));
+            httpPublisherRouteConnections = new HashMap<String, Integer>();
+            
+            for (String route : props.getProperty("cmb.cns.publisher.http.routeConnections", "").split(",")) {
+            	
+            	if (route.trim().length() == 0) {
+            		continue;
+            	}
+            	
+            	String[] routeParts = route.trim().split("=");
+            	
+            	if (routeParts.length != 2) {
+            		throw new IllegalArgumentException("Invalid entry " + route + " for cmb.cns.publisher.http.routeConnections, expected host:port=connections");
+            	}
+            	
+            	httpPublisherRouteConnections.put(routeParts[0].trim(), Integer.parseInt(routeParts[1].trim()));
+            }
+            
             acceptableHttpStatusCodes = Arrays.asList(props.getProperty("cmb.cns.publisher.http.acceptableStatusCodes", "").split(","));
             cnsIOMode = IO_MODE.valueOf(props.getProperty("cmb.cns.publisher.http.iomode", "sync").toUpperCase());
 			
@@ -353,16 +397,27 @@ public class CMBProperties {
             cqsCacheSizeLimit = Integer.parseInt(props.getProperty("cmb.cqs.cacheSizeLimit", "1000"));
             
             cqsNumberOfQueuePartitions = Integer.parseInt(props.getProperty("cmb.cqs.numberOfQueuePartitions", "100"));
+            cqsPartitionReadThreads = Integer.parseInt(props.getProperty("cmb.cqs.partitionReadThreads", "32"));
+            cqsPartitionReadTimeoutMS = Integer.parseInt(props.getProperty("cmb.cqs.partitionReadTimeoutMS", "5000"));
+            cqsCompressionCodec = props.getProperty("cmb.cqs.compressionCodec", "gzip");
+            cqsQueueDepthCacheStalenessMS = Long.parseLong(props.getProperty("cmb.cqs.queueDepthCacheStalenessMS", "5000"));
+            cqsQueueDepthCacheIncremental = Boolean.parseBoolean(props.getProperty("cmb.cqs.queueDepthCacheIncremental", "false"));
             
             rollingWindowTimeSec = Integer.parseInt(props.getProperty("cmb.rollingWindowSizeSec", "600"));
             
             redisConnectionsMaxTotal = Integer.parseInt(props.getProperty("cmb.redis.connectionsMaxTotal", "100"));
             redisServerList = props.getProperty("cmb.redis.serverList");
             redisFillerThreads = Integer.parseInt(props.getProperty("cmb.redis.fillerThreads", "5"));
+            redisFillerPartitionThreads = Integer.parseInt(props.getProperty("cmb.redis.fillerPartitionThreads", "4"));
+            redisFillerPageSize = Integer.parseInt(props.getProperty("cmb.redis.fillerPageSize", "1000"));
             redisRevisibleThreads = Integer.parseInt(props.getProperty("cmb.redis.revisibleThreads", "3"));
             redisExpireTTLSec = Integer.parseInt(props.getProperty("cmb.redis.expireTTLSec", "1209600"));
             redisRevisibleFrequencySec = Integer.parseInt(props.getProperty("cmb.redis.revisibleFrequencySec", "10"));
             redisRevisibleSetFrequencySec = Integer.parseInt(props.getProperty("cmb.redis.revisibleSetFrequencySec", "1"));
+            redisRetentionSweepIntervalSec = Integer.parseInt(props.getProperty("cmb.redis.retentionSweepIntervalSec", "60"));
+            redisRetentionSweepChunkSize = Integer.parseInt(props.getProperty("cmb.redis.retentionSweepChunkSize", "500"));
+            redisPayloadCacheMaxMessageSize = Integer.parseInt(props.getProperty("cmb.redis.payloadCacheMaxMessageSize", "0"));
+            redisPayloadCacheMaxMessagesPerQueue = Integer.parseInt(props.getProperty("cmb.redis.payloadCacheMaxMessagesPerQueue", "10000"));
             
             cassandraThriftSocketTimeOutMS = Integer.parseInt(props.getProperty("cmb.cassandra.thriftSocketTimeOutMS", "10000"));
             astyanaxMaxConnectionsPerNode = Integer.parseInt(props.getProperty("cmb.astyanax.maxConnectionsPerNode", "10"));
@@ -370,12 +425,15 @@ public class CMBProperties {
             
             numEPPubJobProducers = Integer.parseInt(props.getProperty("cmb.cns.publisher.numProducers", "8"));
             numEPPubJobConsumers = Integer.parseInt(props.getProperty("cmb.cns.publisher.numConsumers", "4"));
+            cnsPublisherJobReceiveBatchSize = Math.max(1, Math.min(10, Integer.parseInt(props.getProperty("cmb.cns.publisher.jobReceiveBatchSize", "10"))));
             numPublishJobQs = Integer.parseInt(props.getProperty("cmb.cns.publisher.numPublishJobQs", "2"));
             numEPPublishJobQs = Integer.parseInt(props.getProperty("cmb.cns.publisher.numEPPublishJobQs", "4"));
             numDeliveryHandlers = Integer.parseInt(props.getProperty("cmb.cns.publisher.numDeliveryHandlers", "128"));
             numReDeliveryHandlers = Integer.parseInt(props.getProperty("cmb.cns.publisher.numReDeliveryHandlers", "128"));
             deliveryHandlerJobQueueLimit = Integer.parseInt(props.getProperty("cmb.cns.publisher.deliveryHandlerJobQueueLimit", "1000"));
             reDeliveryHandlerJobQueueLimit = Integer.parseInt(props.getProperty("cmb.cns.publisher.reDeliveryHandlerJobQueueLimit", "5000"));
+            reDeliveryTickMS = Integer.parseInt(props.getProperty("cmb.cns.publisher.reDeliveryTickMS", "100"));
+            visibilityFlushMS = Integer.parseInt(props.getProperty("cmb.cns.publisher.visibilityFlushMS", "500"));
             publishJobVTO = Integer.parseInt(props.getProperty("cmb.cns.publisher.publishJobVTO", "30"));
             EPPublishJobVTO = Integer.parseInt(props.getProperty("cmb.cns.publisher.EPPublishJobVTO", "30"));
             maxSubscriptionsPerEPPublishJob = Integer.parseInt(props.getProperty("cmb.cns.publisher.maxSubscriptionsPerEPPublishJob", "100"));
@@ -383,6 +441,10 @@ public class CMBProperties {
             consumerProcessingMaxDelay = Integer.parseInt(props.getProperty("cmb.cns.publisher.consumerProcessingMaxDelay", "1000"));
             
             endpointFailureCountToSuspensionThreshold = Integer.parseInt(props.getProperty("cmb.cns.publisher.endpointFailureCountToSuspensionThreshold", "10"));
+            circuitBreakerFailureThreshold = Integer.parseInt(props.getProperty("cmb.cns.publisher.circuitBreaker.failureThreshold", "5"));
+            circuitBreakerOpenMS = Integer.parseInt(props.getProperty("cmb.cns.publisher.circuitBreaker.openMS", "30000"));
+            circuitBreakerMaxConcurrency = Integer.parseInt(props.getProperty("cmb.cns.publisher.circuitBreaker.maxConcurrency", "64"));
+            circuitBreakerLatencyTargetMS = Integer.parseInt(props.getProperty("cmb.cns.publisher.circuitBreaker.latencyTargetMS", "1000"));
             cnsMessageExpirationSeconds = Integer.parseInt(props.getProperty("cmb.cns.publisher.messageExpirationSeconds", "0"));
             
             useSubInfoCache = Boolean.parseBoolean(props.getProperty("cmb.cns.useSubInfoCache", "true"));
@@ -426,6 +488,22 @@ public class CMBProperties {
 		return endpointFailureCountToSuspensionThreshold;
 	}
 
+	public int getCNSCircuitBreakerFailureThreshold() {
+		return circuitBreakerFailureThreshold;
+	}
+
+	public int getCNSCircuitBreakerOpenMS() {
+		return circuitBreakerOpenMS;
+	}
+
+	public int getCNSCircuitBreakerMaxConcurrency() {
+		return circuitBreakerMaxConcurrency;
+	}
+
+	public int getCNSCircuitBreakerLatencyTargetMS() {
+		return circuitBreakerLatencyTargetMS;
+	}
+
 	public static CMBProperties getInstance() {			
 		return instance;
 	}
@@ -617,11 +695,39 @@ public class CMBProperties {
 	public int getCQSNumberOfQueuePartitions() {
 		return cqsNumberOfQueuePartitions;
 	}
+
+	public int getCQSPartitionReadThreads() {
+		return cqsPartitionReadThreads;
+	}
+
+	public int getCQSPartitionReadTimeoutMS() {
+		return cqsPartitionReadTimeoutMS;
+	}
+	
+	public String getCQSCompressionCodec() {
+		return cqsCompressionCodec;
+	}
+
+	public long getCQSQueueDepthCacheStalenessMS() {
+		return cqsQueueDepthCacheStalenessMS;
+	}
+
+	public boolean getCQSQueueDepthCacheIncremental() {
+		return cqsQueueDepthCacheIncremental;
+	}
 	
     public int getRedisFillerThreads() {
         return redisFillerThreads;
     }
 
+    public int getRedisFillerPartitionThreads() {
+        return redisFillerPartitionThreads;
+    }
+
+    public int getRedisFillerPageSize() {
+        return redisFillerPageSize;
+    }
+
     public int getCassandraThriftSocketTimeOutMS() {
         return cassandraThriftSocketTimeOutMS;
     }
@@ -702,6 +808,14 @@ public class CMBProperties {
         return reDeliveryHandlerJobQueueLimit;
     }
 
+	public int getCNSReDeliveryTickMS() {
+        return reDeliveryTickMS;
+    }
+
+	public int getCNSVisibilityFlushMS() {
+        return visibilityFlushMS;
+    }
+
     public void setCNSPublishJobQueueSizeLimit(int publishJobQueueSizeLimit) {
         this.publishJobQueueSizeLimit = publishJobQueueSizeLimit;
     }
@@ -722,6 +836,10 @@ public class CMBProperties {
         return numEPPubJobConsumers;
     }
 
+    public int getCNSPublisherJobReceiveBatchSize() {
+        return cnsPublisherJobReceiveBatchSize;
+    }
+
     public void setRedisRevisibleFrequencySec(int redisRevisibleFrequencySec) {
         this.redisRevisibleFrequencySec = redisRevisibleFrequencySec;
     }
@@ -738,6 +856,22 @@ public class CMBProperties {
         return redisExpireTTLSec;
     }
 
+    public int getRedisRetentionSweepIntervalSec() {
+        return redisRetentionSweepIntervalSec;
+    }
+
+    public int getRedisRetentionSweepChunkSize() {
+        return redisRetentionSweepChunkSize;
+    }
+
+    public int getRedisPayloadCacheMaxMessageSize() {
+        return redisPayloadCacheMaxMessageSize;
+    }
+
+    public int getRedisPayloadCacheMaxMessagesPerQueue() {
+        return redisPayloadCacheMaxMessagesPerQueue;
+    }
+
     public int getRedisRevisibleThreads() {
         return redisRevisibleThreads;
     }
@@ -761,6 +895,25 @@ public class CMBProperties {
     public int getCNSPublisherHttpEndpointConnectionsPerRouteSize() {
         return httpPublisherEndpointConnectionsPerRouteSize;
     }
+
+    public int getCNSPublisherHttpIOThreads() {
+        return httpPublisherIOThreads;
+    }
+
+    public int getCNSPublisherHttpMaxInFlightPerRoute() {
+        return httpPublisherMaxInFlightPerRoute;
+    }
+
+    public int getCNSPublisherHttpMaxQueuedPerRoute() {
+        return httpPublisherMaxQueuedPerRoute;
+    }
+
+    /**
+     * @return map of endpoint host:port -> max connections, overriding connectionsPerRouteSize for the async publisher
+     */
+    public Map<String, Integer> getCNSPublisherHttpRouteConnections() {
+        return httpPublisherRouteConnections;
+    }
     
 	public int getCNSPublisherHttpTimeoutSeconds() {
 		return httpTimeoutSeconds;
@@ -786,6 +939,10 @@ public class CMBProperties {
 		return cqsLongPollEnabled;
 	}
 
+	public int getCQSLongPollCoalesceWindowMS() {
+		return cqsLongPollCoalesceWindowMS;
+	}
+
 	public String getCMBDataCenter() {
 		return cmbDataCenter;
 	}
@@ -1,12 +1,12 @@
 /**
  * Copyright 2012 Comcast Corporation
- * 
+ *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
  * You may obtain a copy of the License at
- * 
+ *
  *   http://www.apache.org/licenses/LICENSE-2.0
- * 
+ *
  * Unless required by applicable law or agreed to in writing, software
  * distributed under the License is distributed on an "AS IS" BASIS,
  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
@@ -15,76 +15,158 @@
  */
 package com.comcast.cmb.common.util;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.apache.log4j.Logger;
 
 /**
  * This class is a highly concurrent cache used to cache key, value pairs with an expiration
- * on the value. 
+ * on the value.
  * The class is thread-safe
  * K - the key type
  * V - the Value type
- * 
+ *
+ * Keys are striped over a fixed number of segments, each an access ordered LRU map bounded to its share of
+ * cacheKeysLimit, so a full cache evicts its least recently used entries instead of refusing new keys.
+ * Concurrent misses for the same key share a single load. Entries read after REFRESH_AHEAD_FRACTION of their
+ * expiration has passed are reloaded in the background while the current value keeps being served.
+ *
  * @author aseem
  * Class ia thread-safe
  */
-public final class ExpiringCache<K, V> {    
-    
-    private static final Logger logger = Logger.getLogger(ExpiringCache.class);    
+public class ExpiringCache<K, V> implements ExpiringCacheMBean {
+
+    private static final Logger logger = Logger.getLogger(ExpiringCache.class);
+
+    private static final int NUM_SEGMENTS = 16;
+    private static final double REFRESH_AHEAD_FRACTION = 0.9;
+
+    private static final ExecutorService refreshExecutor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "ExpiringCacheRefresh");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+    private final String name;
     private final int cacheKeysLimit;
+    private final List<Segment> segments;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong expirationCount = new AtomicLong();
+    private final AtomicLong refreshCount = new AtomicLong();
+    private final AtomicLong loadFailureCount = new AtomicLong();
+
     /**
      * @param cacheKeysLimit The maximum number of keys in the cache
      */
     public ExpiringCache(int cacheKeysLimit) {
+        this(null, cacheKeysLimit);
+    }
+
+    /**
+     * @param name If not null, counters are exposed over JMX as com.comcast.cmb.common.util:type=ExpiringCache,name=[name]
+     * @param cacheKeysLimit The maximum number of keys in the cache
+     */
+    public ExpiringCache(String name, int cacheKeysLimit) {
+
+        this.name = name;
         this.cacheKeysLimit = cacheKeysLimit;
+        this.segments = new ArrayList<Segment>(NUM_SEGMENTS);
+
+        int segmentLimit = Math.max(1, (cacheKeysLimit + NUM_SEGMENTS - 1) / NUM_SEGMENTS);
+
+        for (int i = 0; i < NUM_SEGMENTS; i++) {
+        	segments.add(new Segment(segmentLimit));
+        }
+
+        if (name != null) {
+
+        	try {
+
+        		MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        		ObjectName objectName = new ObjectName("com.comcast.cmb.common.util:type=ExpiringCache,name=" + name);
+
+        		if (!mbs.isRegistered(objectName)) {
+        			mbs.registerMBean(this, objectName);
+        		}
+
+        	} catch (Exception ex) {
+        		logger.warn("event=failed_to_register_cache_monitor name=" + name, ex);
+        	}
+        }
     }
-    
+
     private class ValueContainer {
         final FutureTask<V> future;
         final long createdTimestamp;
         final int exp;
+        final AtomicBoolean refreshing = new AtomicBoolean(false);
         public ValueContainer(FutureTask<V> val, long ts, int expP) {
             future = val; createdTimestamp = ts; exp = expP;
         }
-    }
-         
-    private ConcurrentHashMap<K, ValueContainer> cache = new ConcurrentHashMap<K, ValueContainer>();
-    
-    /**
-     * Clean up the expired key values.
-     * This operation has complexity O(n) where n is the number of key, value pairs stored in the
-     * cache.
-     * Note: THis method is not synchronized with the getAndSetIfNotPresent. Its possible for a race condition
-     * where we evict something from the cache that was just recently set in cache. That's an acceptable tradeoff
-     * This is why we try and minimize calls to cleanup
-     */
-    private void cleanup() {
-        for (Map.Entry<K, ValueContainer> entry : cache.entrySet()) {
-            if (entry.getValue().createdTimestamp + entry.getValue().exp < System.currentTimeMillis()) {
-                cache.remove(entry.getKey());
-            }
+        boolean isExpired(long now) {
+        	return createdTimestamp + exp < now;
         }
     }
-    
+
+    @SuppressWarnings("serial")
+	private class Segment extends LinkedHashMap<K, ValueContainer> {
+
+    	private final int limit;
+
+    	Segment(int limit) {
+    		super(16, 0.75f, true);
+    		this.limit = limit;
+    	}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, ValueContainer> eldest) {
+			if (size() > limit) {
+				evictionCount.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+    }
+
+    private Segment segmentFor(K key) {
+    	int h = key.hashCode();
+    	h ^= (h >>> 20) ^ (h >>> 12);
+    	h ^= (h >>> 7) ^ (h >>> 4);
+    	return segments.get(h & (NUM_SEGMENTS - 1));
+    }
+
     /**
      * @param key
      * @return true if cache contains key whose value has not yet expired, false otherwise
      */
     public boolean containsKey(K key) {
-        ValueContainer existingValContainer = cache.get(key);
-        if (existingValContainer != null) {
-            if (existingValContainer.createdTimestamp + existingValContainer.exp > System.currentTimeMillis()) {
-                return true;
-            }
-        }
-        return false;
+    	Segment segment = segmentFor(key);
+    	ValueContainer existingValContainer;
+    	synchronized (segment) {
+    		existingValContainer = segment.get(key);
+    	}
+        return existingValContainer != null && !existingValContainer.isExpired(currentTimeMillis());
     }
-    
+
     /**
      * Remove a key from the cache
      * @param key
@@ -93,75 +175,162 @@ public final class ExpiringCache<K, V> {
     	if (key == null) {
     		return;
     	}
-    	cache.remove(key);
+    	Segment segment = segmentFor(key);
+    	synchronized (segment) {
+    		segment.remove(key);
+    	}
     }
-    
-    /**
-     * Thrown when cache reaches its configured limit
-     */
-    @SuppressWarnings("serial")
-    public static class CacheFullException extends Exception {}
-    
+
     /**
-     * 
-     * @param key THe key 
+     *
+     * @param key THe key
      * @param valueGetter The Caller that will get the V value if none is cached or if previous one expired
      * @param exp THe expiration time in milliseconds
      * @return The Value V that was cached ir that just got cached.
-     * @throws InterruptedException
-     * @throws ExecutionException
-     * Note: method will block if we need to call valueGetter
-     * Note: THere is a window where t1 could add a new future-task and t2 could be removing it
+     * Note: method will block if we need to call valueGetter, concurrent callers for the same key wait for the same call
+     * Note: a failed valueGetter call is not cached, the IllegalStateException thrown wraps the ExecutionException
      */
-    public V getAndSetIfNotPresent(K key, Callable<V> valueGetter, int exp) throws CacheFullException {
-        
-        ValueContainer existingValContainer = cache.get(key);
-        if (existingValContainer != null) {
-            if (existingValContainer.createdTimestamp + existingValContainer.exp < System.currentTimeMillis()) {
-                //expired
-                FutureTask<V> ft = new FutureTask<V>(valueGetter);
-                ValueContainer valContainer = new ValueContainer(ft, System.currentTimeMillis(), exp);
-                if (cache.replace(key, existingValContainer, valContainer)) { //was replaced
-                    valContainer.future.run();
-                    try {
-                        return valContainer.future.get();
-                    } catch (Exception e) {
-                        logger.error("event=no_value_getter", e);
-                        throw new IllegalStateException("Could not get value from valueGetter", e);
-                    }
-                } else {
-                    //someone beat us to it. Lets do this again
-                    return getAndSetIfNotPresent(key, valueGetter, exp);
-                }
-            } else {
-                try {
-                    return existingValContainer.future.get();
-                } catch (Exception e) {
-                    logger.error("event=no_value_getter_from_cache", e);
-                    throw new IllegalStateException("Could not get value from existing cache entry", e);
-                }
-            }
-        }
-        
-        //Below is code when no ValueGetter exists for key
-        if (cache.size() >= cacheKeysLimit) {
-            cleanup();
-            throw new CacheFullException();
-        }
-        
-        FutureTask<V> ft = new FutureTask<V>(valueGetter);
-        ValueContainer valContainer = new ValueContainer(ft, System.currentTimeMillis(), exp);
-
-        existingValContainer = cache.putIfAbsent(key, valContainer);
-        if (existingValContainer == null) { //none previously existing
-            valContainer.future.run();
-            existingValContainer = valContainer;
-        }
+    public V getAndSetIfNotPresent(K key, Callable<V> valueGetter, int exp) {
+
+    	Segment segment = segmentFor(key);
+    	ValueContainer valContainer = null;
+    	boolean load = false;
+    	long now = currentTimeMillis();
+
+    	synchronized (segment) {
+
+    		valContainer = segment.get(key);
+
+    		if (valContainer != null && valContainer.isExpired(now)) {
+    			segment.remove(key);
+    			expirationCount.incrementAndGet();
+    			valContainer = null;
+    		}
+
+    		if (valContainer == null) {
+    			valContainer = new ValueContainer(new FutureTask<V>(valueGetter), now, exp);
+    			segment.put(key, valContainer);
+    			load = true;
+    		}
+    	}
+
+    	if (load) {
+    		missCount.incrementAndGet();
+    		valContainer.future.run();
+    	} else {
+    		hitCount.incrementAndGet();
+    		if (valContainer.future.isDone() && now - valContainer.createdTimestamp > valContainer.exp * REFRESH_AHEAD_FRACTION) {
+    			refreshAhead(segment, key, valContainer, valueGetter, exp);
+    		}
+    	}
+
         try {
-            return existingValContainer.future.get(); //will block till valueGetter returns a value
+            return valContainer.future.get(); //will block till valueGetter returns a value
         } catch (Exception e) {
+        	synchronized (segment) {
+        		if (segment.get(key) == valContainer) {
+        			segment.remove(key);
+        		}
+        	}
+        	loadFailureCount.incrementAndGet();
             logger.error("event=no_value_getter_from_callable", e);
             throw new IllegalStateException("Could not get value from user passed Callable:" + valueGetter, e);
-        } 
+        }
     }
+
+    private void refreshAhead(final Segment segment, final K key, final ValueContainer valContainer, final Callable<V> valueGetter, final int exp) {
+
+    	if (!valContainer.refreshing.compareAndSet(false, true)) {
+    		return;
+    	}
+
+    	refreshExecutor.execute(new Runnable() {
+    		public void run() {
+
+    			FutureTask<V> ft = new FutureTask<V>(valueGetter);
+    			ft.run();
+
+    			try {
+    				ft.get();
+    			} catch (Exception ex) {
+    				logger.warn("event=cache_refresh_failed name=" + name + " key=" + key, ex);
+    				valContainer.refreshing.set(false);
+    				return;
+    			}
+
+    			// only replace if the entry was not removed or reloaded in the meantime
+
+    			synchronized (segment) {
+    				if (segment.get(key) == valContainer) {
+    					segment.put(key, new ValueContainer(ft, currentTimeMillis(), exp));
+    					refreshCount.incrementAndGet();
+    				}
+    			}
+    		}
+    	});
+    }
+
+    /**
+     * @return current time, overridden in tests
+     */
+    protected long currentTimeMillis() {
+    	return System.currentTimeMillis();
+    }
+
+    public int size() {
+    	int size = 0;
+    	for (Segment segment : segments) {
+    		synchronized (segment) {
+    			size += segment.size();
+    		}
+    	}
+    	return size;
+    }
+
+	@Override
+	public int getSize() {
+		return size();
+	}
+
+	@Override
+	public int getCacheKeysLimit() {
+		return cacheKeysLimit;
+	}
+
+	@Override
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	@Override
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	@Override
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	@Override
+	public long getExpirationCount() {
+		return expirationCount.get();
+	}
+
+	@Override
+	public long getRefreshCount() {
+		return refreshCount.get();
+	}
+
+	@Override
+	public long getLoadFailureCount() {
+		return loadFailureCount.get();
+	}
+
+	@Override
+	public int getHitPercent() {
+		long hits = hitCount.get();
+		long total = hits + missCount.get();
+		return total == 0 ? 0 : (int)(hits * 100 / total);
+	}
 }
@@ -0,0 +1,55 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cmb.common.util;
+
+/**
+ * Counters of an ExpiringCache exposed over JMX
+ */
+public interface ExpiringCacheMBean {
+
+	/**
+	 * @return number of keys currently held, including expired ones not yet removed
+	 */
+	public int getSize();
+
+	public int getCacheKeysLimit();
+
+	/**
+	 * @return number of lookups served from a cached value
+	 */
+	public long getHitCount();
+
+	/**
+	 * @return number of lookups that had to load the value
+	 */
+	public long getMissCount();
+
+	/**
+	 * @return number of least recently used entries dropped to stay within the key limit
+	 */
+	public long getEvictionCount();
+
+	public long getExpirationCount();
+
+	/**
+	 * @return number of entries reloaded in the background before they expired
+	 */
+	public long getRefreshCount();
+
+	public long getLoadFailureCount();
+
+	public int getHitPercent();
+}
@@ -1,12 +1,12 @@
 /**
  * Copyright 2012 Comcast Corporation
- * 
+ *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
  * You may obtain a copy of the License at
- * 
+ *
  *   http://www.apache.org/licenses/LICENSE-2.0
- * 
+ *
  * Unless required by applicable law or agreed to in writing, software
  * distributed under the License is distributed on an "AS IS" BASIS,
  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
@@ -16,126 +16,206 @@
 
 package com.comcast.cmb.common.util;
 
-import java.util.Iterator;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
-
-import org.apache.log4j.Logger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
- * A utility class used to capture objects in a rolling window fashion
- * Note: This class should not be used if there are a lot of adding of events
- * instead callers should get the latest node and modify that in most cases
- * 
- * @author aseem
+ * A utility class used to count events per key in a rolling window fashion
+ *
+ * The window is split into a ring of fixed time buckets, each holding one counter per key. Adding to a key
+ * increments the counter in the current bucket, so adds are O(1) and allocate nothing once the key has been
+ * seen in the bucket. Queries sum the live buckets, O(numBuckets). A bucket is recycled as a whole once it
+ * falls out of the window, so the window moves forward in steps of windowSizeSec/numBuckets.
+ *
+ * @author aseem, bwolf
  * Class is thread-safe
  */
-public final class RollingWindowCapture<T extends RollingWindowCapture.PayLoad> {
-
-	private static Logger logger = Logger.getLogger(RollingWindowCapture.class);
-    
-    private final long _windowSizeSec;
-    private final int _tolerance;
-    private final AtomicInteger _toleranceCount;
-
-    private class PayLoadNode {
-        public final T _payLoad;
-        private final long _captureTime;
-        public PayLoadNode(T payload, long captureTime) {
-            _payLoad = payload;
-            _captureTime = captureTime;
-        }
+public final class RollingWindowCapture<K> {
+
+	public static final int DEFAULT_NUM_BUCKETS = 10;
+
+    private final long _bucketSizeMillis;
+    private final int _numBuckets;
+
+    private static class Bucket<K> {
+
+    	// number of bucket sized intervals since the epoch, identifies which interval the slot currently holds
+    	private final long _index;
+    	private final ConcurrentHashMap<K, AtomicInteger> _counts = new ConcurrentHashMap<K, AtomicInteger>();
+
+    	public Bucket(long index) {
+    		_index = index;
+    	}
     }
 
-    //internally we used a CopyOnWriteArrayList to implement the rolling window in chronological order. 
-    //First node is the oldest node
-    //We use CopyOnWriteArrayList since its the only standard data-structure provided that offers concurrent
-    //access to its elements and provides the List interface, specifically get(index) method. We need this
-    //method to return the tail of the rollingwindow.
-    
-    private CopyOnWriteArrayList<PayLoadNode> _queue = new CopyOnWriteArrayList<PayLoadNode>();
-    
-    public static interface Visitor<T> {
-        public void processNode(T n);
+    private final AtomicReferenceArray<Bucket<K>> _buckets;
+
+    /**
+     * @param windowSizeSec the size of rolling window in seconds
+     */
+    public RollingWindowCapture(int windowSizeSec) {
+        this(windowSizeSec, DEFAULT_NUM_BUCKETS);
     }
 
     /**
-     * The payl0ad to capture in window
      *
+     * @param windowSizeSec the size of rolling window in seconds
+     * @param numBuckets the number of buckets the window is split into
+     */
+    public RollingWindowCapture(int windowSizeSec, int numBuckets) {
+
+    	if (windowSizeSec <= 0 || numBuckets <= 0) {
+    		throw new IllegalArgumentException("windowSizeSec and numBuckets must be positive");
+    	}
+
+    	_numBuckets = numBuckets;
+        _bucketSizeMillis = Math.max(1, windowSizeSec * 1000L / numBuckets);
+        _buckets = new AtomicReferenceArray<Bucket<K>>(numBuckets);
+    }
+
+    /**
+     * Add delta to the current count of key
      */
-    public static abstract class PayLoad {}
-    
+    public void add(K key, int delta) {
+
+    	Bucket<K> bucket = getCurrentBucket(System.currentTimeMillis() / _bucketSizeMillis);
+
+    	if (bucket == null) {
+    		return;
+    	}
+
+    	AtomicInteger counter = bucket._counts.get(key);
+
+    	if (counter == null) {
+
+    		counter = new AtomicInteger();
+    		AtomicInteger prev = bucket._counts.putIfAbsent(key, counter);
+
+    		if (prev != null) {
+    			counter = prev;
+    		}
+    	}
+
+    	counter.addAndGet(delta);
+    }
+
     /**
-     * 
-     * @param windowSizeSec the size of rolling window in seconds
-     * @param tolerance the number of adds you can go over before must reduce the window
+     * Add one to the current count of key
+     */
+    public void increment(K key) {
+    	add(key, 1);
+    }
+
+    /**
+     * @return the bucket for the interval with the given index, replacing the expired bucket occupying its slot if
+     * necessary, or null if the slot has already moved on to a later interval
      */
-    public RollingWindowCapture(int windowSizeSec, int tolerance) {
-        _windowSizeSec = windowSizeSec;
-        _tolerance = tolerance;
-        _toleranceCount = new AtomicInteger();
+    private Bucket<K> getCurrentBucket(long index) {
+
+    	int slot = (int)(index % _numBuckets);
+
+    	while (true) {
+
+    		Bucket<K> bucket = _buckets.get(slot);
+
+    		if (bucket != null && bucket._index == index) {
+    			return bucket;
+    		} else if (bucket != null && bucket._index > index) {
+    			return null;
+    		}
+
+    		Bucket<K> fresh = new Bucket<K>(index);
+
+    		if (_buckets.compareAndSet(slot, bucket, fresh)) {
+    			return fresh;
+    		}
+    	}
     }
-    
+
+    private boolean isLive(Bucket<K> bucket, long currentIndex) {
+    	return bucket != null && bucket._index > currentIndex - _numBuckets && bucket._index <= currentIndex;
+    }
+
     /**
-     * Method would traverse the entire list of elements in the window and call
-     * the visitor on each node
-     * @param v the Visitor impl
+     * @return sum of all counts added for key within the window
      */
-    public void visitAllNodes(Visitor<T> v) {
-        cleanupWindow();
-        Iterator<PayLoadNode> it = _queue.iterator();
-        while (it.hasNext()) {
-            PayLoadNode node = it.next();
-            v.processNode(node._payLoad);
-        }
+    public int getCount(K key) {
+
+    	long currentIndex = System.currentTimeMillis() / _bucketSizeMillis;
+    	int count = 0;
+
+    	for (int i = 0; i < _numBuckets; i++) {
+
+    		Bucket<K> bucket = _buckets.get(i);
+
+    		if (isLive(bucket, currentIndex)) {
+
+    			AtomicInteger counter = bucket._counts.get(key);
+
+    			if (counter != null) {
+    				count += counter.get();
+    			}
+    		}
+    	}
+
+    	return count;
     }
-    
+
     /**
-     * Add current time to the header of list
-     * Note: This is an expensive operation O(n) complexity where n is the number of elements in the list
+     * @return sum of all counts added within the window, regardless of key
      */
-    public void addNow(T payLoad) {
-        PayLoadNode node = new PayLoadNode(payLoad, System.currentTimeMillis());        
-        _queue.add(node);
-        if (_toleranceCount.incrementAndGet() >= _tolerance) {
-            cleanupWindow();
-        }
+    public int getTotal() {
+
+    	long currentIndex = System.currentTimeMillis() / _bucketSizeMillis;
+    	int count = 0;
+
+    	for (int i = 0; i < _numBuckets; i++) {
+
+    		Bucket<K> bucket = _buckets.get(i);
+
+    		if (isLive(bucket, currentIndex)) {
+    			for (AtomicInteger counter : bucket._counts.values()) {
+    				count += counter.get();
+    			}
+    		}
+    	}
+
+    	return count;
     }
 
     /**
-     * @return The last added payload or null if no element
+     * @return snapshot of the counts within the window per key
      */
-    public T getLatestPayload() {
-        boolean success = false;
-        while (!success) {
-            if (_queue.size() == 0) return null;
-            try {
-                PayLoadNode head = _queue.get(_queue.size() - 1);
-                success = true;
-                return head._payLoad;
-            } catch (IndexOutOfBoundsException e) {}
-        }
-        return null;
+    public Map<K, Integer> getCounts() {
+
+    	long currentIndex = System.currentTimeMillis() / _bucketSizeMillis;
+    	Map<K, Integer> counts = new HashMap<K, Integer>();
+
+    	for (int i = 0; i < _numBuckets; i++) {
+
+    		Bucket<K> bucket = _buckets.get(i);
+
+    		if (isLive(bucket, currentIndex)) {
+
+    			for (Map.Entry<K, AtomicInteger> entry : bucket._counts.entrySet()) {
+    				Integer count = counts.get(entry.getKey());
+    				counts.put(entry.getKey(), (count == null ? 0 : count) + entry.getValue().get());
+    			}
+    		}
+    	}
+
+    	return counts;
     }
-    
+
     /**
-     * Go through the beginning of the queue and remove all expired nodes
+     * Drop all counts
      */
-    private void cleanupWindow() {
-        long now = System.currentTimeMillis();
-        Iterator<PayLoadNode> it = _queue.iterator();
-        while (it.hasNext()) {
-            PayLoadNode node = it.next();
-            if (node._captureTime + (_windowSizeSec*1000) < now) {
-                if (!_queue.remove(node)) {
-                    logger.debug("event=cleanup_window status=queue_did_not_change info=node_may_have_been_deleted");
-                }
-            } else {
-                //found the first node in the capture window. we are done
-                _toleranceCount.set(0);
-                return;
-            }
-        }
-        _toleranceCount.set(0);
+    public void clear() {
+    	for (int i = 0; i < _numBuckets; i++) {
+    		_buckets.set(i, null);
+    	}
     }
 }
@@ -22,7 +22,6 @@ import java.util.concurrent.Callable;
 import com.comcast.cmb.common.persistence.PersistenceFactory;
 import com.comcast.cmb.common.util.CMBProperties;
 import com.comcast.cmb.common.util.ExpiringCache;
-import com.comcast.cmb.common.util.ExpiringCache.CacheFullException;
 import com.comcast.cns.model.CNSSubscription;
 import com.comcast.cns.model.CNSTopic;
 import com.comcast.cns.model.CNSTopicAttributes;
@@ -36,13 +35,13 @@ import com.comcast.cns.persistence.ICNSTopicPersistence;
  */
 public class CNSCache {
 	
-    private static volatile ExpiringCache<String, CNSTopicAttributes> attributeCache = new ExpiringCache<String, CNSTopicAttributes>(CMBProperties.getInstance().getCNSCacheSizeLimit());
+    private static volatile ExpiringCache<String, CNSTopicAttributes> attributeCache = new ExpiringCache<String, CNSTopicAttributes>("CNSTopicAttributesCache", CMBProperties.getInstance().getCNSCacheSizeLimit());
 	private static volatile ICNSAttributesPersistence attributeHandler = PersistenceFactory.getCNSAttributePersistence();
 
-    private static volatile ExpiringCache<String, List<CNSSubscription>> confirmedSubscriptionsCache = new ExpiringCache<String, List<CNSSubscription>>(CMBProperties.getInstance().getCNSCacheSizeLimit());
+    private static volatile ExpiringCache<String, List<CNSSubscription>> confirmedSubscriptionsCache = new ExpiringCache<String, List<CNSSubscription>>("CNSConfirmedSubscriptionsCache", CMBProperties.getInstance().getCNSCacheSizeLimit());
 	private static volatile ICNSSubscriptionPersistence subscriptionHandler = PersistenceFactory.getSubscriptionPersistence();
 	
-    private static ExpiringCache<String, CNSTopic> topicCache = new ExpiringCache<String, CNSTopic>(CMBProperties.getInstance().getCNSCacheSizeLimit());
+    private static ExpiringCache<String, CNSTopic> topicCache = new ExpiringCache<String, CNSTopic>("CNSTopicCache", CMBProperties.getInstance().getCNSCacheSizeLimit());
     private static ICNSTopicPersistence topicHandler = PersistenceFactory.getTopicPersistence();
     
 	
@@ -174,9 +173,7 @@ public class CNSCache {
 
 		try {
 			subscriptions = confirmedSubscriptionsCache.getAndSetIfNotPresent(topicArn, new SubscriptionCallable(topicArn), CMBProperties.getInstance().getCNSCacheExpiring() * 1000);
-        } catch (CacheFullException ex1) {
-        	subscriptions = new SubscriptionCallable(topicArn).call();
-        } catch (Exception ex2) {
+        } catch (Exception ex) {
         	subscriptions = null;
         }
         
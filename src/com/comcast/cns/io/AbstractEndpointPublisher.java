@@ -3,7 +3,9 @@ package com.comcast.cns.io;
 import java.util.Map;
 
 import com.comcast.cmb.common.model.User;
+import com.comcast.cmb.common.util.CMBException;
 import com.comcast.cns.model.CNSMessage;
+import com.comcast.cns.model.CNSSubscription.CnsSubscriptionProtocol;
 import com.comcast.cqs.model.CQSMessageAttribute;
 
 public abstract class AbstractEndpointPublisher implements IEndpointPublisher {
@@ -119,6 +121,34 @@ public abstract class AbstractEndpointPublisher implements IEndpointPublisher {
 		this.subscriptionArn = subscriptionArn;
 	}
 
+	/**
+	 * Payload for this publisher's subscription, see CNSMessage.getPayload()
+	 * @param protocol
+	 * @return the payload
+	 * @throws CMBException
+	 */
+	protected String getPayload(CnsSubscriptionProtocol protocol) throws CMBException {
+		return message.getPayload(protocol, isRawMessageDelivery(), getPayloadSubscriptionArn());
+	}
+	
+	/**
+	 * UTF-8 encoded payload for this publisher's subscription, possibly shared with other subscriptions and not to be modified
+	 * @param protocol
+	 * @return the payload bytes
+	 * @throws CMBException
+	 */
+	protected byte[] getPayloadBytes(CnsSubscriptionProtocol protocol) throws CMBException {
+		return message.getPayloadBytes(protocol, isRawMessageDelivery(), getPayloadSubscriptionArn());
+	}
+	
+	private boolean isRawMessageDelivery() {
+		return rawMessageDelivery != null && rawMessageDelivery;
+	}
+	
+	private String getPayloadSubscriptionArn() {
+		return subscriptionArn != null ? subscriptionArn : message.getSubscriptionArn();
+	}
+
 	@Override
 	abstract public void send() throws Exception;
 }
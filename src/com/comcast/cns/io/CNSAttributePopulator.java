@@ -29,7 +29,7 @@ public class CNSAttributePopulator {
 
 	public static String getGetSubscriptionAttributesResponse(CNSSubscription sub, CNSSubscriptionAttributes attr) {
 
-		StringBuffer out = new StringBuffer("<GetSubscriptionAttributesResponse xmlns=\"http://sns.amazonaws.com/doc/2010-03-31/\">\n");
+		StringBuilder out = new StringBuilder("<GetSubscriptionAttributesResponse xmlns=\"http://sns.amazonaws.com/doc/2010-03-31/\">\n");
 		out.append("\t<GetSubscriptionAttributesResult>\n");
 		out.append("\t\t<Attributes>\n");
 		out.append("\t\t\t<entry>\n");
@@ -78,7 +78,7 @@ public class CNSAttributePopulator {
 
 	public static String getGetTopicAttributesResponse(CNSTopicAttributes attr) {
 
-		StringBuffer out = new StringBuffer("<GetTopicAttributesResponse>\n");
+		StringBuilder out = new StringBuilder("<GetTopicAttributesResponse>\n");
 		
 		out.append("\t<GetTopicAttributesResult>\n");
 		out.append("\t\t<Attributes>\n");
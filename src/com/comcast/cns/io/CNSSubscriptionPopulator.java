@@ -28,7 +28,7 @@ public class CNSSubscriptionPopulator {
 
 	public static String getSubscribeResponse(String subscriptionArn) {
 		
-		StringBuffer out = new StringBuffer("<SubscribeResponse xmlns=\"http://sns.amazonaws.com/doc/2010-03-31/\">\n");
+		StringBuilder out = new StringBuilder("<SubscribeResponse xmlns=\"http://sns.amazonaws.com/doc/2010-03-31/\">\n");
 		
 		out.append("\t<SubscribeResult>\n");
 		out.append("\t\t<SubscriptionArn>" + subscriptionArn + "</SubscriptionArn>\n");
@@ -41,7 +41,7 @@ public class CNSSubscriptionPopulator {
 
 	private static String printSubscription(CNSSubscription subscription) {
 		
-		StringBuffer out = new StringBuffer("<member>");
+		StringBuilder out = new StringBuilder("<member>");
 		
 		out.append("<TopicArn>").append(subscription.getTopicArn()).append("</TopicArn>");
 		out.append("<Protocol>").append(subscription.getProtocol()).append("</Protocol>");
@@ -55,7 +55,7 @@ public class CNSSubscriptionPopulator {
 
 	public static String getListSubscriptionResponse(List<CNSSubscription> subscriptions, String nextToken) {
 		
-		StringBuffer out = new StringBuffer("<ListSubscriptionsResponse xmlns=\"http://sns.amazonaws.com/doc/2010-03-31/\">\n");
+		StringBuilder out = new StringBuilder("<ListSubscriptionsResponse xmlns=\"http://sns.amazonaws.com/doc/2010-03-31/\">\n");
 		out.append("\t<ListSubscriptionsResult>\n");
 		out.append("\t\t<Subscriptions>\n");
 		
@@ -84,7 +84,7 @@ public class CNSSubscriptionPopulator {
 
 	public static String getListSubscriptionByTopicResponse(List<CNSSubscription> subscriptions, String nextToken) {
 		
-		StringBuffer out = new StringBuffer("<ListSubscriptionsByTopicResponse xmlns=\"http://sns.amazonaws.com/doc/2010-03-31/\">\n");
+		StringBuilder out = new StringBuilder("<ListSubscriptionsByTopicResponse xmlns=\"http://sns.amazonaws.com/doc/2010-03-31/\">\n");
 		out.append("\t<ListSubscriptionsByTopicResult>\n");
 		out.append("\t\t<Subscriptions>\n");
 		
@@ -107,7 +107,7 @@ public class CNSSubscriptionPopulator {
 
 	public static String getConfirmSubscriptionResponse(CNSSubscription subscription) {
 		
-		StringBuffer out = new StringBuffer("<ConfirmSubscriptionResponse xmlns=\"http://sns.amazonaws.com/doc/2010-03-31/\">\n");
+		StringBuilder out = new StringBuilder("<ConfirmSubscriptionResponse xmlns=\"http://sns.amazonaws.com/doc/2010-03-31/\">\n");
 		out.append("\t<ConfirmSubscriptionResult>\n");
 		out.append("\t\t<SubscriptionArn>").append(subscription.getArn()).append("</SubscriptionArn>\n");
 		out.append("\t</ConfirmSubscriptionResult>\n");
@@ -119,7 +119,7 @@ public class CNSSubscriptionPopulator {
 
 	public static String getPublishResponse(List<String> receiptHandles) {
 		
-		StringBuffer out = new StringBuffer("<PublishResponse xmlns=\"http://sns.amazonaws.com/doc/2010-03-31/\">\n");
+		StringBuilder out = new StringBuilder("<PublishResponse xmlns=\"http://sns.amazonaws.com/doc/2010-03-31/\">\n");
 		out.append("\t<PublishResult>\n");
 		for (String handle : receiptHandles) {
 			out.append("\t\t<MessageId>").append(handle).append("</MessageId>\n");
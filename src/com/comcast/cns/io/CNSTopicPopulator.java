@@ -27,7 +27,7 @@ import com.comcast.cns.model.CNSTopic;
 public class CNSTopicPopulator {
 	
 	public static String getCreateTopicResponse(String arn) {
-		StringBuffer out = new StringBuffer("<CreateTopicResponse xmlns=\"http://sns.amazonaws.com/doc/2010-03-31/\">\n");
+		StringBuilder out = new StringBuilder("<CreateTopicResponse xmlns=\"http://sns.amazonaws.com/doc/2010-03-31/\">\n");
 		out.append("\t<CreateTopicResult>\n");
 		out.append("\t\t<TopicArn>").append(arn).append("</TopicArn>\n");
 		out.append("\t</CreateTopicResult>\n");
@@ -42,7 +42,7 @@ public class CNSTopicPopulator {
 	
 	public static String getListTopicsResponse(List<CNSTopic> topics, String nextToken) {
 		
-		StringBuffer out = new StringBuffer("<ListTopicsResponse xmlns=\"http://sns.amazonaws.com/doc/2010-03-31/\">\n");
+		StringBuilder out = new StringBuilder("<ListTopicsResponse xmlns=\"http://sns.amazonaws.com/doc/2010-03-31/\">\n");
 		out.append("\t<ListTopicsResult>\n");
 		out.append("\t\t<Topics>\n");
 		
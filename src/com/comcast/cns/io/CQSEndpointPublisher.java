@@ -23,8 +23,6 @@ import com.amazonaws.services.sqs.AmazonSQSClient;
 import com.amazonaws.services.sqs.model.SendMessageRequest;
 import com.comcast.cmb.common.util.CMBException;
 import com.comcast.cmb.common.util.CMBProperties;
-import com.comcast.cns.model.CNSMessage.CNSMessageStructure;
-import com.comcast.cns.model.CNSMessage.CNSMessageType;
 import com.comcast.cns.model.CNSSubscription.CnsSubscriptionProtocol;
 import com.comcast.cns.util.CNSErrorCodes;
 import com.comcast.cqs.api.CQSAPI;
@@ -59,17 +57,7 @@ public class CQSEndpointPublisher extends AbstractEndpointPublisher {
 
 		try {
 
-			String msg = null;
-			
-			if (message.getMessageStructure() == CNSMessageStructure.json) {
-				msg = message.getProtocolSpecificMessage(CnsSubscriptionProtocol.cqs);
-			} else {
-				msg = message.getMessage();
-			}
-			
-			if (!rawMessageDelivery && message.getMessageType() == CNSMessageType.Notification) {
-				msg = com.comcast.cns.util.Util.generateMessageJson(message, CnsSubscriptionProtocol.cqs);
-			}
+			String msg = getPayload(CnsSubscriptionProtocol.cqs);
 			
 			if (msg == null) {
 				logger.warn("event=message_is_null endpoint=" + endpoint);
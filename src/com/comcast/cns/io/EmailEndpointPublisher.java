@@ -18,8 +18,6 @@ package com.comcast.cns.io;
 import org.apache.log4j.Logger;
 
 import com.comcast.cmb.common.util.CMBProperties;
-import com.comcast.cns.model.CNSMessage.CNSMessageStructure;
-import com.comcast.cns.model.CNSMessage.CNSMessageType;
 import com.comcast.cns.model.CNSSubscription.CnsSubscriptionProtocol;
 import com.comcast.cns.util.MailWrapper;
 
@@ -39,17 +37,7 @@ public class EmailEndpointPublisher extends AbstractEndpointPublisher {
 			return;
 		}
 		
-		String msg = null;
-		
-		if (message.getMessageStructure() == CNSMessageStructure.json) {
-			msg = message.getProtocolSpecificMessage(CnsSubscriptionProtocol.email);
-		} else {
-			msg = message.getMessage();
-		}
-		
-		if (!rawMessageDelivery && message.getMessageType() == CNSMessageType.Notification) {
-			msg = com.comcast.cns.util.Util.generateMessageJson(message, CnsSubscriptionProtocol.email);
-		}
+		String msg = getPayload(CnsSubscriptionProtocol.email);
 
 		logger.debug("event=send_email endpoint=" + endpoint + " subject=\"" + subject + " message=\"" + msg + "\"");
 		
@@ -16,8 +16,6 @@
 package com.comcast.cns.io;
 
 import com.comcast.cmb.common.util.CMBProperties;
-import com.comcast.cns.model.CNSMessage.CNSMessageStructure;
-import com.comcast.cns.model.CNSMessage.CNSMessageType;
 import com.comcast.cns.model.CNSSubscription.CnsSubscriptionProtocol;
 import com.comcast.cns.util.MailWrapper;
 
@@ -38,17 +36,7 @@ public class EmailJsonEndpointPublisher extends EmailEndpointPublisher {
 		
 		MailWrapper mailAgent = new MailWrapper(); 
 
-		String msg = null;
-		
-		if (message.getMessageStructure() == CNSMessageStructure.json) {
-			msg = message.getProtocolSpecificMessage(CnsSubscriptionProtocol.email_json);
-		} else {
-			msg = message.getMessage();
-		}
-		
-		if (!rawMessageDelivery && message.getMessageType() == CNSMessageType.Notification) {
-			msg = com.comcast.cns.util.Util.generateMessageJson(message, CnsSubscriptionProtocol.email_json);
-		}
+		String msg = getPayload(CnsSubscriptionProtocol.email_json);
 
 		logger.debug("event=send_email endpoint=" + endpoint + " subject=\"" + subject + " message=\"" + msg + "\"");
 
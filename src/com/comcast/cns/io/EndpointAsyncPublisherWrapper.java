@@ -91,4 +91,24 @@ public class EndpointAsyncPublisherWrapper extends AbstractEndpointPublisher{
 	public String getSubject() {
 		return publisher.getSubject();
 	}
+
+	@Override
+	public void setRawMessageDelivery(Boolean rawMessageDelivery) {
+		publisher.setRawMessageDelivery(rawMessageDelivery);
+	}
+
+	@Override
+	public Boolean getRawMessageDelivery() {
+		return publisher.getRawMessageDelivery();
+	}
+
+	@Override
+	public void setSubscriptionArn(String subscriptionArn) {
+		publisher.setSubscriptionArn(subscriptionArn);
+	}
+
+	@Override
+	public String getSubscriptionArn() {
+		return publisher.getSubscriptionArn();
+	}
 }
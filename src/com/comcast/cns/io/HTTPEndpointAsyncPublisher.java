@@ -19,17 +19,23 @@ package com.comcast.cns.io;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.net.URL;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.HttpResponse;
 import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.DefaultConnectionReuseStrategy;
 import org.apache.http.impl.nio.DefaultHttpClientIODispatch;
 import org.apache.http.impl.nio.pool.BasicNIOConnPool;
 import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
 import org.apache.http.message.BasicHttpEntityEnclosingRequest;
-import org.apache.http.nio.entity.NStringEntity;
+import org.apache.http.nio.entity.NByteArrayEntity;
 import org.apache.http.nio.protocol.BasicAsyncRequestProducer;
 import org.apache.http.nio.protocol.BasicAsyncResponseConsumer;
 import org.apache.http.nio.protocol.HttpAsyncRequestExecutor;
@@ -41,6 +47,7 @@ import org.apache.http.params.CoreConnectionPNames;
 import org.apache.http.params.CoreProtocolPNames;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.SyncBasicHttpParams;
+import org.apache.http.pool.PoolStats;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HttpProcessor;
 import org.apache.http.protocol.ImmutableHttpProcessor;
@@ -53,14 +60,16 @@ import org.apache.log4j.Logger;
 
 import com.comcast.cmb.common.controller.CMBControllerServlet;
 import com.comcast.cmb.common.util.CMBProperties;
-import com.comcast.cns.model.CNSMessage.CNSMessageStructure;
-import com.comcast.cns.model.CNSMessage.CNSMessageType;
 import com.comcast.cns.model.CNSSubscription.CnsSubscriptionProtocol;
 
 /**
  * Asynchronous HTTP/1.1 client.
  * 
- * This example demonstrates how HttpCore NIO can be used to execute multiple HTTP requests asynchronously using only one I/O thread.
+ * All publishers share one keep-alive connection pool served by a configurable number of I/O reactor threads. The
+ * pool is sized by the same settings as the synchronous publisher and the connection limit can be overridden for
+ * individual endpoint hosts. The number of requests in flight to an endpoint host is bounded, requests beyond the
+ * bound wait in a bounded per host queue until an earlier request completes. Limiters of hosts that have not been
+ * published to for a while are dropped.
  */
 
 public class HTTPEndpointAsyncPublisher extends AbstractEndpointPublisher{
@@ -70,6 +79,13 @@ public class HTTPEndpointAsyncPublisher extends AbstractEndpointPublisher{
 	private static HttpProcessor httpProcessor;
 	private static HttpParams httpParams;
 	private static BasicNIOConnPool connectionPool;
+	private static HttpAsyncRequester requester;
+
+	private static final ConcurrentHashMap<String, HTTPRouteLimiter> routeLimiters = new ConcurrentHashMap<String, HTTPRouteLimiter>();
+	private static final AtomicLong lastRouteLimiterSweep = new AtomicLong(System.currentTimeMillis());
+	private static final long ROUTE_LIMITER_IDLE_MS = 10 * 60 * 1000;
+	
+	private static final ContentType PAYLOAD_CONTENT_TYPE = ContentType.create("text/plain", "UTF-8");
 
 	private static Logger logger = Logger.getLogger(HTTPEndpointAsyncPublisher.class);
 
@@ -91,13 +107,22 @@ public class HTTPEndpointAsyncPublisher extends AbstractEndpointPublisher{
 					new RequestUserAgent(),
 					new RequestExpectContinue()});
 
+			requester = new HttpAsyncRequester(httpProcessor, new DefaultConnectionReuseStrategy(), httpParams);
+
 			HttpAsyncRequestExecutor protocolHandler = new HttpAsyncRequestExecutor();
 			final IOEventDispatch ioEventDispatch = new DefaultHttpClientIODispatch(protocolHandler, httpParams);
-			final ConnectingIOReactor ioReactor = new DefaultConnectingIOReactor();
+			
+			IOReactorConfig ioReactorConfig = new IOReactorConfig();
+			ioReactorConfig.setIoThreadCount(CMBProperties.getInstance().getCNSPublisherHttpIOThreads());
+			ioReactorConfig.setConnectTimeout(CMBProperties.getInstance().getCNSPublisherHttpTimeoutSeconds() * 1000);
+			ioReactorConfig.setSoTimeout(CMBProperties.getInstance().getCNSPublisherHttpTimeoutSeconds() * 1000);
+			ioReactorConfig.setSoKeepalive(true);
+			ioReactorConfig.setTcpNoDelay(true);
+			final ConnectingIOReactor ioReactor = new DefaultConnectingIOReactor(ioReactorConfig);
 
 			connectionPool = new BasicNIOConnPool(ioReactor, httpParams);
-			connectionPool.setDefaultMaxPerRoute(2); // maybe adjust pool size
-			connectionPool.setMaxTotal(8);
+			connectionPool.setDefaultMaxPerRoute(CMBProperties.getInstance().getCNSPublisherHttpEndpointConnectionsPerRouteSize());
+			connectionPool.setMaxTotal(CMBProperties.getInstance().getCNSPublisherHttpEndpointConnectionPoolSize());
 
 			Thread t = new Thread(new Runnable() {
 
@@ -111,9 +136,12 @@ public class HTTPEndpointAsyncPublisher extends AbstractEndpointPublisher{
 					}
 				}
 
-			});
+			}, "CNSAsyncHttpReactor");
 
+			t.setDaemon(true);
 			t.start();
+			
+			logger.info("event=initialized_async_http_client io_threads=" + CMBProperties.getInstance().getCNSPublisherHttpIOThreads() + " max_total=" + connectionPool.getMaxTotal() + " max_per_route=" + connectionPool.getDefaultMaxPerRoute() + " max_in_flight_per_route=" + CMBProperties.getInstance().getCNSPublisherHttpMaxInFlightPerRoute() + " route_overrides=" + CMBProperties.getInstance().getCNSPublisherHttpRouteConnections());
 
 		} catch (IOReactorException ex) {
 			logger.error("event=failed_to_initialize_async_http_client action=exiting", ex);
@@ -123,32 +151,132 @@ public class HTTPEndpointAsyncPublisher extends AbstractEndpointPublisher{
 	public HTTPEndpointAsyncPublisher(IPublisherCallback callback) {
 		this.callback = callback;
 	}
+	
+	private static HTTPRouteLimiter getRouteLimiter(HttpHost target) {
+		
+		evictIdleRouteLimiters();
+		
+		String route = target.toHostString();
+		
+		while (true) {
+			
+			HTTPRouteLimiter limiter = routeLimiters.get(route);
+			
+			if (limiter == null) {
+				
+				Integer maxConnections = CMBProperties.getInstance().getCNSPublisherHttpRouteConnections().get(route);
+				
+				if (maxConnections != null) {
+					connectionPool.setMaxPerRoute(target, maxConnections);
+				}
+				
+				limiter = new HTTPRouteLimiter(target, CMBProperties.getInstance().getCNSPublisherHttpMaxInFlightPerRoute(), CMBProperties.getInstance().getCNSPublisherHttpMaxQueuedPerRoute(), CMBProperties.getInstance().getCNSPublisherHttpTimeoutSeconds() * 1000L);
+				HTTPRouteLimiter existing = routeLimiters.putIfAbsent(route, limiter);
+				
+				if (existing != null) {
+					limiter = existing;
+				}
+			}
+			
+			if (limiter.touch()) {
+				return limiter;
+			}
+			
+			// retired by a concurrent sweep, replace it
+			
+			routeLimiters.remove(route, limiter);
+		}
+	}
+	
+	/**
+	 * Drop the limiters of endpoint hosts that have been idle for ROUTE_LIMITER_IDLE_MS, checked at most once per
+	 * ROUTE_LIMITER_IDLE_MS so the map does not grow with every host ever published to
+	 */
+	private static void evictIdleRouteLimiters() {
+		
+		long now = System.currentTimeMillis();
+		long lastSweep = lastRouteLimiterSweep.get();
+		
+		if (now - lastSweep < ROUTE_LIMITER_IDLE_MS || !lastRouteLimiterSweep.compareAndSet(lastSweep, now)) {
+			return;
+		}
+		
+		for (Map.Entry<String, HTTPRouteLimiter> entry : routeLimiters.entrySet()) {
+			if (entry.getValue().retireIfIdle(ROUTE_LIMITER_IDLE_MS)) {
+				routeLimiters.remove(entry.getKey(), entry.getValue());
+				logger.debug("event=evicted_idle_route_limiter route=" + entry.getKey());
+			}
+		}
+	}
+	
+	/**
+	 * @return connection pool stats across all endpoint hosts
+	 */
+	public static PoolStats getPoolStats() {
+		return connectionPool.getTotalStats();
+	}
+	
+	/**
+	 * @return map of endpoint host -> requests in flight and queued and connection pool stats for that host
+	 */
+	public static Map<String, String> getRouteStats() {
+		
+		Map<String, String> stats = new TreeMap<String, String>();
+		
+		for (Map.Entry<String, HTTPRouteLimiter> entry : routeLimiters.entrySet()) {
+			PoolStats poolStats = connectionPool.getStats(entry.getValue().getTarget());
+			stats.put(entry.getKey(), entry.getValue() + " leased=" + poolStats.getLeased() + " pending=" + poolStats.getPending() + " available=" + poolStats.getAvailable() + " max=" + poolStats.getMax());
+		}
+		
+		return stats;
+	}
 
 	@Override
 	public void send() throws Exception {
 
-		HttpAsyncRequester requester = new HttpAsyncRequester(httpProcessor, new DefaultConnectionReuseStrategy(), httpParams);
 		final URL url = new URL(endpoint);
-		final HttpHost target = new HttpHost(url.getHost(), url.getPort(), url.getProtocol());
+		final HttpHost target = new HttpHost(url.getHost(), url.getPort() == -1 ? url.getDefaultPort() : url.getPort(), url.getProtocol());
 
-		BasicHttpEntityEnclosingRequest request = new BasicHttpEntityEnclosingRequest("POST", url.getPath() + (url.getQuery() == null ? "" : "?" + url.getQuery()));
+		final BasicHttpEntityEnclosingRequest request = new BasicHttpEntityEnclosingRequest("POST", url.getPath() + (url.getQuery() == null ? "" : "?" + url.getQuery()));
 		composeHeader(request);
 
-		String msg = null;
+		// the payload is rendered and encoded once per message and shared by all subscriptions where possible
 		
-		if (message.getMessageStructure() == CNSMessageStructure.json) {
-			msg = message.getProtocolSpecificMessage(CnsSubscriptionProtocol.http);
-		} else {
-			msg = message.getMessage();
-		}
+		byte[] payload = getPayloadBytes(CnsSubscriptionProtocol.http);
 		
-		if (!rawMessageDelivery && message.getMessageType() == CNSMessageType.Notification) {
-			msg = com.comcast.cns.util.Util.generateMessageJson(message, CnsSubscriptionProtocol.http);
+		if (logger.isDebugEnabled()) {
+			logger.debug("event=send_async_http_request endpoint=" + endpoint + "\" message=\"" + new String(payload, PAYLOAD_CONTENT_TYPE.getCharset()) + "\"");
 		}
+
+		request.setEntity(new NByteArrayEntity(payload, PAYLOAD_CONTENT_TYPE));
+
+		final HTTPRouteLimiter limiter = getRouteLimiter(target);
 		
-		logger.debug("event=send_async_http_request endpoint=" + endpoint + "\" message=\"" + msg + "\"");
+		limiter.submit(new HTTPRouteLimiter.Request() {
+			
+			public void start() {
+				execute(target, request, url, limiter);
+			}
+			
+			public void reject(String reason) {
+				logger.warn("event=async_http_request_rejected reason=" + reason + " endpoint=" + endpoint + " route_stats=\"" + limiter + "\"");
+				callback.onRejected(reason);
+			}
+		});
+	}
+	
+	private void execute(final HttpHost target, BasicHttpEntityEnclosingRequest request, final URL url, final HTTPRouteLimiter limiter) {
 
-		request.setEntity(new NStringEntity(msg));
+		try {
+			doExecute(target, request, url, limiter);
+		} catch (RuntimeException ex) {
+			limiter.release();
+			logger.warn(target + " " + url.getPath() + " " + url.getQuery(), ex);
+			callback.onFailure(0);
+		}
+	}
+	
+	private void doExecute(final HttpHost target, BasicHttpEntityEnclosingRequest request, final URL url, final HTTPRouteLimiter limiter) {
 
 		requester.execute(
 				new BasicAsyncRequestProducer(target, request),
@@ -159,6 +287,8 @@ public class HTTPEndpointAsyncPublisher extends AbstractEndpointPublisher{
 
 					public void completed(final HttpResponse response) {
 
+						limiter.release();
+						
 						int statusCode = response.getStatusLine().getStatusCode();
 
 						// accept all 2xx status codes
@@ -172,11 +302,13 @@ public class HTTPEndpointAsyncPublisher extends AbstractEndpointPublisher{
 					}
 
 					public void failed(final Exception ex) {
+						limiter.release();
 						logger.warn(target + " " + url.getPath() + " " + url.getQuery(), ex);
 						callback.onFailure(0);
 					}
 
 					public void cancelled() {
+						limiter.release();
 						logger.warn(target + " " + url.getPath() + " " + url.getQuery() + " -> " + "cancelled");
 						callback.onFailure(1);
 					}
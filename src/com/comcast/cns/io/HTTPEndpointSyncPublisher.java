@@ -30,7 +30,8 @@ import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.ssl.SSLSocketFactory;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.PoolingClientConnectionManager;
 import org.apache.http.params.BasicHttpParams;
@@ -43,8 +44,6 @@ import org.apache.log4j.Logger;
 import com.comcast.cmb.common.util.CMBErrorCodes;
 import com.comcast.cmb.common.util.CMBException;
 import com.comcast.cmb.common.util.CMBProperties;
-import com.comcast.cns.model.CNSMessage.CNSMessageStructure;
-import com.comcast.cns.model.CNSMessage.CNSMessageType;
 import com.comcast.cns.model.CNSSubscription.CnsSubscriptionProtocol;
 
 /**
@@ -89,6 +88,8 @@ public class HTTPEndpointSyncPublisher extends AbstractEndpointPublisher {
 	}
 
 	private static Logger logger = Logger.getLogger(HTTPEndpointSyncPublisher.class);
+	
+	private static final ContentType PAYLOAD_CONTENT_TYPE = ContentType.create("text/plain", "UTF-8");
 
 	public static int getNumConnectionsInPool() {
 		return cm.getTotalStats().getAvailable();
@@ -104,22 +105,13 @@ public class HTTPEndpointSyncPublisher extends AbstractEndpointPublisher {
 
 		HttpPost httpPost = new HttpPost(endpoint);
 
-		String msg = null;
+		byte[] payload = getPayloadBytes(CnsSubscriptionProtocol.http);
 		
-		if (message.getMessageStructure() == CNSMessageStructure.json) {
-			msg = message.getProtocolSpecificMessage(CnsSubscriptionProtocol.http);
-		} else {
-			msg = message.getMessage();
-		}
-		
-		if (!rawMessageDelivery && message.getMessageType() == CNSMessageType.Notification) {
-			msg = com.comcast.cns.util.Util.generateMessageJson(message, CnsSubscriptionProtocol.http);
+		if (logger.isDebugEnabled()) {
+			logger.debug("event=send_sync_http_request endpoint=" + endpoint + "\" message=\"" + new String(payload, PAYLOAD_CONTENT_TYPE.getCharset()) + "\"");
 		}
-		
-		logger.debug("event=send_sync_http_request endpoint=" + endpoint + "\" message=\"" + msg + "\"");
 
-		StringEntity stringEntity = new StringEntity(msg);
-		httpPost.setEntity(stringEntity);
+		httpPost.setEntity(new ByteArrayEntity(payload, PAYLOAD_CONTENT_TYPE));
 		composeHeader(httpPost);
 
 		HttpResponse response = httpClient.execute(httpPost);
@@ -0,0 +1,190 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cns.io;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpHost;
+
+/**
+ * Bounds the number of requests in flight to a single endpoint host. Requests over the bound wait in a bounded queue
+ * and are started as earlier requests complete, so a slow host ties up at most its share of connections and
+ * callbacks. Requests arriving at a full queue are rejected right away. The request timeout starts when a request is
+ * queued, a request that has waited that long is rejected instead of started once a slot frees up.
+ *
+ * Class is thread-safe
+ */
+public class HTTPRouteLimiter {
+
+	/**
+	 * A request waiting for a slot, exactly one of its methods is called
+	 */
+	public interface Request {
+
+		/**
+		 * Send the request, the caller must call release() once it completes, fails or is cancelled
+		 */
+		public void start();
+
+		/**
+		 * The request was not sent because the queue was full or it waited longer than the timeout
+		 * @param reason
+		 */
+		public void reject(String reason);
+	}
+
+	private static class QueuedRequest {
+
+		final Request request;
+		final long queuedAt;
+
+		QueuedRequest(Request request, long queuedAt) {
+			this.request = request;
+			this.queuedAt = queuedAt;
+		}
+	}
+
+	private final HttpHost target;
+	private final int maxInFlight;
+	private final int maxQueued;
+	private final long timeoutMS;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger numQueued = new AtomicInteger();
+	private final ConcurrentLinkedQueue<QueuedRequest> queued = new ConcurrentLinkedQueue<QueuedRequest>();
+
+	private long lastUsed;
+	private boolean retired = false;
+
+	/**
+	 * @param target endpoint host
+	 * @param maxInFlight max number of requests in flight, 0 for no limit
+	 * @param maxQueued max number of requests waiting for a slot, 0 for no limit
+	 * @param timeoutMS max time a request may wait for a slot, 0 for no limit
+	 */
+	public HTTPRouteLimiter(HttpHost target, int maxInFlight, int maxQueued, long timeoutMS) {
+		this.target = target;
+		this.maxInFlight = maxInFlight;
+		this.maxQueued = maxQueued;
+		this.timeoutMS = timeoutMS;
+		this.lastUsed = currentTimeMillis();
+	}
+
+	/**
+	 * Start the request if a slot is free, otherwise queue it or reject it if the queue is full
+	 * @param request
+	 */
+	public void submit(Request request) {
+
+		if (numQueued.incrementAndGet() > maxQueued && maxQueued > 0) {
+			numQueued.decrementAndGet();
+			request.reject("queue_full");
+			return;
+		}
+
+		queued.add(new QueuedRequest(request, currentTimeMillis()));
+		drain();
+	}
+
+	/**
+	 * Free the slot of a started request and start the next queued one
+	 */
+	public void release() {
+		inFlight.decrementAndGet();
+		drain();
+	}
+
+	private void drain() {
+
+		while (!queued.isEmpty()) {
+
+			int current = inFlight.get();
+
+			if (maxInFlight > 0 && current >= maxInFlight) {
+				return;
+			}
+
+			if (!inFlight.compareAndSet(current, current + 1)) {
+				continue;
+			}
+
+			QueuedRequest next = queued.poll();
+
+			if (next == null) {
+				inFlight.decrementAndGet();
+				continue;
+			}
+
+			numQueued.decrementAndGet();
+
+			if (timeoutMS > 0 && currentTimeMillis() - next.queuedAt >= timeoutMS) {
+				inFlight.decrementAndGet();
+				next.request.reject("queue_timeout");
+				continue;
+			}
+
+			next.request.start();
+		}
+	}
+
+	/**
+	 * Mark the limiter as used, called by every caller that looks it up
+	 * @return false if the limiter was retired and must be replaced
+	 */
+	public synchronized boolean touch() {
+
+		if (retired) {
+			return false;
+		}
+
+		lastUsed = currentTimeMillis();
+		return true;
+	}
+
+	/**
+	 * Retire the limiter if nothing was in flight, queued or looked up for idleMS. Once retired touch() returns false.
+	 * @param idleMS
+	 * @return true if the limiter is retired
+	 */
+	public synchronized boolean retireIfIdle(long idleMS) {
+
+		if (!retired && inFlight.get() == 0 && numQueued.get() == 0 && currentTimeMillis() - lastUsed >= idleMS) {
+			retired = true;
+		}
+
+		return retired;
+	}
+
+	public HttpHost getTarget() {
+		return target;
+	}
+
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	public int getQueued() {
+		return numQueued.get();
+	}
+
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	public String toString() {
+		return "in_flight=" + inFlight.get() + " queued=" + numQueued.get();
+	}
+}
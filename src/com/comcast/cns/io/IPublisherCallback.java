@@ -40,4 +40,11 @@ public interface IPublisherCallback {
 	 * @throws Exception 
 	 */
 	public void onExpire();
+	
+	/**
+	 * On rejected callback, the message was not sent because the publisher's own request queue for the endpoint
+	 * was full or the message waited too long for a slot. Says nothing about the health of the endpoint.
+	 * @param reason
+	 */
+	public void onRejected(String reason);
 }
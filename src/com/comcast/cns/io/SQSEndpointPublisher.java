@@ -24,8 +24,6 @@ import com.amazonaws.services.sqs.model.MessageAttributeValue;
 import com.amazonaws.services.sqs.model.SendMessageRequest;
 import com.comcast.cmb.common.util.CMBException;
 import com.comcast.cmb.common.util.CMBProperties;
-import com.comcast.cns.model.CNSMessage.CNSMessageStructure;
-import com.comcast.cns.model.CNSMessage.CNSMessageType;
 import com.comcast.cns.model.CNSSubscription.CnsSubscriptionProtocol;
 import com.comcast.cns.util.CNSErrorCodes;
 
@@ -62,17 +60,7 @@ public class SQSEndpointPublisher  extends AbstractEndpointPublisher {
 
 		try {
 			
-			String msg = null;
-			
-			if (message.getMessageStructure() == CNSMessageStructure.json) {
-				msg = message.getProtocolSpecificMessage(CnsSubscriptionProtocol.cqs);
-			} else {
-				msg = message.getMessage();
-			}
-			
-			if (!rawMessageDelivery && message.getMessageType() == CNSMessageType.Notification) {
-				msg = com.comcast.cns.util.Util.generateMessageJson(message, CnsSubscriptionProtocol.cqs);
-			}
+			String msg = getPayload(CnsSubscriptionProtocol.cqs);
 			
 			logger.debug("event=send_sqs_message endpoint=" + endpoint + "\" message=\"" + msg);
 			
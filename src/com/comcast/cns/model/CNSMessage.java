@@ -15,10 +15,12 @@
  */
 package com.comcast.cns.model;
 
+import java.nio.charset.Charset;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -103,6 +105,23 @@ public final class CNSMessage {
      */
     private volatile CNSMessageType messageType = CNSMessageType.Notification;
     
+    /**
+     * Renderings of this message shared by all subscriptions it is delivered to, by protocol
+     */
+    private final ConcurrentHashMap<CnsSubscriptionProtocol, String> protocolMessages = new ConcurrentHashMap<CnsSubscriptionProtocol, String>();
+    private final ConcurrentHashMap<CnsSubscriptionProtocol, String> messageJsonPrefixes = new ConcurrentHashMap<CnsSubscriptionProtocol, String>();
+    private final ConcurrentHashMap<CnsSubscriptionProtocol, byte[]> messageJsonPrefixBytes = new ConcurrentHashMap<CnsSubscriptionProtocol, byte[]>();
+    private final ConcurrentHashMap<CnsSubscriptionProtocol, byte[]> protocolMessageBytes = new ConcurrentHashMap<CnsSubscriptionProtocol, byte[]>();
+    
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    
+    private void clearRenderings() {
+    	protocolMessages.clear();
+    	messageJsonPrefixes.clear();
+    	messageJsonPrefixBytes.clear();
+    	protocolMessageBytes.clear();
+    }
+    
 	public void setMessageAttributes(Map<String, CQSMessageAttribute> messageAttributes) {
 		this.messageAttributes = messageAttributes;
 	}
@@ -125,6 +144,7 @@ public final class CNSMessage {
 
 	public void setTimestamp(Date timestamp) {
 		this.timestamp = timestamp;
+		clearRenderings();
 	}
 
 	public String getMessage() {
@@ -133,6 +153,7 @@ public final class CNSMessage {
 
     public void setMessage(String message) {
         this.message = message;
+        clearRenderings();
     }
 
     public CNSMessageStructure getMessageStructure() {
@@ -141,6 +162,7 @@ public final class CNSMessage {
 
     public void setMessageStructure(CNSMessageStructure messageStructure) {
         this.messageStructure = messageStructure;
+        clearRenderings();
     }
 
     public String getSubject() {
@@ -149,6 +171,7 @@ public final class CNSMessage {
 
     public void setSubject(String subject) {
         this.subject = subject;
+        clearRenderings();
     }
 
     public String getTopicArn() {
@@ -157,6 +180,7 @@ public final class CNSMessage {
 
     public void setTopicArn(String topicArn) {
         this.topicArn = topicArn;
+        clearRenderings();
     }
     
     public void setUserId(String userId) {
@@ -169,6 +193,7 @@ public final class CNSMessage {
 
     public void setMessageId(String messageId) {
         this.messageId = messageId;
+        clearRenderings();
     }
 
     public String getMessageId() {
@@ -180,6 +205,7 @@ public final class CNSMessage {
      */
     public void generateMessageId() {
         messageId = UUID.randomUUID().toString();
+        clearRenderings();
     }
         
     @Override
@@ -309,6 +335,10 @@ public final class CNSMessage {
         	
             msg = getMessage();
             
+        } else if (protocol != null && protocolMessages.containsKey(protocol)) {
+        	
+        	msg = protocolMessages.get(protocol);
+        	
         } else {
         	
             try {
@@ -334,7 +364,9 @@ public final class CNSMessage {
                     } else {
                         msg = msgObj.getString("default");
                     }
-                }         
+                }
+                
+                protocolMessages.put(protocol, msg);
                 
             } catch (JSONException e) {
                 throw new CMBException(CMBErrorCodes.InternalError, "Could not parse JSON:" + e.getMessage());
@@ -344,6 +376,92 @@ public final class CNSMessage {
         return msg;
     }
     
+    /**
+     * The json notification envelope for a protocol up to the subscription specific unsubscribe url, rendered once
+     * @param protocol
+     * @return the envelope prefix or null if the message could not be rendered
+     */
+    public String getMessageJsonPrefix(CnsSubscriptionProtocol protocol) {
+    	
+    	String prefix = messageJsonPrefixes.get(protocol);
+    	
+    	if (prefix == null) {
+    		
+    		prefix = com.comcast.cns.util.Util.generateMessageJsonPrefix(this, protocol);
+    		
+    		if (prefix != null) {
+    			messageJsonPrefixes.put(protocol, prefix);
+    		}
+    	}
+    	
+    	return prefix;
+    }
+    
+    /**
+     * Payload delivered to one subscription: the protocol specific message for raw delivery and non-notifications, 
+     * the json envelope otherwise
+     * @param protocol
+     * @param rawDelivery
+     * @param subArn
+     * @return the payload
+     * @throws CMBException
+     */
+    public String getPayload(CnsSubscriptionProtocol protocol, boolean rawDelivery, String subArn) throws CMBException {
+    	
+    	if (rawDelivery || messageType != CNSMessageType.Notification) {
+    		return getProtocolSpecificMessage(protocol);
+    	}
+    	
+    	return com.comcast.cns.util.Util.generateMessageJson(this, protocol, subArn);
+    }
+    
+    /**
+     * UTF-8 encoded payload delivered to one subscription. Payloads that are the same for all subscriptions are
+     * encoded once and shared, callers must not modify the returned array.
+     * @param protocol
+     * @param rawDelivery
+     * @param subArn
+     * @return the payload bytes
+     * @throws CMBException
+     */
+    public byte[] getPayloadBytes(CnsSubscriptionProtocol protocol, boolean rawDelivery, String subArn) throws CMBException {
+    	
+    	if (rawDelivery || messageType != CNSMessageType.Notification) {
+    		
+    		byte[] bytes = protocolMessageBytes.get(protocol);
+    		
+    		if (bytes == null) {
+    			bytes = getProtocolSpecificMessage(protocol).getBytes(UTF_8);
+    			protocolMessageBytes.put(protocol, bytes);
+    		}
+    		
+    		return bytes;
+    	}
+    	
+    	// only the unsubscribe url at the end of the envelope is subscription specific
+    	
+    	byte[] prefix = messageJsonPrefixBytes.get(protocol);
+    	
+    	if (prefix == null) {
+    		
+    		String prefixString = getMessageJsonPrefix(protocol);
+    		
+    		if (prefixString == null) {
+    			return new byte[0];
+    		}
+    		
+    		prefix = prefixString.getBytes(UTF_8);
+    		messageJsonPrefixBytes.put(protocol, prefix);
+    	}
+    	
+    	byte[] suffix = com.comcast.cns.util.Util.generateMessageJsonSuffix(subArn).getBytes(UTF_8);
+    	byte[] bytes = new byte[prefix.length + suffix.length];
+    	System.arraycopy(prefix, 0, bytes, 0, prefix.length);
+    	System.arraycopy(suffix, 0, bytes, prefix.length, suffix.length);
+    	
+    	return bytes;
+    }
+    
     /*public String getProtocolSpecificMessage(CnsSubscriptionProtocol prot) throws CMBException {
 		return CNSMessage.getProtocolSpecificMessage(prot, this);
     }*/
@@ -463,6 +581,7 @@ public final class CNSMessage {
 
 	public void setMessageType(CNSMessageType messageType) {
 		this.messageType = messageType;
+		clearRenderings();
 	}
 }
 
@@ -55,6 +55,18 @@ public class CNSAsyncPublishJob implements Runnable, IPublisherCallback {
         None, ImmediateRetry, PreBackoff, Backoff, PostBackoff;
     }
 
+    enum DeliveryResult {
+        Sent, Rejected;
+    }
+
+    // a delivery rejected by the endpoint's circuit breaker or the publisher's request queue is tried again after a delay doubling from 1 up to 16 sec, or
+    // once the open circuit admits a probe, without using up a retry. After 60 sec of rejections the attempt counts as
+    // a failed retry, so the retry policy still ends deliveries to endpoints that stay unhealthy.
+    
+    private static final int REJECTED_DELIVERY_DELAY_SECS = 1;
+    private static final int REJECTED_DELIVERY_MAX_DELAY_SECS = 16;
+    private static final long REJECTED_DELIVERY_MAX_DEFERRAL_MS = 60 * 1000;
+
     private final CNSMessage message;
     private final User user;
     private final CnsSubscriptionProtocol protocol;
@@ -68,8 +80,14 @@ public class CNSAsyncPublishJob implements Runnable, IPublisherCallback {
 
     private IEndpointPublisher publisher;
     
+    private final CNSEndpointCircuitBreaker circuitBreaker;
+    private volatile boolean admitted = false;
+    private volatile long sendTimestamp;
+    
     public volatile int numRetries = 0;
     private volatile int maxDelayRetries = 0;
+    private volatile int numDeferrals = 0;
+    private volatile long firstDeferralTimestamp = 0;
     
     public String getSubscriptionArn() {
     	return subArn;
@@ -81,6 +99,7 @@ public class CNSAsyncPublishJob implements Runnable, IPublisherCallback {
         
     	if (endpointPublishJobCount.decrementAndGet() == 0) {
             try {
+	    		CNSEndpointPublisherJobConsumer.cancelVisibilityExtension(queueUrl, receiptHandle);
 	    		CQSHandler.deleteMessage(queueUrl, receiptHandle);
 	            logger.debug("event=deleting_publish_job_from_cqs message_id=" + message.getMessageId() + " queue_url=" + queueUrl + " receipt_handle=" + receiptHandle);
             } catch (Exception ex) {
@@ -116,8 +135,14 @@ public class CNSAsyncPublishJob implements Runnable, IPublisherCallback {
                 
                 try {
                     numRetries++;
-                    runCommon();
-                    return; //suceeded.
+                    if (runCommon() == DeliveryResult.Sent) {
+                    	return; //suceeded.
+                    }
+                    if (deferDelivery()) {
+                        numRetries--;
+                        return;
+                    }
+                    logger.debug("event=retry_failed reason=deferral_exhausted phase=" + RetryPhase.ImmediateRetry.name() + " attempt=" + numRetries);
                 } catch (Exception e) {
                     logger.debug("event=retry_failed phase=" + RetryPhase.ImmediateRetry.name() + " attempt=" + numRetries);
                 }
@@ -134,7 +159,7 @@ public class CNSAsyncPublishJob implements Runnable, IPublisherCallback {
                 
                 // add 6 second buffer to avoid race condition (assuming we are enforcing a 5 sec http timeout)
                 
-                CQSHandler.changeMessageVisibility(queueUrl, receiptHandle, retryPolicy.getMinDelayTarget() + 6);                    
+                CNSEndpointPublisherJobConsumer.extendVisibility(queueUrl, receiptHandle, retryPolicy.getMinDelayTarget() + 6);                    
                 
                 return;
             }
@@ -155,7 +180,7 @@ public class CNSAsyncPublishJob implements Runnable, IPublisherCallback {
                 
                 // add 6 second buffer to avoid race condition (assuming we are enforcing a 6 sec http timeout)
 
-                CQSHandler.changeMessageVisibility(queueUrl, receiptHandle, delay + 6);
+                CNSEndpointPublisherJobConsumer.extendVisibility(queueUrl, receiptHandle, delay + 6);
                 
                 return;
             }                    
@@ -169,7 +194,7 @@ public class CNSAsyncPublishJob implements Runnable, IPublisherCallback {
                 
                 // add 6 second buffer to avoid race condition (assuming we are enforcing a 5 sec http timeout)
 
-                CQSHandler.changeMessageVisibility(queueUrl, receiptHandle, retryPolicy.getMaxDelayTarget() + 6); 
+                CNSEndpointPublisherJobConsumer.extendVisibility(queueUrl, receiptHandle, retryPolicy.getMaxDelayTarget() + 6); 
 
                 return;
             } 
@@ -191,16 +216,88 @@ public class CNSAsyncPublishJob implements Runnable, IPublisherCallback {
      * @param protocol
      * @param endpoint
      * @param subArn
+     * @return Rejected if the endpoint's circuit breaker did not admit the delivery
      * @throws Exception
      */
-    private void runCommon() throws Exception {
+    private DeliveryResult runCommon() throws Exception {
+    	
+    	if (!circuitBreaker.tryAcquire()) {
+    		logger.debug("event=delivery_rejected reason=circuit_breaker endpoint=" + endpoint + " " + circuitBreaker);
+    		return DeliveryResult.Rejected;
+    	}
+    	
+    	admitted = true;
+    	sendTimestamp = System.currentTimeMillis();
 
     	publisher.setEndpoint(endpoint);
 		publisher.setMessage(message);
 		publisher.setSubject(message.getSubject());            
         publisher.setUser(user);
         publisher.setRawMessageDelivery(rawDelivery);
-        publisher.send(); // this will most likely not fail because we call asynchronously
+        publisher.setSubscriptionArn(subArn);
+        
+        try {
+        	publisher.send(); // this will most likely not fail because we call asynchronously
+        } catch (Exception ex) {
+        	releaseCircuitBreaker(false);
+        	throw ex;
+        }
+        
+        return DeliveryResult.Sent;
+    }
+    
+    /**
+     * Try a delivery rejected by the endpoint's circuit breaker or the publisher's request queue again later, without
+     * counting it as a retry
+     * @return false if the delivery has been rejected for too long and should count as a failed retry instead
+     */
+    private boolean deferDelivery() {
+    	
+    	long now = System.currentTimeMillis();
+    	
+    	if (firstDeferralTimestamp == 0) {
+    		firstDeferralTimestamp = now;
+    	} else if (now - firstDeferralTimestamp >= REJECTED_DELIVERY_MAX_DEFERRAL_MS) {
+    		logger.debug("event=deferral_exhausted endpoint=" + endpoint + " num_deferrals=" + numDeferrals + " attempt=" + numRetries);
+    		firstDeferralTimestamp = 0;
+    		numDeferrals = 0;
+    		return false;
+    	}
+    	
+    	int delay = Math.min(REJECTED_DELIVERY_MAX_DELAY_SECS, REJECTED_DELIVERY_DELAY_SECS << Math.min(numDeferrals, 5));
+    	delay = Math.max(delay, (int)((circuitBreaker.getMillisUntilHalfOpen() + 999) / 1000));
+    	numDeferrals++;
+    	
+    	CNSEndpointPublisherJobConsumer.submitForReDelivery(this, delay, TimeUnit.SECONDS);
+    	
+    	// add 6 second buffer to avoid race condition (assuming we are enforcing a 5 sec http timeout)
+    	
+    	CNSEndpointPublisherJobConsumer.extendVisibility(queueUrl, receiptHandle, delay + 6);
+    	
+    	return true;
+    }
+    
+    /**
+     * Report the outcome of an admitted delivery to the endpoint's circuit breaker, at most once per delivery
+     * @param success
+     */
+    private void releaseCircuitBreaker(boolean success) {
+    	
+    	if (admitted) {
+    		
+    		admitted = false;
+    		
+    		// the delivery reached the endpoint, rejections from here on start a new deferral budget
+    		
+    		firstDeferralTimestamp = 0;
+    		numDeferrals = 0;
+    		
+    		if (success) {
+    			circuitBreaker.onSuccess(System.currentTimeMillis() - sendTimestamp);
+    		} else {
+    			circuitBreaker.onFailure();
+    		}
+    	}
     }
     
     private void runCommonAndRetry() {
@@ -220,8 +317,13 @@ public class CNSAsyncPublishJob implements Runnable, IPublisherCallback {
 
             	letMessageDieForEndpoint();
             	
-            } else {
-            	runCommon();
+            } else if (runCommon() == DeliveryResult.Rejected) {
+            	
+            	// circuit open or endpoint at its concurrency limit, try again later without using up a retry
+            	
+            	if (!deferDelivery()) {
+            		doRetry();
+            	}
             }
         
         } catch (Exception ex) {
@@ -241,6 +343,7 @@ public class CNSAsyncPublishJob implements Runnable, IPublisherCallback {
         this.endpointPublishJobCount = endpointPublishJobCount;
         this.rawDelivery = rawDelivery;
         this.messageAttributes = messageAttributes;
+        this.circuitBreaker = CNSEndpointCircuitBreaker.getInstance(endpoint);
     }
 
     @Override
@@ -264,6 +367,8 @@ public class CNSAsyncPublishJob implements Runnable, IPublisherCallback {
 
 	@Override
 	public void onSuccess() {
+		
+		releaseCircuitBreaker(true);
 
 		logger.debug("event=successful_delivery protocol=" + protocol + " endpoint=" + endpoint + " sub_arn=" + subArn + " attempt=" + numRetries);
 
@@ -277,6 +382,10 @@ public class CNSAsyncPublishJob implements Runnable, IPublisherCallback {
 	@Override
 	public void onFailure(int status) {
 		
+		// endpoints responding with an acceptable error code are alive
+		
+		releaseCircuitBreaker((protocol == CnsSubscriptionProtocol.http || protocol == CnsSubscriptionProtocol.https) && CNSEndpointPublisherJobConsumer.acceptableHttpResponseCodes.contains(status+""));
+		
 		CNSEndpointPublisherJobConsumer.addBadResponseEvent(endpoint);
         
         if (protocol == CnsSubscriptionProtocol.http || protocol == CnsSubscriptionProtocol.https) {
@@ -313,5 +422,22 @@ public class CNSAsyncPublishJob implements Runnable, IPublisherCallback {
 	@Override
 	public void onExpire() {
 		onFailure(0); // signal expire with status 0
+	}
+	
+	@Override
+	public void onRejected(String reason) {
+		
+		// the message never left this worker, so neither the circuit breaker nor the bad response window learn anything
+		
+		if (admitted) {
+			admitted = false;
+			circuitBreaker.release();
+		}
+		
+		logger.debug("event=delivery_rejected reason=" + reason + " endpoint=" + endpoint + " attempt=" + numRetries);
+		
+		if (!deferDelivery()) {
+			doRetry();
+		}
 	}        
 }
\ No newline at end of file
@@ -0,0 +1,291 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cns.tools;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.comcast.cmb.common.util.CMBProperties;
+
+/**
+ * Circuit breaker with an adaptive concurrency limit for one endpoint
+ *
+ * Closed: deliveries are admitted while fewer than limit are in flight. The limit grows by one per limit fast
+ * successes (additive increase) and is halved on failures and cut by 10% on slow successes (multiplicative
+ * decrease), so an endpoint that slows down holds on to fewer delivery threads and connections.
+ * Open: entered after failureThreshold consecutive failures or when the smoothed error rate exceeds 50%, all
+ * deliveries are rejected for openMS so they go to redelivery without waiting for timeouts.
+ * Half-open: after openMS a single probe is admitted, its outcome closes or re-opens the circuit.
+ *
+ * Class is thread-safe
+ */
+public class CNSEndpointCircuitBreaker {
+
+    private static Logger logger = Logger.getLogger(CNSEndpointCircuitBreaker.class);
+
+    public enum State {
+    	CLOSED, OPEN, HALF_OPEN;
+    }
+
+    private static final double ERROR_RATE_ALPHA = 0.1;
+    private static final double ERROR_RATE_THRESHOLD = 0.5;
+    private static final int ERROR_RATE_MIN_SAMPLES = 20;
+    private static final double SLOW_DECREASE_FACTOR = 0.9;
+    private static final double FAILURE_DECREASE_FACTOR = 0.5;
+
+    private static final ConcurrentHashMap<String, CNSEndpointCircuitBreaker> breakers = new ConcurrentHashMap<String, CNSEndpointCircuitBreaker>();
+    private static final AtomicLong lastEviction = new AtomicLong(System.currentTimeMillis());
+    private static final long IDLE_MS = 10 * 60 * 1000;
+
+    private final String endpoint;
+    private final int failureThreshold;
+    private final long openMS;
+    private final int maxConcurrency;
+    private final long latencyTargetMS;
+
+    private State state = State.CLOSED;
+    private double limit;
+    private int inFlight = 0;
+    private int consecutiveFailures = 0;
+    private double errorRate = 0;
+    private int samples = 0;
+    private long openUntil = 0;
+    private long lastUsed;
+
+    /**
+     * @param endpoint
+     * @return the circuit breaker for the endpoint, configured from cmb.properties
+     */
+    public static CNSEndpointCircuitBreaker getInstance(String endpoint) {
+
+    	evictIdle();
+
+    	CNSEndpointCircuitBreaker breaker = breakers.get(endpoint);
+
+    	if (breaker == null) {
+
+    		CMBProperties props = CMBProperties.getInstance();
+    		breaker = new CNSEndpointCircuitBreaker(endpoint, props.getCNSCircuitBreakerFailureThreshold(), props.getCNSCircuitBreakerOpenMS(), props.getCNSCircuitBreakerMaxConcurrency(), props.getCNSCircuitBreakerLatencyTargetMS());
+    		CNSEndpointCircuitBreaker existing = breakers.putIfAbsent(endpoint, breaker);
+
+    		if (existing != null) {
+    			breaker = existing;
+    		}
+    	}
+
+    	return breaker;
+    }
+
+    /**
+     * Drop breakers of endpoints that have been closed and idle for IDLE_MS, checked at most once per IDLE_MS so the
+     * map does not grow with every endpoint ever published to. A job still holding an evicted breaker keeps using it.
+     */
+    private static void evictIdle() {
+
+    	long now = System.currentTimeMillis();
+    	long last = lastEviction.get();
+
+    	if (now - last < IDLE_MS || !lastEviction.compareAndSet(last, now)) {
+    		return;
+    	}
+
+    	for (Map.Entry<String, CNSEndpointCircuitBreaker> entry : breakers.entrySet()) {
+    		if (entry.getValue().isIdle(IDLE_MS)) {
+    			breakers.remove(entry.getKey(), entry.getValue());
+    			logger.debug("event=evicted_idle_circuit_breaker endpoint=" + entry.getKey());
+    		}
+    	}
+    }
+
+    /**
+     * @return map of endpoint -> state, concurrency limit and deliveries in flight for all endpoints not running at full concurrency
+     */
+    public static Map<String, String> getDegradedEndpoints() {
+
+    	Map<String, String> degraded = new HashMap<String, String>();
+
+    	for (CNSEndpointCircuitBreaker breaker : breakers.values()) {
+    		synchronized (breaker) {
+    			if (breaker.state != State.CLOSED || (int)breaker.limit < breaker.maxConcurrency) {
+    				degraded.put(breaker.endpoint, breaker.toString());
+    			}
+    		}
+    	}
+
+    	return degraded;
+    }
+
+    /**
+     * @param endpoint
+     * @param failureThreshold consecutive failures that open the circuit, 0 disables the breaker
+     * @param openMS time the circuit stays open before a probe is admitted
+     * @param maxConcurrency upper bound for the concurrency limit, also the initial limit
+     * @param latencyTargetMS successes slower than this reduce the concurrency limit
+     */
+    public CNSEndpointCircuitBreaker(String endpoint, int failureThreshold, long openMS, int maxConcurrency, long latencyTargetMS) {
+    	this.endpoint = endpoint;
+    	this.failureThreshold = failureThreshold;
+    	this.openMS = openMS;
+    	this.maxConcurrency = Math.max(1, maxConcurrency);
+    	this.latencyTargetMS = latencyTargetMS;
+    	this.limit = this.maxConcurrency;
+    	this.lastUsed = currentTimeMillis();
+    }
+
+    /**
+     * Admit a delivery. Every admitted delivery must be followed by exactly one call to onSuccess(), onFailure() or release().
+     * @return true if the delivery may proceed, false if it should go to redelivery
+     */
+    public synchronized boolean tryAcquire() {
+
+    	lastUsed = currentTimeMillis();
+
+    	if (failureThreshold <= 0) {
+    		inFlight++;
+    		return true;
+    	}
+
+    	if (state == State.OPEN) {
+
+    		if (currentTimeMillis() < openUntil) {
+    			return false;
+    		}
+
+    		state = State.HALF_OPEN;
+    		logger.info("event=circuit_half_open endpoint=" + endpoint);
+    	}
+
+    	if (state == State.HALF_OPEN) {
+
+    		// one probe at a time
+
+    		if (inFlight > 0) {
+    			return false;
+    		}
+
+    	} else if (inFlight >= (int)limit) {
+    		return false;
+    	}
+
+		inFlight++;
+
+		return true;
+    }
+
+    /**
+     * Record a successful delivery
+     * @param latencyMS
+     */
+    public synchronized void onSuccess(long latencyMS) {
+
+    	inFlight = Math.max(0, inFlight - 1);
+    	consecutiveFailures = 0;
+    	recordSample(false);
+
+    	if (state == State.HALF_OPEN) {
+    		state = State.CLOSED;
+    		errorRate = 0;
+    		samples = 0;
+    		logger.info("event=circuit_closed endpoint=" + endpoint);
+    	}
+
+    	if (latencyMS > latencyTargetMS) {
+    		limit = Math.max(1, limit * SLOW_DECREASE_FACTOR);
+    	} else {
+    		limit = Math.min(maxConcurrency, limit + 1/limit);
+    	}
+    }
+
+    /**
+     * Record a failed delivery (timeout, connection failure or error response)
+     */
+    public synchronized void onFailure() {
+
+    	inFlight = Math.max(0, inFlight - 1);
+    	consecutiveFailures++;
+    	recordSample(true);
+    	limit = Math.max(1, limit * FAILURE_DECREASE_FACTOR);
+
+    	if (failureThreshold <= 0) {
+    		return;
+    	}
+
+    	if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold || (samples >= ERROR_RATE_MIN_SAMPLES && errorRate > ERROR_RATE_THRESHOLD)) {
+
+    		if (state != State.OPEN) {
+    			logger.warn("event=circuit_open endpoint=" + endpoint + " consecutive_failures=" + consecutiveFailures + " error_rate=" + (int)(errorRate*100) + " open_ms=" + openMS);
+    		}
+
+    		state = State.OPEN;
+    		openUntil = currentTimeMillis() + openMS;
+    	}
+    }
+
+    /**
+     * Free the slot of an admitted delivery that was never sent, without recording an outcome
+     */
+    public synchronized void release() {
+    	inFlight = Math.max(0, inFlight - 1);
+    }
+
+    /**
+     * @return current time, overridden in tests
+     */
+    protected long currentTimeMillis() {
+    	return System.currentTimeMillis();
+    }
+
+    private void recordSample(boolean failed) {
+    	errorRate = errorRate * (1 - ERROR_RATE_ALPHA) + (failed ? ERROR_RATE_ALPHA : 0);
+    	samples++;
+    }
+
+    /**
+     * @param idleMS
+     * @return true if the circuit is closed, nothing is in flight and no delivery was attempted for idleMS
+     */
+    public synchronized boolean isIdle(long idleMS) {
+    	return state == State.CLOSED && inFlight == 0 && currentTimeMillis() - lastUsed >= idleMS;
+    }
+
+    /**
+     * @return time in ms until an open circuit admits its next probe, 0 if the circuit is not open
+     */
+    public synchronized long getMillisUntilHalfOpen() {
+    	return state == State.OPEN ? Math.max(0, openUntil - currentTimeMillis()) : 0;
+    }
+
+    public synchronized State getState() {
+    	return state;
+    }
+
+    public synchronized int getLimit() {
+    	return (int)limit;
+    }
+
+    public synchronized int getInFlight() {
+    	return inFlight;
+    }
+
+    @Override
+    public synchronized String toString() {
+    	return "state=" + state + " limit=" + (int)limit + " in_flight=" + inFlight + " error_rate=" + (int)(errorRate*100);
+    }
+}
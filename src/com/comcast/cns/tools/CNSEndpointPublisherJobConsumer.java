@@ -16,14 +16,22 @@
 package com.comcast.cns.tools;
 
 import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
 
 import com.comcast.cmb.common.controller.CMBControllerServlet;
 import com.comcast.cmb.common.model.User;
@@ -46,6 +54,7 @@ import com.comcast.cqs.model.CQSMessage;
  * This is the Endpoint Job Consumer. Its role is to dequeue CNSEndpointPublishJobs from
  * CQS, send the notifications and retry if needed
  * This class uses two internal executors to send notifications: one for normal notifications and one for retrys
+ * Retries wait on a hashed timing wheel until they are due
  * @author aseem, bwolf
  * 
  * Class is thread-safe
@@ -58,49 +67,37 @@ public class CNSEndpointPublisherJobConsumer implements CNSPublisherPartitionRun
     private static final String CNS_CONSUMER_QUEUE_NAME_PREFIX = CMBProperties.getInstance().getCNSEndpointPublishQueueNamePrefix();
 
     private static volatile ScheduledThreadPoolExecutor deliveryHandlers = null;
-    private static volatile ScheduledThreadPoolExecutor reDeliveryHandlers = null;
+    private static volatile ThreadPoolExecutor reDeliveryHandlers = null;
     
-    private static final RollingWindowCapture<BadEndpointEvent> badEndpointCounterWindow = new RollingWindowCapture<BadEndpointEvent>(60, 10000);
+    // retries wait on a hashed timing wheel (constant time schedule, cancel and expiry regardless of how many endpoints 
+    // are in retry) and are handed to the redelivery handlers once due
+    
+    private static volatile HashedWheelTimer reDeliveryTimer = null;
+    private static final AtomicInteger pendingReDeliveries = new AtomicInteger(0);
+    
+    // visibility extensions for publish jobs in retry, by queue url and receipt handle, holding the latest requested 
+    // visibility deadline until the next flush so all subscriptions of a job share one cqs call
+    
+    private static final ConcurrentHashMap<String, ConcurrentHashMap<String, Long>> pendingVisibilityDeadlines = new ConcurrentHashMap<String, ConcurrentHashMap<String, Long>>();
+    
+    private static final RollingWindowCapture<String> badEndpointCounterWindow = new RollingWindowCapture<String>(60);
     
     public static final List<String> acceptableHttpResponseCodes = CMBProperties.getInstance().getCNSPublisherAcceptableHttpStatusCodes();
     
     private long processingDelayMillis = 10;
     
-    public static class BadEndpointEvent extends RollingWindowCapture.PayLoad {
-    	public final String endpointUrl;
-    	public BadEndpointEvent (String endpointUrl) {
-    		this.endpointUrl = endpointUrl;
-    	}
-    }
-
-    private static class CountBadEndpointVisitor implements RollingWindowCapture.Visitor<BadEndpointEvent> {
-        public final Map<String, Integer> badEndpointCounts = new HashMap<String, Integer>();
-        public void processNode(BadEndpointEvent e) {
-            if (!badEndpointCounts.containsKey(e.endpointUrl)) {
-            	badEndpointCounts.put(e.endpointUrl, 1);
-            } else {
-            	badEndpointCounts.put(e.endpointUrl, badEndpointCounts.get(e.endpointUrl) + 1);
-            }
-        }
-    }
+    private int lastReceiveCount = 0;
     
     public static void addBadResponseEvent(String endpointUrl) {
-    	badEndpointCounterWindow.addNow(new BadEndpointEvent(endpointUrl));
+    	badEndpointCounterWindow.increment(endpointUrl);
     }
 
     public static int getNumBadResponses(String endpointUrl) {
-    	CountBadEndpointVisitor srv = new CountBadEndpointVisitor();
-    	badEndpointCounterWindow.visitAllNodes(srv);
-    	if (!srv.badEndpointCounts.containsKey(endpointUrl)) {
-    		return 0;
-    	}
-    	return srv.badEndpointCounts.get(endpointUrl);
+    	return badEndpointCounterWindow.getCount(endpointUrl);
     }
     
     public static Map<String, Integer> getBadResponseCounts() {
-    	CountBadEndpointVisitor srv = new CountBadEndpointVisitor();
-    	badEndpointCounterWindow.visitAllNodes(srv);
-    	return srv.badEndpointCounts;
+    	return badEndpointCounterWindow.getCounts();
     }
     
     private static volatile boolean initialized = false; 
@@ -114,12 +111,128 @@ public class CNSEndpointPublisherJobConsumer implements CNSPublisherPartitionRun
         }
         
         public static int getReDeliveryHandlersQueueSize() {
-            return reDeliveryHandlers.getQueue().size();
+            return pendingReDeliveries.get() + reDeliveryHandlers.getQueue().size();
         }
     }
     
-    public static void submitForReDelivery(Runnable job, long delay, TimeUnit unit) {
-    	reDeliveryHandlers.schedule(job, delay, unit);
+    /**
+     * Schedule a retry
+     * @param job
+     * @param delay
+     * @param unit
+     * @return handle to cancel the retry
+     */
+    public static Timeout submitForReDelivery(final Runnable job, long delay, TimeUnit unit) {
+    	
+    	pendingReDeliveries.incrementAndGet();
+    	
+    	return reDeliveryTimer.newTimeout(new TimerTask() {
+    		public void run(Timeout timeout) {
+    			pendingReDeliveries.decrementAndGet();
+    			reDeliveryHandlers.execute(job);
+    		}
+    	}, delay, unit);
+    }
+    
+    /**
+     * Extend the visibility of a publish job so it does not reappear while a subscription waits for its retry. Requests 
+     * for the same job are coalesced until the next flush, keeping the latest deadline.
+     * @param queueUrl
+     * @param receiptHandle
+     * @param visibilityTimeout in seconds from now
+     */
+    public static void extendVisibility(String queueUrl, String receiptHandle, int visibilityTimeout) {
+    	
+    	long deadline = System.currentTimeMillis() + visibilityTimeout*1000L;
+    	
+    	pendingVisibilityDeadlines.putIfAbsent(queueUrl, new ConcurrentHashMap<String, Long>());
+    	ConcurrentHashMap<String, Long> deadlines = pendingVisibilityDeadlines.get(queueUrl);
+    	
+    	while (true) {
+    		
+    		Long current = deadlines.putIfAbsent(receiptHandle, deadline);
+    		
+    		if (current == null || current >= deadline || deadlines.replace(receiptHandle, current, deadline)) {
+    			return;
+    		}
+    	}
+    }
+    
+    /**
+     * Drop pending visibility extensions for a publish job that is about to be deleted
+     * @param queueUrl
+     * @param receiptHandle
+     */
+    public static void cancelVisibilityExtension(String queueUrl, String receiptHandle) {
+    	
+    	ConcurrentHashMap<String, Long> deadlines = pendingVisibilityDeadlines.get(queueUrl);
+    	
+    	if (deadlines != null) {
+    		deadlines.remove(receiptHandle);
+    	}
+    }
+    
+    /**
+     * Send pending visibility extensions, one batch per queue and visibility timeout
+     */
+    private static void flushVisibilityExtensions() {
+    	
+    	for (String queueUrl : pendingVisibilityDeadlines.keySet()) {
+    		
+    		ConcurrentHashMap<String, Long> deadlines = pendingVisibilityDeadlines.get(queueUrl);
+    		Map<Integer, List<String>> receiptHandlesByTimeout = new HashMap<Integer, List<String>>();
+    		long now = System.currentTimeMillis();
+    		
+    		for (String receiptHandle : deadlines.keySet()) {
+    			
+    			Long deadline = deadlines.remove(receiptHandle);
+    			
+    			if (deadline == null) {
+    				continue;
+    			}
+    			
+    			int visibilityTimeout = (int)Math.max(0, (deadline - now + 999) / 1000);
+    			List<String> receiptHandles = receiptHandlesByTimeout.get(visibilityTimeout);
+    			
+    			if (receiptHandles == null) {
+    				receiptHandles = new ArrayList<String>();
+    				receiptHandlesByTimeout.put(visibilityTimeout, receiptHandles);
+    			}
+    			
+    			receiptHandles.add(receiptHandle);
+    		}
+    		
+    		for (Map.Entry<Integer, List<String>> entry : receiptHandlesByTimeout.entrySet()) {
+    			try {
+    				CQSHandler.changeMessageVisibilityBatch(queueUrl, entry.getValue(), entry.getKey());
+    				logger.debug("event=extended_publish_job_visibility queue_url=" + queueUrl + " num_jobs=" + entry.getValue().size() + " visibility_timeout=" + entry.getKey());
+    			} catch (Exception ex) {
+    				logger.error("event=failed_to_extend_publish_job_visibility queue_url=" + queueUrl + " num_jobs=" + entry.getValue().size(), ex);
+    			}
+    		}
+    	}
+    }
+    
+    private static void scheduleVisibilityFlush() {
+    	
+    	reDeliveryTimer.newTimeout(new TimerTask() {
+    		public void run(Timeout timeout) {
+    			
+    			// flush on a redelivery handler, never block the timer thread on cqs calls
+    			
+    			reDeliveryHandlers.execute(new Runnable() {
+    				public void run() {
+    					try {
+    						flushVisibilityExtensions();
+    					} finally {
+    						if (initialized) {
+    							scheduleVisibilityFlush();
+    						}
+    					}
+    				}
+    			});
+    		}
+    	}, CMBProperties.getInstance().getCNSVisibilityFlushMS(), TimeUnit.MILLISECONDS);
     }
     
     /**
@@ -133,18 +246,28 @@ public class CNSEndpointPublisherJobConsumer implements CNSPublisherPartitionRun
     		return;
     	}
     	deliveryHandlers = new ScheduledThreadPoolExecutor(CMBProperties.getInstance().getCNSNumPublisherDeliveryHandlers());
-    	reDeliveryHandlers = new ScheduledThreadPoolExecutor(CMBProperties.getInstance().getCNSNumPublisherReDeliveryHandlers());
+    	reDeliveryHandlers = new ThreadPoolExecutor(CMBProperties.getInstance().getCNSNumPublisherReDeliveryHandlers(), CMBProperties.getInstance().getCNSNumPublisherReDeliveryHandlers(), 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+    	reDeliveryTimer = new HashedWheelTimer(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "CNSReDeliveryTimer");
+				t.setDaemon(true);
+				return t;
+			}
+		}, CMBProperties.getInstance().getCNSReDeliveryTickMS(), TimeUnit.MILLISECONDS, 512);
+    	pendingReDeliveries.set(0);
     	logger.info("event=initializing_cns_consumer");
     	initialized = true;
+    	scheduleVisibilityFlush();
     }
     
     /**
      * shutsdown all internal thread-pools. Cannot use object again unless initialize() called again.
      */
     public static void shutdown() {
+        initialized = false;
+        reDeliveryTimer.stop();
         deliveryHandlers.shutdownNow();
         reDeliveryHandlers.shutdownNow();
-        initialized = false;
         logger.info("event=shutdown_cns_consumer");
     }
     
@@ -159,7 +282,7 @@ public class CNSEndpointPublisherJobConsumer implements CNSPublisherPartitionRun
     	if (testQueueLimit == null) {
         
     		if (deliveryHandlers.getQueue().size() >= CMBProperties.getInstance().getCNSDeliveryHandlerJobQueueLimit() ||
-                    reDeliveryHandlers.getQueue().size() >= CMBProperties.getInstance().getCNSReDeliveryHandlerJobQueueLimit()) {
+                    MonitoringInterface.getReDeliveryHandlersQueueSize() >= CMBProperties.getInstance().getCNSReDeliveryHandlerJobQueueLimit()) {
                 return true;
             }
             
@@ -169,7 +292,7 @@ public class CNSEndpointPublisherJobConsumer implements CNSPublisherPartitionRun
     		
             logger.debug("event=is_overloaded queue_size=" + deliveryHandlers.getQueue().size());
         
-            if (deliveryHandlers.getQueue().size() >= testQueueLimit || reDeliveryHandlers.getQueue().size() >= testQueueLimit) {
+            if (deliveryHandlers.getQueue().size() >= testQueueLimit || MonitoringInterface.getReDeliveryHandlersQueueSize() >= testQueueLimit) {
                 return true;
             }
             
@@ -177,6 +300,14 @@ public class CNSEndpointPublisherJobConsumer implements CNSPublisherPartitionRun
         }
     }
             
+    /**
+     * @return number of publish jobs received by the last call to run()
+     */
+    @Override
+    public int getLastReceiveCount() {
+    	return lastReceiveCount;
+    }
+            
     /**
      * a. Check if server is overloaded, if it is, go to sleep and retry
      * c. Start polling the EndpointPublishQ_<m> queues in a round-robin manner, getting the list of endpoints and handing them to the delivery executor framework. 
@@ -191,6 +322,7 @@ public class CNSEndpointPublisherJobConsumer implements CNSPublisherPartitionRun
     public boolean run(int partition) {
     	
         boolean messageFound = false;
+        lastReceiveCount = 0;
         long ts0 = System.currentTimeMillis();
         CMBControllerServlet.valueAccumulator.initializeAllCounters();
         
@@ -235,22 +367,18 @@ public class CNSEndpointPublisherJobConsumer implements CNSPublisherPartitionRun
 	        
 	        String queueName = CNS_CONSUMER_QUEUE_NAME_PREFIX + partition;
 	        String queueUrl = CQSHandler.getRelativeCnsInternalQueueUrl(queueName);
-	        CQSMessage msg = null;
 	        int waitTimeSecs = 0;
 	        
 	        if (CMBProperties.getInstance().isCQSLongPollEnabled()) {
 	        	waitTimeSecs = CMBProperties.getInstance().getCMBRequestTimeoutSec();
 	        }
 
-	        List<CQSMessage> l = CQSHandler.receiveMessage(queueUrl, waitTimeSecs, 1); 
-
-	        if (l.size() > 0) {
-        		msg = l.get(0);
-        	}
+	        List<CQSMessage> msgs = CQSHandler.receiveMessage(queueUrl, waitTimeSecs, CMBProperties.getInstance().getCNSPublisherJobReceiveBatchSize()); 
+	        lastReceiveCount = msgs.size();
 	        
     		CNSWorkerMonitor.getInstance().registerCQSServiceAvailable(true);
 
-            if (msg != null) {   
+            if (msgs.size() > 0) {   
             	
 	        	// if long polling disabled and message found reset exponential backoff
 	        	
@@ -259,42 +387,51 @@ public class CNSEndpointPublisherJobConsumer implements CNSPublisherPartitionRun
 	        	}
             	
                 messageFound = true;
+                List<String> skippedReceiptHandles = new ArrayList<String>();
                 
-                try {
+                for (CQSMessage msg : msgs) {
                 	
-                    CNSEndpointPublishJob endpointPublishJob = (CMBProperties.getInstance().isCNSUseSubInfoCache()) ? CNSCachedEndpointPublishJob.parseInstance(msg.getBody()) : CNSEndpointPublishJob.parseInstance(msg.getBody());
-                    logger.debug("endpoint_publish_job=" + endpointPublishJob.toString());
-                    User pubUser =(new UserAuthModule()).getUserByUserId(endpointPublishJob.getMessage().getUserId());
-                    List<? extends CNSEndpointSubscriptionInfo> subs = endpointPublishJob.getSubInfos();
-                    
-                    CNSWorkerMonitor.getInstance().registerSendsRemaining(endpointPublishJob.getMessage().getMessageId(), subs.size());
-                    
-                    AtomicInteger endpointPublishJobCount = new AtomicInteger(subs.size());                
-                    
-                    for (CNSEndpointSubscriptionInfo sub : subs) {             
-                        
-                    	Runnable publishJob = null;
-                    	CNSMessage message = endpointPublishJob.getMessage();
-                    	message.setSubscriptionArn(sub.subArn);
-                        
-                        if (CMBProperties.getInstance().getCNSIOMode() == IO_MODE.SYNC) {
-                        	publishJob = new CNSPublishJob(message, pubUser, sub.protocol, sub.endpoint, sub.subArn, sub.rawDelivery, queueUrl, msg.getReceiptHandle(), endpointPublishJobCount, msg.getMessageAttributes());
-                        } else {
-                        	publishJob = new CNSAsyncPublishJob(message, pubUser, sub.protocol, sub.endpoint, sub.subArn, sub.rawDelivery, queueUrl, msg.getReceiptHandle(), endpointPublishJobCount, msg.getMessageAttributes());
-                        }
-
-                        deliveryHandlers.submit(publishJob);
-                    }
-                    
-                } catch (TopicNotFoundException e) {
-                    logger.error("event=topic_not_found action=skip_job");
-                    CQSHandler.deleteMessage(queueUrl, msg.getReceiptHandle());
-                } catch (Exception e) {
-                    logger.error("event=job_consumer_exception action=wait_for_revisibility", e);
+	                try {
+	                	
+	                    CNSEndpointPublishJob endpointPublishJob = (CMBProperties.getInstance().isCNSUseSubInfoCache()) ? CNSCachedEndpointPublishJob.parseInstance(msg.getBody()) : CNSEndpointPublishJob.parseInstance(msg.getBody());
+	                    logger.debug("endpoint_publish_job=" + endpointPublishJob.toString());
+	                    User pubUser =(new UserAuthModule()).getUserByUserId(endpointPublishJob.getMessage().getUserId());
+	                    List<? extends CNSEndpointSubscriptionInfo> subs = endpointPublishJob.getSubInfos();
+	                    
+	                    CNSWorkerMonitor.getInstance().registerSendsRemaining(endpointPublishJob.getMessage().getMessageId(), subs.size());
+	                    
+	                    AtomicInteger endpointPublishJobCount = new AtomicInteger(subs.size());                
+	                    
+	                    for (CNSEndpointSubscriptionInfo sub : subs) {             
+	                        
+	                    	Runnable publishJob = null;
+	                    	
+	                    	// the message is shared by all subscriptions of the job so it renders each payload only once, 
+	                    	// the subscription arn travels with the publish job instead
+	                    	
+	                    	CNSMessage message = endpointPublishJob.getMessage();
+	                        
+	                        if (CMBProperties.getInstance().getCNSIOMode() == IO_MODE.SYNC) {
+	                        	publishJob = new CNSPublishJob(message, pubUser, sub.protocol, sub.endpoint, sub.subArn, sub.rawDelivery, queueUrl, msg.getReceiptHandle(), endpointPublishJobCount, msg.getMessageAttributes());
+	                        } else {
+	                        	publishJob = new CNSAsyncPublishJob(message, pubUser, sub.protocol, sub.endpoint, sub.subArn, sub.rawDelivery, queueUrl, msg.getReceiptHandle(), endpointPublishJobCount, msg.getMessageAttributes());
+	                        }
+	
+	                        deliveryHandlers.submit(publishJob);
+	                    }
+	                    
+	                } catch (TopicNotFoundException e) {
+	                    logger.error("event=topic_not_found action=skip_job");
+	                    skippedReceiptHandles.add(msg.getReceiptHandle());
+	                } catch (Exception e) {
+	                    logger.error("event=job_consumer_exception action=wait_for_revisibility", e);
+	                }
                 }
                 
+                CQSHandler.deleteMessageBatch(queueUrl, skippedReceiptHandles);
+                
                 long tsFinal = System.currentTimeMillis();
-                logger.debug("event=processed_consumer_job cns_cqs_ms=" + CMBControllerServlet.valueAccumulator.getCounter(AccumulatorName.CNSCQSTime) + " resp_ms=" + (tsFinal - ts0));
+                logger.debug("event=processed_consumer_jobs num_jobs=" + msgs.size() + " cns_cqs_ms=" + CMBControllerServlet.valueAccumulator.getCounter(AccumulatorName.CNSCQSTime) + " resp_ms=" + (tsFinal - ts0));
                 
             } else {
 
@@ -58,6 +58,8 @@ public class CNSEndpointPublisherJobProducer implements CNSPublisherPartitionRun
     private static volatile ICNSSubscriptionPersistence subscriptionPersistence = PersistenceFactory.getSubscriptionPersistence(); 
 
     private long processingDelayMillis = 10;
+    
+    private int lastReceiveCount = 0;
 
    /* 
     * Read the EndpointPublishQ_<m> property and ensuring they exist (create if not) 
@@ -76,19 +78,27 @@ public class CNSEndpointPublisherJobProducer implements CNSPublisherPartitionRun
        logger.info("event=shutdown_cns_producer");
    }
    
+    @Override
+    public int getLastReceiveCount() {
+    	return lastReceiveCount;
+    }
+   
     @Override
     /**
-     * 1. Call ReceiveMessage(PublishJobQ.<n> where n  in [0..numPublishJobQs]
+     * 1. Call ReceiveMessage(PublishJobQ.<n> where n  in [0..numPublishJobQs] for up to jobReceiveBatchSize messages
      * 2. if no message, go to sleep for 100ms and go back to 1
-     * 3. if message found, 
+     * 3. for each message found, 
      *  3.1 read sub-list for topic, 
      *  3.2 partition them by batch size
      *  3.3 Enqueue into EndpointPublishJobQ.<m> where m is randomly selected between [0..numEPPublishJobQs]
-     *  3.4 go back to 1
+     * 4. delete all processed messages in one batch, extending visibility of the remaining ones if processing the batch 
+     *    takes longer than half the visibility timeout
+     * 5. go back to 1
      */    
     public boolean run (int partition) {
     	
         boolean messageFound = false;
+        lastReceiveCount = 0;
         
         if (!initialized) {
             throw new IllegalStateException("Not initialized");
@@ -119,22 +129,18 @@ public class CNSEndpointPublisherJobProducer implements CNSPublisherPartitionRun
 	        String publishJobQName = CNS_PRODUCER_QUEUE_NAME_PREFIX + partition;
 	        String queueUrl = CQSHandler.getRelativeCnsInternalQueueUrl(publishJobQName);
 	        
-	        CQSMessage msg = null;
 	        int waitTimeSecs = 0;
 	        
 	        if (CMBProperties.getInstance().isCQSLongPollEnabled()) {
 	        	waitTimeSecs = CMBProperties.getInstance().getCMBRequestTimeoutSec();
 	        }
 
-	        List<CQSMessage> l = CQSHandler.receiveMessage(queueUrl, waitTimeSecs, 1); 
-
-	        if (l.size() > 0) {
-        		msg = l.get(0);
-        	}
+	        List<CQSMessage> msgs = CQSHandler.receiveMessage(queueUrl, waitTimeSecs, CMBProperties.getInstance().getCNSPublisherJobReceiveBatchSize()); 
+	        lastReceiveCount = msgs.size();
 
 	        CNSWorkerMonitor.getInstance().registerCQSServiceAvailable(true);
 
-	        if (msg != null) {
+	        if (msgs.size() > 0) {
 	        	
 	        	// if long polling disabled and message found reset exponential backoff
 	        	
@@ -142,58 +148,50 @@ public class CNSEndpointPublisherJobProducer implements CNSPublisherPartitionRun
 	        		processingDelayMillis = 10;
 	        	}
 	        	
-	            CNSMessage publishMessage = CNSMessage.parseInstance(msg.getBody());
-	            
-	            int messageExpirationSeconds = CMBProperties.getInstance().getCNSMessageExpirationSeconds();
-	            
-	            if (messageExpirationSeconds != 0 && System.currentTimeMillis() - publishMessage.getTimestamp().getTime() > messageExpirationSeconds*1000) {
-	                logger.error("event=deleting_publish_job reason=message_too_old topic_arn=" + publishMessage.getTopicArn());
-	                CQSHandler.deleteMessage(queueUrl, msg.getReceiptHandle());
-	                CMBControllerServlet.valueAccumulator.deleteAllCounters();
-	                return true; // return true to avoid backoff
-	            }
-	            
-	            List<CNSEndpointPublishJob.CNSEndpointSubscriptionInfo> subscriptions = null;
-	            
-	            long t1=System.currentTimeMillis();
-	            
-	            try {
-	                subscriptions = getSubscriptionsForTopic(publishMessage.getTopicArn());
-	            } catch (TopicNotFoundException e) {
-
-	            	//delete this message/job since the topic was deleted.
-	                
-	            	logger.error("event=deleting_publish_job reason=topic_not_found topic_arn=" + publishMessage.getTopicArn());
-	                CQSHandler.deleteMessage(queueUrl, msg.getReceiptHandle());
-	                CMBControllerServlet.valueAccumulator.deleteAllCounters();
-	                return true; // return true to avoid backoff
-	            
-	            } catch (Exception ex) {
-	                logger.error("event=skipping_publish_job reason=error_fetching_subscriptions", ex);
-	                CMBControllerServlet.valueAccumulator.deleteAllCounters();
-	                return true; // return true to avoid backoff
-	            }
-	            
-	            logger.debug("event=get_subscription_list ms="+(System.currentTimeMillis()-t1));
-	            
-	            if (subscriptions != null && subscriptions.size() > 0) {
-	            	
-	                messageFound = true;
-	                List<CNSEndpointPublishJob> epPublishJobs = createEndpointPublishJobs(publishMessage, subscriptions);
-	                
-	                for (CNSEndpointPublishJob epPublishJob: epPublishJobs) {
-	                	
-	                	String epQueueName =  CMBProperties.getInstance().getCNSEndpointPublishQueueNamePrefix() + ((new Random()).nextInt(CMBProperties.getInstance().getCNSNumEndpointPublishJobQueues()));
-	                    String epQueueUrl = CQSHandler.getRelativeCnsInternalQueueUrl(epQueueName);
-	                    CQSHandler.sendMessage(epQueueUrl, epPublishJob.serialize(), msg.getMessageAttributes());
-	                }
-	            }
-	            
-	            CQSHandler.deleteMessage(queueUrl, msg.getReceiptHandle());
+	        	// return true even if no subscriptions were found to avoid backoff
+	        	
+	        	messageFound = true;
+	        	
+	        	List<String> processedReceiptHandles = new ArrayList<String>();
+	        	long visibilityTimeoutMillis = CMBProperties.getInstance().getCNSPublishJobVisibilityTimeout() * 1000L;
+	        	long visibleAt = System.currentTimeMillis() + visibilityTimeoutMillis;
+	        	
+	        	try {
+	        		
+		        	for (int i = 0; i < msgs.size(); i++) {
+		        		
+		        		// extend visibility of the jobs still to be processed before they become visible to other producers
+		        		
+		        		if (visibleAt - System.currentTimeMillis() < visibilityTimeoutMillis / 2) {
+		        			
+		        			List<String> remainingReceiptHandles = new ArrayList<String>();
+		        			
+		        			for (int k = i; k < msgs.size(); k++) {
+		        				remainingReceiptHandles.add(msgs.get(k).getReceiptHandle());
+		        			}
+		        			
+		        			CQSHandler.changeMessageVisibilityBatch(queueUrl, remainingReceiptHandles, CMBProperties.getInstance().getCNSPublishJobVisibilityTimeout());
+		        			visibleAt = System.currentTimeMillis() + visibilityTimeoutMillis;
+		        		}
+		        		
+		        		// a failing job is left for redelivery after its visibility timeout, the rest of the batch goes on
+		        		
+		        		try {
+			        		if (processPublishJob(msgs.get(i))) {
+			        			processedReceiptHandles.add(msgs.get(i).getReceiptHandle());
+			        		}
+		        		} catch (Exception ex) {
+		        			logger.error("event=publish_job_failure receipt_handle=" + msgs.get(i).getReceiptHandle(), ex);
+		        		}
+		        	}
+		        	
+	        	} finally {
+	        		CQSHandler.deleteMessageBatch(queueUrl, processedReceiptHandles);
+	        	}
 	            
 	            long ts2 = System.currentTimeMillis();
 	            
-	            logger.debug("event=processed_producer_job cns_cqs_ms=" + CMBControllerServlet.valueAccumulator.getCounter(AccumulatorName.CNSCQSTime) + " resp_ms=" + (ts2 - ts1));
+	            logger.debug("event=processed_producer_jobs num_jobs=" + msgs.size() + " num_deleted=" + processedReceiptHandles.size() + " cns_cqs_ms=" + CMBControllerServlet.valueAccumulator.getCounter(AccumulatorName.CNSCQSTime) + " resp_ms=" + (ts2 - ts1));
 
 	        } else {
 	        	
@@ -221,6 +219,56 @@ public class CNSEndpointPublisherJobProducer implements CNSPublisherPartitionRun
     }
     
     
+    /**
+     * Create and enqueue the endpoint publish jobs for one publish job
+     * @return true if the publish job is done and can be deleted, false if it should be retried after its visibility timeout
+     */
+    private boolean processPublishJob(CQSMessage msg) throws Exception {
+    	
+        CNSMessage publishMessage = CNSMessage.parseInstance(msg.getBody());
+        
+        int messageExpirationSeconds = CMBProperties.getInstance().getCNSMessageExpirationSeconds();
+        
+        if (messageExpirationSeconds != 0 && System.currentTimeMillis() - publishMessage.getTimestamp().getTime() > messageExpirationSeconds*1000) {
+            logger.error("event=deleting_publish_job reason=message_too_old topic_arn=" + publishMessage.getTopicArn());
+            return true;
+        }
+        
+        List<CNSEndpointPublishJob.CNSEndpointSubscriptionInfo> subscriptions = null;
+        
+        long t1=System.currentTimeMillis();
+        
+        try {
+            subscriptions = getSubscriptionsForTopic(publishMessage.getTopicArn());
+        } catch (TopicNotFoundException e) {
+
+        	//delete this message/job since the topic was deleted.
+            
+        	logger.error("event=deleting_publish_job reason=topic_not_found topic_arn=" + publishMessage.getTopicArn());
+        	return true;
+        
+        } catch (Exception ex) {
+            logger.error("event=skipping_publish_job reason=error_fetching_subscriptions", ex);
+            return false;
+        }
+        
+        logger.debug("event=get_subscription_list ms="+(System.currentTimeMillis()-t1));
+        
+        if (subscriptions != null && subscriptions.size() > 0) {
+        	
+            List<CNSEndpointPublishJob> epPublishJobs = createEndpointPublishJobs(publishMessage, subscriptions);
+            
+            for (CNSEndpointPublishJob epPublishJob: epPublishJobs) {
+            	
+            	String epQueueName =  CMBProperties.getInstance().getCNSEndpointPublishQueueNamePrefix() + ((new Random()).nextInt(CMBProperties.getInstance().getCNSNumEndpointPublishJobQueues()));
+                String epQueueUrl = CQSHandler.getRelativeCnsInternalQueueUrl(epQueueName);
+                CQSHandler.sendMessage(epQueueUrl, epPublishJob.serialize(), msg.getMessageAttributes());
+            }
+        }
+        
+        return true;
+    }
+    
     public static List<CNSEndpointPublishJob.CNSEndpointSubscriptionInfo> getSubscriptionsForTopic(String topicArn) throws Exception {        
     	
     	List<CNSEndpointPublishJob.CNSEndpointSubscriptionInfo> subInfoList = new ArrayList<CNSEndpointPublishJob.CNSEndpointSubscriptionInfo>();
@@ -54,6 +54,18 @@ public class CNSPublishJob implements Runnable {
         None, ImmediateRetry, PreBackoff, Backoff, PostBackoff;
     }
 
+    enum DeliveryResult {
+        Delivered, Rejected;
+    }
+
+    // a delivery rejected by the endpoint's circuit breaker is tried again after a delay doubling from 1 up to 16 sec, or
+    // once the open circuit admits a probe, without using up a retry. After 60 sec of rejections the attempt counts as
+    // a failed retry, so the retry policy still ends deliveries to endpoints that stay unhealthy.
+    
+    private static final int REJECTED_DELIVERY_DELAY_SECS = 1;
+    private static final int REJECTED_DELIVERY_MAX_DELAY_SECS = 16;
+    private static final long REJECTED_DELIVERY_MAX_DEFERRAL_MS = 60 * 1000;
+
     private final CNSMessage message;
     private final User user;
     private final CnsSubscriptionProtocol protocol;
@@ -69,6 +81,8 @@ public class CNSPublishJob implements Runnable {
     
     public volatile int numRetries = 0;
     private volatile int maxDelayRetries = 0;
+    private volatile int numDeferrals = 0;
+    private volatile long firstDeferralTimestamp = 0;
     
     public String getSubscriptionArn() {
     	return subArn;
@@ -79,6 +93,7 @@ public class CNSPublishJob implements Runnable {
         // decrement the total number of sub-tasks and if counter is 0 delete publish job
         
     	if (endpointPublishJobCount.decrementAndGet() == 0) {
+            CNSEndpointPublisherJobConsumer.cancelVisibilityExtension(queueUrl, receiptHandle);
             CQSHandler.deleteMessage(queueUrl, receiptHandle);
             logger.debug("event=deleting_publish_job_from_cqs message_id=" + message.getMessageId() + " queue_url=" + queueUrl + " receipt_handle=" + receiptHandle);
         }
@@ -111,8 +126,14 @@ public class CNSPublishJob implements Runnable {
                 
                 try {
                     numRetries++;
-                    runCommon(pub, protocol, endpoint, subArn, rawDelivery);
-                    return; //suceeded.
+                    if (runCommon(pub, protocol, endpoint, subArn, rawDelivery) == DeliveryResult.Delivered) {
+                    	return; //suceeded.
+                    }
+                    if (deferDelivery()) {
+                        numRetries--;
+                        return;
+                    }
+                    logger.debug("event=retry_failed reason=deferral_exhausted phase=" + RetryPhase.ImmediateRetry.name() + " attempt=" + numRetries);
                 } catch (Exception e) {
                     logger.debug("event=retry_failed phase=" + RetryPhase.ImmediateRetry.name() + " attempt=" + numRetries);
                 }
@@ -129,7 +150,7 @@ public class CNSPublishJob implements Runnable {
                 
                 // add 6 second buffer to avoid race condition (assuming we are enforcing a 5 sec http timeout)
                 
-                CQSHandler.changeMessageVisibility(queueUrl, receiptHandle, retryPolicy.getMinDelayTarget() + 6);                    
+                CNSEndpointPublisherJobConsumer.extendVisibility(queueUrl, receiptHandle, retryPolicy.getMinDelayTarget() + 6);                    
                 
                 return;
             }
@@ -150,7 +171,7 @@ public class CNSPublishJob implements Runnable {
                 
                 // add 6 second buffer to avoid race condition (assuming we are enforcing a 6 sec http timeout)
 
-                CQSHandler.changeMessageVisibility(queueUrl, receiptHandle, delay + 6);
+                CNSEndpointPublisherJobConsumer.extendVisibility(queueUrl, receiptHandle, delay + 6);
                 
                 return;
             }                    
@@ -164,7 +185,7 @@ public class CNSPublishJob implements Runnable {
                 
                 // add 6 second buffer to avoid race condition (assuming we are enforcing a 5 sec http timeout)
 
-                CQSHandler.changeMessageVisibility(queueUrl, receiptHandle, retryPolicy.getMaxDelayTarget() + 6); 
+                CNSEndpointPublisherJobConsumer.extendVisibility(queueUrl, receiptHandle, retryPolicy.getMaxDelayTarget() + 6); 
 
                 return;
             } 
@@ -186,9 +207,22 @@ public class CNSPublishJob implements Runnable {
      * @param protocol
      * @param endpoint
      * @param subArn
+     * @return Rejected if the endpoint's circuit breaker did not admit the delivery
      * @throws Exception
      */
-    private void runCommon(IEndpointPublisher publisher, CnsSubscriptionProtocol protocol, String endpoint, String subArn, boolean rawDelivery) throws Exception {
+    private DeliveryResult runCommon(IEndpointPublisher publisher, CnsSubscriptionProtocol protocol, String endpoint, String subArn, boolean rawDelivery) throws Exception {
+    	
+    	// a slow or dead endpoint only gets as many delivery threads as its circuit breaker admits
+    	
+    	CNSEndpointCircuitBreaker circuitBreaker = CNSEndpointCircuitBreaker.getInstance(endpoint);
+    	
+    	if (!circuitBreaker.tryAcquire()) {
+    		logger.debug("event=delivery_rejected reason=circuit_breaker endpoint=" + endpoint + " " + circuitBreaker);
+    		return DeliveryResult.Rejected;
+    	}
+    	
+    	firstDeferralTimestamp = 0;
+    	numDeferrals = 0;
     	
         long ts1 = System.currentTimeMillis();
         
@@ -203,12 +237,28 @@ public class CNSPublishJob implements Runnable {
         publisher.setTopicArn(this.message.getTopicArn());
         publisher.setSubscriptionArn(this.subArn);
         publisher.setMessageAttributes(this.messageAttributes);
-        publisher.send();
+        
+        try {
+        	publisher.send();
+        } catch (Exception ex) {
+        	
+        	// endpoints responding with an acceptable error code are alive
+        	
+        	if (ex instanceof CMBException && CNSEndpointPublisherJobConsumer.acceptableHttpResponseCodes.contains(((CMBException)ex).getHttpCode() + "")) {
+        		circuitBreaker.onSuccess(System.currentTimeMillis() - ts1);
+        	} else {
+        		circuitBreaker.onFailure();
+        	}
+        	
+        	throw ex;
+        }
         
         logger.debug("event=successful_delivery protocol=" + protocol + " endpoint=" + endpoint + " sub_arn=" + subArn + " attempt=" + numRetries + " raw=" + rawDelivery);
 
         long ts2 = System.currentTimeMillis();
         
+        circuitBreaker.onSuccess(ts2 - ts1);
+        
         CMBControllerServlet.valueAccumulator.addToCounter(AccumulatorName.CNSPublishSendTime, ts2 - ts1);
         
         letMessageDieForEndpoint();
@@ -216,6 +266,38 @@ public class CNSPublishJob implements Runnable {
         CNSWorkerMonitor.getInstance().registerSendsRemaining(message.getMessageId(), -1);
         CNSWorkerMonitor.getInstance().registerBadEndpoint(endpoint, 0, 1, message.getTopicArn());
         CNSWorkerMonitor.getInstance().registerPublishMessage();
+        
+        return DeliveryResult.Delivered;
+    }
+    
+    /**
+     * Try a delivery rejected by the endpoint's circuit breaker again later, without counting it as a retry
+     * @return false if the delivery has been rejected for too long and should count as a failed retry instead
+     */
+    private boolean deferDelivery() {
+    	
+    	long now = System.currentTimeMillis();
+    	
+    	if (firstDeferralTimestamp == 0) {
+    		firstDeferralTimestamp = now;
+    	} else if (now - firstDeferralTimestamp >= REJECTED_DELIVERY_MAX_DEFERRAL_MS) {
+    		logger.debug("event=deferral_exhausted endpoint=" + endpoint + " num_deferrals=" + numDeferrals + " attempt=" + numRetries);
+    		firstDeferralTimestamp = 0;
+    		numDeferrals = 0;
+    		return false;
+    	}
+    	
+    	int delay = Math.min(REJECTED_DELIVERY_MAX_DELAY_SECS, REJECTED_DELIVERY_DELAY_SECS << Math.min(numDeferrals, 5));
+    	delay = Math.max(delay, (int)((CNSEndpointCircuitBreaker.getInstance(endpoint).getMillisUntilHalfOpen() + 999) / 1000));
+    	numDeferrals++;
+    	
+    	CNSEndpointPublisherJobConsumer.submitForReDelivery(this, delay, TimeUnit.SECONDS);
+    	
+    	// add 6 second buffer to avoid race condition (assuming we are enforcing a 5 sec http timeout)
+    	
+    	CNSEndpointPublisherJobConsumer.extendVisibility(queueUrl, receiptHandle, delay + 6);
+    	
+    	return true;
     }
     
     private void runCommonAndRetry(IEndpointPublisher pub, CnsSubscriptionProtocol protocol, String endpoint, String subArn, boolean rawDelivery) throws Exception {
@@ -235,8 +317,13 @@ public class CNSPublishJob implements Runnable {
 
             	letMessageDieForEndpoint();
             	
-            } else {
-            	runCommon(pub, protocol, endpoint, subArn, rawDelivery);
+            } else if (runCommon(pub, protocol, endpoint, subArn, rawDelivery) == DeliveryResult.Rejected) {
+            	
+            	// circuit open or endpoint at its concurrency limit, try again later without using up a retry
+            	
+            	if (!deferDelivery()) {
+            		doRetry(pub, protocol, endpoint, subArn, rawDelivery);
+            	}
             }
         
         } catch (Exception ex) {
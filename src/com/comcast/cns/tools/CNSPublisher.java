@@ -18,6 +18,7 @@ package com.comcast.cns.tools;
 import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.util.EnumSet;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.MBeanServer;
@@ -105,6 +106,17 @@ public class CNSPublisher {
     	CNSEndpointPublisherJobProducer.initialize();
     }
     
+    /**
+     * @return one shared target of active pollers per partition, all threads start out active
+     */
+    private static AtomicInteger[] newActivePollers(int numPartitions, int numThreadsPerPartition) {
+    	AtomicInteger[] activePollers = new AtomicInteger[numPartitions];
+    	for (int k=0; k<numPartitions; k++) {
+    		activePollers[k] = new AtomicInteger(numThreadsPerPartition);
+    	}
+    	return activePollers;
+    }
+    
     public static void start(String mode) throws Exception {
     	
         Util.initLog4j();
@@ -116,11 +128,12 @@ public class CNSPublisher {
         	
         	CNSEndpointPublisherJobProducer.initialize(); 
         	jobProducers = new CNSPublisherJobThread[CMBProperties.getInstance().getCNSNumEndpointPublisherJobProducers()*CMBProperties.getInstance().getCNSNumPublishJobQueues()]; 
+        	AtomicInteger[] activePollers = newActivePollers(CMBProperties.getInstance().getCNSNumPublishJobQueues(), CMBProperties.getInstance().getCNSNumEndpointPublisherJobProducers());
             int idx = 0;
             
         	for (int i = 0; i < CMBProperties.getInstance().getCNSNumEndpointPublisherJobProducers(); i++) {
             	for (int k=0; k<CMBProperties.getInstance().getCNSNumPublishJobQueues(); k++) {
-	                jobProducers[idx] = new CNSPublisherJobThread("CNSEPJobProducer-" + idx, new CNSEndpointPublisherJobProducer(), k);
+	                jobProducers[idx] = new CNSPublisherJobThread("CNSEPJobProducer-" + idx, new CNSEndpointPublisherJobProducer(), k, i, CMBProperties.getInstance().getCNSNumEndpointPublisherJobProducers(), activePollers[k]);
 	                jobProducers[idx].start();
 	                idx++;
             	}
@@ -131,11 +144,12 @@ public class CNSPublisher {
         	
             CNSEndpointPublisherJobConsumer.initialize();
             consumers = new CNSPublisherJobThread[CMBProperties.getInstance().getCNSNumEndpointPublisherJobConsumers()*CMBProperties.getInstance().getCNSNumEndpointPublishJobQueues()];
+            AtomicInteger[] activePollers = newActivePollers(CMBProperties.getInstance().getCNSNumEndpointPublishJobQueues(), CMBProperties.getInstance().getCNSNumEndpointPublisherJobConsumers());
             int idx = 0;
             
             for (int i = 0; i<CMBProperties.getInstance().getCNSNumEndpointPublisherJobConsumers(); i++) {
             	for (int k=0; k<CMBProperties.getInstance().getCNSNumEndpointPublishJobQueues(); k++) {
-	                consumers[idx] = new CNSPublisherJobThread("CNSEPJobConsumer-" + idx, new CNSEndpointPublisherJobConsumer(), k);
+	                consumers[idx] = new CNSPublisherJobThread("CNSEPJobConsumer-" + idx, new CNSEndpointPublisherJobConsumer(), k, i, CMBProperties.getInstance().getCNSNumEndpointPublisherJobConsumers(), activePollers[k]);
 	                consumers[idx].start();
 	                idx++;
             	}
@@ -15,12 +15,17 @@
  */
 package com.comcast.cns.tools;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.log4j.Logger;
 
 import com.comcast.cmb.common.util.CMBProperties;
 
 /**
  * This class represents Thread that backoff when no message exists in all the partitions
+ * 
+ * Threads polling the same partition share a target number of active pollers. A receive that comes back full raises
+ * the target, an empty receive lowers it, and threads ranked at or above the target park until the backlog grows again.
  * @author aseem 
  */
 public class CNSPublisherJobThread extends Thread {
@@ -29,22 +34,67 @@ public class CNSPublisherJobThread extends Thread {
     
     private final CNSPublisherPartitionRunnable runnable;
     private final int partitionNumber;
+    private final int rank;
+    private final int maxPollers;
+    private final AtomicInteger activePollers;
+    
+    private static final long PARKED_DELAY_MS = 1000;
     
     public CNSPublisherJobThread(String threadName, CNSPublisherPartitionRunnable runnable, int partitionNumber) {
+    	this(threadName, runnable, partitionNumber, 0, 1, null);
+    }
+    
+    /**
+     * @param rank position of this thread among the threads polling the same partition, starting at 0
+     * @param maxPollers number of threads polling the same partition
+     * @param activePollers target number of active pollers shared by all threads polling the same partition
+     */
+    public CNSPublisherJobThread(String threadName, CNSPublisherPartitionRunnable runnable, int partitionNumber, int rank, int maxPollers, AtomicInteger activePollers) {
         
     	super(threadName);
         this.runnable = runnable;             
         this.partitionNumber = partitionNumber;
+        this.rank = rank;
+        this.maxPollers = maxPollers;
+        this.activePollers = activePollers;
     }
     
     @Override
     public void run() {
         while (true) {
-        	runnable.run(this.partitionNumber);
+        	if (activePollers != null && rank >= activePollers.get()) {
+        		try {
+        			Thread.sleep(PARKED_DELAY_MS);
+        		} catch (InterruptedException ex) {
+        			logger.warn("event=parked_thread_interrupted thread=" + getName());
+        		}
+        	} else {
+        		runnable.run(this.partitionNumber);
+        		adaptActivePollers(runnable.getLastReceiveCount());
+        	}
         	if(!CMBProperties.getInstance().isCNSPublisherEnabled()){
         		break;
         	}
         }
     }
+    
+    private void adaptActivePollers(int receiveCount) {
+    	
+    	if (activePollers == null) {
+    		return;
+    	}
+    	
+    	int current = activePollers.get();
+    	
+    	if (receiveCount >= CMBProperties.getInstance().getCNSPublisherJobReceiveBatchSize() && current < maxPollers) {
+    		if (activePollers.compareAndSet(current, current + 1)) {
+    			logger.debug("event=scaled_up_pollers partition=" + partitionNumber + " active_pollers=" + (current + 1));
+    		}
+    	} else if (receiveCount == 0 && current > 1) {
+    		if (activePollers.compareAndSet(current, current - 1)) {
+    			logger.debug("event=scaled_down_pollers partition=" + partitionNumber + " active_pollers=" + (current - 1));
+    		}
+    	}
+    }
 }
 
@@ -28,5 +28,10 @@ public interface CNSPublisherPartitionRunnable {
      * @return true if messages were found in current partition, false otherwise
      */
     public boolean run(int partition);
+    
+    /**
+     * @return number of jobs received by the last call to run(), used to scale the number of threads polling a partition
+     */
+    public int getLastReceiveCount();
 
 }
@@ -21,12 +21,15 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.http.pool.PoolStats;
 import org.apache.log4j.Logger;
 import org.jfree.util.Log;
 
 import com.comcast.cmb.common.util.CMBProperties;
+import com.comcast.cmb.common.util.CMBProperties.IO_MODE;
 import com.comcast.cmb.common.util.PersistenceException;
 import com.comcast.cmb.common.util.RollingWindowCapture;
+import com.comcast.cns.io.HTTPEndpointAsyncPublisher;
 import com.comcast.cns.io.HTTPEndpointSyncPublisher;
 import com.comcast.cns.tools.CNSEndpointPublisherJobConsumer;
 import com.comcast.cns.tools.CNSPublisher;
@@ -60,39 +63,43 @@ public class CNSWorkerMonitor implements CNSWorkerMonitorMBean {
     private ConcurrentHashMap<String, BadEndpointInfo> badEndpoints = new ConcurrentHashMap<String, CNSWorkerMonitor.BadEndpointInfo>();
     private boolean cqsServiceAvailable = true;
 
-    private class GenericEvent extends RollingWindowCapture.PayLoad{
-        final AtomicInteger num = new AtomicInteger(1);
-        final long timeStamp = System.currentTimeMillis();
-    }
+    private static final String PUBLISHED_MESSAGES = "publishedMessages";
 
-    private class CountMessagesVisitor implements RollingWindowCapture.Visitor<GenericEvent> {
-        int num = 0;
-        public void processNode(GenericEvent n){
-            num += n.num.get();
-        }
-    }
-    
-    private RollingWindowCapture<GenericEvent> publishMsgRW = new RollingWindowCapture<GenericEvent>(CMBProperties.getInstance().getRollingWindowTimeSec(), 10000);
+    private RollingWindowCapture<String> publishMsgRW = new RollingWindowCapture<String>(CMBProperties.getInstance().getRollingWindowTimeSec());
 
     @Override
     public int getRecentNumberOfPublishedMessages() {
-        CountMessagesVisitor c = new CountMessagesVisitor();
-        publishMsgRW.visitAllNodes(c);
-        return c.num;
+        return publishMsgRW.getCount(PUBLISHED_MESSAGES);
     }
 
     @Override
     public int getPublishHttpPoolSize() {
         return HTTPEndpointSyncPublisher.getNumConnectionsInPool();
     }
+
+    @Override
+    public Map<String, Integer> getAsyncPublishHttpPoolStats() {
+        Map<String, Integer> stats = new HashMap<String, Integer>();
+        if (CMBProperties.getInstance().getCNSIOMode() == IO_MODE.ASYNC) {
+            PoolStats poolStats = HTTPEndpointAsyncPublisher.getPoolStats();
+            stats.put("leased", poolStats.getLeased());
+            stats.put("pending", poolStats.getPending());
+            stats.put("available", poolStats.getAvailable());
+            stats.put("max", poolStats.getMax());
+        }
+        return stats;
+    }
+
+    @Override
+    public Map<String, String> getAsyncPublishHttpRouteStats() {
+        if (CMBProperties.getInstance().getCNSIOMode() == IO_MODE.ASYNC) {
+            return HTTPEndpointAsyncPublisher.getRouteStats();
+        }
+        return new HashMap<String, String>();
+    }
     
     public void registerPublishMessage() {
-        GenericEvent currentHead = publishMsgRW.getLatestPayload();
-        if (currentHead == null || System.currentTimeMillis() - currentHead.timeStamp > 60000L) {
-            publishMsgRW.addNow(new GenericEvent());
-        } else {
-            currentHead.num.incrementAndGet();
-        }
+        publishMsgRW.increment(PUBLISHED_MESSAGES);
     }
 
     public void registerSendsRemaining(String messageId, int remaining) {
@@ -206,6 +213,11 @@ public class CNSWorkerMonitor implements CNSWorkerMonitorMBean {
     	return CNSEndpointPublisherJobConsumer.getBadResponseCounts();
     }
 
+    @Override
+    public Map<String, String> getDegradedEndpoints() {
+    	return CNSEndpointCircuitBreaker.getDegradedEndpoints();
+    }
+
     @Override
     public int getDeliveryQueueSize() {
         return CNSEndpointPublisherJobConsumer.MonitoringInterface.getDeliveryHandlersQueueSize();
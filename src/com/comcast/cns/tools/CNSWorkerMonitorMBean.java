@@ -34,6 +34,16 @@ public interface CNSWorkerMonitorMBean {
      */    
     public int getPublishHttpPoolSize();
     
+    /**
+     * @return number of connections leased, pending and available in the pool for the async HTTP publisher
+     */
+    public Map<String, Integer> getAsyncPublishHttpPoolStats();
+    
+    /**
+     * @return map of endpoint host -> requests in flight and queued and pool stats for the async HTTP publisher
+     */
+    public Map<String, String> getAsyncPublishHttpRouteStats();
+    
     /**
      * 
      * @return total number of publish jobs for which at least one endpoint is not yet succesfully published
@@ -53,6 +63,12 @@ public interface CNSWorkerMonitorMBean {
      */
     public Map<String, Integer> getRecentErrorCountForEndpoints();
     
+    /**
+     * 
+     * @return map of endpointURL -> circuit breaker state, concurrency limit and deliveries in flight for endpoints with an open circuit or reduced concurrency
+     */
+    public Map<String, String> getDegradedEndpoints();
+    
     /**
      * 
      * @return size of delivery handler queue
@@ -26,9 +26,16 @@ import org.apache.log4j.Logger;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
 import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
 import com.amazonaws.services.sqs.model.CreateQueueRequest;
 import com.amazonaws.services.sqs.model.CreateQueueResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
 import com.amazonaws.services.sqs.model.DeleteMessageRequest;
 import com.amazonaws.services.sqs.model.GetQueueUrlRequest;
 import com.amazonaws.services.sqs.model.Message;
@@ -47,6 +54,7 @@ import com.comcast.cmb.common.util.PersistenceException;
 import com.comcast.cmb.common.util.ValueAccumulator.AccumulatorName;
 import com.comcast.cqs.api.CQSAPI;
 import com.comcast.cqs.controller.CQSCache;
+import com.comcast.cqs.controller.CQSLongPollReceiver;
 import com.comcast.cqs.model.CQSMessage;
 import com.comcast.cqs.model.CQSMessageAttribute;
 import com.comcast.cqs.model.CQSQueue;
@@ -62,6 +70,8 @@ public class CQSHandler {
     private static User cnsInternal = null;
     private static boolean useInlineApiCalls = false;
     
+    private static final int MAX_BATCH_ENTRIES = 10;
+    
     static {
     	try {
 			initialize();
@@ -121,16 +131,81 @@ public class CQSHandler {
         logger.debug("event=change_message_visibility receipt_handle=" + receiptHandle + " vto=" + visibilityTimeout);
     }
 
-    public static List<CQSMessage> receiveMessage(String relativeQueueUrl, int waitTimeSeconds, int maxNumberOfMessages) throws Exception {
+    /**
+     * Change visibility of several messages of the same queue, one request per 10 receipt handles. Entries failing 
+     * in a batch, or all entries if an inline batch fails, are retried one by one.
+     */
+    public static void changeMessageVisibilityBatch(String relativeQueueUrl, List<String> receiptHandles, int visibilityTimeout) throws Exception {
+    	
+    	if (receiptHandles.size() == 0) {
+    		return;
+    	}
     	
-    	//TODO: inline calling for long polled receive not supported yet
+        long ts1 = System.currentTimeMillis();
+        
+        if (useInlineApiCalls) {
+        	
+        	try {
+        		CQSAPI.changeMessageVisibilityBatch(cnsInternal.getUserId(), relativeQueueUrl, receiptHandles, visibilityTimeout);
+        	} catch (Exception ex) {
+        		
+        		// the inline batch stops at the first failing entry, so change the others one by one
+        		
+        		logger.warn("event=change_message_visibility_batch_failed queue_url=" + relativeQueueUrl + " num_receipt_handles=" + receiptHandles.size(), ex);
+        		
+        		for (String receiptHandle : receiptHandles) {
+        			try {
+        				changeMessageVisibility(relativeQueueUrl, receiptHandle, visibilityTimeout);
+        			} catch (Exception e) {
+        				logger.error("event=change_message_visibility_failed queue_url=" + relativeQueueUrl + " receipt_handle=" + receiptHandle, e);
+        			}
+        		}
+        	}
+        	
+        } else {
+        	
+        	String absoluteQueueUrl = Util.getAbsoluteQueueUrlForRelativeUrl(relativeQueueUrl);
+        	
+        	for (int i = 0; i < receiptHandles.size(); i += MAX_BATCH_ENTRIES) {
+        		
+        		List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<ChangeMessageVisibilityBatchRequestEntry>();
+        		
+        		for (int k = i; k < Math.min(i + MAX_BATCH_ENTRIES, receiptHandles.size()); k++) {
+        			entries.add(new ChangeMessageVisibilityBatchRequestEntry("" + k, receiptHandles.get(k)).withVisibilityTimeout(visibilityTimeout));
+        		}
+        		
+        		ChangeMessageVisibilityBatchResult result = sqs.changeMessageVisibilityBatch(new ChangeMessageVisibilityBatchRequest(absoluteQueueUrl, entries));
+        		
+        		for (BatchResultErrorEntry failed : result.getFailed()) {
+        			
+        			String receiptHandle = receiptHandles.get(Integer.parseInt(failed.getId()));
+        			logger.warn("event=change_message_visibility_batch_entry_failed queue_url=" + relativeQueueUrl + " receipt_handle=" + receiptHandle + " error_code=" + failed.getCode() + " error=" + failed.getMessage());
+        			
+        			try {
+        				changeMessageVisibility(relativeQueueUrl, receiptHandle, visibilityTimeout);
+        			} catch (Exception ex) {
+        				logger.error("event=change_message_visibility_failed queue_url=" + relativeQueueUrl + " receipt_handle=" + receiptHandle, ex);
+        			}
+        		}
+        	}
+        }
+        
+        long ts2 = System.currentTimeMillis();
+        
+        CMBControllerServlet.valueAccumulator.addToCounter(AccumulatorName.CNSCQSTime, ts2 - ts1);
+        logger.debug("event=change_message_visibility_batch num_receipt_handles=" + receiptHandles.size() + " vto=" + visibilityTimeout);
+    }
+
+    public static List<CQSMessage> receiveMessage(String relativeQueueUrl, int waitTimeSeconds, int maxNumberOfMessages) throws Exception {
     	
     	List<CQSMessage> messages = new ArrayList<CQSMessage>();
         long ts1 = System.currentTimeMillis();
         
-        if (useInlineApiCalls && waitTimeSeconds == 0) {
+        // inline long polling needs this server to receive long poll notifications, otherwise go through the http api
         
-        	messages = CQSAPI.receiveMessages(cnsInternal.getUserId(), relativeQueueUrl, maxNumberOfMessages, null);
+        if (useInlineApiCalls && (waitTimeSeconds == 0 || CQSLongPollReceiver.isListening())) {
+        
+        	messages = CQSAPI.receiveMessages(cnsInternal.getUserId(), relativeQueueUrl, maxNumberOfMessages, null, waitTimeSeconds);
         	
         } else {
         
@@ -227,6 +302,71 @@ public class CQSHandler {
 		logger.debug("event=delete_message receipt_handle=" + receiptHandle);
     }
     
+    /**
+     * Delete several messages of the same queue, one request per 10 receipt handles. Entries failing in a batch, or 
+     * all entries if an inline batch fails, are retried one by one.
+     */
+    public static void deleteMessageBatch(String relativeQueueUrl, List<String> receiptHandles) throws Exception {
+
+    	if (receiptHandles.size() == 0) {
+    		return;
+    	}
+    	
+    	long ts1 = System.currentTimeMillis();
+    	
+        if (useInlineApiCalls) {
+        	
+        	try {
+        		CQSAPI.deleteMessageBatch(cnsInternal.getUserId(), relativeQueueUrl, receiptHandles);
+        	} catch (Exception ex) {
+        		
+        		// the inline batch fails as a whole, so delete the messages one by one
+        		
+        		logger.warn("event=delete_message_batch_failed queue_url=" + relativeQueueUrl + " num_receipt_handles=" + receiptHandles.size(), ex);
+        		
+        		for (String receiptHandle : receiptHandles) {
+        			try {
+        				deleteMessage(relativeQueueUrl, receiptHandle);
+        			} catch (Exception e) {
+        				logger.error("event=delete_message_failed queue_url=" + relativeQueueUrl + " receipt_handle=" + receiptHandle, e);
+        			}
+        		}
+        	}
+        	
+        } else {
+        	
+        	String absoluteQueueUrl = Util.getAbsoluteQueueUrlForRelativeUrl(relativeQueueUrl);
+        	
+        	for (int i = 0; i < receiptHandles.size(); i += MAX_BATCH_ENTRIES) {
+        		
+        		List<DeleteMessageBatchRequestEntry> entries = new ArrayList<DeleteMessageBatchRequestEntry>();
+        		
+        		for (int k = i; k < Math.min(i + MAX_BATCH_ENTRIES, receiptHandles.size()); k++) {
+        			entries.add(new DeleteMessageBatchRequestEntry("" + k, receiptHandles.get(k)));
+        		}
+        		
+        		DeleteMessageBatchResult result = sqs.deleteMessageBatch(new DeleteMessageBatchRequest(absoluteQueueUrl, entries));
+        		
+        		for (BatchResultErrorEntry failed : result.getFailed()) {
+        			
+        			String receiptHandle = receiptHandles.get(Integer.parseInt(failed.getId()));
+        			logger.warn("event=delete_message_batch_entry_failed queue_url=" + relativeQueueUrl + " receipt_handle=" + receiptHandle + " error_code=" + failed.getCode() + " error=" + failed.getMessage());
+        			
+        			try {
+        				deleteMessage(relativeQueueUrl, receiptHandle);
+        			} catch (Exception ex) {
+        				logger.error("event=delete_message_failed queue_url=" + relativeQueueUrl + " receipt_handle=" + receiptHandle, ex);
+        			}
+        		}
+        	}
+        }
+
+        long ts2 = System.currentTimeMillis();
+        
+        CMBControllerServlet.valueAccumulator.addToCounter(AccumulatorName.CNSCQSTime, ts2 - ts1);
+		logger.debug("event=delete_message_batch num_receipt_handles=" + receiptHandles.size());
+    }
+    
     public static synchronized void ensureQueuesExist(String queueNamePrefix, int numShards) {
 
     	for (int i = 0; i < numShards; i++) {
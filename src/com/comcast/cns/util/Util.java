@@ -26,6 +26,7 @@ import java.util.UUID;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
+import org.json.JSONObject;
 import org.json.JSONWriter;
 
 import com.comcast.cmb.common.util.CMBProperties;
@@ -182,6 +183,36 @@ public class Util {
      * @return the Json String 
      */
     public static String generateMessageJson(CNSMessage cnsMessage, CnsSubscriptionProtocol prot) {
+    	return generateMessageJson(cnsMessage, prot, cnsMessage.getSubscriptionArn());
+    }
+    
+    /**
+     * Generate the Json message for one subscription. Everything but the unsubscribe url is rendered once per message
+     * and protocol and shared by all subscriptions.
+     * @param cnsMessage the message to send
+     * @param prot the protocol of the subscription
+     * @param subArn the subscription arn, part of the unsubscribe url
+     * @return the Json String 
+     */
+    public static String generateMessageJson(CNSMessage cnsMessage, CnsSubscriptionProtocol prot, String subArn) {
+    	
+    	String prefix = cnsMessage.getMessageJsonPrefix(prot);
+    	
+    	if (prefix == null) {
+    		return "";
+    	}
+    	
+    	return prefix + generateMessageJsonSuffix(subArn);
+    }
+    
+    /**
+     * Generate the subscription independent part of the Json message, that is the Json object up to but excluding 
+     * the unsubscribe url and the closing brace
+     * @param cnsMessage the message to send
+     * @param prot the protocol of the subscription
+     * @return the Json String prefix or null if the message could not be rendered 
+     */
+    public static String generateMessageJsonPrefix(CNSMessage cnsMessage, CnsSubscriptionProtocol prot) {
 
     	ByteArrayOutputStream out = new ByteArrayOutputStream();
 		Writer writer = new PrintWriter(out); 
@@ -201,20 +232,33 @@ public class Util {
 	    	jw.key("Timestamp").value(timestamp);
 	    	jw.key("TopicArn").value(cnsMessage.getTopicArn());
 	    	jw.key("Type").value(cnsMessage.getMessageType().toString());
-	    	String unsubscribeUrl = CMBProperties.getInstance().getCmbUnsubscribeUrl();
-	    	if (unsubscribeUrl.contains("%a")) {
-	    		unsubscribeUrl = unsubscribeUrl.replace("%a", cnsMessage.getSubscriptionArn());
-	    	} else {
-	    		unsubscribeUrl += "?Action=Unsubscribe&SubscriptionArn=" + cnsMessage.getSubscriptionArn();
-	    	}
-	    	jw.key("UnSubscribeURL").value(unsubscribeUrl);
 	    	jw.endObject();	    	    	
 	    	writer.flush();
     	} catch (Exception e) {
-    		return "";
+    		return null;
     	} 
     	
-    	return out.toString();
+    	String json = out.toString();
+    	
+    	return json.substring(0, json.length() - 1);
+    }
+    
+    /**
+     * Generate the subscription specific end of the Json message
+     * @param subArn the subscription arn
+     * @return the unsubscribe url key and value and the closing brace
+     */
+    public static String generateMessageJsonSuffix(String subArn) {
+    	
+    	String unsubscribeUrl = CMBProperties.getInstance().getCmbUnsubscribeUrl();
+    	
+    	if (unsubscribeUrl.contains("%a")) {
+    		unsubscribeUrl = unsubscribeUrl.replace("%a", String.valueOf(subArn));
+    	} else {
+    		unsubscribeUrl += "?Action=Unsubscribe&SubscriptionArn=" + subArn;
+    	}
+    	
+    	return ",\"UnSubscribeURL\":" + JSONObject.quote(unsubscribeUrl) + "}";
     }	
 	
 	public static boolean isPhoneNumber(String phone) {
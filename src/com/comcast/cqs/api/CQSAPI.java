@@ -32,6 +32,7 @@ import com.comcast.cmb.common.util.CMBException;
 import com.comcast.cmb.common.util.CMBProperties;
 import com.comcast.cmb.common.util.Util;
 import com.comcast.cqs.controller.CQSCache;
+import com.comcast.cqs.controller.CQSLongPollReceiver;
 import com.comcast.cqs.controller.CQSLongPollSender;
 import com.comcast.cqs.model.CQSMessage;
 import com.comcast.cqs.model.CQSMessageAttribute;
@@ -138,8 +139,22 @@ public class CQSAPI {
 	}
 	
 	public static List<CQSMessage> receiveMessages(String userId, String relativeQueueUrl, Integer maxNumberOfMessages, Integer visibilityTimeout) throws Exception {
-		
-		//TODO: longpoll currently not supported
+		return receiveMessages(userId, relativeQueueUrl, maxNumberOfMessages, visibilityTimeout, 0);
+	}
+	
+	/**
+	 * Receive messages, long polling for up to waitTimeSeconds if none are available. The calling thread parks on the 
+	 * same notifications that wake up long poll receives of the http api. If this server does not listen for long poll 
+	 * notifications the receive returns immediately.
+	 * @param userId
+	 * @param relativeQueueUrl
+	 * @param maxNumberOfMessages
+	 * @param visibilityTimeout
+	 * @param waitTimeSeconds
+	 * @return list of messages, empty if none became available within the wait time
+	 * @throws Exception
+	 */
+	public static List<CQSMessage> receiveMessages(String userId, String relativeQueueUrl, Integer maxNumberOfMessages, Integer visibilityTimeout, int waitTimeSeconds) throws Exception {
 		
 		long ts1 = System.currentTimeMillis();
 		
@@ -171,7 +186,36 @@ public class CQSAPI {
         	msgParam.put(CQSConstants.VISIBILITY_TIMEOUT, "" + visibilityTimeout);
 		}
 
+		if (waitTimeSeconds < 0 || waitTimeSeconds > CMBProperties.getInstance().getCMBRequestTimeoutSec()) {
+            throw new CMBException(CMBErrorCodes.InvalidParameterValue, CQSConstants.WAIT_TIME_SECONDS + " must be an integer number between 0 and " + CMBProperties.getInstance().getCMBRequestTimeoutSec() + ".");
+		}
+
 		messages = PersistenceFactory.getCQSMessagePersistence().receiveMessage(queue, msgParam);
+		
+		if (messages.size() == 0 && waitTimeSeconds > 0 && CMBProperties.getInstance().isCQSLongPollEnabled() && CQSLongPollReceiver.isListening()) {
+			
+			// register before reading again so a notification for a message sent in between is not lost
+			
+			long deadline = ts1 + waitTimeSeconds*1000L;
+			CQSLongPollReceiver.InlineReceive inlineReceive = new CQSLongPollReceiver.InlineReceive();
+			
+			try {
+				
+				while (messages.size() == 0 && System.currentTimeMillis() < deadline) {
+					
+					CQSLongPollReceiver.registerInline(queue.getArn(), inlineReceive);
+					messages = PersistenceFactory.getCQSMessagePersistence().receiveMessage(queue, msgParam);
+					
+					if (messages.size() == 0 && !inlineReceive.await(deadline - System.currentTimeMillis())) {
+						break;
+					}
+				}
+				
+			} finally {
+				CQSLongPollReceiver.unregisterInline(queue.getArn(), inlineReceive);
+			}
+		}
+		
 		List<String> receiptHandles = new ArrayList<String>();
 		
 		for (CQSMessage m : messages) {
@@ -191,6 +235,21 @@ public class CQSAPI {
 		emitLogLine(userId, "DeleteMessage", relativeQueueUrl, new ArrayList<String>(Arrays.asList(receiptHandle)), ts2-ts1);
 	}
 	
+	public static void deleteMessageBatch(String userId, String relativeQueueUrl, List<String> receiptHandles) throws Exception {
+		
+		long ts1 = System.currentTimeMillis();
+		
+    	CQSQueue queue = CQSCache.getCachedQueue(relativeQueueUrl);
+    	
+	    if (queue == null) {
+	    	throw new CMBException(CMBErrorCodes.InternalError, "Unknown queue " + relativeQueueUrl);
+	    }
+	    
+		PersistenceFactory.getCQSMessagePersistence().deleteMessageBatch(queue.getRelativeUrl(), receiptHandles);
+		long ts2 = System.currentTimeMillis();
+		emitLogLine(userId, "DeleteMessageBatch", queue.getRelativeUrl(), receiptHandles, ts2-ts1);
+	}
+	
 	public static CQSQueue createQueue(String userId, String queueName, Integer visibilityTimeout, Integer messageRetentionPeriod, Integer delaySeconds, Integer receiveMessageWaitTimeSeconds, Integer numberOfPartitions, Integer numberOfShards, Boolean isCompressed, String policy) throws Exception {
 		
 		long ts1 = System.currentTimeMillis();
@@ -355,4 +414,31 @@ public class CQSAPI {
 		
 		emitLogLine(userId, "ChangeMessageVisibility", queue.getRelativeUrl(), null, ts2-ts1);
 	}
+
+	public static void changeMessageVisibilityBatch(String userId, String relativeQueueUrl, List<String> receiptHandles, Integer visibilityTimeout) throws Exception {
+
+		long ts1 = System.currentTimeMillis();
+		
+    	CQSQueue queue = CQSCache.getCachedQueue(relativeQueueUrl);
+    	
+	    if (queue == null) {
+	    	throw new CMBException(CMBErrorCodes.InternalError, "Unknown queue " + relativeQueueUrl);
+	    }
+	    
+        if (visibilityTimeout == null) {
+            throw new CMBException(CMBErrorCodes.MissingParameter, "VisibilityTimeout not found");
+        }
+
+        if (visibilityTimeout < 0 || visibilityTimeout > CMBProperties.getInstance().getCQSMaxVisibilityTimeOut()) {
+            throw new CMBException(CMBErrorCodes.InvalidParameterValue, "VisibilityTimeout is limited from 0 to " + CMBProperties.getInstance().getCQSMaxVisibilityTimeOut() + " seconds");
+        }
+        
+        for (String receiptHandle : receiptHandles) {
+        	PersistenceFactory.getCQSMessagePersistence().changeMessageVisibility(queue, receiptHandle, visibilityTimeout);
+        }
+	    
+		long ts2 = System.currentTimeMillis();
+		
+		emitLogLine(userId, "ChangeMessageVisibilityBatch", queue.getRelativeUrl(), receiptHandles, ts2-ts1);
+	}
 }
@@ -11,7 +11,6 @@ import com.comcast.cmb.common.persistence.PersistenceFactory;
 import com.comcast.cmb.common.util.CMBProperties;
 import com.comcast.cmb.common.util.ExpiringCache;
 import com.comcast.cmb.common.util.PersistenceException;
-import com.comcast.cmb.common.util.ExpiringCache.CacheFullException;
 import com.comcast.cqs.model.CQSQueue;
 import com.comcast.cqs.persistence.ICQSQueuePersistence;
 import com.comcast.cqs.util.CQSConstants;
@@ -19,7 +18,7 @@ import com.comcast.cqs.util.CQSErrorCodes;
 
 public class CQSCache {
 
-    protected static ExpiringCache<String, CQSQueue> queueCache = new ExpiringCache<String, CQSQueue>(CMBProperties.getInstance().getCQSCacheSizeLimit());
+    protected static ExpiringCache<String, CQSQueue> queueCache = new ExpiringCache<String, CQSQueue>("CQSQueueCache", CMBProperties.getInstance().getCQSCacheSizeLimit());
     protected static volatile ICQSQueuePersistence queuePersistence = PersistenceFactory.getQueuePersistence();
     
     private static Logger logger = Logger.getLogger(CQSCache.class);
@@ -55,11 +54,7 @@ public class CQSCache {
      * @throws Exception
      */
     public static CQSQueue getCachedQueue(String relativeQueueUrl) throws Exception {
-        try {
-            return queueCache.getAndSetIfNotPresent(relativeQueueUrl, new QueueCallable(relativeQueueUrl), CMBProperties.getInstance().getCQSCacheExpiring() * 1000);
-        } catch (CacheFullException e) {
-            return new QueueCallable(relativeQueueUrl).call();
-        } 
+        return queueCache.getAndSetIfNotPresent(relativeQueueUrl, new QueueCallable(relativeQueueUrl), CMBProperties.getInstance().getCQSCacheExpiring() * 1000);
     }
     
     /**
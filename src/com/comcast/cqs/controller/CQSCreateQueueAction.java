@@ -250,6 +250,27 @@ public class CQSCreateQueueAction extends CQSAction {
             	boolean isCompressed = Boolean.parseBoolean(attributeValue);
             	newQueue.setCompressed(isCompressed);
 
+            } else if (attributeName.equals(CQSConstants.MESSAGE_FORMAT)) {
+            	
+            	// format of message columns in cassandra, binary avoids json encoding - legacy json columns remain readable either way
+            	
+            	String messageFormat = null;
+            	
+            	if (CQSConstants.MESSAGE_FORMAT_JSON.equalsIgnoreCase(attributeValue)) {
+            		messageFormat = CQSConstants.MESSAGE_FORMAT_JSON;
+            	} else if (CQSConstants.MESSAGE_FORMAT_BINARY.equalsIgnoreCase(attributeValue)) {
+            		messageFormat = CQSConstants.MESSAGE_FORMAT_BINARY;
+            	} else {
+                    throw new CMBException(CMBErrorCodes.InvalidParameterValue, CQSConstants.MESSAGE_FORMAT + " should be " + CQSConstants.MESSAGE_FORMAT_JSON + " or " + CQSConstants.MESSAGE_FORMAT_BINARY);
+            	}
+            	
+            	if (existingQueue != null && !existingQueue.getMessageFormat().equals(messageFormat)) {
+                    throwQueueExistsError = true;
+                    break;
+                }
+            	
+            	newQueue.setMessageFormat(messageFormat);
+
             } else {
                 throw new CMBException(CMBErrorCodes.InvalidRequest, "Attribute: " + attributeName + " is not a valid attribute");
             }
@@ -89,10 +89,7 @@ public class CQSDeleteMessageBatchAction extends CQSAction {
             throw new CMBException(CMBErrorCodes.InvalidQueryParameter, "Both user supplied message Id and receiptHandle are required");
         }
 
-        for (Map.Entry<String, String> entry : idMap.entrySet()) {
-            receiptHandle = entry.getValue();
-        	PersistenceFactory.getCQSMessagePersistence().deleteMessage(queue.getRelativeUrl(), receiptHandle);
-        }
+        PersistenceFactory.getCQSMessagePersistence().deleteMessageBatch(queue.getRelativeUrl(), new ArrayList<String>(idMap.values()));
         
         String out = CQSMessagePopulator.getDeleteMessageBatchResponse(new ArrayList<String>(idMap.keySet()), failedList);
         writeResponse(out, response);
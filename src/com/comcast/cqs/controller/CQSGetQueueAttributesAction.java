@@ -21,11 +21,14 @@ import javax.servlet.AsyncContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.log4j.Logger;
+
 import com.comcast.cmb.common.model.User;
 import com.comcast.cmb.common.util.CMBErrorCodes;
 import com.comcast.cmb.common.util.CMBException;
 import com.comcast.cqs.io.CQSQueuePopulator;
 import com.comcast.cqs.model.CQSQueue;
+import com.comcast.cqs.model.CQSQueueDepth;
 import com.comcast.cqs.util.CQSConstants;
 import com.comcast.cqs.util.Util;
 
@@ -36,6 +39,8 @@ import com.comcast.cqs.util.Util;
  */
 public class CQSGetQueueAttributesAction extends CQSAction {
 	
+    private static Logger logger = Logger.getLogger(CQSGetQueueAttributesAction.class);
+
 	public CQSGetQueueAttributesAction() {
 		super("GetQueueAttributes");
 	}		
@@ -58,14 +63,44 @@ public class CQSGetQueueAttributesAction extends CQSAction {
                 && !attribute.equals(CQSConstants.APPROXIMATE_NUMBER_OF_MESSAGES_NOTVISIBLE) 
                 && !attribute.equals(CQSConstants.APPROXIMATE_NUMBER_OF_MESSAGES_DELAYED) 
                 && !attribute.equals(CQSConstants.RECEIVE_MESSAGE_WAIT_TIME_SECONDS)
-                && !attribute.equals(CQSConstants.NUMBER_OF_PARTITIONS) && !attribute.equals(CQSConstants.NUMBER_OF_SHARDS) && !attribute.equals(CQSConstants.IS_COMPRESSED)) {
+                && !attribute.equals(CQSConstants.NUMBER_OF_PARTITIONS) && !attribute.equals(CQSConstants.NUMBER_OF_SHARDS) && !attribute.equals(CQSConstants.IS_COMPRESSED)
+                && !attribute.equals(CQSConstants.MESSAGE_FORMAT)) {
                 throw new CMBException(CMBErrorCodes.InvalidAttributeName, "Unknown attribute " + attribute);
             }
         }
 
-        String out = CQSQueuePopulator.getQueueAttributesResponse(queue, attributesList);
+        CQSQueueDepth depth = null;
+        
+        // all three approximate counts come from the depth cache or a single pipelined redis round trip
+        
+        if (attributesList.contains("All") || attributesList.contains(CQSConstants.APPROXIMATE_NUMBER_OF_MESSAGES) 
+        		|| attributesList.contains(CQSConstants.APPROXIMATE_NUMBER_OF_MESSAGES_NOTVISIBLE) 
+        		|| attributesList.contains(CQSConstants.APPROXIMATE_NUMBER_OF_MESSAGES_DELAYED)) {
+        	depth = getQueueDepth(queue, Boolean.parseBoolean(request.getParameter(CQSConstants.FORCE_EXACT_COUNT)));
+        }
+
+        String out = CQSQueuePopulator.getQueueAttributesResponse(queue, attributesList, depth);
         writeResponse(out, response);
         
         return true;
 	}
+	
+	private static CQSQueueDepth getQueueDepth(CQSQueue queue, boolean exact) {
+		
+		try {
+			
+			CQSQueueDepth depth = CQSQueueDepthCache.getInstance().getQueueDepth(queue.getRelativeUrl(), exact);
+			
+			if (depth != null) {
+				return depth;
+			}
+			
+			logger.warn("event=queue_depth_unavailable queue_url=" + queue.getRelativeUrl());
+			
+		} catch (Exception ex) {
+			logger.error("event=failed_to_get_queue_depth queue_url=" + queue.getRelativeUrl(), ex);
+		}
+		
+		return CQSQueueDepth.EMPTY;
+	}
 }
\ No newline at end of file
@@ -21,6 +21,7 @@ import javax.servlet.AsyncContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.comcast.cmb.common.controller.XmlResponseWriter;
 import com.comcast.cmb.common.model.CMBPolicy;
 import com.comcast.cmb.common.model.User;
 import com.comcast.cmb.common.persistence.PersistenceFactory;
@@ -53,8 +54,9 @@ public class CQSListQueuesAction extends CQSAction {
 
         List<CQSQueue> queues = PersistenceFactory.getQueuePersistence().listQueues(user.getUserId(), prefix, containingMessagesOnly);
 
-        String out = CQSQueuePopulator.getListQueuesResponse(queues);
-        writeResponse(out, response);
+        XmlResponseWriter out = new XmlResponseWriter(response);
+        CQSQueuePopulator.writeListQueuesResponse(queues, out);
+        out.close();
         
         return true;
 	}
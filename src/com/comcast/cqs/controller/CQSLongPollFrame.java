@@ -0,0 +1,168 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cqs.controller;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.handler.codec.frame.LengthFieldBasedFrameDecoder;
+import org.jboss.netty.handler.codec.frame.LengthFieldPrepender;
+
+/**
+ * Wire format of the long poll notification channel. Every frame is prefixed by a 4 byte length (added and stripped
+ * by netty's length field codecs) and carries a batch of queue arns:
+ *
+ * [byte type][int count] followed by count times [short length][utf-8 bytes of queue arn]
+ *
+ * Notifications travel from sender to receiver, interest announcements travel back on the same connection and are
+ * acknowledged by the sender once it will notify about the announced queues.
+ */
+public class CQSLongPollFrame {
+
+	public static final byte NOTIFY = 1;
+	public static final byte INTEREST_ADD = 2;
+	public static final byte INTEREST_REMOVE = 3;
+	public static final byte INTEREST_ACK = 4;
+
+	public static final int MAX_FRAME_LENGTH = 1024*1024;
+
+	// the frame decoder counts the length prefix against MAX_FRAME_LENGTH
+
+	private static final int MAX_PAYLOAD_LENGTH = MAX_FRAME_LENGTH - 4;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final byte type;
+	private final List<String> queueArns;
+
+	private CQSLongPollFrame(byte type, List<String> queueArns) {
+		this.type = type;
+		this.queueArns = queueArns;
+	}
+
+	public byte getType() {
+		return type;
+	}
+
+	public List<String> getQueueArns() {
+		return queueArns;
+	}
+
+	/**
+	 * @param handler application handler receiving one ChannelBuffer per frame
+	 * @return pipeline for both the sender and the receiver side of the channel
+	 */
+	public static ChannelPipeline getPipeline(ChannelHandler handler) {
+		return Channels.pipeline(new LengthFieldBasedFrameDecoder(MAX_FRAME_LENGTH, 0, 4, 0, 4), new LengthFieldPrepender(4), handler);
+	}
+
+	public static ChannelBuffer encode(byte type, String queueArn) {
+		List<String> queueArns = new ArrayList<String>(1);
+		queueArns.add(queueArn);
+		return encode(type, queueArns);
+	}
+
+	public static ChannelBuffer encode(byte type, Collection<String> queueArns) {
+
+		List<byte[]> encoded = new ArrayList<byte[]>(queueArns.size());
+		int length = 5;
+
+		for (String queueArn : queueArns) {
+			byte[] bytes = queueArn.getBytes(UTF8);
+			encoded.add(bytes);
+			length += 2 + bytes.length;
+		}
+
+		ChannelBuffer buf = ChannelBuffers.buffer(length);
+		buf.writeByte(type);
+		buf.writeInt(encoded.size());
+
+		for (byte[] bytes : encoded) {
+			buf.writeShort(bytes.length);
+			buf.writeBytes(bytes);
+		}
+
+		return buf;
+	}
+
+	/**
+	 * Encode queue arns into as many frames as needed to stay below MAX_FRAME_LENGTH, for batches of unbounded size
+	 * such as the interest snapshot sent to a new peer
+	 * @param type
+	 * @param queueArns
+	 * @return at least one frame, a single empty frame if there are no queue arns
+	 */
+	public static List<ChannelBuffer> encodeFrames(byte type, Collection<String> queueArns) {
+
+		List<ChannelBuffer> frames = new ArrayList<ChannelBuffer>();
+		List<String> batch = new ArrayList<String>();
+		int length = 5;
+
+		for (String queueArn : queueArns) {
+
+			int arnLength = 2 + queueArn.getBytes(UTF8).length;
+
+			if (length + arnLength > MAX_PAYLOAD_LENGTH && batch.size() > 0) {
+				frames.add(encode(type, batch));
+				batch = new ArrayList<String>();
+				length = 5;
+			}
+
+			batch.add(queueArn);
+			length += arnLength;
+		}
+
+		if (batch.size() > 0 || frames.isEmpty()) {
+			frames.add(encode(type, batch));
+		}
+
+		return frames;
+	}
+
+	/**
+	 * @param buf a single frame as delivered by the frame decoder, length prefix already stripped
+	 */
+	public static CQSLongPollFrame decode(ChannelBuffer buf) {
+
+		if (buf.readableBytes() < 5) {
+			throw new IllegalArgumentException("Frame too short: " + buf.readableBytes());
+		}
+
+		byte type = buf.readByte();
+		int count = buf.readInt();
+
+		if (count < 0 || count > buf.readableBytes() / 2) {
+			throw new IllegalArgumentException("Invalid queue count: " + count);
+		}
+
+		List<String> queueArns = new ArrayList<String>(count);
+
+		for (int i=0; i<count; i++) {
+			int length = buf.readUnsignedShort();
+			queueArns.add(buf.toString(buf.readerIndex(), length, UTF8));
+			buf.skipBytes(length);
+		}
+
+		return new CQSLongPollFrame(type, queueArns);
+	}
+}
@@ -23,7 +23,6 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
 
 import javax.servlet.AsyncContext;
-import javax.servlet.http.HttpServletResponse;
 
 import org.apache.log4j.Logger;
 import org.jboss.netty.bootstrap.ServerBootstrap;
@@ -32,14 +31,16 @@ import org.jboss.netty.channel.ChannelFactory;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
-import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
 
-import com.comcast.cmb.common.controller.Action;
 import com.comcast.cmb.common.controller.CMBControllerServlet;
+import com.comcast.cmb.common.controller.XmlResponseWriter;
 import com.comcast.cmb.common.persistence.PersistenceFactory;
 import com.comcast.cmb.common.util.CMBProperties;
 import com.comcast.cmb.common.util.ValueAccumulator.AccumulatorName;
@@ -55,6 +56,19 @@ public class CQSLongPollReceiver {
     private static ChannelFactory serverSocketChannelFactory;
 
     public static volatile ConcurrentHashMap<String, ConcurrentLinkedQueue<AsyncContext>> contextQueues;
+    
+    // queues this server has announced interest in to its peers, i.e. queues with parked long poll receives
+    
+    private static volatile ConcurrentHashMap<String, Boolean> announcedQueues;
+    
+    // inbound connections from the long poll senders of all peer api servers, interest announcements travel back on these
+    
+    private static volatile ChannelGroup peerChannels;
+    
+    // in-process long poll receives (cqs api called directly, e.g. by a cns worker co-located with the cqs service), 
+    // these park on a monitor rather than an async context and do their own receive once woken up
+    
+    private static volatile ConcurrentHashMap<String, ConcurrentLinkedQueue<InlineReceive>> inlineQueues;
 
 	//
 	// current long poll design:
@@ -77,7 +91,10 @@ public class CQSLongPollReceiver {
     //
     // if send and receive happens on the same server, bypass async i/o and place the async context directly on the queue in memory (done)
     // resue established netty channels instead of crerating new tcp connectiosn for every sendmessage() call (done)
-    // only send notifications to endpoints that are actually waiting for messages or have recently been waiting for messages
+    // only send notifications to endpoints that are actually waiting for messages (done, receivers announce and withdraw interest on the 
+    // inbound sender connections whenever their in-mem queue for a cqs queue becomes non-empty or drains, senders acknowledge 
+    // announcements so the receiver checks the queue once more, and notify peers that have not announced anything yet about everything)
+    // length-prefixed binary frames carrying batches of queue arns, see CQSLongPollFrame (done)
     // reestablishing connections only on failure or after a set period of time (e.g. 1 hr), or send ping over connection every 60 sec 
     // only send notifications if queue is empty or near empty (a full queue cannot have pending receivemessage() calls)
     // tune tcp settings - keep-alive etc.
@@ -96,34 +113,43 @@ public class CQSLongPollReceiver {
 	//
 	// each long poll request occupies a waiting thread on the worker pool (only applies to old design)
 	// no short cut if send and receive happens on same api server (only applies to old design)
-	// receive broadcasts to all api servers regardless of whether they are actually listening or not 
 	// long poll receiver thread is single point of failure on api server
     //
     
 	private static class LongPollServerHandler extends SimpleChannelHandler {
 
-		StringBuffer queueArn = new StringBuffer("");
-		
 		@Override
 		public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
 			
-			ChannelBuffer buf = (ChannelBuffer)e.getMessage();
+			CQSLongPollFrame frame = CQSLongPollFrame.decode((ChannelBuffer)e.getMessage());
 			
-			while (buf.readable()) {
-				
-				char c = ((char)buf.readByte());
-				
-				if (c == ';') {
+			// an acknowledged interest is checked once more, messages sent on the peer before it knew about our interest 
+			// were not notified
+			
+			if (frame.getType() != CQSLongPollFrame.NOTIFY && frame.getType() != CQSLongPollFrame.INTEREST_ACK) {
+				logger.warn("event=unexpected_longpoll_frame type=" + frame.getType() + " remote_address=" + e.getRemoteAddress());
+				return;
+			}
+			
+			String remoteAddress = e.getRemoteAddress() != null ? e.getRemoteAddress().toString() : "";
+			
+			for (String queueArn : frame.getQueueArns()) {
+				processNotification(queueArn, remoteAddress);
+			}
+		}
 
-					processNotification(queueArn.toString(), e.getRemoteAddress() != null ? e.getRemoteAddress().toString() : "");
-					
-					// start reading new message
-			        
-			        queueArn = new StringBuffer("");
-					
-				} else {
-					queueArn.append(c);
-				}
+		@Override
+		public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) {
+			
+			peerChannels.add(e.getChannel());
+			
+			// bring the new peer up to date with everything we are currently waiting on, even if that is nothing, so it 
+			// knows this server announces its interests and stops sending it every notification
+			
+			List<String> queueArns = new ArrayList<String>(announcedQueues.keySet());
+			
+			for (ChannelBuffer frame : CQSLongPollFrame.encodeFrames(CQSLongPollFrame.INTEREST_ADD, queueArns)) {
+				e.getChannel().write(frame);
 			}
 		}
 
@@ -134,16 +160,187 @@ public class CQSLongPollReceiver {
 		}
 	}
 	
+	/**
+	 * Monitor an in-process long poll receive waits on until a notification for its queue arrives. A notification 
+	 * arriving before the receive starts waiting is remembered, so nothing is lost between the last empty read and await().
+	 */
+	public static class InlineReceive {
+		
+		private boolean notified = false;
+		
+		/**
+		 * Wait for a notification
+		 * @param timeoutMS
+		 * @return true if notified, false on timeout
+		 * @throws InterruptedException
+		 */
+		public synchronized boolean await(long timeoutMS) throws InterruptedException {
+			
+			long deadline = System.currentTimeMillis() + timeoutMS;
+			long remaining = timeoutMS;
+			
+			while (!notified && remaining > 0) {
+				wait(remaining);
+				remaining = deadline - System.currentTimeMillis();
+			}
+			
+			boolean result = notified;
+			notified = false;
+			
+			return result;
+		}
+		
+		public synchronized void signal() {
+			notified = true;
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * @return true if this server is receiving long poll notifications, i.e. parked receives will be woken up
+	 */
+	public static boolean isListening() {
+		return initialized;
+	}
+	
+	/**
+	 * Park an in-process long poll receive until a notification for the queue arrives and announce interest in the queue 
+	 * to peers. Unlike async contexts inline receives are removed from the queue when woken up and must register again to 
+	 * keep waiting.
+	 * @param queueArn
+	 * @param inlineReceive
+	 */
+	public static void registerInline(String queueArn, InlineReceive inlineReceive) {
+		
+		contextQueues.putIfAbsent(queueArn, new ConcurrentLinkedQueue<AsyncContext>());
+		ConcurrentLinkedQueue<AsyncContext> contextQueue = contextQueues.get(queueArn);
+		inlineQueues.putIfAbsent(queueArn, new ConcurrentLinkedQueue<InlineReceive>());
+		ConcurrentLinkedQueue<InlineReceive> inlineQueue = inlineQueues.get(queueArn);
+		
+		inlineQueue.offer(inlineReceive);
+		
+		synchronized (contextQueue) {
+			if (!inlineQueue.isEmpty() && announcedQueues.putIfAbsent(queueArn, Boolean.TRUE) == null) {
+				peerChannels.write(CQSLongPollFrame.encode(CQSLongPollFrame.INTEREST_ADD, queueArn));
+				logger.debug("event=announced_longpoll_interest queue_arn=" + queueArn);
+			}
+		}
+	}
+	
+	/**
+	 * Remove an in-process long poll receive (when done waiting) and withdraw interest if it was the last one
+	 * @param queueArn
+	 * @param inlineReceive
+	 */
+	public static void unregisterInline(String queueArn, InlineReceive inlineReceive) {
+		
+		ConcurrentLinkedQueue<InlineReceive> inlineQueue = inlineQueues.get(queueArn);
+		ConcurrentLinkedQueue<AsyncContext> contextQueue = contextQueues.get(queueArn);
+		
+		if (inlineQueue != null && contextQueue != null && inlineReceive != null) {
+			inlineQueue.remove(inlineReceive);
+			withdrawIfDrained(queueArn, contextQueue);
+		}
+	}
+	
+	/**
+	 * Park a long poll receive until a notification for the queue arrives and announce interest in the queue to peers
+	 * @param queueArn
+	 * @param asyncContext
+	 * @return true if the context was queued
+	 */
+	public static boolean register(String queueArn, AsyncContext asyncContext) {
+		
+		contextQueues.putIfAbsent(queueArn, new ConcurrentLinkedQueue<AsyncContext>());
+		ConcurrentLinkedQueue<AsyncContext> contextQueue = contextQueues.get(queueArn);
+		
+		if (!contextQueue.offer(asyncContext)) {
+			return false;
+		}
+		
+		synchronized (contextQueue) {
+			if (!contextQueue.isEmpty() && announcedQueues.putIfAbsent(queueArn, Boolean.TRUE) == null) {
+				peerChannels.write(CQSLongPollFrame.encode(CQSLongPollFrame.INTEREST_ADD, queueArn));
+				logger.debug("event=announced_longpoll_interest queue_arn=" + queueArn);
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Remove a parked long poll receive (on timeout or error) and withdraw interest if it was the last one
+	 * @param queueArn
+	 * @param asyncContext
+	 */
+	public static void unregister(String queueArn, AsyncContext asyncContext) {
+		
+		ConcurrentLinkedQueue<AsyncContext> contextQueue = contextQueues.get(queueArn);
+		
+		if (contextQueue != null && asyncContext != null) {
+			contextQueue.remove(asyncContext);
+			withdrawIfDrained(queueArn, contextQueue);
+		}
+	}
+	
+	private static void withdrawIfDrained(String queueArn, ConcurrentLinkedQueue<AsyncContext> contextQueue) {
+		
+		// announcements and withdrawals for a queue are serialized on its context queue so peers always see them in order
+		
+		ConcurrentLinkedQueue<InlineReceive> inlineQueue = inlineQueues.get(queueArn);
+		
+		synchronized (contextQueue) {
+			if (contextQueue.isEmpty() && (inlineQueue == null || inlineQueue.isEmpty()) && announcedQueues.remove(queueArn) != null) {
+				peerChannels.write(CQSLongPollFrame.encode(CQSLongPollFrame.INTEREST_REMOVE, queueArn));
+				logger.debug("event=withdrew_longpoll_interest queue_arn=" + queueArn);
+			}
+		}
+	}
+	
 	public static int processNotification(String queueArn, String remoteAddress) {
 		
 		int messageCount = 0;
 		
-		long ts1 = System.currentTimeMillis();
-		CMBControllerServlet.valueAccumulator.initializeAllCounters();
-		
 		contextQueues.putIfAbsent(queueArn, new ConcurrentLinkedQueue<AsyncContext>());
 		ConcurrentLinkedQueue<AsyncContext> contextQueue = contextQueues.get(queueArn);
 		
+		// senders coalesce notifications, so keep serving parked receives for as long as they find messages
+		
+		int count = processNextContext(queueArn, contextQueue, remoteAddress);
+		
+		while (count != 0) {
+			messageCount += Math.max(count, 0);
+			count = processNextContext(queueArn, contextQueue, remoteAddress);
+		}
+		
+		// wake up all in-process receives, they read messages on their own threads so we cannot tell how many they 
+		// will find, those coming up empty register again and the others withdraw interest when they unregister
+		
+		ConcurrentLinkedQueue<InlineReceive> inlineQueue = inlineQueues.get(queueArn);
+		InlineReceive inlineReceive = inlineQueue != null ? inlineQueue.poll() : null;
+		
+		if (inlineReceive == null) {
+			withdrawIfDrained(queueArn, contextQueue);
+		}
+		
+		while (inlineReceive != null) {
+			inlineReceive.signal();
+			inlineReceive = inlineQueue.poll();
+		}
+		
+		return messageCount;
+	}
+	
+	/**
+	 * Serve the next parked receive for the queue
+	 * @return number of messages returned, 0 if there was no context or no messages, -1 if an outdated or invalid context was discarded
+	 */
+	private static int processNextContext(String queueArn, ConcurrentLinkedQueue<AsyncContext> contextQueue, String remoteAddress) {
+		
+		int messageCount = 0;
+		
+		long ts1 = System.currentTimeMillis();
+		
 		AsyncContext asyncContext = contextQueue.poll();
 		
 		if (asyncContext == null) {
@@ -153,12 +350,12 @@ public class CQSLongPollReceiver {
 		
 		if (asyncContext.getRequest() == null) {
 			logger.info("event=skipping_invalid_context queue_arn=" + queueArn + " remote_address=" + remoteAddress);
-			return messageCount;
+			return -1;
 		}
 		
 		if (!(asyncContext.getRequest() instanceof CQSHttpServletRequest)) {
 			logger.info("event=skipping_invalid_request queue_arn=" + queueArn + " remote_address=" + remoteAddress);
-			return messageCount;
+			return -1;
 		}
 		
         CQSHttpServletRequest request = (CQSHttpServletRequest)asyncContext.getRequest();
@@ -167,9 +364,11 @@ public class CQSLongPollReceiver {
 		
 		if (!request.isActive() || System.currentTimeMillis() - request.getRequestReceivedTimestamp() > request.getWaitTime()) {
 			logger.info("event=skipping_outdated_context queue_arn=" + queueArn + " remote_address=" + remoteAddress);
-			return messageCount;
+			return -1;
 		}
 		
+		CMBControllerServlet.valueAccumulator.initializeAllCounters();
+		
 		logger.debug("event=notification_received queue_arn=" + queueArn + " remote_address=" + remoteAddress);
 
         try {
@@ -190,8 +389,9 @@ public class CQSLongPollReceiver {
 				request.setReceiptHandles(receiptHandles);
 				request.setAttribute("lp", "yy"); // found lp call with messages 
 				CQSMonitor.getInstance().addNumberOfMessagesReturned(queue.getRelativeUrl(), messageList.size());
-		        String out = CQSMessagePopulator.getReceiveMessageResponseAfterSerializing(messageList, request.getFilterAttributes(), request.getFilterMessageAttributes());
-		        Action.writeResponse(out, (HttpServletResponse)asyncContext.getResponse());
+		        XmlResponseWriter out = new XmlResponseWriter(asyncContext.getResponse());
+		        CQSMessagePopulator.writeReceiveMessageResponse(messageList, request.getFilterAttributes(), request.getFilterMessageAttributes(), out);
+		        out.close();
 		        long lp_ms = System.currentTimeMillis() - ts1;
 		        request.setAttribute("lp_ms", lp_ms);
 		        String cass_msString = String.valueOf(CQSControllerServlet.valueAccumulator.getCounter(AccumulatorName.CassandraTime));
@@ -227,6 +427,9 @@ public class CQSLongPollReceiver {
 		if (!initialized) {
 		
 	        contextQueues = new ConcurrentHashMap<String, ConcurrentLinkedQueue<AsyncContext>>();
+	        inlineQueues = new ConcurrentHashMap<String, ConcurrentLinkedQueue<InlineReceive>>();
+	        announcedQueues = new ConcurrentHashMap<String, Boolean>();
+	        peerChannels = new DefaultChannelGroup("longpoll-peers");
 	
 			serverSocketChannelFactory = new NioServerSocketChannelFactory(Executors.newCachedThreadPool(), Executors.newCachedThreadPool());
 	
@@ -234,7 +437,7 @@ public class CQSLongPollReceiver {
 	
 			serverBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
 				public ChannelPipeline getPipeline() {
-					return Channels.pipeline(new LongPollServerHandler());
+					return CQSLongPollFrame.getPipeline(new LongPollServerHandler());
 				}
 			});
 	
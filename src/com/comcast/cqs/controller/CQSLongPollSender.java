@@ -19,14 +19,18 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.URL;
 import java.net.UnknownHostException;
-import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import com.comcast.cqs.model.CQSAPIStats;
@@ -35,7 +39,6 @@ import com.comcast.cqs.util.Util;
 import org.apache.log4j.Logger;
 import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFactory;
 import org.jboss.netty.channel.ChannelFuture;
@@ -43,7 +46,7 @@ import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
-import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelHandler;
@@ -77,13 +80,62 @@ public class CQSLongPollSender {
 
     private static volatile ConcurrentHashMap<String, Channel> activeCQSApiServers;
     
+    // queue arns each remote cqs api server has announced interest in (has long poll receives parked for), keyed by channel id
+    
+    private static volatile ConcurrentHashMap<Integer, Set<String>> interestedQueuesByChannel;
+    
+    // channels whose remote server has announced its interests, all others are notified about every queue
+    
+    private static volatile Set<Integer> announcingChannels;
+    
     private static ClientBootstrap clientBootstrap;
     private static ChannelFactory clientSocketChannelFactory;
 
 	private static class CQSLongPollClientHandler extends SimpleChannelHandler {
 
+		@Override
+		public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) {
+			interestedQueuesByChannel.put(e.getChannel().getId(), Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()));
+		}
+
+		@Override
+		public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) {
+			interestedQueuesByChannel.remove(e.getChannel().getId());
+			announcingChannels.remove(e.getChannel().getId());
+		}
+
 		@Override
 		public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
+			
+			// remote server announces and withdraws interest in queues
+			
+			CQSLongPollFrame frame = CQSLongPollFrame.decode((ChannelBuffer)e.getMessage());
+			Set<String> interestedQueues = interestedQueuesByChannel.get(e.getChannel().getId());
+			
+			if (interestedQueues == null) {
+				return;
+			}
+			
+			if (frame.getType() == CQSLongPollFrame.INTEREST_ADD) {
+				
+				interestedQueues.addAll(frame.getQueueArns());
+				
+				// sends that happened before the interest arrived were not notified, the ack makes the remote server check again
+				
+				if (frame.getQueueArns().size() > 0) {
+					e.getChannel().write(CQSLongPollFrame.encode(CQSLongPollFrame.INTEREST_ACK, frame.getQueueArns()));
+				}
+				
+			} else if (frame.getType() == CQSLongPollFrame.INTEREST_REMOVE) {
+				interestedQueues.removeAll(frame.getQueueArns());
+			} else {
+				logger.warn("event=unexpected_longpoll_frame type=" + frame.getType() + " remote_address=" + e.getRemoteAddress());
+				return;
+			}
+			
+			announcingChannels.add(e.getChannel().getId());
+			
+			logger.debug("event=longpoll_interest_changed remote_address=" + e.getRemoteAddress() + " type=" + frame.getType() + " queue_arns=" + frame.getQueueArns());
 		}
 
 		@Override
@@ -98,6 +150,8 @@ public class CQSLongPollSender {
 		if (!initialized) {
 	
 	    	activeCQSApiServers = new ConcurrentHashMap<String, Channel>();
+	    	interestedQueuesByChannel = new ConcurrentHashMap<Integer, Set<String>>();
+	    	announcingChannels = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
 	
 	    	pendingNotifications = new LinkedBlockingQueue<String>();
 			
@@ -109,7 +163,7 @@ public class CQSLongPollSender {
 		
 			clientBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
 				public ChannelPipeline getPipeline() {
-					return Channels.pipeline(new CQSLongPollClientHandler());
+					return CQSLongPollFrame.getPipeline(new CQSLongPollClientHandler());
 				}
 			});
 		
@@ -264,103 +318,207 @@ public class CQSLongPollSender {
 		
 	    private static Logger logger = Logger.getLogger(LongPollSenderThread.class);
 	    
+	    // time of last notification fanned out to remote servers per queue, and queues whose remote notification was
+	    // held back because it fell inside the coalescing window
+	    
+	    private final Map<String, Long> lastRemoteNotification = new HashMap<String, Long>();
+	    private final Map<String, Long> deferredRemoteNotification = new LinkedHashMap<String, Long>();
+	    
 	    public LongPollSenderThread() {
 	    }
 	    
 		public void run() {
 
-			String queueArn = null;
-			String queueMessageNumberString = null;
-			int messageSendCount = 1;
-			int separatorIndex = -1;
+			List<String> notifications = new ArrayList<String>();
 			
 			while (true) {
 		
-				// blocking wait for next pending notification
+				// wait for next pending notification, or until the earliest deferred notification is due
+				
+				notifications.clear();
 				
 				try {
-					queueMessageNumberString = pendingNotifications.take();
+					
+					String queueMessageNumberString = null;
+					
+					if (deferredRemoteNotification.isEmpty()) {
+						queueMessageNumberString = pendingNotifications.take();
+					} else {
+						long wait = deferredRemoteNotification.values().iterator().next() - System.currentTimeMillis();
+						queueMessageNumberString = pendingNotifications.poll(Math.max(wait, 0), TimeUnit.MILLISECONDS);
+					}
+					
+					if (queueMessageNumberString != null) {
+						notifications.add(queueMessageNumberString);
+						pendingNotifications.drainTo(notifications);
+					}
+					
 				} catch (InterruptedException ex) {
 					logger.warn("event=taking_pending_notifcation_from_queue_failed");
 				}
 				
-				if (queueMessageNumberString == null) {
+				// coalesce everything that queued up while we were busy into one notification per queue
+				
+				Map<String, Integer> messageSendCounts = new LinkedHashMap<String, Integer>();
+				
+				for (String queueMessageNumberString : notifications) {
 					
-					try { 
-						Thread.sleep(1000); 
-					} catch (InterruptedException ex) { 
-						logger.error("event=thread_interrupted", ex);
-					}
+					String queueArn = null;
+					int messageSendCount = 1;
 					
-					continue;
-				} else {
 					//queueArn example: cmb:cqs:ccp:390328612038:test, this means a send with 1 message
 					if (Util.isValidQueueArn(queueMessageNumberString)){
 						queueArn = queueMessageNumberString;
-						messageSendCount = 1;						
 					} else { //send with multiple message
-						separatorIndex = queueMessageNumberString.lastIndexOf(":");
+						int separatorIndex = queueMessageNumberString.lastIndexOf(":");
 						queueArn = queueMessageNumberString.substring(0, separatorIndex);
 						messageSendCount = Integer.parseInt(queueMessageNumberString.substring(separatorIndex+1));
 					}
+					
+					Integer count = messageSendCounts.get(queueArn);
+					messageSendCounts.put(queueArn, count == null ? messageSendCount : count + messageSendCount);
 				}
 
-				// don't go through tcp stack for loopback
-				
-				int messageReceiveCount = CQSLongPollReceiver.processNotification(queueArn, "localhost");
-				logger.debug("event=longpoll_notification_sent endpoint=localhost queue_arn=" + queueArn + " num_msg_found=" + messageReceiveCount);
+				long now = System.currentTimeMillis();
+				long window = CMBProperties.getInstance().getCQSLongPollCoalesceWindowMS();
+				Map<String, List<String>> outgoing = new HashMap<String, List<String>>();
 				
-				// if messageSendCound is already been received by local or empty queue, finish 
-				try {
-					if (messageReceiveCount >= messageSendCount
-							|| PersistenceFactory.getCQSMessagePersistence()
-									.getQueueMessageCount(
-											Util.getRelativeQueueUrlForArn(queueArn)) == 0) {
+				for (String queueArn : messageSendCounts.keySet()) {
+					
+					int messageSendCount = messageSendCounts.get(queueArn);
+
+					// don't go through tcp stack for loopback
+					
+					int messageReceiveCount = CQSLongPollReceiver.processNotification(queueArn, "localhost");
+					logger.debug("event=longpoll_notification_sent endpoint=localhost queue_arn=" + queueArn + " num_msg_found=" + messageReceiveCount);
+					
+					// if messageSendCound is already been received by local or empty queue, finish 
+					
+					if (messageReceiveCount >= messageSendCount || isQueueEmpty(queueArn)) {
 						continue;
 					}
-				} catch (Exception ex) {
-					logger.error("event=error_check_queue_depth", ex);
-				}
+					
+					// repeat notifications for the same queue within the window are held back and sent once when it closes
 
-				// send notification on all other established channels to remote cqs api servers
+					Long last = lastRemoteNotification.get(queueArn);
+					
+					if (last != null && now - last < window) {
+						if (!deferredRemoteNotification.containsKey(queueArn)) {
+							deferredRemoteNotification.put(queueArn, last + window);
+						}
+						continue;
+					}
+					
+					notifyRemoteServers(queueArn, outgoing);
+					lastRemoteNotification.put(queueArn, now);
+				}
+				
+				// flush deferred notifications whose window has closed
 				
-				for (String endpoint : activeCQSApiServers.keySet()) {
+				Iterator<Map.Entry<String, Long>> deferredIter = deferredRemoteNotification.entrySet().iterator();
+				
+				while (deferredIter.hasNext()) {
+					
+					Map.Entry<String, Long> deferred = deferredIter.next();
+					
+					if (deferred.getValue() > now) {
+						break;
+					}
+					
+					deferredIter.remove();
+					
+					if (!isQueueEmpty(deferred.getKey())) {
+						notifyRemoteServers(deferred.getKey(), outgoing);
+						lastRemoteNotification.put(deferred.getKey(), now);
+					}
+				}
+				
+				// one frame per remote server for this round, more if it would exceed the frame limit
+				
+				for (String endpoint : outgoing.keySet()) {
 					
 					Channel clientChannel = activeCQSApiServers.get(endpoint);
 					
-					if (clientChannel.isConnected() && clientChannel.isOpen() && clientChannel.isWritable()) {
-						
-						ChannelBuffer buf = ChannelBuffers.copiedBuffer(queueArn + ";", Charset.forName("UTF-8"));
-						clientChannel.write(buf);
+					if (clientChannel != null) {
+						for (ChannelBuffer frame : CQSLongPollFrame.encodeFrames(CQSLongPollFrame.NOTIFY, outgoing.get(endpoint))) {
+							clientChannel.write(frame);
+						}
+						logger.debug("event=longpoll_notification_sent endpoint=" + endpoint + " queue_arns=" + outgoing.get(endpoint));
+					}
+				}
+				
+				Iterator<Long> lastIter = lastRemoteNotification.values().iterator();
+				
+				while (lastIter.hasNext()) {
+					if (now - lastIter.next() >= window) {
+						lastIter.remove();
+					}
+				}
+			}
+		}
+		
+		private boolean isQueueEmpty(String queueArn) {
+			
+			try {
+				return PersistenceFactory.getCQSMessagePersistence().getQueueMessageCount(Util.getRelativeQueueUrlForArn(queueArn)) == 0;
+			} catch (Exception ex) {
+				logger.error("event=error_check_queue_depth", ex);
+			}
+			
+			return false;
+		}
+		
+		private void notifyRemoteServers(String queueArn, Map<String, List<String>> outgoing) {
+		
+			// queue notification only for remote cqs api servers that are waiting on this queue, written out batched per server. 
+			// servers that have never announced their interests (new connection, or an older version that never does) get 
+			// every notification. this is not a delivery guarantee: a notification racing with a server's interest in the 
+			// queue, including its first announcement, can be skipped here. the remote server then relies on the INTEREST_ACK 
+			// written when the interest arrives to check the queue again, and otherwise waits for the next send or its poll timeout
+			
+			for (String endpoint : activeCQSApiServers.keySet()) {
+				
+				Channel clientChannel = activeCQSApiServers.get(endpoint);
+				
+				if (clientChannel.isConnected() && clientChannel.isOpen() && clientChannel.isWritable()) {
 					
-					} else {
-						
-						// if connection is dead attempt to reestablish
-						
-    					final String host = endpoint.substring(0, endpoint.indexOf(":"));
-    					final int longpollPort = Integer.parseInt(endpoint.substring(endpoint.indexOf(":")+1));
-    					
-    					ChannelFuture channelFuture = clientBootstrap.connect(new InetSocketAddress(host, longpollPort));
-    					
-    					channelFuture.addListener(new ChannelFutureListener() {
-    					
-    						@Override
-    						public void operationComplete(ChannelFuture cf) throws Exception {
-    						
-    							if (cf.isSuccess()) {
-    							
-    								final Channel newClientChannel = cf.getChannel();
-    	        					activeCQSApiServers.put(host + ":" + longpollPort, newClientChannel);
-    	        					logger.info("event=reestablished_bad_connection host=" + host + " port=" + longpollPort);
-    	        					
-    								ChannelBuffer buf = ChannelBuffers.copiedBuffer(newClientChannel + ";", Charset.forName("UTF-8"));
-    								newClientChannel.write(buf);
-    							}
-    						}
-    					});
+					Set<String> interestedQueues = interestedQueuesByChannel.get(clientChannel.getId());
+					
+					if (interestedQueues != null && announcingChannels.contains(clientChannel.getId()) && !interestedQueues.contains(queueArn)) {
+						continue;
 					}
+					
+					List<String> queueArns = outgoing.get(endpoint);
+					
+					if (queueArns == null) {
+						queueArns = new ArrayList<String>();
+						outgoing.put(endpoint, queueArns);
+					}
+					
+					queueArns.add(queueArn);
 
-					logger.debug("event=longpoll_notification_sent endpoint=" + endpoint + " queue_arn=" + queueArn);
+				} else {
+					
+					// if connection is dead attempt to reestablish, the remote server will announce its interests on the new connection
+					
+					final String host = endpoint.substring(0, endpoint.indexOf(":"));
+					final int longpollPort = Integer.parseInt(endpoint.substring(endpoint.indexOf(":")+1));
+					
+					ChannelFuture channelFuture = clientBootstrap.connect(new InetSocketAddress(host, longpollPort));
+					
+					channelFuture.addListener(new ChannelFutureListener() {
+					
+						@Override
+						public void operationComplete(ChannelFuture cf) throws Exception {
+						
+							if (cf.isSuccess()) {
+							
+								final Channel newClientChannel = cf.getChannel();
+	        					activeCQSApiServers.put(host + ":" + longpollPort, newClientChannel);
+	        					logger.info("event=reestablished_bad_connection host=" + host + " port=" + longpollPort);
+							}
+						}
+					});
 				}
 			}
 		}
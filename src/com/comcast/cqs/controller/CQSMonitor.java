@@ -19,8 +19,6 @@ package com.comcast.cqs.controller;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.AsyncContext;
@@ -33,7 +31,7 @@ import com.comcast.cmb.common.persistence.PersistenceFactory;
 import com.comcast.cmb.common.util.CMBProperties;
 import com.comcast.cmb.common.util.PersistenceException;
 import com.comcast.cmb.common.util.RollingWindowCapture;
-import com.comcast.cmb.common.util.RollingWindowCapture.PayLoad;
+import com.comcast.cqs.persistence.RedisRetentionSweeper;
 
 /**
  * Implement the monitoring for CQS
@@ -59,33 +57,19 @@ public class CQSMonitor implements CQSMonitorMBean {
         PayloadCache;
     }
     
-    static class MessageNumberDynamicPayLoad extends PayLoad {
-    	
-        public final AtomicInteger numMessages;
-        public final AtomicInteger numRequested;
-        public volatile long timeStamp = System.currentTimeMillis();
-        
-        public MessageNumberDynamicPayLoad(int numMessages) {
-            this.numMessages = new AtomicInteger(numMessages);
-            numRequested = new AtomicInteger(0);
-        }
-        
-        public MessageNumberDynamicPayLoad(int numMessages, int numRequested) {
-            this.numMessages = new AtomicInteger(numMessages);
-            this.numRequested = new AtomicInteger(numRequested);
-        }
-        
-        public void addNumMessage(int num) {numMessages.addAndGet(num);}
-        public void addNumRequested(int num) {numRequested.addAndGet(num);}
-    }
+    private final int rollingWindowSizeSec = CMBProperties.getInstance().getRollingWindowTimeSec();
 
-    ConcurrentHashMap<String, RollingWindowCapture<MessageNumberDynamicPayLoad>> numMessagesRetRW = new ConcurrentHashMap<String, RollingWindowCapture<MessageNumberDynamicPayLoad>>();
-    ConcurrentHashMap<String, RollingWindowCapture<MessageNumberDynamicPayLoad>> numMessagesRecRW = new ConcurrentHashMap<String, RollingWindowCapture<MessageNumberDynamicPayLoad>>();
-    ConcurrentHashMap<String, RollingWindowCapture<MessageNumberDynamicPayLoad>> cacheHitRatioRW = new ConcurrentHashMap<String, RollingWindowCapture<MessageNumberDynamicPayLoad>>();
-    ConcurrentHashMap<String, RollingWindowCapture<MessageNumberDynamicPayLoad>> pCacheHitRatioRW = new ConcurrentHashMap<String, RollingWindowCapture<MessageNumberDynamicPayLoad>>();
-    ConcurrentHashMap<String, RollingWindowCapture<MessageNumberDynamicPayLoad>> numMessagesRw = new ConcurrentHashMap<String, RollingWindowCapture<MessageNumberDynamicPayLoad>>();
-    ConcurrentHashMap<String, RollingWindowCapture<MessageNumberDynamicPayLoad>> numMessagesDeleted = new ConcurrentHashMap<String, RollingWindowCapture<MessageNumberDynamicPayLoad>>();
-    ConcurrentHashMap<String, RollingWindowCapture<MessageNumberDynamicPayLoad>> numEmptyRespRW = new ConcurrentHashMap<String, RollingWindowCapture<MessageNumberDynamicPayLoad>>();
+    // counters keyed by relative queue url
+    
+    final RollingWindowCapture<String> numMessagesRetRW = new RollingWindowCapture<String>(rollingWindowSizeSec);
+    final RollingWindowCapture<String> numMessagesRecRW = new RollingWindowCapture<String>(rollingWindowSizeSec);
+    final RollingWindowCapture<String> cacheHitRW = new RollingWindowCapture<String>(rollingWindowSizeSec);
+    final RollingWindowCapture<String> cacheRequestedRW = new RollingWindowCapture<String>(rollingWindowSizeSec);
+    final RollingWindowCapture<String> pCacheHitRW = new RollingWindowCapture<String>(rollingWindowSizeSec);
+    final RollingWindowCapture<String> pCacheRequestedRW = new RollingWindowCapture<String>(rollingWindowSizeSec);
+    final RollingWindowCapture<String> numMessagesRw = new RollingWindowCapture<String>(rollingWindowSizeSec);
+    final RollingWindowCapture<String> numMessagesDeleted = new RollingWindowCapture<String>(rollingWindowSizeSec);
+    final RollingWindowCapture<String> numEmptyRespRW = new RollingWindowCapture<String>(rollingWindowSizeSec);
     
     /**
      * Note should only be called by unit-tests
@@ -93,84 +77,40 @@ public class CQSMonitor implements CQSMonitorMBean {
     public void clearAllState() {
         numMessagesRetRW.clear();
         numMessagesRecRW.clear();
-        cacheHitRatioRW.clear();
-        pCacheHitRatioRW.clear();
+        cacheHitRW.clear();
+        cacheRequestedRW.clear();
+        pCacheHitRW.clear();
+        pCacheRequestedRW.clear();
         numMessagesRw.clear();
         numMessagesDeleted.clear();
+        numEmptyRespRW.clear();
     }
 
-    class CountMessagesDynamicVisitor implements RollingWindowCapture.Visitor<MessageNumberDynamicPayLoad> {
-        
-    	int num = 0;
-        
-    	public void processNode(MessageNumberDynamicPayLoad n){
-            num += n.numMessages.get();
-        }
-    }
-    
-    private int getNumberOfMessages(String queueUrl, ConcurrentHashMap<String, RollingWindowCapture<MessageNumberDynamicPayLoad>> rwAll) {
-        
-    	CountMessagesDynamicVisitor v = new CountMessagesDynamicVisitor();
-        RollingWindowCapture<MessageNumberDynamicPayLoad> rw = rwAll.get(queueUrl);
-
-        if (rw == null) {
-            return 0;
-        }
-        
-        rw.visitAllNodes(v);
-        return v.num;
-    }
-
-    private void addNumberOfMessages(String queueUrl, int numMessages, ConcurrentHashMap<String, RollingWindowCapture<MessageNumberDynamicPayLoad>> rwAll) {    
-    	
-        RollingWindowCapture<MessageNumberDynamicPayLoad> rw = rwAll.get(queueUrl);
-        
-        if (rw == null) {
-        	
-            rw = new RollingWindowCapture<MessageNumberDynamicPayLoad>(CMBProperties.getInstance().getRollingWindowTimeSec(), 1000);
-            RollingWindowCapture<MessageNumberDynamicPayLoad> prev = rwAll.putIfAbsent(queueUrl, rw);
-            
-            if (prev != null) {
-                rw = prev;
-            }            
-        }
-        
-        //check if the head of queue was created less than 60 seconds back. If so, just add count to that bucket
-        
-        MessageNumberDynamicPayLoad currentHead = rw.getLatestPayload();
-        
-        if (currentHead == null || System.currentTimeMillis() - currentHead.timeStamp > 60000L) {
-            rw.addNow(new MessageNumberDynamicPayLoad(numMessages)); 
-        } else {
-            currentHead.numMessages.addAndGet(numMessages);
-        }
-    }
-    
     @Override
     public int getRecentNumberOfReceives(String queueUrl) {
-        return getNumberOfMessages(queueUrl, numMessagesRetRW);
+        return numMessagesRetRW.getCount(queueUrl);
     }
     
     /**
      * @param numMessages The number of messages returned by the server as a result of the ReceiveMessage() call.
      */
     public void addNumberOfMessagesReturned(String queueUrl, int numMessages) {
-        addNumberOfMessages(queueUrl, numMessages, numMessagesRetRW);
-        addNumberOfMessages(queueUrl, numMessages * -1, numMessagesRw); //should delete from num
-        addNumberOfMessages(queueUrl, numMessages, numMessagesDeleted); 
+        numMessagesRetRW.add(queueUrl, numMessages);
+        numMessagesRw.add(queueUrl, numMessages * -1); //should delete from num
+        numMessagesDeleted.add(queueUrl, numMessages); 
     }
 
     @Override
     public int getRecentNumberOfSends(String queueUrl) {
-        return getNumberOfMessages(queueUrl, numMessagesRecRW);
+        return numMessagesRecRW.getCount(queueUrl);
     }
     
     /**
      * @param numMessages The number of messages returned by the server as a result of the SendMessage() call.
      */
     public void addNumberOfMessagesReceived(String queueUrl, int numMessages) {     
-        addNumberOfMessages(queueUrl, numMessages, numMessagesRecRW);
-        addNumberOfMessages(queueUrl, numMessages, numMessagesRw);
+        numMessagesRecRW.add(queueUrl, numMessages);
+        numMessagesRw.add(queueUrl, numMessages);
     }
 
     @Override
@@ -179,81 +119,46 @@ public class CQSMonitor implements CQSMonitorMBean {
     }    
     
     /**
-     * Add in buckets of 1 minute. Rolling window would get rid of an entire bucket
      * @param queueUrl
      * @param numHit
      * @param numRequested
-     * @param qOrPayload
+     * @param cacheType
      */
     public void registerCacheHit(String queueUrl, int numHit, int numRequested, CacheType cacheType) {
-
-    	ConcurrentHashMap<String, RollingWindowCapture<MessageNumberDynamicPayLoad>> hm = cacheType == CacheType.QCache ? cacheHitRatioRW : pCacheHitRatioRW;
-        RollingWindowCapture<MessageNumberDynamicPayLoad> rw = hm.get(queueUrl);
-        
-        if (rw == null) {
-        
-        	rw = new RollingWindowCapture<MessageNumberDynamicPayLoad>(CMBProperties.getInstance().getRollingWindowTimeSec(), 1000);
-            RollingWindowCapture<MessageNumberDynamicPayLoad> prev = hm.putIfAbsent(queueUrl, rw);
-            
-            if (prev != null) {
-                rw = prev;
-            }            
-        }
-        
-        //check if the head of queue was created less than 60 seconds back. If so, just add count to that bucket
-        
-        MessageNumberDynamicPayLoad currentHead = rw.getLatestPayload();
-        
-        if (currentHead == null || System.currentTimeMillis() - currentHead.timeStamp > 60000L) {
-            rw.addNow(new MessageNumberDynamicPayLoad(numHit, numRequested));
-        } else {
-            currentHead.numMessages.addAndGet(numHit);
-            currentHead.numRequested.addAndGet(numRequested);
-        }        
+    	
+    	if (cacheType == CacheType.QCache) {
+    		cacheHitRW.add(queueUrl, numHit);
+    		cacheRequestedRW.add(queueUrl, numRequested);
+    	} else {
+    		pCacheHitRW.add(queueUrl, numHit);
+    		pCacheRequestedRW.add(queueUrl, numRequested);
+    	}
     }
 
-    private class PercentageVisitor implements RollingWindowCapture.Visitor<MessageNumberDynamicPayLoad> {
-        
-    	int hitCount = 0;
-        int totalCount = 0;
-        
-        public void processNode(MessageNumberDynamicPayLoad n){
-            hitCount += n.numMessages.get();
-            totalCount += n.numRequested.get();
-        }
-    }
-    
     public int getCacheHitPercent(String queueUrl, CacheType cacheType) {
 
-    	ConcurrentHashMap<String, RollingWindowCapture<MessageNumberDynamicPayLoad>> hm = cacheType == CacheType.QCache ? cacheHitRatioRW : pCacheHitRatioRW;
-        PercentageVisitor v = new PercentageVisitor();
-        RollingWindowCapture<MessageNumberDynamicPayLoad> rw = hm.get(queueUrl);
-        
-        if (rw == null) {
-            return 0;
-        }
-        
-        rw.visitAllNodes(v);
+    	int hitCount = cacheType == CacheType.QCache ? cacheHitRW.getCount(queueUrl) : pCacheHitRW.getCount(queueUrl);
+    	int totalCount = cacheType == CacheType.QCache ? cacheRequestedRW.getCount(queueUrl) : pCacheRequestedRW.getCount(queueUrl);
         
-        if (v.totalCount == 0) {
+        if (totalCount == 0) {
         	return 0;
         }
         
-        return (int)(((float)v.hitCount / (float)v.totalCount) * 100);
+        return (int)(((float)hitCount / (float)totalCount) * 100);
     }
     
     @Override
     public int getNumberOfMessagesDeleted(String queueUrl) {
-        return getNumberOfMessages(queueUrl, numMessagesDeleted);
+        return numMessagesDeleted.getCount(queueUrl);
     }
 
     @Override
     public int getRecentNumberOfEmptyReceives(String queueUrl) {
-        return getNumberOfMessages(queueUrl, numEmptyRespRW);
+        return numEmptyRespRW.getCount(queueUrl);
     }
     
     public void registerEmptyResp(String queueUrl, int num) {
-        addNumberOfMessages(queueUrl, num, numEmptyRespRW);
+        numEmptyRespRW.add(queueUrl, num);
     }
 
     @Override
@@ -370,6 +275,16 @@ public class CQSMonitor implements CQSMonitorMBean {
 		return PersistenceFactory.getCQSMessagePersistence().getNumberOfRedisShards();
 	}
 
+	@Override
+	public long getNumberOfRedisRetentionSweptMessages() {
+		return RedisRetentionSweeper.getNumRemoved();
+	}
+
+	@Override
+	public int getPayloadCacheHitPercent(String queueUrl) {
+		return getCacheHitPercent(queueUrl, CacheType.PayloadCache);
+	}
+
 	@Override
 	public List<Map<String, String>> getRedisShardInfos() {
 		return PersistenceFactory.getCQSMessagePersistence().getInfo();
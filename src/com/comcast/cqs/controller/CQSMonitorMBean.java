@@ -109,6 +109,17 @@ public interface CQSMonitorMBean {
      * @return Composite info string of all redis shards
      */
     public List<Map<String, String>> getRedisShardInfos();
+    /**
+     * 
+     * @return number of messages past their retention period removed from redis by this api server
+     */
+    public long getNumberOfRedisRetentionSweptMessages();
+    
+    /**
+     * @param queueUrl
+     * @return percentage of received messages served from the redis payload cache in a rolling window
+     */
+    public int getPayloadCacheHitPercent(String queueUrl);
     
     /**
      * Clear entire redis cache
@@ -28,6 +28,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.json.JSONException;
 
+import com.comcast.cmb.common.controller.XmlResponseWriter;
 import com.comcast.cmb.common.model.User;
 import com.comcast.cmb.common.persistence.PersistenceFactory;
 import com.comcast.cmb.common.util.CMBErrorCodes;
@@ -74,8 +75,9 @@ public class CQSPeekMessageAction extends CQSAction {
         	}
         }
         
-        String out = CQSMessagePopulator.getReceiveMessageResponseAfterSerializing(messageList, filterAttributes, filterMessageAttributes);
-        writeResponse(out, response);
+        XmlResponseWriter out = new XmlResponseWriter(response);
+        CQSMessagePopulator.writeReceiveMessageResponse(messageList, filterAttributes, filterMessageAttributes, out);
+        out.close();
         
         return messageList == null ? false : true;
 	}
@@ -0,0 +1,291 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cqs.controller;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.comcast.cmb.common.persistence.PersistenceFactory;
+import com.comcast.cmb.common.util.CMBProperties;
+import com.comcast.cqs.model.CQSQueueDepth;
+
+/**
+ * Per api server cache of the approximate message counts returned by GetQueueAttributes, so clients polling the
+ * counts of many queues do not cause redis round trips on every call.
+ *
+ * A cached depth younger than stalenessMS is served as is. An older one is still served while it is younger than
+ * twice stalenessMS, and the queue is queued for refresh; all queued queues are refreshed together with a single
+ * bulk depth query by a background thread. Depths older than that are refreshed synchronously, so a served depth is
+ * never older than twice stalenessMS. Callers can always ask for an exact count, which also refreshes the cache.
+ *
+ * Optionally the cached depths are adjusted on every send and delete handled by this api server, which keeps the
+ * message counts closer to the real counts between refreshes. Messages becoming visible again when their visibility
+ * timeout or delay runs out are not seen here, so receives do not adjust the not visible count and deletes only
+ * lower the message count. Apart from delayed sends the not visible count is as of the last refresh, capped at the
+ * message count. Depths not read for a while are evicted.
+ *
+ * Class is thread-safe
+ */
+public class CQSQueueDepthCache implements Runnable {
+
+	private static final Logger logger = Logger.getLogger(CQSQueueDepthCache.class);
+
+	private static final int REFRESH_BATCH_SIZE = 1000;
+	private static final long MIN_EVICTION_MS = 60000;
+
+	private static final CQSQueueDepthCache instance = new CQSQueueDepthCache(CMBProperties.getInstance().getCQSQueueDepthCacheStalenessMS(), CMBProperties.getInstance().getCQSQueueDepthCacheIncremental());
+
+	static {
+		instance.start();
+	}
+
+	private static class CachedDepth {
+		private CQSQueueDepth depth;
+		private long timestamp;
+		private volatile long lastRead;
+	}
+
+	private final ConcurrentHashMap<String, CachedDepth> depths = new ConcurrentHashMap<String, CachedDepth>();
+	private final Set<String> pendingRefresh = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final long stalenessMS;
+	private final boolean incremental;
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * @return the cache configured from cmb.properties
+	 */
+	public static CQSQueueDepthCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @param stalenessMS age after which a cached depth is refreshed, 0 disables the cache
+	 * @param incremental adjust cached depths on send and delete
+	 */
+	public CQSQueueDepthCache(long stalenessMS, boolean incremental) {
+		this.stalenessMS = stalenessMS;
+		this.incremental = incremental;
+	}
+
+	public synchronized void start() {
+
+		if (stalenessMS <= 0 || scheduler != null) {
+			return;
+		}
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "CQSQueueDepthRefresher");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		long intervalMS = Math.max(100, stalenessMS / 2);
+		scheduler.scheduleWithFixedDelay(this, intervalMS, intervalMS, TimeUnit.MILLISECONDS);
+		logger.info("event=queue_depth_cache_started staleness_ms=" + stalenessMS + " incremental=" + incremental);
+	}
+
+	public synchronized void shutdown() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * @param queueUrl relative queue url
+	 * @param exact if true bypass the cache and count now
+	 * @return approximate depth of the queue, null if it cannot be determined
+	 * @throws Exception
+	 */
+	public CQSQueueDepth getQueueDepth(String queueUrl, boolean exact) throws Exception {
+
+		long now = currentTimeMillis();
+
+		if (!exact && stalenessMS > 0) {
+
+			CachedDepth cached = depths.get(queueUrl);
+
+			if (cached != null) {
+
+				CQSQueueDepth depth;
+				long age;
+
+				synchronized (cached) {
+					depth = cached.depth;
+					age = now - cached.timestamp;
+				}
+
+				cached.lastRead = now;
+
+				if (age < stalenessMS) {
+					return depth;
+				}
+
+				if (age < 2 * stalenessMS) {
+					pendingRefresh.add(queueUrl);
+					return depth;
+				}
+			}
+		}
+
+		CQSQueueDepth depth = loadQueueDepths(Collections.singletonList(queueUrl)).get(queueUrl);
+
+		if (depth != null && stalenessMS > 0) {
+			put(queueUrl, depth, now);
+		}
+
+		return depth;
+	}
+
+	/**
+	 * @return true if cached depths are adjusted on send and delete
+	 */
+	public boolean isIncremental() {
+		return incremental && stalenessMS > 0;
+	}
+
+	/**
+	 * Adjust the cached depth of a queue for a change made by this api server, no-op unless incremental
+	 * maintenance is enabled and the depth of the queue is cached
+	 * @param queueUrl relative queue url
+	 * @param deltaMessages change of the number of messages
+	 * @param deltaNotVisible change of the number of messages not visible
+	 */
+	public void adjust(String queueUrl, long deltaMessages, long deltaNotVisible) {
+
+		if (!isIncremental()) {
+			return;
+		}
+
+		CachedDepth cached = depths.get(queueUrl);
+
+		if (cached == null) {
+			return;
+		}
+
+		synchronized (cached) {
+			CQSQueueDepth depth = cached.depth;
+			if (depth == null) {
+				return;
+			}
+			long numMessages = Math.max(0, depth.getNumMessages() + deltaMessages);
+			cached.depth = new CQSQueueDepth(numMessages, Math.min(numMessages, Math.max(0, depth.getNumMessagesNotVisible() + deltaNotVisible)), depth.getNumMessagesDelayed());
+		}
+	}
+
+	/**
+	 * Drop the cached depth of a queue, e.g. after the queue was purged or deleted
+	 * @param queueUrl relative queue url
+	 */
+	public void invalidate(String queueUrl) {
+		depths.remove(queueUrl);
+		pendingRefresh.remove(queueUrl);
+	}
+
+	/**
+	 * Count the messages of the given queues, overridden in tests
+	 * @param queueUrls
+	 * @return map of queue url -> depth
+	 * @throws Exception
+	 */
+	protected Map<String, CQSQueueDepth> loadQueueDepths(List<String> queueUrls) throws Exception {
+		return PersistenceFactory.getCQSMessagePersistence().getQueueDepths(queueUrls);
+	}
+
+	/**
+	 * @return current time, overridden in tests
+	 */
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	private void put(String queueUrl, CQSQueueDepth depth, long timestamp) {
+
+		CachedDepth cached = depths.get(queueUrl);
+
+		if (cached == null) {
+
+			cached = new CachedDepth();
+			cached.lastRead = timestamp;
+			CachedDepth existing = depths.putIfAbsent(queueUrl, cached);
+
+			if (existing != null) {
+				cached = existing;
+			}
+		}
+
+		synchronized (cached) {
+			if (cached.depth == null || timestamp >= cached.timestamp) {
+				cached.depth = depth;
+				cached.timestamp = timestamp;
+			}
+		}
+	}
+
+	/**
+	 * Refresh all queues queued for refresh with bulk depth queries and evict depths nobody reads anymore
+	 */
+	@Override
+	public void run() {
+
+		try {
+
+			List<String> queueUrls = new ArrayList<String>(pendingRefresh);
+			pendingRefresh.removeAll(queueUrls);
+
+			for (int i = 0; i < queueUrls.size(); i += REFRESH_BATCH_SIZE) {
+
+				List<String> batch = queueUrls.subList(i, Math.min(queueUrls.size(), i + REFRESH_BATCH_SIZE));
+				long now = currentTimeMillis();
+
+				for (Entry<String, CQSQueueDepth> entry : loadQueueDepths(batch).entrySet()) {
+					put(entry.getKey(), entry.getValue(), now);
+				}
+			}
+
+			long evictBefore = currentTimeMillis() - Math.max(MIN_EVICTION_MS, 10 * stalenessMS);
+
+			for (Entry<String, CachedDepth> entry : depths.entrySet()) {
+				if (entry.getValue().lastRead < evictBefore) {
+					depths.remove(entry.getKey(), entry.getValue());
+				}
+			}
+
+		} catch (Exception ex) {
+			logger.warn("event=queue_depth_refresh_failed error=" + ex.getMessage());
+		}
+	}
+
+	/**
+	 * @return number of queues whose depth is cached
+	 */
+	public int size() {
+		return depths.size();
+	}
+}
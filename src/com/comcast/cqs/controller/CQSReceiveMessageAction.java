@@ -19,13 +19,13 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.servlet.AsyncContext;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.log4j.Logger;
 
+import com.comcast.cmb.common.controller.XmlResponseWriter;
 import com.comcast.cmb.common.model.User;
 import com.comcast.cmb.common.persistence.PersistenceFactory;
 import com.comcast.cmb.common.util.CMBErrorCodes;
@@ -140,10 +140,7 @@ public class CQSReceiveMessageAction extends CQSAction {
         	
         	logger.debug("event=queueing_context queue_arn=" + queue.getArn() + " wait_time_sec=" + waitTimeSeconds);
         	
-        	CQSLongPollReceiver.contextQueues.putIfAbsent(queue.getArn(), new ConcurrentLinkedQueue<AsyncContext>());
-			ConcurrentLinkedQueue<AsyncContext> contextQueue = CQSLongPollReceiver.contextQueues.get(queue.getArn());
-			
-			if (contextQueue.offer(asyncContext)) {
+			if (CQSLongPollReceiver.register(queue.getArn(), asyncContext)) {
 	            request.setIsQueuedForProcessing(true);
 			}
 			
@@ -157,8 +154,9 @@ public class CQSReceiveMessageAction extends CQSAction {
             }
             
             request.setReceiptHandles(receiptHandles);
-            String out = CQSMessagePopulator.getReceiveMessageResponseAfterSerializing(messageList, filterAttributes, filterMessageAttributes);
-            writeResponse(out, response);
+            XmlResponseWriter out = new XmlResponseWriter(response);
+            CQSMessagePopulator.writeReceiveMessageResponse(messageList, filterAttributes, filterMessageAttributes, out);
+            out.close();
         }
         
         return messageList != null && messageList.size() > 0 ? true : false;
@@ -194,6 +194,21 @@ public class CQSSetQueueAttributesAction extends CQSAction {
             	queue.setCompressed(isCompressed);
                 postVars.put(CQSConstants.COL_COMPRESSED, value);
             	
+            } else if (attributeName.equals(CQSConstants.MESSAGE_FORMAT)) {
+            	
+            	String messageFormat = null;
+            	
+            	if (CQSConstants.MESSAGE_FORMAT_JSON.equalsIgnoreCase(value)) {
+            		messageFormat = CQSConstants.MESSAGE_FORMAT_JSON;
+            	} else if (CQSConstants.MESSAGE_FORMAT_BINARY.equalsIgnoreCase(value)) {
+            		messageFormat = CQSConstants.MESSAGE_FORMAT_BINARY;
+            	} else {
+                    throw new CMBException(CMBErrorCodes.InvalidAttributeValue, CQSConstants.MESSAGE_FORMAT + " must be " + CQSConstants.MESSAGE_FORMAT_JSON + " or " + CQSConstants.MESSAGE_FORMAT_BINARY);
+            	}
+            	
+            	queue.setMessageFormat(messageFormat);
+                postVars.put(CQSConstants.COL_MESSAGE_FORMAT, messageFormat);
+            	
             } else {
                 throw new CMBException(CMBErrorCodes.InvalidAttributeName, "Attribute.Name: " + attributeName + " is not a valid attribute");
             }
@@ -43,6 +43,7 @@ import com.comcast.cmb.common.persistence.PersistenceFactory;
 import com.comcast.cmb.common.util.CMBProperties;
 import com.comcast.cmb.common.util.PersistenceException;
 import com.comcast.cmb.common.util.XmlUtil;
+import com.comcast.cqs.model.CQSQueueDepth;
 import com.comcast.cqs.util.Util;
 
 /**
@@ -295,6 +296,25 @@ public class CQSUserPageServlet extends AdminServletBase {
 		out.println("<th>Approx Num Msg Delayed</th>");
 		out.println("<th>&nbsp;</th><th>&nbsp;</th><th>&nbsp;</th><th>&nbsp;</th></tr>");
 
+		Map<String, CQSQueueDepth> depths = new HashMap<String, CQSQueueDepth>();
+
+		if (showQueueAttributes && queueUrls != null && queueUrls.size() > 0) {
+
+			// message counts of all listed queues in one bulk call rather than as part of each GetQueueAttributes
+
+			List<String> relativeUrls = new ArrayList<String>(queueUrls.size());
+
+			for (String url : queueUrls) {
+				relativeUrls.add(Util.getRelativeForAbsoluteQueueUrl(url));
+			}
+
+			try {
+				depths = PersistenceFactory.getCQSMessagePersistence().getQueueDepths(relativeUrls);
+			} catch (Exception ex) {
+				logger.error("event=get_queue_depths user_id=" + userId, ex);
+			}
+		}
+
 		for (int i = 0; queueUrls != null && i < queueUrls.size(); i++) {
 
 			Map<String, String> attributes = new HashMap<String, String>();
@@ -304,15 +324,18 @@ public class CQSUserPageServlet extends AdminServletBase {
 					GetQueueAttributesRequest getQueueAttributesRequest = new GetQueueAttributesRequest(queueUrls.get(i));
 					getQueueAttributesRequest.setAttributeNames(
 							Arrays.asList("VisibilityTimeout", "MaximumMessageSize", "MessageRetentionPeriod", "DelaySeconds",
-									"ApproximateNumberOfMessages", 
-									"ApproximateNumberOfMessagesNotVisible", 
-									"ApproximateNumberOfMessagesDelayed", 				
 									"ReceiveMessageWaitTimeSeconds", "NumberOfPartitions", "NumberOfShards", "IsCompressed"));
 					GetQueueAttributesResult getQueueAttributesResult = sqs.getQueueAttributes(getQueueAttributesRequest);
-					attributes = getQueueAttributesResult.getAttributes();
+					attributes = new HashMap<String, String>(getQueueAttributesResult.getAttributes());
 				} catch (Exception ex) {
 					logger.error("event=get_queue_attributes url=" + queueUrls.get(i));
 				}
+				CQSQueueDepth depth = depths.get(Util.getRelativeForAbsoluteQueueUrl(queueUrls.get(i)));
+				if (depth != null) {
+					attributes.put("ApproximateNumberOfMessages", "" + depth.getNumMessages());
+					attributes.put("ApproximateNumberOfMessagesNotVisible", "" + depth.getNumMessagesNotVisible());
+					attributes.put("ApproximateNumberOfMessagesDelayed", "" + depth.getNumMessagesDelayed());
+				}
 			}
 
 			out.println("<tr>");
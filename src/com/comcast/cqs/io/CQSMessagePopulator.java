@@ -15,11 +15,12 @@
  */
 package com.comcast.cqs.io;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 
-import org.apache.commons.lang3.StringEscapeUtils;
-
+import com.comcast.cmb.common.controller.XmlResponseWriter;
 import com.comcast.cqs.model.CQSBatchResultErrorEntry;
 import com.comcast.cqs.model.CQSMessage;
 import com.comcast.cqs.util.CQSConstants;
@@ -32,7 +33,7 @@ public class CQSMessagePopulator extends CQSPopulator {
 
 	public static String getSendMessageResponse(CQSMessage message) {
 		
-        StringBuffer out = new StringBuffer("<SendMessageResponse>\n");
+        StringBuilder out = new StringBuilder("<SendMessageResponse>\n");
         out.append("\t<SendMessageResult>\n");
         out.append("\t\t<MD5OfMessageBody>").append(message.getMD5OfBody()).append("</MD5OfMessageBody>\n");
         if (message.getMD5OfMessageAttributes() != null) {
@@ -48,7 +49,7 @@ public class CQSMessagePopulator extends CQSPopulator {
     
     public static String getSendMessageBatchResponse(List<CQSMessage> messages, List<CQSBatchResultErrorEntry> errorList) {
     	
-        StringBuffer out = new StringBuffer("<SendMessageBatchResponse>\n");
+        StringBuilder out = new StringBuilder("<SendMessageBatchResponse>\n");
         out.append("\t<SendMessageBatchResult>\n");
         
         for (CQSMessage message: messages) {
@@ -74,7 +75,7 @@ public class CQSMessagePopulator extends CQSPopulator {
     }
 
     private static String getBatchErrorResult(List<CQSBatchResultErrorEntry> errorList) {
-        StringBuffer out = new StringBuffer();
+        StringBuilder out = new StringBuilder();
         for (CQSBatchResultErrorEntry error : errorList) {
             out.append("\t\t<BatchResultErrorEntry>\n");
             out.append("\t\t\t<Id>").append(error.getId()).append("</Id>\n");
@@ -88,7 +89,7 @@ public class CQSMessagePopulator extends CQSPopulator {
     
     public static String getDeleteMessageBatchResponse(List<String> ids, List<CQSBatchResultErrorEntry> errorList) {
         
-    	StringBuffer out = new StringBuffer("<DeleteMessageBatchResponse>\n");
+    	StringBuilder out = new StringBuilder("<DeleteMessageBatchResponse>\n");
         out.append("\t<DeleteMessageBatchResult>\n");
         
         for (String id : ids) {
@@ -125,7 +126,7 @@ public class CQSMessagePopulator extends CQSPopulator {
     
     public static String getChangeMessageVisibilityBatchResponse(List<String> ids, List<CQSBatchResultErrorEntry> errorList) {
         
-    	StringBuffer out = new StringBuffer("<ChangeMessageVisibilityBatchResponse>\n");
+    	StringBuilder out = new StringBuilder("<ChangeMessageVisibilityBatchResponse>\n");
         out.append("\t<ChangeMessageVisibilityBatchResult>\n");
         
         for (String id : ids) {
@@ -147,60 +148,92 @@ public class CQSMessagePopulator extends CQSPopulator {
     
     public static String getReceiveMessageResponseAfterSerializing(List<CQSMessage> messages, List<String> filterAttributs, List<String> filterMessageAttributes) {
         
-    	StringBuffer out = new StringBuffer("<ReceiveMessageResponse>\n");
-    	out.append("\t<ReceiveMessageResult>\n");
+    	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    	
+    	try {
+    		XmlResponseWriter out = new XmlResponseWriter(bytes);
+    		writeReceiveMessageResponse(messages, filterAttributs, filterMessageAttributes, out);
+    		out.close();
+    		return bytes.toString("UTF-8");
+    	} catch (IOException ex) {
+    		throw new IllegalStateException(ex);
+    	}
+    }
+
+    /**
+     * Stream ReceiveMessage response without building it in memory first
+     * @param messages
+     * @param filterAttributes
+     * @param filterMessageAttributes
+     * @param out
+     * @throws IOException
+     */
+    public static void writeReceiveMessageResponse(List<CQSMessage> messages, List<String> filterAttributes, List<String> filterMessageAttributes, XmlResponseWriter out) throws IOException {
+        
+    	out.write("<ReceiveMessageResponse>\n");
+    	out.write("\t<ReceiveMessageResult>\n");
 
         for (CQSMessage message : messages) {
-            out.append(serializeMessage(message, filterAttributs, filterMessageAttributes));
+            writeMessage(message, filterAttributes, filterMessageAttributes, out);
         }
 
-        out.append("\t</ReceiveMessageResult>\n");
+        out.write("\t</ReceiveMessageResult>\n");
         out.append("\t").append(getResponseMetadata()).append("\n");
-        out.append("</ReceiveMessageResponse>\n");
-        
-        return out.toString();
+        out.write("</ReceiveMessageResponse>\n");
     }
 
     public static String serializeMessage(CQSMessage message, List<String> filterAttributes, List<String> filterMessageAttributes) {
 
-    	StringBuffer attributesXmlFragment = fillAttributesInReturn(message, filterAttributes);
-        StringBuffer messageXml = new StringBuffer("\t\t<Message>\n"); 
+    	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    	
+    	try {
+    		XmlResponseWriter out = new XmlResponseWriter(bytes);
+    		writeMessage(message, filterAttributes, filterMessageAttributes, out);
+    		out.close();
+    		return bytes.toString("UTF-8");
+    	} catch (IOException ex) {
+    		throw new IllegalStateException(ex);
+    	}
+    }
 
-        messageXml.append("\t\t\t<MessageId>").append(message.getMessageId()).append("</MessageId>\n");
-        messageXml.append("\t\t\t<ReceiptHandle>").append(message.getReceiptHandle()).append("</ReceiptHandle>\n");
-        messageXml.append("\t\t\t<MD5OfBody>").append(message.getMD5OfBody()).append("</MD5OfBody>\n");
-        messageXml.append("\t\t\t<Body>").append(StringEscapeUtils.escapeXml(message.getBody()).replaceAll("\r", "&#xD;")).append("</Body>\n");
-        messageXml.append(attributesXmlFragment);
+    private static void writeMessage(CQSMessage message, List<String> filterAttributes, List<String> filterMessageAttributes, XmlResponseWriter out) throws IOException {
+
+        out.write("\t\t<Message>\n"); 
+        out.append("\t\t\t<MessageId>").append(message.getMessageId()).append("</MessageId>\n");
+        out.append("\t\t\t<ReceiptHandle>").append(message.getReceiptHandle()).append("</ReceiptHandle>\n");
+        out.append("\t\t\t<MD5OfBody>").append(message.getMD5OfBody()).append("</MD5OfBody>\n");
+        out.write("\t\t\t<Body>");
+        out.writeEscaped(message.getBody());
+        out.write("</Body>\n");
+        out.append(fillAttributesInReturn(message, filterAttributes));
         
         if (message.getMessageAttributes() != null && message.getMessageAttributes().size() > 0) {
         	for (String key : message.getMessageAttributes().keySet()) {
                 if (filterMessageAttributes.contains("All") || filterMessageAttributes.contains("all") || filterMessageAttributes.contains(key)) {
                 	String type = message.getMessageAttributes().get(key).getDataType();
                 	String stringValue = message.getMessageAttributes().get(key).getStringValue();
-		        	messageXml.append("\t\t\t<MessageAttribute>\n");
-		            messageXml.append("\t\t\t\t<Name>").append(key).append("</Name>\n");
-		            messageXml.append("\t\t\t\t<Value>\n");
-		            messageXml.append("\t\t\t\t\t<DataType>").append(type).append("</DataType>\n");
+		        	out.write("\t\t\t<MessageAttribute>\n");
+		            out.append("\t\t\t\t<Name>").append(key).append("</Name>\n");
+		            out.write("\t\t\t\t<Value>\n");
+		            out.append("\t\t\t\t\t<DataType>").append(type).append("</DataType>\n");
 		            if (!type.equals("Binary")) {
-		            	messageXml.append("\t\t\t\t\t<StringValue>").append(stringValue).append("</StringValue>\n");
+		            	out.append("\t\t\t\t\t<StringValue>").append(stringValue).append("</StringValue>\n");
 		            } else {
-		            	messageXml.append("\t\t\t\t\t<BinaryValue>").append(stringValue).append("</BinaryValue>\n");
+		            	out.append("\t\t\t\t\t<BinaryValue>").append(stringValue).append("</BinaryValue>\n");
 		            }
-		            messageXml.append("\t\t\t\t</Value>\n");
-		        	messageXml.append("\t\t\t</MessageAttribute>\n");
+		            out.write("\t\t\t\t</Value>\n");
+		        	out.write("\t\t\t</MessageAttribute>\n");
                 }
         	}
-        	messageXml.append("\t\t\t<MD5OfMessageAttributes>").append(message.getMD5OfMessageAttributes()).append("</MD5OfMessageAttributes>\n");
+        	out.append("\t\t\t<MD5OfMessageAttributes>").append(message.getMD5OfMessageAttributes()).append("</MD5OfMessageAttributes>\n");
         }
         
-        messageXml.append("\t\t</Message>\n");
-        
-        return messageXml.toString();
+        out.write("\t\t</Message>\n");
     }
 	
-    private static StringBuffer fillAttributesInReturn(CQSMessage message, List<String> filterAttributes) {
+    private static StringBuilder fillAttributesInReturn(CQSMessage message, List<String> filterAttributes) {
     	
-        StringBuffer attributesXmlFragment = new StringBuffer("");
+        StringBuilder attributesXmlFragment = new StringBuilder("");
 
         if (message.getAttributes() != null) {
             for (Map.Entry<String, String> entry : message.getAttributes().entrySet()) {
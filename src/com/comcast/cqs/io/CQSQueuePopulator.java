@@ -15,10 +15,13 @@
  */
 package com.comcast.cqs.io;
 
-import com.comcast.cmb.common.persistence.PersistenceFactory;
+import com.comcast.cmb.common.controller.XmlResponseWriter;
 import com.comcast.cqs.model.CQSQueue;
+import com.comcast.cqs.model.CQSQueueDepth;
 import com.comcast.cqs.util.CQSConstants;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.List;
 
 /**
@@ -63,24 +66,52 @@ public class CQSQueuePopulator extends CQSPopulator {
     
     public static String getListQueuesResponse(List<CQSQueue> queues) {
         
-    	StringBuffer out = new StringBuffer("<ListQueuesResponse>\n");
-        out.append("\t<ListQueuesResult>\n");
+    	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    	
+    	try {
+    		XmlResponseWriter out = new XmlResponseWriter(bytes);
+    		writeListQueuesResponse(queues, out);
+    		out.close();
+    		return bytes.toString("UTF-8");
+    	} catch (IOException ex) {
+    		throw new IllegalStateException(ex);
+    	}
+    }
+    
+    /**
+     * Stream ListQueues response without building it in memory first
+     * @param queues
+     * @param out
+     * @throws IOException
+     */
+    public static void writeListQueuesResponse(List<CQSQueue> queues, XmlResponseWriter out) throws IOException {
+        
+    	out.write("<ListQueuesResponse>\n");
+        out.write("\t<ListQueuesResult>\n");
 
         for (CQSQueue queue : queues) {
         	
         	out.append("\t\t<QueueUrl>").append(queue.getAbsoluteUrl()).append("</QueueUrl>\n");
         }
 
-        out.append("\t</ListQueuesResult>\n");
+        out.write("\t</ListQueuesResult>\n");
         out.append("\t").append(getResponseMetadata()).append("\n");
-        out.append("</ListQueuesResponse>\n");
-        
-        return out.toString();
+        out.write("</ListQueuesResponse>\n");
     }
     
-    public static String getQueueAttributesResponse(CQSQueue queue, List<String> filterAttributes) throws Exception {
+    /**
+     * @param queue
+     * @param filterAttributes
+     * @param depth approximate message counts of the queue, null if no count attributes are requested
+     * @return GetQueueAttributes response
+     */
+    public static String getQueueAttributesResponse(CQSQueue queue, List<String> filterAttributes, CQSQueueDepth depth) throws Exception {
+        
+        if (depth == null) {
+        	depth = CQSQueueDepth.EMPTY;
+        }
         
-    	StringBuffer out = new StringBuffer("<GetQueueAttributesResponse>\n");
+    	StringBuilder out = new StringBuilder("<GetQueueAttributesResponse>\n");
     	out.append("\t<GetQueueAttributesResult>\n");
 
         if (filterAttributes.contains("All")) {
@@ -94,10 +125,11 @@ public class CQSQueuePopulator extends CQSPopulator {
             out.append("\t\t").append(fillAttribute(CQSConstants.RECEIVE_MESSAGE_WAIT_TIME_SECONDS, "" + queue.getReceiveMessageWaitTimeSeconds())).append("\n");
             out.append("\t\t").append(fillAttribute(CQSConstants.NUMBER_OF_PARTITIONS, "" + queue.getNumberOfPartitions())).append("\n");
             out.append("\t\t").append(fillAttribute(CQSConstants.NUMBER_OF_SHARDS, "" + queue.getNumberOfShards())).append("\n");
-            out.append("\t\t").append(fillAttribute(CQSConstants.APPROXIMATE_NUMBER_OF_MESSAGES, "" + PersistenceFactory.getCQSMessagePersistence().getQueueMessageCount(queue.getRelativeUrl(), true))).append("\n");
-            out.append("\t\t").append(fillAttribute(CQSConstants.APPROXIMATE_NUMBER_OF_MESSAGES_NOTVISIBLE, "" + PersistenceFactory.getCQSMessagePersistence().getQueueNotVisibleMessageCount(queue.getRelativeUrl(), true))).append("\n");
-            out.append("\t\t").append(fillAttribute(CQSConstants.APPROXIMATE_NUMBER_OF_MESSAGES_DELAYED, "" + PersistenceFactory.getCQSMessagePersistence().getQueueDelayedMessageCount(queue.getRelativeUrl(), true))).append("\n");
+            out.append("\t\t").append(fillAttribute(CQSConstants.APPROXIMATE_NUMBER_OF_MESSAGES, "" + depth.getNumMessages())).append("\n");
+            out.append("\t\t").append(fillAttribute(CQSConstants.APPROXIMATE_NUMBER_OF_MESSAGES_NOTVISIBLE, "" + depth.getNumMessagesNotVisible())).append("\n");
+            out.append("\t\t").append(fillAttribute(CQSConstants.APPROXIMATE_NUMBER_OF_MESSAGES_DELAYED, "" + depth.getNumMessagesDelayed())).append("\n");
             out.append("\t\t").append(fillAttribute(CQSConstants.IS_COMPRESSED, "" + queue.isCompressed())).append("\n");
+            out.append("\t\t").append(fillAttribute(CQSConstants.MESSAGE_FORMAT, "" + queue.getMessageFormat())).append("\n");
 
         } else {
         
@@ -130,17 +162,20 @@ public class CQSQueuePopulator extends CQSPopulator {
                     out.append("\t\t").append(fillAttribute(attributeName, "" + queue.getReceiveMessageWaitTimeSeconds())).append("\n");
                 }
                 if (attributeName.equals(CQSConstants.APPROXIMATE_NUMBER_OF_MESSAGES)) {
-                	out.append("\t\t").append(fillAttribute(attributeName, "" + PersistenceFactory.getCQSMessagePersistence().getQueueMessageCount(queue.getRelativeUrl(), true))).append("\n");
+                	out.append("\t\t").append(fillAttribute(attributeName, "" + depth.getNumMessages())).append("\n");
                 }
                 if (attributeName.equals(CQSConstants.APPROXIMATE_NUMBER_OF_MESSAGES_NOTVISIBLE)) {
-                	out.append("\t\t").append(fillAttribute(attributeName, "" + PersistenceFactory.getCQSMessagePersistence().getQueueNotVisibleMessageCount(queue.getRelativeUrl(), true))).append("\n");
+                	out.append("\t\t").append(fillAttribute(attributeName, "" + depth.getNumMessagesNotVisible())).append("\n");
                 }
                 if (attributeName.equals(CQSConstants.APPROXIMATE_NUMBER_OF_MESSAGES_DELAYED)) {
-                	out.append("\t\t").append(fillAttribute(attributeName, "" + PersistenceFactory.getCQSMessagePersistence().getQueueDelayedMessageCount(queue.getRelativeUrl(), true))).append("\n");
+                	out.append("\t\t").append(fillAttribute(attributeName, "" + depth.getNumMessagesDelayed())).append("\n");
                 }
                 if (attributeName.equals(CQSConstants.IS_COMPRESSED)) {
                     out.append("\t\t").append(fillAttribute(attributeName, "" + queue.isCompressed())).append("\n");
                 }
+                if (attributeName.equals(CQSConstants.MESSAGE_FORMAT)) {
+                    out.append("\t\t").append(fillAttribute(attributeName, "" + queue.getMessageFormat())).append("\n");
+                }
             }
         }
         
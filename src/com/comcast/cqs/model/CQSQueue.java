@@ -18,6 +18,7 @@ package com.comcast.cqs.model;
 import org.apache.log4j.Logger;
 
 import com.comcast.cmb.common.util.CMBProperties;
+import com.comcast.cqs.util.CQSConstants;
 import com.comcast.cqs.util.Util;
 
 /**
@@ -49,6 +50,7 @@ public class CQSQueue {
     private int numberOfPartitions = 100;
     private int numberOfShards = 1;
     private boolean compressed = false;
+    private String messageFormat = CQSConstants.MESSAGE_FORMAT_JSON;
     
 	public CQSQueue(String name, String ownerId) {
     	
@@ -74,6 +76,14 @@ public class CQSQueue {
 		this.compressed = compressed;
 	}
 
+	public String getMessageFormat() {
+		return messageFormat;
+	}
+
+	public void setMessageFormat(String messageFormat) {
+		this.messageFormat = messageFormat;
+	}
+
 	@Override 
 	public Object clone() throws CloneNotSupportedException {
 		CQSQueue queue = (CQSQueue)super.clone();
@@ -0,0 +1,60 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cqs.model;
+
+/**
+ * Approximate message counts of a queue summed over all its shards
+ */
+public class CQSQueueDepth {
+
+	public static final CQSQueueDepth EMPTY = new CQSQueueDepth(0, 0, 0);
+
+	private final long numMessages;
+	private final long numMessagesNotVisible;
+	private final long numMessagesDelayed;
+
+	public CQSQueueDepth(long numMessages, long numMessagesNotVisible, long numMessagesDelayed) {
+		this.numMessages = numMessages;
+		this.numMessagesNotVisible = numMessagesNotVisible;
+		this.numMessagesDelayed = numMessagesDelayed;
+	}
+
+	/**
+	 * @return value of ApproximateNumberOfMessages
+	 */
+	public long getNumMessages() {
+		return numMessages;
+	}
+
+	/**
+	 * @return value of ApproximateNumberOfMessagesNotVisible
+	 */
+	public long getNumMessagesNotVisible() {
+		return numMessagesNotVisible;
+	}
+
+	/**
+	 * @return value of ApproximateNumberOfMessagesDelayed
+	 */
+	public long getNumMessagesDelayed() {
+		return numMessagesDelayed;
+	}
+
+	@Override
+	public String toString() {
+		return "num_messages=" + numMessages + " num_not_visible=" + numMessagesNotVisible + " num_delayed=" + numMessagesDelayed;
+	}
+}
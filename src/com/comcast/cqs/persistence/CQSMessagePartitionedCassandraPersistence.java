@@ -16,25 +16,28 @@
 package com.comcast.cqs.persistence;
 
 import java.io.IOException;
-import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
-import java.io.Writer;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 import org.json.JSONException;
-import org.json.JSONObject;
-import org.json.JSONWriter;
 
+import com.comcast.cmb.common.controller.CMBControllerServlet;
 import com.comcast.cmb.common.persistence.AbstractDurablePersistence;
 import com.comcast.cmb.common.persistence.AbstractDurablePersistence.CMB_SERIALIZER;
 import com.comcast.cmb.common.persistence.AbstractDurablePersistence.CmbColumn;
@@ -45,12 +48,14 @@ import com.comcast.cmb.common.util.CMBErrorCodes;
 import com.comcast.cmb.common.util.CMBException;
 import com.comcast.cmb.common.util.CMBProperties;
 import com.comcast.cmb.common.util.PersistenceException;
+import com.comcast.cmb.common.util.ValueAccumulator.AccumulatorName;
 import com.comcast.cqs.controller.CQSCache;
 import com.comcast.cqs.model.CQSMessage;
-import com.comcast.cqs.model.CQSMessageAttribute;
 import com.comcast.cqs.model.CQSQueue;
+import com.comcast.cqs.model.CQSQueueDepth;
 import com.comcast.cqs.util.CQSConstants;
 import com.comcast.cqs.util.CQSErrorCodes;
+import com.comcast.cqs.util.CQSMessageCodec;
 import com.comcast.cqs.util.RandomNumberCollection;
 import com.comcast.cqs.util.Util;
 import com.eaio.uuid.UUIDGen;
@@ -68,6 +73,14 @@ public class CQSMessagePartitionedCassandraPersistence implements ICQSMessagePer
 	private static Logger logger = Logger.getLogger(CQSMessagePartitionedCassandraPersistence.class);
 	
 	private static final AbstractDurablePersistence cassandraHandler = DurablePersistenceFactory.getInstance();
+	
+	private static final ExecutorService partitionReadExecutor = Executors.newFixedThreadPool(CMBProperties.getInstance().getCQSPartitionReadThreads(), new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "CQSPartitionRead");
+			t.setDaemon(true);
+			return t;
+		}
+	});
 
 	public CQSMessagePartitionedCassandraPersistence() {
 	}
@@ -103,7 +116,7 @@ public class CQSMessagePartitionedCassandraPersistence implements ICQSMessagePer
 
 		logger.debug("event=send_message ttl=" + ttl + " delay_sec=" + delaySeconds + " msg_id=" + message.getMessageId() + " key=" + key + " col=" + columnName);
 		
-		cassandraHandler.update(AbstractDurablePersistence.CQS_KEYSPACE, COLUMN_FAMILY_PARTITIONED_QUEUE_MESSAGES, key, columnName, getMessageJSON(message),
+		cassandraHandler.update(AbstractDurablePersistence.CQS_KEYSPACE, COLUMN_FAMILY_PARTITIONED_QUEUE_MESSAGES, key, columnName, encodeMessage(queue, message),
 				CMB_SERIALIZER.STRING_SERIALIZER,
 				CMB_SERIALIZER.COMPOSITE_SERIALIZER,
 				CMB_SERIALIZER.STRING_SERIALIZER, ttl);
@@ -130,7 +143,7 @@ public class CQSMessagePartitionedCassandraPersistence implements ICQSMessagePer
 					continue;
 				}
 				
-				CQSMessage message = extractMessageFromJSON(queueUrl, column);
+				CQSMessage message = extractMessageFromColumn(queueUrl, column);
 				messageList.add(message);
 			}
 			
@@ -142,10 +155,10 @@ public class CQSMessagePartitionedCassandraPersistence implements ICQSMessagePer
 		return messageList;
 	}
 	
-	private CQSMessage extractMessageFromJSON(String queueUrl, CmbColumn column) throws JSONException, IOException, PersistenceException {
+	private CQSMessage extractMessageFromColumn(String queueUrl, CmbColumn column) throws JSONException, IOException, PersistenceException {
 		
 		CQSQueue queue = null;
-		CQSMessage m = new CQSMessage();
+		CQSMessage m = null;
 		
 		try {
 			queue = CQSCache.getCachedQueue(queueUrl);
@@ -157,41 +170,20 @@ public class CQSMessagePartitionedCassandraPersistence implements ICQSMessagePer
 			throw new PersistenceException(CMBErrorCodes.InternalError, "Unknown queue " + queueUrl);
 		}
 		
-		JSONObject json = new JSONObject((String)column.getValue());
-
-		m.setMessageId(json.getString("MessageId"));
-		m.setReceiptHandle(json.getString("MessageId"));
-		m.setMD5OfBody(json.getString("MD5OfBody"));
-		m.setBody(json.getString("Body"));
-		
-		if (m.getAttributes() == null) {
-			m.setAttributes(new HashMap<String, String>());
-		}
+		String value = (String)column.getValue();
 		
-		if (json.has(CQSConstants.SENT_TIMESTAMP)) {
-			m.getAttributes().put(CQSConstants.SENT_TIMESTAMP, json.getString(CQSConstants.SENT_TIMESTAMP));
-		}
-		
-		if (json.has(CQSConstants.APPROXIMATE_RECEIVE_COUNT)) {
-			m.getAttributes().put(CQSConstants.APPROXIMATE_RECEIVE_COUNT, json.getString(CQSConstants.APPROXIMATE_RECEIVE_COUNT));
-		}
-
-		if (json.has(CQSConstants.SENDER_ID)) {
-			m.getAttributes().put(CQSConstants.SENDER_ID, json.getString(CQSConstants.SENDER_ID));
-		}
-		
-		if (json.has("MessageAttributes")) {
-			m.setMD5OfMessageAttributes(json.getString("MD5OfMessageAttributes"));
-			JSONObject messageAttributes = json.getJSONObject("MessageAttributes");
-			Map<String, CQSMessageAttribute> ma = new HashMap<String, CQSMessageAttribute>();
-			Iterator<String> iter = messageAttributes.keys();
-			while (iter.hasNext()) {
-				String key = iter.next();
-				ma.put(key, new CQSMessageAttribute(messageAttributes.getJSONObject(key).getString("StringValue"), messageAttributes.getJSONObject(key).getString("DataType")));
+		if (CQSMessageCodec.isEncoded(value)) {
+			m = CQSMessageCodec.decode(value);
+			m.setTimebasedId(column.getName());
+			if (queue.isCompressed()) {
+				m.setBody(Util.decompress(m.getBody()));
 			}
-			m.setMessageAttributes(ma);
+			return m;
 		}
 		
+		// legacy json format
+		
+		m = CQSMessageCodec.decodeJSON(value);
 		m.setTimebasedId(column.getName());
 		
 		if (queue.isCompressed()) {
@@ -201,15 +193,7 @@ public class CQSMessagePartitionedCassandraPersistence implements ICQSMessagePer
 	    return m;
 	}
 	
-	private String getMessageJSON(CQSMessage message) throws JSONException {
-		
-		Writer writer = new StringWriter(); 
-    	JSONWriter jw = new JSONWriter(writer);
-
-    	jw = jw.object();
-    	jw.key("MessageId").value(message.getMessageId());
-    	jw.key("MD5OfBody").value(message.getMD5OfBody());
-    	jw.key("Body").value(message.getBody());
+	private String encodeMessage(CQSQueue queue, CQSMessage message) throws JSONException {
 		
 		if (message.getAttributes() == null) {
 			message.setAttributes(new HashMap<String, String>());
@@ -223,40 +207,13 @@ public class CQSMessagePartitionedCassandraPersistence implements ICQSMessagePer
 			message.getAttributes().put(CQSConstants.APPROXIMATE_RECEIVE_COUNT, "0");
 		}
 		
-		if (message.getAttributes() != null) {
-			for (String key : message.getAttributes().keySet()) {
-				String value = message.getAttributes().get(key);
-				if (value == null || value.isEmpty()) {
-					value = "";
-				}
-				jw.key(key).value(value);
-			}
+		if (CQSConstants.MESSAGE_FORMAT_BINARY.equals(queue.getMessageFormat())) {
+			return CQSMessageCodec.encode(message);
 		}
 		
-		if (message.getMessageAttributes() != null && message.getMessageAttributes().size() > 0) {
-	    	jw.key("MD5OfMessageAttributes").value(message.getMD5OfMessageAttributes());
-			jw.key("MessageAttributes");
-			jw.object();
-			for (String key : message.getMessageAttributes().keySet()) {
-				jw.key(key);
-				jw.object();
-				CQSMessageAttribute messageAttribute = message.getMessageAttributes().get(key);
-				if (messageAttribute.getStringValue() != null) {
-					jw.key("StringValue").value(messageAttribute.getStringValue());
-				} else if (messageAttribute.getBinaryValue() != null) {
-					jw.key("BinaryValue").value(messageAttribute.getBinaryValue());
-				}
-				jw.key("DataType").value(messageAttribute.getDataType());
-				jw.endObject();
-			}
-			jw.endObject();
-		}
-
-		jw.endObject();
-		
-		return writer.toString();
+		return CQSMessageCodec.encodeJSON(message);
 	}
-
+	
 	@Override
 	public Map<String, String> sendMessageBatch(CQSQueue queue,	int shard, List<CQSMessage> messages) throws PersistenceException,	IOException, InterruptedException, NoSuchAlgorithmException, JSONException {
 
@@ -296,8 +253,7 @@ public class CQSMessagePartitionedCassandraPersistence implements ICQSMessagePer
 			
 			logger.debug("event=send_message_batch msg_id=" + message.getMessageId() + " ttl=" + ttl + " delay_sec=" + delaySeconds + " key=" + key + " col=" + columnName);
 			
-			String messageJson = getMessageJSON(message);
-			messageDataMap.put(columnName, messageJson);
+			messageDataMap.put(columnName, encodeMessage(queue, message));
 			ret.put(message.getSuppliedMessageId(), message.getMessageId());
 		}
 
@@ -332,6 +288,42 @@ public class CQSMessagePartitionedCassandraPersistence implements ICQSMessagePer
 		}
 	}
 
+	@Override
+	public void deleteMessageBatch(String queueUrl, List<String> receiptHandles) throws PersistenceException {
+		
+		List<String> keys = new ArrayList<String>();
+		List<CmbComposite> columnNames = new ArrayList<CmbComposite>();
+		
+		for (String receiptHandle : receiptHandles) {
+			
+			if (receiptHandle == null) {
+				logger.error("event=delete_message_batch event=no_receipt_handle queue_url=" + queueUrl);
+				continue;
+			}
+			
+			String[] receiptHandleParts = receiptHandle.split(":");
+			
+			if (receiptHandleParts.length != 3) {
+				logger.error("event=delete_message_batch event=invalid_receipt_handle queue_url=" + queueUrl + " receipt_handle=" + receiptHandle);
+				continue;
+			}
+			
+			CmbComposite columnName = cassandraHandler.getCmbComposite(Arrays.asList(Long.parseLong(receiptHandleParts[1]), Long.parseLong(receiptHandleParts[2])));
+			
+			if (columnName != null) {
+				keys.add(receiptHandleParts[0]);
+				columnNames.add(columnName);
+			}
+		}
+		
+		if (keys.size() == 0) {
+			return;
+		}
+		
+		logger.debug("event=delete_message_batch queue_url=" + queueUrl + " num_messages=" + keys.size());
+		cassandraHandler.deleteBatch(AbstractDurablePersistence.CQS_KEYSPACE, COLUMN_FAMILY_PARTITIONED_QUEUE_MESSAGES, keys, columnNames, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.COMPOSITE_SERIALIZER);
+	}
+
 	@Override
 	public List<CQSMessage> receiveMessage(CQSQueue queue, Map<String, String> receiveAttributes) throws PersistenceException, IOException, NoSuchAlgorithmException, InterruptedException {
 		throw new UnsupportedOperationException("ReceiveMessage is not supported, please call getMessages instead");
@@ -443,6 +435,46 @@ public class CQSMessagePartitionedCassandraPersistence implements ICQSMessagePer
 		return messageList;
 	}
 
+	@Override
+	public List<CQSMessage> peekQueuePartition(String queueUrl, int shard, int partition, String previousReceiptHandle, int length) throws PersistenceException, IOException, NoSuchAlgorithmException, JSONException {
+		
+		String key = Util.hashQueueUrl(queueUrl) + "_" + shard + "_" + partition;
+		CmbComposite previousHandle = null;
+		
+		if (previousReceiptHandle != null) {
+			
+			String[] handleParts = previousReceiptHandle.split(":");
+			
+			if (handleParts.length != 3 || !handleParts[0].equals(key)) {
+				logger.error("event=peek_queue_partition error_code=corrupt_receipt_handle receipt_handle=" + previousReceiptHandle + " key=" + key);
+				throw new IllegalArgumentException("Corrupt receipt handle " + previousReceiptHandle);
+			}
+			
+			previousHandle = cassandraHandler.getCmbComposite(Arrays.asList(Long.parseLong(handleParts[1]), Long.parseLong(handleParts[2])));
+		}
+		
+		logger.debug("event=peek_queue_partition queue_url=" + queueUrl + " key=" + key + " prev_receipt_handle=" + previousReceiptHandle + " length=" + length);
+		
+		while (true) {
+			
+			CmbColumnSlice<CmbComposite, String> columnSlice = cassandraHandler.readColumnSlice(
+					AbstractDurablePersistence.CQS_KEYSPACE, COLUMN_FAMILY_PARTITIONED_QUEUE_MESSAGES, key, previousHandle,
+					null, length+1, CMB_SERIALIZER.STRING_SERIALIZER,
+					CMB_SERIALIZER.COMPOSITE_SERIALIZER,
+					CMB_SERIALIZER.STRING_SERIALIZER);
+			
+			List<CQSMessage> messageList = extractMessagesFromColumnSlice(queueUrl, length, previousHandle, null, columnSlice, true);
+			
+			// a full slice made up of empty columns is not the end of the partition, keep reading past it
+			
+			if (messageList.size() > 0 || columnSlice == null || columnSlice.getColumns() == null || columnSlice.getColumns().size() <= length) {
+				return messageList;
+			}
+			
+			previousHandle = columnSlice.getColumns().get(columnSlice.getColumns().size() - 1).getName();
+		}
+	}
+
 	@Override
 	public void clearQueue(String queueUrl, int shard) throws PersistenceException, NoSuchAlgorithmException, UnsupportedEncodingException {
 		
@@ -470,32 +502,160 @@ public class CQSMessagePartitionedCassandraPersistence implements ICQSMessagePer
 			return getMessagesBulk(queueUrl, ids);
 		}
 		
+		List<Callable<CQSMessage>> reads = new ArrayList<Callable<CQSMessage>>(ids.size());
+		
 		for (String id: ids) {
 			
-			String[] idParts = id.split(":");
+			final String[] idParts = id.split(":");
 			
 			if (idParts.length != 3) {
 				logger.error("event=get_messages error_code=invalid_message_id id=" + id);
 				throw new IllegalArgumentException("Invalid message id " + id);
 			}
 			
-			CmbComposite columnName = cassandraHandler.getCmbComposite(Arrays.asList(Long.parseLong(idParts[1]), Long.parseLong(idParts[2])));
+			final CmbComposite columnName = cassandraHandler.getCmbComposite(Arrays.asList(Long.parseLong(idParts[1]), Long.parseLong(idParts[2])));
+			final String fQueueUrl = queueUrl;
 			
-			CmbColumn<CmbComposite, String> column = cassandraHandler.readColumn(AbstractDurablePersistence.CQS_KEYSPACE, COLUMN_FAMILY_PARTITIONED_QUEUE_MESSAGES, 
-					idParts[0], columnName, CMB_SERIALIZER.STRING_SERIALIZER, 
-					CMB_SERIALIZER.COMPOSITE_SERIALIZER,
-					CMB_SERIALIZER.STRING_SERIALIZER);
+			reads.add(new Callable<CQSMessage>() {
+				
+				@Override
+				public CQSMessage call() throws Exception {
+					
+					CmbColumn<CmbComposite, String> column = cassandraHandler.readColumn(AbstractDurablePersistence.CQS_KEYSPACE, COLUMN_FAMILY_PARTITIONED_QUEUE_MESSAGES, 
+							idParts[0], columnName, CMB_SERIALIZER.STRING_SERIALIZER, 
+							CMB_SERIALIZER.COMPOSITE_SERIALIZER,
+							CMB_SERIALIZER.STRING_SERIALIZER);
+					
+					if (column == null) {
+						return null;
+					}
+					
+					return extractMessageFromColumn(fQueueUrl, column);
+				}
+			});
+		}
+		
+		List<CQSMessage> messages = readConcurrently(queueUrl, reads);
+		
+		for (int i=0; i<ids.size(); i++) {
+			messageMap.put(ids.get(i), messages.get(i));
+		}
+		
+		return messageMap;
+	}
+	
+	/**
+	 * Read run on the partition read pool that records the cassandra time and number of reads it caused, so they can
+	 * be added to the accumulator of the request thread, which is thread local
+	 */
+	private static final class AccumulatedRead<T> implements Callable<AccumulatedRead<T>> {
+		
+		private final Callable<T> read;
+		private volatile T result;
+		private volatile long cassandraTime;
+		private volatile long cassandraReads;
+		
+		AccumulatedRead(Callable<T> read) {
+			this.read = read;
+		}
+		
+		@Override
+		public AccumulatedRead<T> call() throws Exception {
+			
+			CMBControllerServlet.valueAccumulator.initializeCounters(AccumulatorName.CassandraTime, AccumulatorName.CassandraRead);
 			
-			CQSMessage message = null;
+			try {
+				result = read.call();
+			} finally {
+				cassandraTime = CMBControllerServlet.valueAccumulator.getCounter(AccumulatorName.CassandraTime);
+				cassandraReads = CMBControllerServlet.valueAccumulator.getCounter(AccumulatorName.CassandraRead);
+				CMBControllerServlet.valueAccumulator.deleteCounter(AccumulatorName.CassandraTime);
+				CMBControllerServlet.valueAccumulator.deleteCounter(AccumulatorName.CassandraRead);
+			}
 			
-			if (column != null) {
-				message = extractMessageFromJSON(queueUrl, column);
+			return this;
+		}
+	}
+	
+	/**
+	 * Run independent cassandra reads on the shared partition read pool and wait for all of them, so a call touching
+	 * n rows pays roughly one read latency instead of n. The pool size bounds the number of reads in flight across
+	 * all callers. Cassandra time and reads of all reads are added to the accumulator of the calling thread.
+	 * @return results in the order of reads
+	 * @throws PersistenceException if any read failed or not all reads completed within cmb.cqs.partitionReadTimeoutMS
+	 */
+	private <T> List<T> readConcurrently(String queueUrl, List<Callable<T>> reads) throws PersistenceException {
+		
+		List<T> results = new ArrayList<T>(reads.size());
+		
+		if (reads.size() == 1) {
+			
+			try {
+				results.add(reads.get(0).call());
+			} catch (RuntimeException ex) {
+				throw ex;
+			} catch (PersistenceException ex) {
+				throw ex;
+			} catch (Exception ex) {
+				throw new PersistenceException(ex);
 			}
 			
-			messageMap.put(id, message);
+			return results;
 		}
 		
-		return messageMap;
+		List<AccumulatedRead<T>> accumulatedReads = new ArrayList<AccumulatedRead<T>>(reads.size());
+		
+		for (Callable<T> read : reads) {
+			accumulatedReads.add(new AccumulatedRead<T>(read));
+		}
+		
+		List<Future<AccumulatedRead<T>>> futures;
+		
+		try {
+			futures = partitionReadExecutor.invokeAll(accumulatedReads, CMBProperties.getInstance().getCQSPartitionReadTimeoutMS(), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new PersistenceException(CMBErrorCodes.InternalError, "Interrupted while reading messages");
+		}
+		
+		for (AccumulatedRead<T> read : accumulatedReads) {
+			if (read.cassandraTime > 0) {
+				CMBControllerServlet.valueAccumulator.addToCounter(AccumulatorName.CassandraTime, read.cassandraTime);
+			}
+			if (read.cassandraReads > 0) {
+				CMBControllerServlet.valueAccumulator.addToCounter(AccumulatorName.CassandraRead, read.cassandraReads);
+			}
+		}
+		
+		for (Future<AccumulatedRead<T>> future : futures) {
+			
+			if (future.isCancelled()) {
+				logger.error("event=partition_read_timeout queue_url=" + queueUrl + " num_reads=" + reads.size() + " timeout_ms=" + CMBProperties.getInstance().getCQSPartitionReadTimeoutMS());
+				throw new PersistenceException(CMBErrorCodes.InternalError, "Timed out reading messages");
+			}
+			
+			try {
+				results.add(future.get().result);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new PersistenceException(CMBErrorCodes.InternalError, "Interrupted while reading messages");
+			} catch (ExecutionException ex) {
+				
+				Throwable cause = ex.getCause();
+				
+				if (cause instanceof PersistenceException) {
+					throw (PersistenceException)cause;
+				} else if (cause instanceof RuntimeException) {
+					throw (RuntimeException)cause;
+				} else if (cause instanceof Error) {
+					throw (Error)cause;
+				}
+				
+				throw new PersistenceException((Exception)cause);
+			}
+		}
+		
+		return results;
 	}
 	
 	private Map<String, CQSMessage> getMessagesBulk(String queueUrl, List<String> ids) throws NoSuchAlgorithmException, IOException, JSONException, NumberFormatException, PersistenceException {
@@ -510,20 +670,34 @@ public class CQSMessagePartitionedCassandraPersistence implements ICQSMessagePer
 			return messageMap;
 		}
 		
+		List<Callable<List<CQSMessage>>> reads = new ArrayList<Callable<List<CQSMessage>>>(firstLastIdsForEachPartition.size());
+		
 		for (String queuePartition: firstLastIdsForEachPartition.keySet()) {
 			
-			int messageCount = 200;
+			final int messageCount = 200;
+			final String fQueuePartition = queuePartition;
+			final String fQueueUrl = queueUrl;
 			Map<String, String> firstLastForPartition = firstLastIdsForEachPartition.get(queuePartition);
-			String firstParts[] = firstLastForPartition.get("First").split(":");
-			String lastParts[] = firstLastForPartition.get("Last").split(":");
-			
-			CmbColumnSlice<CmbComposite, String> columnSlice = cassandraHandler.readColumnSlice(
-					AbstractDurablePersistence.CQS_KEYSPACE, COLUMN_FAMILY_PARTITIONED_QUEUE_MESSAGES, queuePartition, cassandraHandler.getCmbComposite(Arrays.asList(Long.parseLong(firstParts[0]), Long.parseLong(firstParts[1]))),
-					cassandraHandler.getCmbComposite(Arrays.asList(Long.parseLong(lastParts[0]), Long.parseLong(lastParts[1]))), messageCount, CMB_SERIALIZER.STRING_SERIALIZER,
-					CMB_SERIALIZER.COMPOSITE_SERIALIZER,
-					CMB_SERIALIZER.STRING_SERIALIZER);
+			final String firstParts[] = firstLastForPartition.get("First").split(":");
+			final String lastParts[] = firstLastForPartition.get("Last").split(":");
 			
-			List<CQSMessage> messageList = extractMessagesFromColumnSlice(queueUrl, messageCount, null, null, columnSlice, false);
+			reads.add(new Callable<List<CQSMessage>>() {
+				
+				@Override
+				public List<CQSMessage> call() throws Exception {
+					
+					CmbColumnSlice<CmbComposite, String> columnSlice = cassandraHandler.readColumnSlice(
+							AbstractDurablePersistence.CQS_KEYSPACE, COLUMN_FAMILY_PARTITIONED_QUEUE_MESSAGES, fQueuePartition, cassandraHandler.getCmbComposite(Arrays.asList(Long.parseLong(firstParts[0]), Long.parseLong(firstParts[1]))),
+							cassandraHandler.getCmbComposite(Arrays.asList(Long.parseLong(lastParts[0]), Long.parseLong(lastParts[1]))), messageCount, CMB_SERIALIZER.STRING_SERIALIZER,
+							CMB_SERIALIZER.COMPOSITE_SERIALIZER,
+							CMB_SERIALIZER.STRING_SERIALIZER);
+					
+					return extractMessagesFromColumnSlice(fQueueUrl, messageCount, null, null, columnSlice, false);
+				}
+			});
+		}
+		
+		for (List<CQSMessage> messageList : readConcurrently(queueUrl, reads)) {
 			
 			for (CQSMessage message: messageList) {
 				
@@ -714,6 +888,12 @@ public class CQSMessagePartitionedCassandraPersistence implements ICQSMessagePer
 		return 0;
 	}
 
+	@Override
+	public Map<String, CQSQueueDepth> getQueueDepths(List<String> queueUrls) throws Exception {
+		// depths are only tracked by the redis layer
+		return new HashMap<String, CQSQueueDepth>();
+	}
+
 	@Override
 	public void flushAll() {
 		// TODO Auto-generated method stub
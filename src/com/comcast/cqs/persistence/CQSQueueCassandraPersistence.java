@@ -32,6 +32,7 @@ import com.comcast.cmb.common.persistence.PersistenceFactory;
 import com.comcast.cmb.common.util.CMBProperties;
 import com.comcast.cmb.common.util.PersistenceException;
 import com.comcast.cqs.model.CQSQueue;
+import com.comcast.cqs.model.CQSQueueDepth;
 import com.comcast.cqs.util.CQSConstants;
 import com.comcast.cqs.util.CQSErrorCodes;
 import com.comcast.cqs.util.Util;
@@ -74,6 +75,7 @@ public class CQSQueueCassandraPersistence implements ICQSQueuePersistence {
 		queueData.put(CQSConstants.COL_NUMBER_PARTITIONS, (new Long(queue.getNumberOfPartitions())).toString());
 		queueData.put(CQSConstants.COL_NUMBER_SHARDS, (new Long(queue.getNumberOfShards())).toString());
 		queueData.put(CQSConstants.COL_COMPRESSED, (new Boolean(queue.isCompressed())).toString());
+		queueData.put(CQSConstants.COL_MESSAGE_FORMAT, queue.getMessageFormat());
 
 		cassandraHandler.insertRow(AbstractDurablePersistence.CQS_KEYSPACE, queue.getRelativeUrl(), COLUMN_FAMILY_QUEUES, queueData, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER, null);
 		cassandraHandler.update(AbstractDurablePersistence.CQS_KEYSPACE, COLUMN_FAMILY_QUEUES_BY_USER, queue.getOwnerUserId(), queue.getArn(), "", CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER, null);
@@ -117,6 +119,7 @@ public class CQSQueueCassandraPersistence implements ICQSQueuePersistence {
 			if (slice != null) {
 				
 				boolean first = true;
+				List<CQSQueue> candidates = new ArrayList<CQSQueue>();
 
 				for (CmbColumn<String, String> c : slice.getColumns()) {
 					
@@ -138,15 +141,14 @@ public class CQSQueueCassandraPersistence implements ICQSQueuePersistence {
 						continue;
 					}
 					
-					if (containingMessagesOnly) {
-						try {
-							if (PersistenceFactory.getCQSMessagePersistence().getQueueMessageCount(queue.getRelativeUrl(), true) <= 0) {
-								continue;
-							}
-						} catch (Exception ex) {
-							continue;
-						}
-					} 
+					candidates.add(queue);
+				}
+				
+				if (containingMessagesOnly) {
+					candidates = filterQueuesContainingMessages(candidates);
+				} 
+				
+				for (CQSQueue queue : candidates) {
 					
 					queueList.add(queue);
 					
@@ -160,6 +162,45 @@ public class CQSQueueCassandraPersistence implements ICQSQueuePersistence {
 		return queueList;
 	}
 	
+	/**
+	 * Get the depth of all queues of a page with a single bulk call instead of one call per queue
+	 * @param queues
+	 * @return queues containing messages, queues whose depth cannot be determined are dropped
+	 */
+	private List<CQSQueue> filterQueuesContainingMessages(List<CQSQueue> queues) {
+		
+		List<CQSQueue> queuesWithMessages = new ArrayList<CQSQueue>();
+		
+		if (queues.size() == 0) {
+			return queuesWithMessages;
+		}
+		
+		List<String> queueUrls = new ArrayList<String>(queues.size());
+		
+		for (CQSQueue queue : queues) {
+			queueUrls.add(queue.getRelativeUrl());
+		}
+		
+		try {
+			
+			Map<String, CQSQueueDepth> depths = PersistenceFactory.getCQSMessagePersistence().getQueueDepths(queueUrls);
+			
+			for (CQSQueue queue : queues) {
+				
+				CQSQueueDepth depth = depths.get(queue.getRelativeUrl());
+				
+				if (depth != null && depth.getNumMessages() > 0) {
+					queuesWithMessages.add(queue);
+				}
+			}
+			
+		} catch (Exception ex) {
+			logger.warn("event=list_queues error_code=failed_to_get_queue_depths num_queues=" + queues.size(), ex);
+		}
+		
+		return queuesWithMessages;
+	}
+	
 	@Override
 	public long getNumberOfQueuesByUser(String userId) throws PersistenceException {
 		
@@ -210,6 +251,7 @@ public class CQSQueueCassandraPersistence implements ICQSQueuePersistence {
 			long createdTime = (new Long(slice.getColumnByName(CQSConstants.COL_CREATED_TIME).getValue())).longValue();
 			String hostName = slice.getColumnByName(CQSConstants.COL_HOST_NAME) == null ? null : slice.getColumnByName(CQSConstants.COL_HOST_NAME).getValue();
 			boolean isCompressed = slice.getColumnByName(CQSConstants.COL_COMPRESSED) == null ? false : (new Boolean(slice.getColumnByName(CQSConstants.COL_COMPRESSED).getValue())).booleanValue();
+			String messageFormat = slice.getColumnByName(CQSConstants.COL_MESSAGE_FORMAT) == null ? CQSConstants.MESSAGE_FORMAT_JSON : slice.getColumnByName(CQSConstants.COL_MESSAGE_FORMAT).getValue();
 			CQSQueue queue = new CQSQueue(name, ownerUserId);
 			queue.setRelativeUrl(url);
 			queue.setServiceEndpoint(hostName);
@@ -225,6 +267,7 @@ public class CQSQueueCassandraPersistence implements ICQSQueuePersistence {
 			queue.setNumberOfShards(numShards);
 			queue.setCreatedTime(createdTime);
 			queue.setCompressed(isCompressed);
+			queue.setMessageFormat(messageFormat);
 			return queue;
 		} catch (Exception ex) {
 			return null;
@@ -232,7 +275,7 @@ public class CQSQueueCassandraPersistence implements ICQSQueuePersistence {
 	}
 
 	private CQSQueue getQueueByUrl(String queueUrl) throws PersistenceException {
-		CmbColumnSlice<String, String> slice = cassandraHandler.readColumnSlice(AbstractDurablePersistence.CQS_KEYSPACE, COLUMN_FAMILY_QUEUES, queueUrl, null, null, 15, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER);
+		CmbColumnSlice<String, String> slice = cassandraHandler.readColumnSlice(AbstractDurablePersistence.CQS_KEYSPACE, COLUMN_FAMILY_QUEUES, queueUrl, null, null, 16, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER);
 		if (slice == null) {		    
 			return null;
 		}
@@ -27,6 +27,7 @@ import com.comcast.cmb.common.util.CMBException;
 import com.comcast.cmb.common.util.PersistenceException;
 import com.comcast.cqs.model.CQSMessage;
 import com.comcast.cqs.model.CQSQueue;
+import com.comcast.cqs.model.CQSQueueDepth;
 
 /**
  * Interface to persist cqs message
@@ -104,6 +105,15 @@ public interface ICQSMessagePersistence {
      * @throws PersistenceException
      */
     public void deleteMessage(String queueUrl, String receiptHandle) throws PersistenceException;
+
+    /**
+     * Delete a batch of messages given their receipt handles. Implementations should group their
+     * mutations so that the whole batch costs as few round trips as possible.
+     * @param queueUrl The URL of the queue
+     * @param receiptHandles The receipt handles of the messages to delete
+     * @throws PersistenceException
+     */
+    public void deleteMessageBatch(String queueUrl, List<String> receiptHandles) throws PersistenceException;
     
     /**
      * Receive the next set of messages from the Queue. Receives from random shard and random partition.
@@ -144,6 +154,21 @@ public interface ICQSMessagePersistence {
      */
     public List<CQSMessage> peekQueue(String queueUrl, int shard, String previousReceiptHandle, String nextReceiptHandle, int length) throws PersistenceException, IOException, NoSuchAlgorithmException, JSONException;
     
+    /**
+     * Peek a single partition of a queue shard for the next set of messages, never crossing into the next partition
+     * @param queueUrl The URL of the Queue
+     * @param shard The shard to be used
+     * @param partition The partition to be read
+     * @param previousReceiptHandle The receipt handle of the last item in the previous page, must belong to the same partition, null to start at the head
+     * @param length the maximum number of messages to return
+     * @throws PersistenceException
+     * @throws IOException 
+     * @throws NoSuchAlgorithmException 
+     * @return list of messages following previousReceiptHandle, empty once the partition is exhausted
+     * @throws JSONException 
+     */
+    public List<CQSMessage> peekQueuePartition(String queueUrl, int shard, int partition, String previousReceiptHandle, int length) throws PersistenceException, IOException, NoSuchAlgorithmException, JSONException;
+    
     /**
      * Peek the queue with the given Queue URL for the next set of messages chosen at random from the queue
      * @param queueUrl The URL of the Queue
@@ -237,4 +262,13 @@ public interface ICQSMessagePersistence {
      * @throws Exception 
      */
     public long getCacheQueueMessageCount(String queueUrl) throws Exception ;
+    
+    /**
+     * Get the approximate depth of several queues at once, all shards of all queues are counted in a single
+     * pipelined round trip per redis server
+     * @param queueUrls relative queue urls
+     * @return map of queue url -> depth, queues whose cache is not available are missing
+     * @throws Exception
+     */
+    public Map<String, CQSQueueDepth> getQueueDepths(List<String> queueUrls) throws Exception;
 }
@@ -28,8 +28,15 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -42,10 +49,13 @@ import org.json.JSONException;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPoolConfig;
 import redis.clients.jedis.JedisShardInfo;
+import redis.clients.jedis.Response;
 import redis.clients.jedis.ShardedJedis;
+import redis.clients.jedis.ShardedJedisPipeline;
 import redis.clients.jedis.ShardedJedisPool;
 import redis.clients.jedis.Transaction;
 import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
 import redis.clients.jedis.exceptions.JedisException;
 
 import com.comcast.cmb.common.persistence.AbstractDurablePersistence;
@@ -58,6 +68,7 @@ import com.comcast.cqs.controller.CQSMonitor;
 import com.comcast.cqs.controller.CQSMonitor.CacheType;
 import com.comcast.cqs.model.CQSMessage;
 import com.comcast.cqs.model.CQSQueue;
+import com.comcast.cqs.model.CQSQueueDepth;
 import com.comcast.cqs.persistence.RedisSortedSetPersistence.QCacheState;
 import com.comcast.cqs.util.CQSConstants;
 import com.comcast.cqs.util.Util;
@@ -82,6 +93,37 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 
 	public static ExecutorService executor;
 	public static ExecutorService revisibilityExecutor;
+	private static ExecutorService fillerPartitionExecutor;
+
+	private static final String FILL_CHECKPOINT_STARTED = "started";
+	private static final int CACHE_FILLER_TTL_SEC = 60;
+
+	/*
+	local removed = 0
+	for i = 2, #ARGV do
+	  local score = redis.call("ZSCORE",KEYS[1],ARGV[i])
+	  if score and tonumber(score) <= tonumber(ARGV[1]) then
+	    removed = removed + redis.call("ZREM",KEYS[1],ARGV[i])
+	  end
+	end
+	return removed
+	 */
+
+	private static final String luaReleaseRevisible = "local removed = 0 "
+			+ "for i = 2, #ARGV do "
+			+ "local score = redis.call(\"ZSCORE\",KEYS[1],ARGV[i]) "
+			+ "if score and tonumber(score) <= tonumber(ARGV[1]) then "
+			+ "removed = removed + redis.call(\"ZREM\",KEYS[1],ARGV[i]) "
+			+ "end "
+			+ "end "
+			+ "return removed";
+
+	private static volatile String luaReleaseRevisibleSHA = "  ";
+
+	// queue shards whose legacy hidden hash has already been migrated by this instance
+	private static final Map<String, Boolean> legacyHiddenHashMigrated = new ConcurrentHashMap<String, Boolean>();
+
+	private static final int REVISIBLE_BATCH_SIZE = 1000;
 
 	public final TestInterface testInterface = new TestInterface();
 
@@ -144,6 +186,13 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 
 		 pool = new ShardedJedisPool(cfg, shardInfos);
 		 executor = Executors.newFixedThreadPool(CMBProperties.getInstance().getRedisFillerThreads());
+		 fillerPartitionExecutor = Executors.newFixedThreadPool(CMBProperties.getInstance().getRedisFillerPartitionThreads(), new ThreadFactory() {
+			 public Thread newThread(Runnable r) {
+				 Thread t = new Thread(r, "CQSCacheFillerPartition");
+				 t.setDaemon(true);
+				 return t;
+			 }
+		 });
 		 revisibilityExecutor = Executors.newFixedThreadPool(CMBProperties.getInstance().getRedisRevisibleThreads());
 		 logger.info("event=initialize_redis pools_size=" + shardInfos.size() + " max_total=" + cfg.getMaxTotal() + " server_list=" + serverList);
 	 }
@@ -184,8 +233,10 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 				 jedis.del("testQueue-0-" + CQSConstants.REDIS_STATE);
 				 jedis.del("testQueue-0-Q");
 				 jedis.del("testQueue-0-H");
+			 jedis.del("testQueue-0-HS");
 				 jedis.del("testQueue-0-R");
 				 jedis.del("testQueue-0-F");
+			 jedis.del("testQueue-0-FC");
 				 jedis.del("testQueue-0-V");
 				 jedis.del("testQueue-0-VR");
 			 } finally {
@@ -546,13 +597,19 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 	 }
 
 	 /**
-	  * Class clears and then fills the cache for a given queue
+	  * Class fills the cache for a given queue shard by streaming pages from each partition of the underlying
+	  * persistence layer into pipelined Redis writes. Partitions are filled in parallel and each page is recorded in
+	  * a checkpoint hash so a filler that dies part way through resumes where it left off instead of starting over.
+	  * Receives are served from the already loaded prefix while the fill continues.
 	  * When its done, it updates the following cache keys are available:
 	  *  <Q>-S = OK
 	  *  <Q>-Q = The in-memory list ("queue") of message ids
-	  *  <Q>-H = The hash table of hidden message ids along with the timestamp for when they should become re-visible
+	  *  <Q>-HS = Sorted set of hidden message ids scored by the timestamp for when they should become re-visible
 	  *  <Q>-R = Existence implies recent processing of revisibility
-	  *  <Q>-F = Existence implies currently running CacheFiller
+	  *  <Q>-F = Existence implies currently running CacheFiller, refreshed with every page and while waiting for partitions
+	  *          so a dead filler is noticed quickly
+	  *  <Q>-FC = Fill checkpoint, hash of partition to receipt handle of the last cached message. Existence implies an
+	  *           unfinished fill that the next CacheFiller resumes by re-scanning every partition from its handle.
 	  *  <Q>-V = Set of delayed message ids implemented as a sorted set. Delayed messages cannot be deleted before they
 	  *          become visible. We synchronously retrieve due message ids from this set every so often as part of receivemessage()
 	  *  <Q>-VR = the sentinel flag the absence of which implies its time to process the delayed set.
@@ -569,45 +626,198 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 		 @Override
 		 public void run() {
 			 CQSControllerServlet.valueAccumulator.initializeAllCounters();            
-			 //clear all existing in-memQueue and hidden set
-			 boolean brokenJedis = false;
 			 long ts1 = System.currentTimeMillis();
-			 ShardedJedis jedis = getResource();
+			 String checkpointKey = queueUrl + "-" + shard + "-FC";
 			 try {
-				 logger.info("event=cache_filler_started queue_url=" + queueUrl + " shard=" + shard);
-				 jedis.del(queueUrl + "-" + shard + "-Q");
-				 jedis.del(queueUrl + "-" + shard + "-H");
-				 jedis.del(queueUrl + "-" + shard + "-R");
-				 String previousReceiptHandle = null;
-				 List<CQSMessage> messages = persistenceStorage.peekQueue(queueUrl, shard, null, null, 1000);
+				 Map<String, String> checkpoints = startOrResumeFill(checkpointKey);
+				 int numberPartitions = getNumberOfPartitions(queueUrl);
+				 List<Callable<Integer>> fills = new ArrayList<Callable<Integer>>(numberPartitions);
+				 for (int partition = 0; partition < numberPartitions; partition++) {
+					 // finished partitions are scanned again too, sends while the cache was unavailable were not pushed
+					 fills.add(new PartitionFiller(queueUrl, shard, partition, checkpoints.get(String.valueOf(partition))));
+				 }
+				 List<Future<Integer>> futures = new ArrayList<Future<Integer>>(fills.size());
+				 for (Callable<Integer> fill : fills) {
+					 futures.add(fillerPartitionExecutor.submit(fill));
+				 }
 				 int totalCached = 0;
-				 while (messages.size() != 0) {
-					 for (CQSMessage message : messages) {
-						 addMessageToCache(queueUrl, shard, message, jedis);
-						 totalCached++;
+				 try {
+					 for (Future<Integer> future : futures) {
+						 totalCached += awaitPartition(future);
+					 }
+				 } finally {
+					 for (Future<Integer> future : futures) {
+						 future.cancel(true);
 					 }
-					 previousReceiptHandle = messages.get(messages.size() - 1).getMessageId();
-					 messages = persistenceStorage.peekQueue(queueUrl, shard, previousReceiptHandle, null, 1000); //note: shard parameter should be in sync with receipt handle here
 				 }
-				 setCacheState(queueUrl, shard, QCacheState.OK, null, false);
+				 try {
+					 setCacheState(queueUrl, shard, QCacheState.OK, QCacheState.Filling, true);
+				 } catch (SetFailedException e) {
+					 // the cache was invalidated while we were filling, so the checkpoint cannot be trusted either
+					 deleteFillCheckpoint(checkpointKey);
+					 throw e;
+				 }
+				 deleteFillCheckpoint(checkpointKey);
 				 setCacheFillerProcessing(queueUrl, shard, 0);
 				 long ts3 = System.currentTimeMillis();
-				 //logger.debug("event=filled_cache  queue_url=" + queueUrl + " shard=" + shard +" num_cached=" + totalCached + " res_ms=" + (ts3 - ts1) + " redis_ms=" + CQSControllerServlet.valueAccumulator.getCounter(AccumulatorName.RedisTime));
-				 logger.info("event=cache_filler_finished  queue_url=" + queueUrl + " shard=" + shard +" num_cached=" + totalCached + " total_ms=" + (ts3 - ts1) + " redis_ms=" + CQSControllerServlet.valueAccumulator.getCounter(AccumulatorName.RedisTime) + " cass_ms=" + CQSControllerServlet.valueAccumulator.getCounter(AccumulatorName.CassandraTime));
+				 logger.info("event=cache_filler_finished  queue_url=" + queueUrl + " shard=" + shard + " num_partitions=" + fills.size() + " num_cached=" + totalCached + " total_ms=" + (ts3 - ts1) + " redis_ms=" + CQSControllerServlet.valueAccumulator.getCounter(AccumulatorName.RedisTime));
 			 } catch (Exception e) {
-				 if (e instanceof JedisException) {
-					 brokenJedis = true;
+				 // leave the checkpoint in place so the next filler picks up from here
+				 logger.error("event=cache_filler_failed queue_url=" + queueUrl + " shard=" + shard, e);
+				 trySettingCacheState(queueUrl, shard, QCacheState.Unavailable, false);
+			 } finally {
+				 CQSControllerServlet.valueAccumulator.deleteAllCounters();
+			 }
+		 }
+
+		 /**
+		  * Wait for a partition fill, refreshing <Q>-F while waiting. Partitions queued behind other fills or without
+		  * messages write no pages, so the page writes alone do not keep another filler from starting.
+		  * @return number of messages cached by the partition
+		  */
+		 private int awaitPartition(Future<Integer> future) throws Exception {
+			 while (true) {
+				 try {
+					 return future.get(CACHE_FILLER_TTL_SEC / 3, TimeUnit.SECONDS);
+				 } catch (TimeoutException ex) {
+					 setCacheFillerProcessing(queueUrl, shard, CACHE_FILLER_TTL_SEC);
+				 } catch (ExecutionException ex) {
+					 throw ex.getCause() instanceof Exception ? (Exception)ex.getCause() : ex;
 				 }
-				 //logger.error("event=cache_filler", e);
-				 logger.error("event=cache_filler_failed", e);
-				 trySettingCacheState(queueUrl, shard, QCacheState.Unavailable);
+			 }
+		 }
+
+		 /**
+		  * Clear the cache and start a fresh checkpoint, or return the existing checkpoint if a previous fill did not finish
+		  * @return partition checkpoints, empty for a fresh fill
+		  */
+		 private Map<String, String> startOrResumeFill(String checkpointKey) {
+			 long ts1 = System.currentTimeMillis();
+			 boolean brokenJedis = false;
+			 ShardedJedis jedis = getResource();
+			 try {
+				 jedis.expire(queueUrl + "-" + shard + "-F", CACHE_FILLER_TTL_SEC);
+				 Map<String, String> checkpoints = jedis.hgetAll(checkpointKey);
+				 if (checkpoints != null && checkpoints.size() > 0) {
+					 logger.info("event=cache_filler_resumed queue_url=" + queueUrl + " shard=" + shard + " checkpoints=" + checkpoints);
+					 return checkpoints;
+				 }
+				 logger.info("event=cache_filler_started queue_url=" + queueUrl + " shard=" + shard);
+				 //clear all existing in-memQueue and hidden set
+				 jedis.del(queueUrl + "-" + shard + "-Q");
+				 jedis.del(queueUrl + "-" + shard + "-H");
+				 jedis.del(queueUrl + "-" + shard + "-HS");
+				 jedis.del(queueUrl + "-" + shard + "-R");
+				 jedis.hset(checkpointKey, FILL_CHECKPOINT_STARTED, Long.toString(System.currentTimeMillis()));
+				 jedis.expire(checkpointKey, CMBProperties.getInstance().getRedisExpireTTLSec());
+				 return new HashMap<String, String>();
+			 } catch (JedisException e) {
+				 brokenJedis = true;
+				 throw e;
 			 } finally {
 				 returnResource(jedis, brokenJedis);
+				 long ts2 = System.currentTimeMillis();
+				 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts2 - ts1));
+			 }
+		 }
+	 }
+
+	 /**
+	  * Streams one partition of a queue shard into the cache. Each page read from the underlying persistence layer is
+	  * written in a single pipeline together with its checkpoint and a refresh of the filler flag. Pushing a page and
+	  * recording its checkpoint are not atomic, so a crash in between re-caches that page on resume, which at-least-once delivery already tolerates.
+	  * @return number of messages cached
+	  */
+	 private class PartitionFiller implements Callable<Integer> {
+		 final String queueUrl;
+		 final int shard;
+		 final int partition;
+		 final String checkpoint;
+		 public PartitionFiller(String queueUrl, int shard, int partition, String checkpoint) {
+			 this.queueUrl = queueUrl;
+			 this.shard = shard;
+			 this.partition = partition;
+			 this.checkpoint = checkpoint;
+		 }
+		 @Override
+		 public Integer call() throws Exception {
+			 CQSControllerServlet.valueAccumulator.initializeAllCounters();
+			 long ts1 = System.currentTimeMillis();
+			 String checkpointKey = queueUrl + "-" + shard + "-FC";
+			 String field = String.valueOf(partition);
+			 int pageSize = CMBProperties.getInstance().getRedisFillerPageSize();
+			 int ttl = CMBProperties.getInstance().getRedisExpireTTLSec();
+			 int totalCached = 0;
+			 String previousReceiptHandle = checkpoint;
+			 try {
+				 while (true) {
+					 List<CQSMessage> messages = persistenceStorage.peekQueuePartition(queueUrl, shard, partition, previousReceiptHandle, pageSize);
+					 if (messages.isEmpty()) {
+						 break;
+					 }
+					 String[] memIds = new String[messages.size()];
+					 for (int i = 0; i < messages.size(); i++) {
+						 memIds[i] = getMemQueueMessage(messages.get(i).getMessageId()); //TODO: currently initialDelay is always 0
+					 }
+					 previousReceiptHandle = messages.get(messages.size() - 1).getMessageId();
+					 boolean brokenJedis = false;
+					 long ts2 = System.currentTimeMillis();
+					 ShardedJedis jedis = getResource();
+					 try {
+						 ShardedJedisPipeline pipeline = jedis.pipelined();
+						 pipeline.rpush(queueUrl + "-" + shard + "-Q", memIds);
+						 pipeline.hset(checkpointKey, field, previousReceiptHandle);
+						 pipeline.expire(checkpointKey, ttl);
+						 pipeline.expire(queueUrl + "-" + shard + "-F", CACHE_FILLER_TTL_SEC);
+						 pipeline.sync();
+					 } catch (JedisException e) {
+						 brokenJedis = true;
+						 throw e;
+					 } finally {
+						 returnResource(jedis, brokenJedis);
+						 long ts3 = System.currentTimeMillis();
+						 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts3 - ts2));
+					 }
+					 totalCached += memIds.length;
+				 }
+				 long ts4 = System.currentTimeMillis();
+				 logger.debug("event=cache_filler_partition_finished queue_url=" + queueUrl + " shard=" + shard + " partition=" + partition + " resumed=" + (checkpoint != null) + " num_cached=" + totalCached + " total_ms=" + (ts4 - ts1) + " redis_ms=" + CQSControllerServlet.valueAccumulator.getCounter(AccumulatorName.RedisTime) + " cass_ms=" + CQSControllerServlet.valueAccumulator.getCounter(AccumulatorName.CassandraTime));
+				 return totalCached;
+			 } finally {
 				 CQSControllerServlet.valueAccumulator.deleteAllCounters();
 			 }
 		 }
 	 }
 
+	 private void deleteFillCheckpoint(String checkpointKey) {
+		 long ts1 = System.currentTimeMillis();
+		 boolean brokenJedis = false;
+		 ShardedJedis jedis = getResource();
+		 try {
+			 jedis.del(checkpointKey);
+		 } catch (JedisException e) {
+			 brokenJedis = true;
+			 throw e;
+		 } finally {
+			 returnResource(jedis, brokenJedis);
+			 long ts2 = System.currentTimeMillis();
+			 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts2 - ts1));
+		 }
+	 }
+
+	 private int getNumberOfPartitions(String queueUrl) {
+		 int numberPartitions = CMBProperties.getInstance().getCQSNumberOfQueuePartitions();
+		 try {
+			 CQSQueue queue = CQSCache.getCachedQueue(queueUrl);
+			 if (queue != null) {
+				 numberPartitions = queue.getNumberOfPartitions();
+			 }
+		 } catch (Exception ex) {
+			 logger.warn("event=queue_cache_failure queue_url=" + queueUrl, ex);
+		 }
+		 return numberPartitions;
+	 }
+
 	 /**
 	  * Class goes through all the hidden messages for a specific queue
 	  * and makes re-visible anything that was not deleted and has visibilityTO expired
@@ -638,35 +848,30 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 			 }
 			 boolean brokenJedis = false;
 			 ShardedJedis jedis = null;
-			 List<String> memIds = new LinkedList<String>();
 			 try {
 				 jedis = getResource();
 				 updateExpire(queueUrl, shard, jedis);
-				 long ts1 = System.currentTimeMillis();
-				 Set<String> keys = jedis.hkeys(queueUrl + "-" + shard + "-H");
-				 long ts2 = System.currentTimeMillis();
-				 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts2 - ts1));
-				 log.debug("event=revisibility_check queue_url=" + queueUrl + " shard=" + shard + " invisible_set_size=" + keys.size());
-				 for (String key : keys) {
-					 long ts3 = System.currentTimeMillis();
-					 String val = jedis.hget(queueUrl + "-" + shard + "-H", key);
-					 long ts4 = System.currentTimeMillis();
-					 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts4 - ts3));
-					 if (val == null) {
-						 continue;                    
+				 migrateLegacyHiddenHash(queueUrl, shard, jedis);
+				 String hiddenKey = queueUrl + "-" + shard + "-HS";
+				 Jedis j = jedis.getShard(hiddenKey);
+				 int numMadeRevisible = 0;
+				 List<String> memIds;
+				 do {
+					 //push due memIds before removing them from the hidden set, so a failure in between re-queues them
+					 //on the next pass instead of losing them. The hidden and visible keys may live on different shards.
+					 long ts1 = System.currentTimeMillis();
+					 long now = System.currentTimeMillis();
+					 memIds = new ArrayList<String>(j.zrangeByScore(hiddenKey, Double.NEGATIVE_INFINITY, now, 0, REVISIBLE_BATCH_SIZE));
+					 if (memIds.size() > 0) {
+						 jedis.rpush(queueUrl + "-" + shard + "-Q", memIds.toArray(new String[memIds.size()]));
+						 releaseRevisibleMemIds(j, hiddenKey, now, memIds);
 					 }
-					 long visibilityTo = Long.parseLong(val);
-					 if (visibilityTo < System.currentTimeMillis()) {
-						 memIds.add(key);
-					 }
-				 }
-				 //process memIds that should be re-visible
-				 for (String memId : memIds) {
-					 jedis.rpush(queueUrl + "-" + shard + "-Q", memId);
-					 jedis.hdel(queueUrl + "-" + shard + "-H", memId);
-				 }
+					 long ts2 = System.currentTimeMillis();
+					 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts2 - ts1));
+					 numMadeRevisible += memIds.size();
+				 } while (memIds.size() == REVISIBLE_BATCH_SIZE);
 				 long ts3 = System.currentTimeMillis();
-				 log.debug("event=revisibility_check queue_url=" + queueUrl + " shard=" + shard + " num_made_revisible=" + memIds.size() + " redisTime=" + CQSControllerServlet.valueAccumulator.getCounter(AccumulatorName.RedisTime) + " responseTimeMS=" + (ts3 - ts0) + " hidden_set_size=" + keys.size());
+				 log.debug("event=revisibility_check queue_url=" + queueUrl + " shard=" + shard + " num_made_revisible=" + numMadeRevisible + " redisTime=" + CQSControllerServlet.valueAccumulator.getCounter(AccumulatorName.RedisTime) + " responseTimeMS=" + (ts3 - ts0));
 			 } catch (Exception e) {
 				 if (e instanceof JedisException) {
 					 brokenJedis = true;
@@ -683,6 +888,64 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 		 }
 
 	 }
+
+	 /**
+	  * Remove memIds that have already been pushed to the visible list from the hidden set, skipping any whose
+	  * visibility deadline was pushed past now by a concurrent change visibility call.
+	  * Runs as a script on the shard owning the hidden set so each batch is a single round trip.
+	  * @return number of memIds removed
+	  */
+	 private static long releaseRevisibleMemIds(Jedis j, String hiddenKey, long now, List<String> memIds) {
+		 List<String> keys = Collections.singletonList(hiddenKey);
+		 List<String> args = new ArrayList<String>(memIds.size() + 1);
+		 args.add(String.valueOf(now));
+		 args.addAll(memIds);
+		 try {
+			 return (Long)j.evalsha(luaReleaseRevisibleSHA, keys, args);
+		 } catch (JedisDataException e) {
+			 if (e.getMessage() != null && e.getMessage().startsWith("NOSCRIPT")) {
+				 luaReleaseRevisibleSHA = j.scriptLoad(luaReleaseRevisible);
+				 return (Long)j.evalsha(luaReleaseRevisibleSHA, keys, args);
+			 } else {
+				 throw e;
+			 }
+		 }
+	 }
+
+	 /**
+	  * Hidden memIds used to live in a hash <Q>-H of memId to visibility deadline. Move any such entries into the
+	  * sorted set <Q>-HS so messages hidden before an upgrade still become re-visible.
+	  */
+	 private static void migrateLegacyHiddenHash(String queueUrl, int shard, ShardedJedis jedis) {
+		 String legacyKey = queueUrl + "-" + shard + "-H";
+		 if (!jedis.exists(legacyKey)) {
+			 return;
+		 }
+		 long ts1 = System.currentTimeMillis();
+		 Map<String, String> hidden = jedis.hgetAll(legacyKey);
+		 ShardedJedisPipeline pipeline = jedis.pipelined();
+		 for (Entry<String, String> entry : hidden.entrySet()) {
+			 pipeline.zadd(queueUrl + "-" + shard + "-HS", Double.parseDouble(entry.getValue()), entry.getKey());
+		 }
+		 pipeline.del(legacyKey);
+		 pipeline.sync();
+		 long ts2 = System.currentTimeMillis();
+		 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts2 - ts1));
+		 logger.info("event=migrated_legacy_hidden_hash queue_url=" + queueUrl + " shard=" + shard + " num_hidden=" + hidden.size());
+	 }
+
+	 /**
+	  * Migrate the legacy hidden hash the first time this instance touches the hidden set of a queue shard, so
+	  * deletes and visibility changes of messages hidden before an upgrade do not wait for the revisibility pass.
+	  */
+	 private static void migrateLegacyHiddenHashOnce(String queueUrl, int shard, ShardedJedis jedis) {
+		 String key = queueUrl + "-" + shard;
+		 if (!legacyHiddenHashMigrated.containsKey(key)) {
+			 migrateLegacyHiddenHash(queueUrl, shard, jedis);
+			 legacyHiddenHashMigrated.put(key, Boolean.TRUE);
+		 }
+	 }
+
 	 /**
 	  * Check if the queue is in the cache and in ok state. Else kick off initialization
 	  * and return false. 
@@ -702,7 +965,7 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 			 redisDown.set(false);
 			 if (state == null || state == QCacheState.Unavailable) {
 				 try {
-					 setCacheFillerProcessing(queueUrl, shard, 20 * 60); // this must be before setCacheState or else a race-condition                    
+					 setCacheFillerProcessing(queueUrl, shard, CACHE_FILLER_TTL_SEC); // this must be before setCacheState or else a race-condition                    
 					 setCacheState(queueUrl, shard, QCacheState.Filling, state, true);
 					 // we successfully set the state to filling, so we queue up filling job
 					 executor.submit(new CacheFiller(queueUrl, shard));
@@ -740,27 +1003,26 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 	 }
 
 	 /**
-	  * Add message to in-memory-queue. creationTS is now
+	  * Method tries to set cache state and swallows all exceptions that are thrown
 	  * @param queueUrl
-	  * @param message
+	  * @param state
 	  */
-	 private void addMessageToCache(String queueUrl, int shard, CQSMessage message, ShardedJedis jedis) {
-		 long ts1 = System.currentTimeMillis();
-		 Long newLen = jedis.rpush(queueUrl + "-" + shard + "-Q", getMemQueueMessage(message.getMessageId())); //TODO: currently initialDelay is always 0
-		 if (newLen.longValue() == 0) {
-			 throw new IllegalStateException("Could not add memId to queue");
-		 }
-		 long ts2 = System.currentTimeMillis();
-		 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts2 - ts1));
+	 private void trySettingCacheState(String queueUrl, int shard, QCacheState state) {
+		 trySettingCacheState(queueUrl, shard, state, true);
 	 }
 
 	 /**
 	  * Method tries to set cache state and swallows all exceptions that are thrown
 	  * @param queueUrl
 	  * @param state
+	  * @param discardFillCheckpoint if true and the cache is being marked unavailable, the next fill starts from scratch
+	  * instead of resuming. Only the cache filler itself keeps its checkpoint.
 	  */
-	 private void trySettingCacheState(String queueUrl, int shard, QCacheState state) {
+	 private void trySettingCacheState(String queueUrl, int shard, QCacheState state, boolean discardFillCheckpoint) {
 		 try {
+			 if (discardFillCheckpoint && state == QCacheState.Unavailable) {
+				 deleteFillCheckpoint(queueUrl + "-" + shard + "-FC");
+			 }
 			 setCacheState(queueUrl, shard, state, null, false);
 		 } catch (Exception e) {
 			 logger.error("event=try_setting_cache_state queue_url=" + queueUrl + " shard=" + shard, e);
@@ -780,7 +1042,7 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 		 if (ret == 0) {
 			 logger.debug("event=could_not_update_expire queue_url=" + queueUrl + " shard=" + shard);
 		 }
-		 ret = jedis.expire(queueUrl + "-" + shard + "-H", seconds);
+		 ret = jedis.expire(queueUrl + "-" + shard + "-HS", seconds);
 		 if (ret == 0) {
 			 logger.debug("event=could_not_update_expire_for_hidden_set queue_url=" + queueUrl + " shard=" + shard);
 		 }
@@ -848,54 +1110,64 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 		 persistenceStorage.sendMessageBatch(queue, shard, messages);
 		 Map<String, String> memIds = new HashMap<String, String>();
 		 boolean cacheAvailable = checkCacheConsistency(queue.getRelativeUrl(), shard, true);//set in cache even if its filling
-		 ShardedJedis jedis = null;
+		 List<String> visibleMemIds = new ArrayList<String>(messages.size());
+		 Map<String, Double> delayedMemIds = new HashMap<String, Double>();
+		 long now = System.currentTimeMillis();
+
+		 // add messages in the same order as messages list
+		 for (CQSMessage message : messages) {
+			 int delaySeconds = 0;
+			 if (queue.getDelaySeconds() > 0) {
+				 delaySeconds = queue.getDelaySeconds();
+			 }
+			 if (message.getAttributes().containsKey(CQSConstants.DELAY_SECONDS)) {
+				 delaySeconds = Integer.parseInt(message.getAttributes().get(CQSConstants.DELAY_SECONDS));
+			 }
+			 String clientId = message.getSuppliedMessageId();
+			 String messageId = message.getMessageId();
+			 String memId = getMemQueueMessage(messageId);
+			 if (delaySeconds > 0) {
+				 delayedMemIds.put(memId, (double)(now + (delaySeconds * 1000)));
+			 } else {
+				 visibleMemIds.add(memId);
+			 }
+			 logger.debug("event=send_message_batch cache_available=" + cacheAvailable + " msg_id= " + memId + " queue_url=" + queue.getAbsoluteUrl() + " shard=" + shard);
+			 memIds.put(clientId, memId);            
+		 }
 
 		 if (cacheAvailable) {
+
+			 // push all visible mem-ids with a single variadic RPUSH and all delayed mem-ids with a single ZADD, pipelined
+
+			 ShardedJedis jedis = null;
+			 boolean brokenJedis = false;
+			 long ts1 = System.currentTimeMillis();
 			 try {
 				 jedis = getResource();
-			 } catch (JedisConnectionException e) {
-				 cacheAvailable = false;
-				 trySettingCacheState(queue.getRelativeUrl(), shard, QCacheState.Unavailable);
-			 }
-		 }
-		 // add messages in the same order as messages list
-		 boolean brokenJedis = false;
-		 try {
-			 for (CQSMessage message : messages) {
-				 int delaySeconds = 0;
-				 if (queue.getDelaySeconds() > 0) {
-					 delaySeconds = queue.getDelaySeconds();
+				 ShardedJedisPipeline pipeline = jedis.pipelined();
+				 if (visibleMemIds.size() > 0) {
+					 pipeline.rpush(queue.getRelativeUrl() + "-" + shard + "-Q", visibleMemIds.toArray(new String[visibleMemIds.size()]));
 				 }
-				 if (message.getAttributes().containsKey(CQSConstants.DELAY_SECONDS)) {
-					 delaySeconds = Integer.parseInt(message.getAttributes().get(CQSConstants.DELAY_SECONDS));
+				 if (delayedMemIds.size() > 0) {
+					 pipeline.zadd(queue.getRelativeUrl() + "-" + shard + "-V", delayedMemIds); //insert or update already existing
 				 }
-				 String clientId = message.getSuppliedMessageId();
-				 String messageId = message.getMessageId();
-				 String memId = getMemQueueMessage(messageId);
-				 if (cacheAvailable) {      
-					 try {
-						 if (delaySeconds > 0) {
-							 jedis.zadd(queue.getRelativeUrl() + "-" + shard + "-V", System.currentTimeMillis() + (delaySeconds * 1000), memId); //insert or update already existing            	    
-						 } else {
-							 jedis.rpush(queue.getRelativeUrl() + "-" + shard + "-Q", memId);
-						 }
-					 } catch (JedisConnectionException e) {
-						 trySettingCacheState(queue.getRelativeUrl(), shard, QCacheState.Unavailable);
-					 }
-					 logger.debug("event=send_message_batch cache_available=true msg_id= " + memId + " queue_url=" + queue.getAbsoluteUrl() + " shard=" + shard);
-				 } else {
-					 logger.debug("event=send_message_batch cache_available=false msg_id= " + memId + " queue_url=" + queue.getAbsoluteUrl() + " shard=" + shard);
+				 pipeline.sync();
+			 } catch (JedisConnectionException e) {
+				 logger.error("event=send_message_batch error_code=redis_unavailable num_connections=" + numRedisConnections.get());
+				 brokenJedis = true;
+				 trySettingCacheState(queue.getRelativeUrl(), shard, QCacheState.Unavailable);
+			 } catch (JedisException e) {
+				 brokenJedis = true;
+				 throw e;
+			 } finally {
+				 if (jedis != null) {
+					 returnResource(jedis, brokenJedis);
 				 }
-				 memIds.put(clientId, memId);            
-			 }
-		 } catch (JedisException e) {
-			 brokenJedis = true;
-			 throw e;
-		 } finally {
-			 if (jedis != null) {
-				 returnResource(jedis, brokenJedis);
+				 long ts2 = System.currentTimeMillis();
+				 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts2 - ts1));
 			 }
 		 }
+
 		 return memIds;        
 	 }
 
@@ -907,15 +1179,16 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 
 		 String messageId = getMemQueueMessageMessageId(queueUrlHash, receiptHandle);
 		 int shard = Util.getShardFromReceiptHandle(receiptHandle);
-		 boolean cacheAvailable = checkCacheConsistency(queueUrl, shard, false);
+		 boolean cacheAvailable = checkCacheConsistency(queueUrl, shard, true); //served from the loaded prefix while filling
 
 		 if (cacheAvailable) {
 			 ShardedJedis jedis = null;
 			 boolean brokenJedis = false;
 			 try {
 				 jedis = getResource();
+				 migrateLegacyHiddenHashOnce(queueUrl, shard, jedis);
 				 long ts1 = System.currentTimeMillis();
-				 long numDeleted = jedis.hdel(queueUrl + "-" + shard + "-H", receiptHandle);
+				 long numDeleted = jedis.zrem(queueUrl + "-" + shard + "-HS", receiptHandle);
 				 if (numDeleted != 1) {
 					 logger.warn("event=delete_message error_code=could_not_delelete_hidden_set queue_url=" + queueUrl + " shard=" + shard + " mem_id=" + receiptHandle);
 				 }
@@ -941,6 +1214,83 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 		 persistenceStorage.deleteMessage(queueUrl, messageId);
 	 }
 
+	 @Override
+	 public void deleteMessageBatch(String queueUrl, List<String> receiptHandles) throws PersistenceException {
+
+		 String queueUrlHash = Util.getQueueUrlHashFromCache(queueUrl);
+		 //receiptHandles are memIds
+
+		 List<String> messageIds = new ArrayList<String>(receiptHandles.size());
+		 Map<Integer, Boolean> cacheAvailableByShard = new HashMap<Integer, Boolean>();
+		 List<String> cachedMemIds = new ArrayList<String>(receiptHandles.size());
+		 List<Integer> cachedShards = new ArrayList<Integer>(receiptHandles.size());
+
+		 for (String receiptHandle : receiptHandles) {
+			 messageIds.add(getMemQueueMessageMessageId(queueUrlHash, receiptHandle));
+			 int shard = Util.getShardFromReceiptHandle(receiptHandle);
+			 Boolean cacheAvailable = cacheAvailableByShard.get(shard);
+			 if (cacheAvailable == null) {
+				 cacheAvailable = checkCacheConsistency(queueUrl, shard, true); //served from the loaded prefix while filling
+				 cacheAvailableByShard.put(shard, cacheAvailable);
+			 }
+			 if (cacheAvailable) {
+				 cachedMemIds.add(receiptHandle);
+				 cachedShards.add(shard);
+			 }
+		 }
+
+		 if (cachedMemIds.size() > 0) {
+
+			 // clean up hidden set and attributes for all messages of all shards in a single pipeline
+
+			 ShardedJedis jedis = null;
+			 boolean brokenJedis = false;
+			 try {
+				 jedis = getResource();
+				 for (Entry<Integer, Boolean> entry : cacheAvailableByShard.entrySet()) {
+					 if (entry.getValue()) {
+						 migrateLegacyHiddenHashOnce(queueUrl, entry.getKey(), jedis);
+					 }
+				 }
+				 long ts1 = System.currentTimeMillis();
+				 ShardedJedisPipeline pipeline = jedis.pipelined();
+				 List<Response<Long>> hiddenResponses = new ArrayList<Response<Long>>(cachedMemIds.size());
+				 List<Response<Long>> attributeResponses = new ArrayList<Response<Long>>(cachedMemIds.size());
+				 for (int i = 0; i < cachedMemIds.size(); i++) {
+					 hiddenResponses.add(pipeline.zrem(queueUrl + "-" + cachedShards.get(i) + "-HS", cachedMemIds.get(i)));
+					 attributeResponses.add(pipeline.del(queueUrl + "-" + cachedShards.get(i) + "-A-" + cachedMemIds.get(i)));
+				 }
+				 pipeline.sync();
+				 long ts2 = System.currentTimeMillis();
+				 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts2 - ts1));
+				 for (int i = 0; i < cachedMemIds.size(); i++) {
+					 if (hiddenResponses.get(i).get() != 1) {
+						 logger.warn("event=delete_message_batch error_code=could_not_delelete_hidden_set queue_url=" + queueUrl + " shard=" + cachedShards.get(i) + " mem_id=" + cachedMemIds.get(i));
+					 }
+					 if (attributeResponses.get(i).get() == 0) {
+						 logger.warn("event=delete_message_batch error_code=could_not_delete_attributes queue_url=" + queueUrl + " shard=" + cachedShards.get(i) + " mem_id=" + cachedMemIds.get(i));
+					 }
+				 }
+			 } catch (JedisConnectionException e) {
+				 logger.error("event=delete_message_batch error_code=redis_unavailable num_connections=" + numRedisConnections.get());
+				 brokenJedis = true;
+				 for (Entry<Integer, Boolean> entry : cacheAvailableByShard.entrySet()) {
+					 if (entry.getValue()) {
+						 trySettingCacheState(queueUrl, entry.getKey(), QCacheState.Unavailable);
+					 }
+				 }
+			 } finally {
+				 if (jedis != null) {
+					 returnResource(jedis, brokenJedis);
+				 }
+			 }
+		 }
+
+		 //delete from underlying persistence layer
+
+		 persistenceStorage.deleteMessageBatch(queueUrl, messageIds);
+	 }
+
 	 /**
 	  * 
 	  * @param queue
@@ -972,7 +1322,7 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 			 }
 		 }
 
-		 boolean cacheAvailable = checkCacheConsistency(queue.getRelativeUrl(), shard, false);
+		 boolean cacheAvailable = checkCacheConsistency(queue.getRelativeUrl(), shard, true); //served from the loaded prefix while filling
 		 List<CQSMessage> ret = new LinkedList<CQSMessage>();
 
 		 if (cacheAvailable) {    
@@ -1001,31 +1351,20 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 
 				 while (!done) {
 
-					 boolean emptyQueue = false;
 					 HashMap<String, String> messageIdToMemId = new HashMap<String, String>();
 					 List<String> messageIds = new LinkedList<String>();
 
-					 for (int i = 0; i < maxNumberOfMessages && !emptyQueue; i++) {
+					 // pop (or peek at) the whole batch of mem-ids in a single round trip
 
-						 long ts1 = System.currentTimeMillis();
-						 String memId;
+					 long ts1 = System.currentTimeMillis();
+					 List<String> memIds = getMemIdsFromHead(jedis, queue.getRelativeUrl(), shard, maxNumberOfMessages, visibilityTO > 0);
+					 long ts2 = System.currentTimeMillis();
+					 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts2 - ts1));
 
-						 if (visibilityTO > 0) {
-							 memId = jedis.lpop(queue.getRelativeUrl() + "-" + shard + "-Q");
-						 } else {
-							 memId = jedis.lindex(queue.getRelativeUrl() + "-" + shard + "-Q", i);
-						 }
-
-						 long ts2 = System.currentTimeMillis();
-						 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts2 - ts1));
-
-						 if (memId == null || memId.equals("nil")) { //done
-							 emptyQueue = true;
-						 } else {
-							 String messageId = getMemQueueMessageMessageId(queue.getRelativeUrlHash(),memId); 
-							 messageIds.add(messageId);
-							 messageIdToMemId.put(messageId, memId);
-						 }
+					 for (String memId : memIds) {
+						 String messageId = getMemQueueMessageMessageId(queue.getRelativeUrlHash(),memId); 
+						 messageIds.add(messageId);
+						 messageIdToMemId.put(messageId, memId);
 					 }
 
 					 if (messageIds.size() == 0) {
@@ -1043,6 +1382,8 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 					 try {
 
 						 Map<String, CQSMessage> persisMap = persistenceStorage.getMessages(queue.getRelativeUrl(), messageIds);
+						 List<String> receivedMemIds = new ArrayList<String>();
+						 List<CQSMessage> receivedMessages = new ArrayList<CQSMessage>();
 
 						 for (Entry<String, CQSMessage> messageIdToMessage : persisMap.entrySet()) {
 
@@ -1076,41 +1417,30 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 								 continue;
 							 }
 
-							 //hide message if visibilityTO is greater than 0
-
-							 if (visibilityTO > 0) {
-								 long ts1 = System.currentTimeMillis();
-								 jedis.hset(queue.getRelativeUrl() + "-" + shard + "-H", memId, Long.toString(System.currentTimeMillis() + (visibilityTO * 1000)));
-								 long ts2 = System.currentTimeMillis();
-								 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts2 - ts1));
-							 }
-
-							 message.setMessageId(memId);
-							 message.setReceiptHandle(memId);
-
-							 //get message-attributes and populate in message
-							 Map<String, String> msgAttrs = (message.getAttributes() != null) ?  message.getAttributes() : new HashMap<String, String>();
-							 List<String> attrs = jedis.hmget(queue.getRelativeUrl() + "-" + shard + "-A-" + memId, CQSConstants.REDIS_APPROXIMATE_FIRST_RECEIVE_TIMESTAMP, CQSConstants.REDIS_APPROXIMATE_RECEIVE_COUNT);
-
-							 if (attrs.get(0) == null) {
-								 String firstRecvTS = Long.toString(System.currentTimeMillis());
-								 jedis.hset(queue.getRelativeUrl() + "-" + shard + "-A-" + memId, CQSConstants.REDIS_APPROXIMATE_FIRST_RECEIVE_TIMESTAMP, firstRecvTS);
-								 msgAttrs.put(CQSConstants.APPROXIMATE_FIRST_RECEIVE_TIMESTAMP, firstRecvTS);
-							 } else {                            
-								 msgAttrs.put(CQSConstants.APPROXIMATE_FIRST_RECEIVE_TIMESTAMP, attrs.get(0));
-							 }
-
-							 int recvCount = 1;
+							 receivedMemIds.add(memId);
+							 receivedMessages.add(message);
+						 }
 
-							 if (attrs.get(1) != null) {
-								 recvCount = Integer.parseInt(attrs.get(1)) + 1;
+						 //hide messages and update message-attributes for the whole batch in a single round trip
+
+						 if (receivedMemIds.size() > 0) {
+
+							 ts1 = System.currentTimeMillis();
+							 List<String[]> attrs = hideAndUpdateAttributes(jedis, queue.getRelativeUrl(), shard, receivedMemIds, visibilityTO);
+							 ts2 = System.currentTimeMillis();
+							 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts2 - ts1));
+
+							 for (int i = 0; i < receivedMemIds.size(); i++) {
+								 String memId = receivedMemIds.get(i);
+								 CQSMessage message = receivedMessages.get(i);
+								 message.setMessageId(memId);
+								 message.setReceiptHandle(memId);
+								 Map<String, String> msgAttrs = (message.getAttributes() != null) ?  message.getAttributes() : new HashMap<String, String>();
+								 msgAttrs.put(CQSConstants.APPROXIMATE_FIRST_RECEIVE_TIMESTAMP, attrs.get(i)[0]);
+								 msgAttrs.put(CQSConstants.APPROXIMATE_RECEIVE_COUNT, attrs.get(i)[1]);
+								 message.setAttributes(msgAttrs);
+								 ret.add(message);
 							 }
-
-							 jedis.hset(queue.getRelativeUrl() + "-" + shard + "-A-" + memId, CQSConstants.REDIS_APPROXIMATE_RECEIVE_COUNT, Integer.toString(recvCount));
-							 jedis.expire(queue.getRelativeUrl() + "-" + shard +  "-A-" + memId, 3600 * 24 * 14); //14 days expiration if not deleted
-							 msgAttrs.put(CQSConstants.APPROXIMATE_RECEIVE_COUNT, Integer.toString(recvCount));
-							 message.setAttributes(msgAttrs);
-							 ret.add(message);
 						 }
 
 						 if (ret.size() > 0) { //There may be cases where the underlying persistent message has two memIds while
@@ -1174,6 +1504,124 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 		 return ret;
 	 }
 
+	 /**
+	  * Get up to num mem-ids from the head of the in-memory queue using a single pipelined round trip, plus one to
+	  * skip mem-ids that are still hidden.
+	  * @param pop if true the mem-ids are removed from the queue, otherwise they are only peeked at
+	  * @return list of mem-ids in queue order, empty if queue is empty
+	  */
+	 private List<String> getMemIdsFromHead(ShardedJedis jedis, String queueUrl, int shard, int num, boolean pop) {
+
+		 String key = queueUrl + "-" + shard + "-Q";
+
+		 if (!pop) {
+			 return skipHiddenMemIds(jedis, queueUrl, shard, jedis.lrange(key, 0, num - 1));
+		 }
+
+		 while (true) {
+
+			 ShardedJedisPipeline pipeline = jedis.pipelined();
+			 List<Response<String>> responses = new ArrayList<Response<String>>(num);
+
+			 for (int i = 0; i < num; i++) {
+				 responses.add(pipeline.lpop(key));
+			 }
+
+			 pipeline.sync();
+
+			 List<String> memIds = new ArrayList<String>(num);
+
+			 for (Response<String> response : responses) {
+				 String memId = response.get();
+				 if (memId == null || memId.equals("nil")) { //done
+					 break;
+				 }
+				 memIds.add(memId);
+			 }
+
+			 if (memIds.size() == 0) {
+				 return memIds;
+			 }
+
+			 // popped mem-ids that were still hidden are dropped, the revisible processor pushes them again once due
+
+			 List<String> visibleMemIds = skipHiddenMemIds(jedis, queueUrl, shard, memIds);
+
+			 if (visibleMemIds.size() > 0) {
+				 return visibleMemIds;
+			 }
+		 }
+	 }
+
+	 /**
+	  * A mem-id can be in the in-memory queue and in the hidden set with a future deadline if its visibility was
+	  * changed while the revisible processor was pushing it, receiving it then would end its visibility timeout early.
+	  * @return the mem-ids that are not hidden or whose visibility deadline has passed, in the given order
+	  */
+	 private List<String> skipHiddenMemIds(ShardedJedis jedis, String queueUrl, int shard, List<String> memIds) {
+
+		 String hiddenKey = queueUrl + "-" + shard + "-HS";
+		 long now = System.currentTimeMillis();
+		 ShardedJedisPipeline pipeline = jedis.pipelined();
+		 List<Response<Double>> scores = new ArrayList<Response<Double>>(memIds.size());
+
+		 for (String memId : memIds) {
+			 scores.add(pipeline.zscore(hiddenKey, memId));
+		 }
+
+		 pipeline.sync();
+
+		 List<String> visibleMemIds = new ArrayList<String>(memIds.size());
+
+		 for (int i = 0; i < memIds.size(); i++) {
+			 Double visibleAt = scores.get(i).get();
+			 if (visibleAt != null && visibleAt > now) {
+				 logger.debug("event=skipping_hidden_mem_id queue_url=" + queueUrl + " shard=" + shard + " mem_id=" + memIds.get(i) + " visible_at=" + visibleAt.longValue());
+				 continue;
+			 }
+			 visibleMemIds.add(memIds.get(i));
+		 }
+
+		 return visibleMemIds;
+	 }
+
+	 /**
+	  * Hide the given mem-ids (if visibilityTO is greater than 0), increment their receive count and set their first
+	  * receive timestamp if not already set. All commands go out in one pipeline, i.e. one round trip per redis shard.
+	  * @return for each mem-id (in the same order) the first receive timestamp and the new receive count
+	  */
+	 private List<String[]> hideAndUpdateAttributes(ShardedJedis jedis, String queueUrl, int shard, List<String> memIds, int visibilityTO) {
+
+		 long now = System.currentTimeMillis();
+		 String firstRecvTS = Long.toString(now);
+		 double visibleAt = now + (visibilityTO * 1000);
+		 ShardedJedisPipeline pipeline = jedis.pipelined();
+		 List<Response<String>> firstRecvTSResponses = new ArrayList<Response<String>>(memIds.size());
+		 List<Response<Long>> recvCountResponses = new ArrayList<Response<Long>>(memIds.size());
+
+		 for (String memId : memIds) {
+			 String attrKey = queueUrl + "-" + shard + "-A-" + memId;
+			 if (visibilityTO > 0) {
+				 pipeline.zadd(queueUrl + "-" + shard + "-HS", visibleAt, memId);
+			 }
+			 pipeline.hsetnx(attrKey, CQSConstants.REDIS_APPROXIMATE_FIRST_RECEIVE_TIMESTAMP, firstRecvTS);
+			 firstRecvTSResponses.add(pipeline.hget(attrKey, CQSConstants.REDIS_APPROXIMATE_FIRST_RECEIVE_TIMESTAMP));
+			 recvCountResponses.add(pipeline.hincrBy(attrKey, CQSConstants.REDIS_APPROXIMATE_RECEIVE_COUNT, 1));
+			 pipeline.expire(attrKey, 3600 * 24 * 14); //14 days expiration if not deleted
+		 }
+
+		 pipeline.sync();
+
+		 List<String[]> attrs = new ArrayList<String[]>(memIds.size());
+
+		 for (int i = 0; i < memIds.size(); i++) {
+			 String ts = firstRecvTSResponses.get(i).get();
+			 attrs.add(new String[] {ts != null ? ts : firstRecvTS, Long.toString(recvCountResponses.get(i).get())});
+		 }
+
+		 return attrs;
+	 }
+
 	 /**
 	  * Only hidden messages can have their visibility changed. Method updates timestamp for the memId in hidden hashtable.
 	  * If the new visibilityTO is 0 we shortcut and make the message immediately visible.
@@ -1183,7 +1631,7 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 	 public boolean changeMessageVisibility(CQSQueue queue, String receiptHandle, int visibilityTO) throws PersistenceException, IOException, NoSuchAlgorithmException, InterruptedException {
 
 		 int shard = Util.getShardFromReceiptHandle(receiptHandle);
-		 boolean cacheAvailable = checkCacheConsistency(queue.getRelativeUrl(), shard, false);
+		 boolean cacheAvailable = checkCacheConsistency(queue.getRelativeUrl(), shard, true); //served from the loaded prefix while filling
 
 		 if (cacheAvailable) {
 
@@ -1193,13 +1641,16 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 			 try {
 
 				 jedis = getResource();
+				 migrateLegacyHiddenHashOnce(queue.getRelativeUrl(), shard, jedis);
 				 long ts1 = System.currentTimeMillis();
 				 if (visibilityTO == 0) { //make immediately visible
+					 //mark it due first, receives skip queued mem-ids that are still hidden
+					 jedis.zadd(queue.getRelativeUrl() + "-" + shard + "-HS", 0, receiptHandle);
 					 jedis.rpush(queue.getRelativeUrl() + "-" + shard + "-Q", receiptHandle);
-					 jedis.hdel(queue.getRelativeUrl() + "-" + shard + "-H", receiptHandle);
+					 jedis.zrem(queue.getRelativeUrl() + "-" + shard + "-HS", receiptHandle);
 					 return true;
 				 } else { //update new visibilityTO
-					 jedis.hset(queue.getRelativeUrl() + "-" + shard + "-H", receiptHandle, Long.toString(System.currentTimeMillis() + (visibilityTO * 1000)));                	
+					 jedis.zadd(queue.getRelativeUrl() + "-" + shard + "-HS", System.currentTimeMillis() + (visibilityTO * 1000), receiptHandle);
 				 }
 
 				 long ts2 = System.currentTimeMillis();
@@ -1324,6 +1775,8 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 				 logger.debug("num removed=" + num);
 				 num = jedis.del(queueUrl + "-" + shard + "-H");
 				 logger.debug("num removed=" + num);
+				 num = jedis.del(queueUrl + "-" + shard + "-HS");
+				 logger.debug("num removed=" + num);
 				 num = jedis.del(queueUrl + "-" + shard + "-R");
 				 logger.debug("num removed=" + num);
 				 num = jedis.del(queueUrl + "-" + shard + "-F");
@@ -1540,9 +1993,17 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 		 try {
 
 			 jedis = getResource();
+			 ShardedJedisPipeline pipeline = jedis.pipelined();
+			 List<Response<Long>> counts = new ArrayList<Response<Long>>(numberOfShards);
 
 			 for (int shard=0; shard<numberOfShards; shard++) {         	
-				 messageCount += jedis.llen(queueUrl + "-" + shard + "-Q");
+				 counts.add(pipeline.llen(queueUrl + "-" + shard + "-Q"));
+			 }
+
+			 pipeline.sync();
+
+			 for (Response<Long> count : counts) {
+				 messageCount += count.get();
 			 }
 
 		 } catch (JedisException e) {
@@ -1557,6 +2018,90 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 		 return messageCount;
 	 }
 
+	 /**
+	  * Count messages of all shards of all queues with a single pipeline. The cache state of every shard is read in
+	  * the same pipeline, only shards that are not OK go through checkCacheConsistency() afterwards. Unlike the
+	  * single queue counts this does not run re-visibility processing.
+	  */
+	 @Override
+	 public Map<String, CQSQueueDepth> getQueueDepths(List<String> queueUrls) throws Exception {
+
+		 Map<String, CQSQueueDepth> depths = new HashMap<String, CQSQueueDepth>();
+
+		 if (queueUrls.size() == 0) {
+			 return depths;
+		 }
+
+		 int[] numberOfShards = new int[queueUrls.size()];
+		 List<Response<String>> states = new ArrayList<Response<String>>();
+		 List<Response<Long>> counts = new ArrayList<Response<Long>>();
+		 List<Response<Long>> hiddenCounts = new ArrayList<Response<Long>>();
+		 List<Response<Long>> delayedCounts = new ArrayList<Response<Long>>();
+		 ShardedJedis jedis = null;
+		 boolean brokenJedis = false;
+
+		 try {
+
+			 jedis = getResource();
+			 long ts1 = System.currentTimeMillis();
+			 ShardedJedisPipeline pipeline = jedis.pipelined();
+
+			 for (int i = 0; i < queueUrls.size(); i++) {
+
+				 String queueUrl = queueUrls.get(i);
+				 CQSQueue queue = CQSCache.getCachedQueue(queueUrl);
+				 numberOfShards[i] = queue != null ? queue.getNumberOfShards() : 1;
+
+				 for (int shard=0; shard<numberOfShards[i]; shard++) {
+					 states.add(pipeline.hget(queueUrl + "-" + shard + "-" + CQSConstants.REDIS_STATE, CQSConstants.REDIS_STATE));
+					 counts.add(pipeline.llen(queueUrl + "-" + shard + "-Q"));
+					 hiddenCounts.add(pipeline.zcard(queueUrl + "-" + shard + "-HS"));
+					 delayedCounts.add(pipeline.zcard(queueUrl + "-" + shard + "-V"));
+				 }
+			 }
+
+			 pipeline.sync();
+			 long ts2 = System.currentTimeMillis();
+			 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts2 - ts1));
+
+		 } catch (JedisException e) {
+			 brokenJedis = true;
+			 throw e;
+		 } finally {
+			 if (jedis != null) {
+				 returnResource(jedis, brokenJedis);
+			 }
+		 }
+
+		 int index = 0;
+
+		 for (int i = 0; i < queueUrls.size(); i++) {
+
+			 String queueUrl = queueUrls.get(i);
+			 boolean cacheAvailable = true;
+			 long messageCount = 0;
+			 long hiddenMessageCount = 0;
+			 long delayedMessageCount = 0;
+
+			 for (int shard=0; shard<numberOfShards[i]; shard++, index++) {
+
+				 if (cacheAvailable && !QCacheState.OK.name().equals(states.get(index).get())) {
+					 cacheAvailable = checkCacheConsistency(queueUrl, shard, true);
+				 }
+
+				 messageCount += counts.get(index).get();
+				 hiddenMessageCount += hiddenCounts.get(index).get();
+				 delayedMessageCount += delayedCounts.get(index).get();
+			 }
+
+			 if (cacheAvailable) {
+				 depths.put(queueUrl, new CQSQueueDepth(messageCount, hiddenMessageCount, delayedMessageCount));
+			 }
+		 }
+
+		 return depths;
+	 }
+
 	 @Override
 	 public long getQueueMessageCount(String queueUrl) {
 
@@ -1613,7 +2158,7 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 
 				 //get the count number from
 				 if(suffix.equals("-H")){
-					 messageCount += jedis.hlen(queueUrl + "-" + shard + suffix);
+					 messageCount += jedis.zcard(queueUrl + "-" + shard + "-HS");
 				 } else if (suffix.equals("-V")){
 					 messageCount += jedis.zcard(queueUrl + "-" + shard + suffix);
 				 }
@@ -1687,6 +2232,11 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 		 return persistenceStorage.peekQueueRandom(queueUrl, shard, length);
 	 }
 
+	 @Override
+	 public List<CQSMessage> peekQueuePartition(String queueUrl, int shard, int partition, String previousReceiptHandle, int length) throws PersistenceException, IOException, NoSuchAlgorithmException, JSONException {
+		 return persistenceStorage.peekQueuePartition(queueUrl, shard, partition, previousReceiptHandle, length);
+	 }
+
 	 /**
 	  * Get all redis shard infos
 	  * @return list of hash maps, one for each shard
@@ -1810,6 +2360,7 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 
 	 public void shutdown () {
 		 executor.shutdown();
+		 fillerPartitionExecutor.shutdown();
 		 revisibilityExecutor.shutdown();
 	 }
 }
@@ -0,0 +1,294 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cqs.persistence;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.log4j.Logger;
+
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.ShardedJedis;
+import redis.clients.jedis.ShardedJedisPipeline;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import com.comcast.cmb.common.util.PersistenceException;
+import com.comcast.cqs.model.CQSMessage;
+import com.comcast.cqs.model.CQSQueue;
+import com.comcast.cqs.util.CQSMessageCodec;
+import com.comcast.cqs.util.Util;
+
+/**
+ * Optional cache of serialized message payloads next to the redis sorted sets of RedisSortedSetPersistence, so
+ * receives of small messages that are deleted shortly after being sent do not have to read them back from cassandra.
+ *
+ * Payloads are kept in one hash per queue shard
+ *  <Q>-<shard>-P = mem-id -> message encoded with CQSMessageCodec, body compressed as stored in cassandra
+ * Only messages whose encoded size is at most maxMessageSize are cached, and at most maxMessagesPerQueue per queue
+ * (split evenly across shards). Entries are written after the message is persisted in cassandra and removed when the
+ * message is deleted or swept by the retention sweeper, which also prunes entries whose mem-id has left the sorted set
+ * some other way so they do not hold on to room under the ceiling. The hash itself expires one retention period after
+ * it was created, writes do not extend it. Cassandra remains the system of record, misses always fall through to it.
+ *
+ */
+public class RedisPayloadCache {
+
+	private static final Logger logger = Logger.getLogger(RedisPayloadCache.class);
+
+	/*   Lua script adding payloads to the hash of a queue shard without exceeding its ceiling
+	 keys -
+	   KEYS[1] name of the payload hash
+	 arguments
+	   ARGV[1] maximum number of payloads in the hash
+	   ARGV[2] expiration of the hash in seconds, set when the hash is created
+	   ARGV[3..] mem-id, payload pairs
+	 returns
+	   number of payloads added
+
+	local n = redis.call("HLEN",KEYS[1])
+	local added = 0
+	for i=3,#ARGV,2 do
+	  if n + added >= tonumber(ARGV[1]) then break end
+	  added = added + redis.call("HSETNX",KEYS[1],ARGV[i],ARGV[i+1])
+	end
+	if added > 0 and redis.call("TTL",KEYS[1]) < 0 then redis.call("EXPIRE",KEYS[1],ARGV[2]) end
+	return added
+	 */
+
+	private static final String luaPut = "local n = redis.call(\"HLEN\",KEYS[1]) "
+			+ "local added = 0 "
+			+ "for i=3,#ARGV,2 do "
+			+ "if n + added >= tonumber(ARGV[1]) then break end "
+			+ "added = added + redis.call(\"HSETNX\",KEYS[1],ARGV[i],ARGV[i+1]) "
+			+ "end "
+			+ "if added > 0 and redis.call(\"TTL\",KEYS[1]) < 0 then redis.call(\"EXPIRE\",KEYS[1],ARGV[2]) end "
+			+ "return added";
+
+	private final int maxMessageSize;
+	private final int maxMessagesPerQueue;
+
+	/**
+	 * @param maxMessageSize maximum size of an encoded message in characters, 0 disables the cache
+	 * @param maxMessagesPerQueue maximum number of cached payloads per queue
+	 */
+	public RedisPayloadCache(int maxMessageSize, int maxMessagesPerQueue) {
+		this.maxMessageSize = maxMessageSize;
+		this.maxMessagesPerQueue = maxMessagesPerQueue;
+	}
+
+	public boolean isEnabled() {
+		return maxMessageSize > 0 && maxMessagesPerQueue > 0;
+	}
+
+	private static String getKey(String queueUrl, int shard) {
+		return queueUrl + "-" + shard + "-P";
+	}
+
+	/**
+	 * Cache payloads of messages just persisted in cassandra, messages that are too large or do not fit under the
+	 * ceiling of the queue are skipped
+	 * @param jedis
+	 * @param queue
+	 * @param shard
+	 * @param messagesByMemId persisted messages by mem-id
+	 * @return number of payloads cached
+	 */
+	public long put(ShardedJedis jedis, CQSQueue queue, int shard, Map<String, CQSMessage> messagesByMemId) {
+
+		if (!isEnabled()) {
+			return 0;
+		}
+
+		List<String> args = new ArrayList<String>(2 + messagesByMemId.size() * 2);
+		args.add(String.valueOf(Math.max(1, maxMessagesPerQueue / Math.max(1, queue.getNumberOfShards()))));
+		args.add(String.valueOf(queue.getMsgRetentionPeriod()));
+
+		for (Entry<String, CQSMessage> entry : messagesByMemId.entrySet()) {
+
+			CQSMessage message = entry.getValue();
+
+			if (message.getBody() != null && message.getBody().length() > maxMessageSize) {
+				continue;
+			}
+
+			String payload = CQSMessageCodec.encode(message);
+
+			if (payload.length() <= maxMessageSize) {
+				args.add(entry.getKey());
+				args.add(payload);
+			}
+		}
+
+		if (args.size() == 2) {
+			return 0;
+		}
+
+		String key = getKey(queue.getRelativeUrl(), shard);
+
+		try {
+			return (Long)RedisSortedSetPersistence.evalScript(jedis.getShard(key), luaPut, Collections.singletonList(key), args);
+		} catch (JedisDataException ex) {
+			// e.g. redis out of memory, the message is safely in cassandra so just don't cache it
+			logger.warn("event=cache_payload_failed queue_url=" + queue.getRelativeUrl() + " shard=" + shard + " error=" + ex.getMessage());
+			return 0;
+		}
+	}
+
+	/**
+	 * Look up cached payloads in one round trip
+	 * @param jedis
+	 * @param queue
+	 * @param shard
+	 * @param memIds
+	 * @return map of mem-id -> message for all cache hits, messages carry the cassandra message id
+	 */
+	public Map<String, CQSMessage> get(ShardedJedis jedis, CQSQueue queue, int shard, Collection<String> memIds) throws PersistenceException, IOException {
+
+		Map<String, CQSMessage> hits = new HashMap<String, CQSMessage>();
+
+		if (!isEnabled() || memIds.size() == 0) {
+			return hits;
+		}
+
+		String[] fields = memIds.toArray(new String[memIds.size()]);
+		List<String> payloads = jedis.hmget(getKey(queue.getRelativeUrl(), shard), fields);
+
+		for (int i = 0; i < fields.length && i < payloads.size(); i++) {
+
+			String payload = payloads.get(i);
+
+			if (payload == null) {
+				continue;
+			}
+
+			if (!CQSMessageCodec.isEncoded(payload)) {
+				logger.warn("event=corrupt_payload queue_url=" + queue.getRelativeUrl() + " shard=" + shard + " mem_id=" + fields[i]);
+				continue;
+			}
+
+			CQSMessage message = CQSMessageCodec.decode(payload);
+
+			if (queue.isCompressed()) {
+				message.setBody(Util.decompress(message.getBody()));
+			}
+
+			hits.put(fields[i], message);
+		}
+
+		return hits;
+	}
+
+	/**
+	 * Evict payloads of deleted or expired messages
+	 * @param jedis
+	 * @param queueUrl
+	 * @param shard
+	 * @param memIds
+	 */
+	public void remove(ShardedJedis jedis, String queueUrl, int shard, String... memIds) {
+		if (isEnabled() && memIds.length > 0) {
+			jedis.hdel(getKey(queueUrl, shard), memIds);
+		}
+	}
+
+	/**
+	 * Evict payloads of deleted or expired messages as part of a pipeline
+	 * @param pipeline
+	 * @param queueUrl
+	 * @param shard
+	 * @param memIds
+	 */
+	public void remove(ShardedJedisPipeline pipeline, String queueUrl, int shard, String... memIds) {
+		if (isEnabled() && memIds.length > 0) {
+			pipeline.hdel(getKey(queueUrl, shard), memIds);
+		}
+	}
+
+	/**
+	 * Remove payloads whose mem-id is no longer in the sorted set of the queue shard, scanning the hash in chunks.
+	 * The sorted set may live on another redis server than the hash, so membership is checked in a pipeline.
+	 * @param jedis
+	 * @param queueUrl
+	 * @param shard
+	 * @param chunkSize number of payloads checked per round trip
+	 * @return number of payloads removed
+	 */
+	public long pruneOrphans(ShardedJedis jedis, String queueUrl, int shard, int chunkSize) {
+
+		if (!isEnabled()) {
+			return 0;
+		}
+
+		String key = getKey(queueUrl, shard);
+		String queueKey = queueUrl + "-" + shard + "-Q";
+		ScanParams params = new ScanParams().count(chunkSize);
+		String cursor = ScanParams.SCAN_POINTER_START;
+		long removed = 0;
+
+		do {
+
+			ScanResult<Entry<String, String>> result = jedis.getShard(key).hscan(key, cursor, params);
+			cursor = result.getStringCursor();
+
+			if (result.getResult().size() == 0) {
+				continue;
+			}
+
+			ShardedJedisPipeline pipeline = jedis.pipelined();
+			List<String> memIds = new ArrayList<String>(result.getResult().size());
+			List<Response<Double>> scores = new ArrayList<Response<Double>>(result.getResult().size());
+
+			for (Entry<String, String> entry : result.getResult()) {
+				memIds.add(entry.getKey());
+				scores.add(pipeline.zscore(queueKey, entry.getKey()));
+			}
+
+			pipeline.sync();
+			List<String> orphans = new ArrayList<String>();
+
+			for (int i = 0; i < memIds.size(); i++) {
+				if (scores.get(i).get() == null) {
+					orphans.add(memIds.get(i));
+				}
+			}
+
+			if (orphans.size() > 0) {
+				removed += jedis.hdel(key, orphans.toArray(new String[orphans.size()]));
+			}
+
+		} while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+
+		return removed;
+	}
+
+	/**
+	 * Drop all cached payloads of a queue shard
+	 * @param jedis
+	 * @param queueUrl
+	 * @param shard
+	 */
+	public void clear(ShardedJedis jedis, String queueUrl, int shard) {
+		jedis.del(getKey(queueUrl, shard));
+	}
+}
@@ -0,0 +1,222 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cqs.persistence;
+
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ShardedJedis;
+import redis.clients.jedis.ShardedJedisPipeline;
+import redis.clients.jedis.exceptions.JedisException;
+
+import com.comcast.cqs.controller.CQSCache;
+import com.comcast.cqs.model.CQSQueue;
+
+/**
+ * Removes messages past their retention period from the redis sorted sets of RedisSortedSetPersistence, together
+ * with their attribute hashes and cached payloads, so sends no longer have to trim the sorted set themselves. Cached
+ * payloads of messages no longer in the sorted set are pruned as well.
+ *
+ * Every api server sweeps the queue shards it has written to or filled. A sweep of a shard is guarded by the lease
+ *  <Q>-<shard>-T = api server currently sweeping, expires after one sweep interval
+ * so each shard is swept at most once per interval across all api servers. Expired members are removed in chunks
+ * of at most chunkSize per redis round trip.
+ *
+ */
+public class RedisRetentionSweeper implements Runnable {
+
+	private static final Logger logger = Logger.getLogger(RedisRetentionSweeper.class);
+
+	private static final AtomicLong numRemoved = new AtomicLong(0);
+	private static final AtomicLong numSweeps = new AtomicLong(0);
+
+	private static final String owner = ManagementFactory.getRuntimeMXBean().getName();
+
+	private final ConcurrentHashMap<String, Integer> shards = new ConcurrentHashMap<String, Integer>();
+	private final int intervalSec;
+	private final int chunkSize;
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * @param intervalSec time between sweeps of a shard, 0 disables the sweeper
+	 * @param chunkSize maximum number of members removed per redis round trip
+	 */
+	public RedisRetentionSweeper(int intervalSec, int chunkSize) {
+		this.intervalSec = intervalSec;
+		this.chunkSize = Math.max(1, chunkSize);
+	}
+
+	public synchronized void start() {
+
+		if (intervalSec <= 0 || scheduler != null) {
+			return;
+		}
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "CQSRedisRetentionSweeper");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		scheduler.scheduleWithFixedDelay(this, intervalSec, intervalSec, TimeUnit.SECONDS);
+		logger.info("event=retention_sweeper_started interval_sec=" + intervalSec + " chunk_size=" + chunkSize);
+	}
+
+	public synchronized void shutdown() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * Include queue shard in future sweeps, cheap enough to call on every send
+	 * @param queueUrl relative queue url
+	 * @param shard
+	 */
+	public void register(String queueUrl, int shard) {
+
+		if (intervalSec > 0) {
+			shards.putIfAbsent(queueUrl + "-" + shard, shard);
+		}
+	}
+
+	/**
+	 * @return total number of expired messages removed by this api server
+	 */
+	public static long getNumRemoved() {
+		return numRemoved.get();
+	}
+
+	/**
+	 * @return total number of shard sweeps performed by this api server
+	 */
+	public static long getNumSweeps() {
+		return numSweeps.get();
+	}
+
+	@Override
+	public void run() {
+
+		for (String key : shards.keySet()) {
+
+			String queueUrl = key.substring(0, key.lastIndexOf('-'));
+			int shard = shards.get(key);
+
+			try {
+
+				CQSQueue queue = CQSCache.getCachedQueue(queueUrl);
+
+				if (queue == null) {
+					shards.remove(key);
+					continue;
+				}
+
+				if (sweep(queueUrl, shard, queue.getMsgRetentionPeriod()) < 0) {
+					shards.remove(key);
+				}
+
+			} catch (JedisException ex) {
+				logger.warn("event=retention_sweep_failed queue_url=" + queueUrl + " shard=" + shard + " error=" + ex.getMessage());
+				return;
+			} catch (Exception ex) {
+				logger.error("event=retention_sweep_failed queue_url=" + queueUrl + " shard=" + shard, ex);
+			}
+		}
+	}
+
+	/**
+	 * Remove all members of a shard older than the retention period, if no other api server holds the lease
+	 * @param queueUrl
+	 * @param shard
+	 * @param retentionSec
+	 * @return number of members removed, -1 if the sorted set no longer exists
+	 */
+	public long sweep(String queueUrl, int shard, int retentionSec) {
+
+		String key = queueUrl + "-" + shard + "-Q";
+		String cutoff = "(" + (System.currentTimeMillis() - retentionSec * 1000L);
+		boolean brokenJedis = false;
+		ShardedJedis jedis = RedisSortedSetPersistence.getResource();
+		long removed = 0;
+
+		try {
+
+			if (!"OK".equals(jedis.set(queueUrl + "-" + shard + "-T", owner, "NX", "EX", intervalSec))) {
+				return 0;
+			}
+
+			while (true) {
+
+				Set<String> memIds = jedis.zrangeByScore(key, "-inf", cutoff, 0, chunkSize);
+
+				if (memIds == null || memIds.size() == 0) {
+					break;
+				}
+
+				ShardedJedisPipeline pipeline = jedis.pipelined();
+				Response<Long> response = pipeline.zrem(key, memIds.toArray(new String[memIds.size()]));
+
+				for (String memId : memIds) {
+					pipeline.del(queueUrl + "-" + shard + "-A-" + memId);
+				}
+
+				RedisSortedSetPersistence.getPayloadCache().remove(pipeline, queueUrl, shard, memIds.toArray(new String[memIds.size()]));
+
+				pipeline.sync();
+				removed += response.get();
+
+				if (memIds.size() < chunkSize) {
+					break;
+				}
+			}
+
+			long pruned = RedisSortedSetPersistence.getPayloadCache().pruneOrphans(jedis, queueUrl, shard, chunkSize);
+
+			numSweeps.incrementAndGet();
+
+			if (pruned > 0) {
+				logger.info("event=pruned_orphaned_payloads queue_url=" + queueUrl + " shard=" + shard + " pruned=" + pruned);
+			}
+
+			if (removed > 0) {
+				numRemoved.addAndGet(removed);
+				logger.info("event=retention_sweep queue_url=" + queueUrl + " shard=" + shard + " removed=" + removed);
+			} else if (jedis.zcard(key) == 0) {
+				return -1;
+			}
+
+		} catch (JedisException ex) {
+			brokenJedis = true;
+			throw ex;
+		} finally {
+			RedisSortedSetPersistence.returnResource(jedis, brokenJedis);
+		}
+
+		return removed;
+	}
+}
@@ -22,13 +22,14 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -41,7 +42,9 @@ import org.json.JSONException;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPoolConfig;
 import redis.clients.jedis.JedisShardInfo;
+import redis.clients.jedis.Response;
 import redis.clients.jedis.ShardedJedis;
+import redis.clients.jedis.ShardedJedisPipeline;
 import redis.clients.jedis.ShardedJedisPool;
 import redis.clients.jedis.Transaction;
 import redis.clients.jedis.Tuple;
@@ -57,8 +60,10 @@ import com.comcast.cqs.controller.CQSCache;
 import com.comcast.cqs.controller.CQSControllerServlet;
 import com.comcast.cqs.controller.CQSMonitor;
 import com.comcast.cqs.controller.CQSMonitor.CacheType;
+import com.comcast.cqs.controller.CQSQueueDepthCache;
 import com.comcast.cqs.model.CQSMessage;
 import com.comcast.cqs.model.CQSQueue;
+import com.comcast.cqs.model.CQSQueueDepth;
 import com.comcast.cqs.util.CQSConstants;
 import com.comcast.cqs.util.Util;
 
@@ -69,10 +74,15 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 	private static RedisSortedSetPersistence instance;
 
 	public static ExecutorService executor;
+	
+	private static RedisRetentionSweeper retentionSweeper;
+	
+	private static RedisPayloadCache payloadCache;
 
 	public final TestInterface testInterface = new TestInterface();
 
-	/*    Lua script for fetching from sorted set and changing score to be higher
+	/*    Lua script for receiving messages: fetching from sorted set, changing score to be higher and updating
+	      the receive attributes, all in one round trip
      keys -
        KEYS[1] name of the sorted set
      arguments
@@ -82,23 +92,65 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
     messages that should not be visible yet
        ARGV[3] limit/max number to return
        ARGV[4] new score value (going to be epoch time +
-    invisibilityTimeout)
+    invisibilityTimeout), 0 to leave messages visible
+       ARGV[5] prefix of the attribute hashes (<Q>-A-), empty to skip attributes
+       ARGV[6] current time used as first receive timestamp
+       ARGV[7] expiration of the attribute hashes in seconds
+       ARGV[8] first receive timestamp field name
+       ARGV[9] receive count field name
+    returns
+       flat list of mem-id, first receive timestamp, receive count per message
+       (timestamp and count are false if attributes were skipped)
 
 	local messages = redis.call("ZRANGEBYSCORE",KEYS[1],ARGV[1],
 	ARGV[2],"LIMIT","0",ARGV[3])
+	local result = {}
 	for i=1,#messages do
-	  redis.call("ZADD",KEYS[1],ARGV[4],messages[i])
+	  if ARGV[4] ~= "0" then
+	    redis.call("ZADD",KEYS[1],ARGV[4],messages[i])
+	  end
+	  local first = false
+	  local count = false
+	  if ARGV[5] ~= "" then
+	    local attributes = ARGV[5] .. messages[i]
+	    redis.call("HSETNX",attributes,ARGV[8],ARGV[6])
+	    count = tostring(redis.call("HINCRBY",attributes,ARGV[9],1))
+	    redis.call("EXPIRE",attributes,ARGV[7])
+	    first = redis.call("HGET",attributes,ARGV[8])
+	  end
+	  result[#result+1] = messages[i]
+	  result[#result+1] = first
+	  result[#result+1] = count
 	end
-	return messages
+	return result
+	
+	The attribute hashes are only touched by the script if all keys live on a single redis server. With several
+	redis shards the script only picks and hides messages and the attributes are updated in one pipelined round
+	trip across shards.
 	 */
 
-	private static String luaChangeScoreToHigher = "local messages = redis.call(\"ZRANGEBYSCORE\",KEYS[1],ARGV[1],ARGV[2],\"LIMIT\",\"0\",ARGV[3]) for i=1, "
-			+ "#messages do "
-			+ "redis.call(\"ZADD\",KEYS[1],ARGV[4],messages[i]) "
+	private static final String luaReceive = "local messages = redis.call(\"ZRANGEBYSCORE\",KEYS[1],ARGV[1],ARGV[2],\"LIMIT\",\"0\",ARGV[3]) "
+			+ "local result = {} "
+			+ "for i=1,#messages do "
+			+ "if ARGV[4] ~= \"0\" then redis.call(\"ZADD\",KEYS[1],ARGV[4],messages[i]) end "
+			+ "local first = false "
+			+ "local count = false "
+			+ "if ARGV[5] ~= \"\" then "
+			+ "local attributes = ARGV[5] .. messages[i] "
+			+ "redis.call(\"HSETNX\",attributes,ARGV[8],ARGV[6]) "
+			+ "count = tostring(redis.call(\"HINCRBY\",attributes,ARGV[9],1)) "
+			+ "redis.call(\"EXPIRE\",attributes,ARGV[7]) "
+			+ "first = redis.call(\"HGET\",attributes,ARGV[8]) "
+			+ "end "
+			+ "result[#result+1] = messages[i] "
+			+ "result[#result+1] = first "
+			+ "result[#result+1] = count "
 			+ "end "
-			+ "return messages";
+			+ "return result";
 	
-	private static String luaChangeScoreToHigherSHA = "  ";
+	private static final ConcurrentHashMap<String, String> scriptSHAs = new ConcurrentHashMap<String, String>();
+	
+	private static final int ATTRIBUTES_EXPIRATION_SEC = 3600 * 24 * 14; //14 days expiration if not deleted
 	
 	/**
 	 * 
@@ -107,12 +159,17 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 	public static RedisSortedSetPersistence getInstance() {
 		return instance;
 	}
+	
+	static RedisPayloadCache getPayloadCache() {
+		return payloadCache;
+	}
 
 	private static JedisPoolConfig config = new JedisPoolConfig();
 	private static ShardedJedisPool pool;
 	private volatile static AtomicLong lastCheckMS = new AtomicLong(0);
 	private volatile static AtomicBoolean redisDown = new AtomicBoolean(false);
 	private static final long redisCheckFrequencyMS = 5000;
+	private static boolean singleRedisServer = false;
 	
 	static {
 		initializeInstance();
@@ -161,7 +218,11 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 		 }
 
 		 pool = new ShardedJedisPool(config, shardInfos);
+		 singleRedisServer = shardInfos.size() == 1;
 		 executor = Executors.newFixedThreadPool(CMBProperties.getInstance().getRedisFillerThreads());
+		 retentionSweeper = new RedisRetentionSweeper(CMBProperties.getInstance().getRedisRetentionSweepIntervalSec(), CMBProperties.getInstance().getRedisRetentionSweepChunkSize());
+		 retentionSweeper.start();
+		 payloadCache = new RedisPayloadCache(CMBProperties.getInstance().getRedisPayloadCacheMaxMessageSize(), CMBProperties.getInstance().getRedisPayloadCacheMaxMessagesPerQueue());
 		 logger.info("event=initialize_redis pools_size=" + shardInfos.size() + " max_total=" + config.getMaxTotal() + " server_list=" + serverList);
 	 }
 
@@ -217,6 +278,15 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 		 public boolean checkCacheConsistency(String queueUrl) {
 			 return RedisSortedSetPersistence.this.checkCacheConsistency(queueUrl, 0,false);
 		 }
+
+		 public List<String> evalReceive(String key, List<String> args) {
+			 ShardedJedis jedis = getResource();
+			 try {
+				 return RedisSortedSetPersistence.evalReceive(jedis.getShard(key), Collections.singletonList(key), args);
+			 } finally {
+				 returnResource(jedis);
+			 }
+		 }
 	 }
 	 // each queue's state is represented by the HashTable with key <Q>-S and the states are defined in the enum QCacheState
 
@@ -430,6 +500,7 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 	  *  <Q>-S = OK
 	  *  <Q>-Q = The in-memory sorted set ("queue") of message ids
 	  *  <Q>-F = Existence implies currently running CacheFiller
+	  *  <Q>-P = Cached payloads, cleared together with <Q>-Q
 	  *  <Q>-A-<messageId> = The attributes for a message in a queue. Note, this requires that the messageId remain the same
 	  *    throughout the life-time of a message.
 	  */
@@ -450,6 +521,7 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 			 try {
 				 logger.info("event=cache_filler_started queue_url=" + queueUrl + " shard=" + shard);
 				 jedis.del(queueUrl + "-" + shard + "-Q");
+				 payloadCache.clear(jedis, queueUrl, shard);
 				 String previousReceiptHandle = null;
 				 List<CQSMessage> messages = persistenceStorage.peekQueue(queueUrl, shard, null, null, 1000);
 				 int totalCached = 0;
@@ -463,6 +535,7 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 				 }
 				 setCacheState(queueUrl, shard, QCacheState.OK, null, false);
 				 setCacheFillerProcessing(queueUrl, shard, 0);
+				 retentionSweeper.register(queueUrl, shard);
 				 long ts3 = System.currentTimeMillis();
 				 //logger.debug("event=filled_cache  queue_url=" + queueUrl + " shard=" + shard +" num_cached=" + totalCached + " res_ms=" + (ts3 - ts1) + " redis_ms=" + CQSControllerServlet.valueAccumulator.getCounter(AccumulatorName.RedisTime));
 				 logger.info("event=cache_filler_finished  queue_url=" + queueUrl + " shard=" + shard +" num_cached=" + totalCached + " total_ms=" + (ts3 - ts1) + " redis_ms=" + CQSControllerServlet.valueAccumulator.getCounter(AccumulatorName.RedisTime) + " cass_ms=" + CQSControllerServlet.valueAccumulator.getCounter(AccumulatorName.CassandraTime));
@@ -691,20 +764,12 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 		 return memIdsRet;
 	 }
 
-	 /**
-	  * Possible type for message count
-	  */
-	 private enum MessageCountType {
-		 ALL, //get all message count 
-		 INVISIBLE; //get only invisible message count 
-	 }
-
 	 @Override
 	 public long getQueueMessageCount(String queueUrl) {
 		 long messageCount = 0;
 
 		 try {
-			 messageCount = getQueueMessageCount(queueUrl, MessageCountType.ALL);
+			 messageCount = getQueueDepth(queueUrl).getNumMessages();
 		 } catch (Exception ex) {
 			 logger.error("event=failed_to_get_number_of_messages queue_url=" + queueUrl);
 		 }
@@ -732,7 +797,7 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 		 long messageCount = 0;
 
 		 try {
-			 messageCount = getQueueMessageCount(queueUrl, MessageCountType.INVISIBLE);
+			 messageCount = getQueueDepth(queueUrl).getNumMessagesNotVisible();
 		 } catch (Exception ex) {
 			 logger.error("event=failed_to_get_number_of_not_visible_messages queue_url=" + queueUrl);
 		 }
@@ -741,48 +806,75 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 	 }
 
 	 /**
-	  * This method get the count from redis based on the queueUrl and type
 	  * @param queueUrl
-	  * @param processFlag if true, run visibility or delay clean processing.
-	  * @return number of mem-ids in Redis Queue
-	  * @throws Exception 
+	  * @return depth of a single queue
+	  * @throws IllegalStateException if the cache of the queue is not available
 	  */
-	 private long getQueueMessageCount(String queueUrl, MessageCountType type) throws Exception  {
+	 private CQSQueueDepth getQueueDepth(String queueUrl) throws Exception {
 
-		 long messageCount = 0;
-		 CQSQueue queue = CQSCache.getCachedQueue(queueUrl);
-		 int numberOfShards = 1;
+		 CQSQueueDepth depth = getQueueDepths(Collections.singletonList(queueUrl)).get(queueUrl);
 
-		 int retention;
-		 if (queue != null) {
-			 numberOfShards = queue.getNumberOfShards();
-			 retention = queue.getMsgRetentionPeriod();
-		 } else {
-			 retention = CMBProperties.getInstance().getCQSMessageRetentionPeriod();
+		 if (depth == null) {
+			 throw new IllegalStateException("Redis cache not available");
+		 }
+
+		 return depth;
+	 }
+
+	 /**
+	  * Count messages of all shards of all queues with a single pipeline. The cache state of every shard is read in
+	  * the same pipeline, only shards that are not OK go through checkCacheConsistency() afterwards.
+	  * Delayed messages are part of the not visible count, they are not counted separately.
+	  */
+	 @Override
+	 public Map<String, CQSQueueDepth> getQueueDepths(List<String> queueUrls) throws Exception {
+
+		 Map<String, CQSQueueDepth> depths = new HashMap<String, CQSQueueDepth>();
+
+		 if (queueUrls.size() == 0) {
+			 return depths;
 		 }
 
+		 int[] numberOfShards = new int[queueUrls.size()];
+		 List<Response<String>> states = new ArrayList<Response<String>>();
+		 List<Response<Long>> counts = new ArrayList<Response<Long>>();
+		 List<Response<Long>> notVisibleCounts = new ArrayList<Response<Long>>();
+		 long now = System.currentTimeMillis();
 		 ShardedJedis jedis = null;
 		 boolean brokenJedis = false;
+
 		 try {
 
 			 jedis = getResource();
+			 long ts1 = System.currentTimeMillis();
+			 ShardedJedisPipeline pipeline = jedis.pipelined();
 
-			 for (int shard=0; shard<numberOfShards; shard++) {
+			 for (int i = 0; i < queueUrls.size(); i++) {
 
-				 boolean cacheAvailable = checkCacheConsistency(queueUrl, shard, true);
+				 String queueUrl = queueUrls.get(i);
+				 CQSQueue queue = CQSCache.getCachedQueue(queueUrl);
+				 int retention;
 
-				 if (!cacheAvailable) {
-					 throw new IllegalStateException("Redis cache not available");
+				 if (queue != null) {
+					 numberOfShards[i] = queue.getNumberOfShards();
+					 retention = queue.getMsgRetentionPeriod();
+				 } else {
+					 numberOfShards[i] = 1;
+					 retention = CMBProperties.getInstance().getCQSMessageRetentionPeriod();
 				 }
 
-				 //get the count number
-				 if(type == MessageCountType.ALL){
-					 messageCount += jedis.zcount(queueUrl + "-" + shard + "-Q", String.valueOf(System.currentTimeMillis() - retention * 1000L), "+inf");
-				 } else if (type == MessageCountType.INVISIBLE) {
-					 messageCount += jedis.zcount(queueUrl + "-" + shard + "-Q", String.valueOf(System.currentTimeMillis()+1), "+inf");
+				 for (int shard=0; shard<numberOfShards[i]; shard++) {
+					 String key = queueUrl + "-" + shard + "-Q";
+					 states.add(pipeline.hget(queueUrl + "-" + shard + "-" + CQSConstants.REDIS_STATE, CQSConstants.REDIS_STATE));
+					 counts.add(pipeline.zcount(key, String.valueOf(now - retention * 1000L), "+inf"));
+					 notVisibleCounts.add(pipeline.zcount(key, String.valueOf(now + 1), "+inf"));
 				 }
 			 }
 
+			 pipeline.sync();
+			 long ts2 = System.currentTimeMillis();
+			 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts2 - ts1));
+
 		 } catch (JedisException e) {
 			 brokenJedis = true;
 			 throw e;
@@ -790,9 +882,33 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 			 if (jedis != null) {
 				 returnResource(jedis, brokenJedis);
 			 }
-		 }  
+		 }
 
-		 return messageCount;
+		 int index = 0;
+
+		 for (int i = 0; i < queueUrls.size(); i++) {
+
+			 String queueUrl = queueUrls.get(i);
+			 boolean cacheAvailable = true;
+			 long messageCount = 0;
+			 long notVisibleMessageCount = 0;
+
+			 for (int shard=0; shard<numberOfShards[i]; shard++, index++) {
+
+				 if (cacheAvailable && !QCacheState.OK.name().equals(states.get(index).get())) {
+					 cacheAvailable = checkCacheConsistency(queueUrl, shard, true);
+				 }
+
+				 messageCount += counts.get(index).get();
+				 notVisibleMessageCount += notVisibleCounts.get(index).get();
+			 }
+
+			 if (cacheAvailable) {
+				 depths.put(queueUrl, new CQSQueueDepth(messageCount, notVisibleMessageCount, 0));
+			 }
+		 }
+
+		 return depths;
 	 }
 
 	 /**
@@ -821,9 +937,18 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 		 try {
 
 			 jedis = getResource();
+			 ShardedJedisPipeline pipeline = jedis.pipelined();
+			 List<Response<Long>> counts = new ArrayList<Response<Long>>(numberOfShards);
+			 String min = String.valueOf(System.currentTimeMillis() - retention * 1000L);
 
 			 for (int shard=0; shard<numberOfShards; shard++) {         	
-				 messageCount += jedis.zcount(queueUrl + "-" + shard + "-Q", String.valueOf(System.currentTimeMillis() - retention * 1000L), "+inf");
+				 counts.add(pipeline.zcount(queueUrl + "-" + shard + "-Q", min, "+inf"));
+			 }
+
+			 pipeline.sync();
+
+			 for (Response<Long> count : counts) {
+				 messageCount += count.get();
 			 }
 
 		 } catch (JedisException e) {
@@ -866,9 +991,12 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 				 }
 				 jedis = getResource();
 				 jedis.zadd(queue.getRelativeUrl() + "-" + shard + "-Q", System.currentTimeMillis() + (delaySeconds * 1000), memId); //insert or update already existing            	    
-				 //expire old message
-				 jedis.zremrangeByScore(queue.getRelativeUrl() + "-" + shard + "-Q","-inf",String.valueOf(System.currentTimeMillis() -
-						 (queue.getMsgRetentionPeriod() * 1000)));
+				 //old messages are expired by the retention sweeper
+				 retentionSweeper.register(queue.getRelativeUrl(), shard);
+				 payloadCache.put(jedis, queue, shard, Collections.singletonMap(memId, message));
+				 if (CQSQueueDepthCache.getInstance().isIncremental()) {
+					 CQSQueueDepthCache.getInstance().adjust(queue.getRelativeUrl(), 1, delaySeconds > 0 ? 1 : 0);
+				 }
 				 logger.debug("event=send_message cache_available=true msg_id= " + memId + " queue_url=" + queue.getAbsoluteUrl() + " shard=" + shard);
 			 } else {
 				 logger.debug("event=send_message cache_available=false msg_id= " + memId + " queue_url=" + queue.getAbsoluteUrl() + " shard=" + shard);
@@ -893,56 +1021,64 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 		 persistenceStorage.sendMessageBatch(queue, shard, messages);
 		 Map<String, String> memIds = new HashMap<String, String>();
 		 boolean cacheAvailable = checkCacheConsistency(queue.getRelativeUrl(), shard, true);//set in cache even if its filling
-		 ShardedJedis jedis = null;
+		 Map<String, Double> scoredMemIds = new HashMap<String, Double>();
+		 Map<String, CQSMessage> messagesByMemId = new HashMap<String, CQSMessage>();
+		 int numDelayed = 0;
+		 long now = System.currentTimeMillis();
+
+		 for (CQSMessage message : messages) {
+			 int delaySeconds = 0;
+			 if (queue.getDelaySeconds() > 0) {
+				 delaySeconds = queue.getDelaySeconds();
+			 }
+			 if (message.getAttributes().containsKey(CQSConstants.DELAY_SECONDS)) {
+				 delaySeconds = Integer.parseInt(message.getAttributes().get(CQSConstants.DELAY_SECONDS));
+			 }
+			 String clientId = message.getSuppliedMessageId();
+			 String messageId = message.getMessageId();
+			 String memId = getMemQueueMessage(messageId);
+			 scoredMemIds.put(memId, (double)(now + (delaySeconds * 1000)));
+			 messagesByMemId.put(memId, message);
+			 if (delaySeconds > 0) {
+				 numDelayed++;
+			 }
+			 logger.debug("event=send_message_batch cache_available=" + cacheAvailable + " msg_id= " + memId + " queue_url=" + queue.getAbsoluteUrl() + " shard=" + shard);
+			 memIds.put(clientId, memId);            
+		 }
 
 		 if (cacheAvailable) {
+
+			 // add all mem-ids with a single multi-member ZADD, old messages are expired by the retention sweeper
+
+			 ShardedJedis jedis = null;
+			 boolean brokenJedis = false;
+			 long ts1 = System.currentTimeMillis();
 			 try {
 				 jedis = getResource();
+				 ShardedJedisPipeline pipeline = jedis.pipelined();
+				 pipeline.zadd(queue.getRelativeUrl() + "-" + shard + "-Q", scoredMemIds); //insert or update already existing
+				 pipeline.sync();
+				 retentionSweeper.register(queue.getRelativeUrl(), shard);
+				 payloadCache.put(jedis, queue, shard, messagesByMemId);
+				 if (CQSQueueDepthCache.getInstance().isIncremental()) {
+					 CQSQueueDepthCache.getInstance().adjust(queue.getRelativeUrl(), scoredMemIds.size(), numDelayed);
+				 }
 			 } catch (JedisConnectionException e) {
-				 cacheAvailable = false;
+				 logger.warn("event=send_message_batch error_code=redis_unavailable num_connections=" + numRedisConnections.get());
+				 brokenJedis = true;
 				 trySettingCacheState(queue.getRelativeUrl(), shard, QCacheState.Unavailable);
-			 }
-		 }
-		 // add messages in the same order as messages list
-		 boolean brokenJedis = false;
-		 long ts1 = System.currentTimeMillis();
-		 try {
-			 for (CQSMessage message : messages) {
-				 int delaySeconds = 0;
-				 if (queue.getDelaySeconds() > 0) {
-					 delaySeconds = queue.getDelaySeconds();
-				 }
-				 if (message.getAttributes().containsKey(CQSConstants.DELAY_SECONDS)) {
-					 delaySeconds = Integer.parseInt(message.getAttributes().get(CQSConstants.DELAY_SECONDS));
-				 }
-				 String clientId = message.getSuppliedMessageId();
-				 String messageId = message.getMessageId();
-				 String memId = getMemQueueMessage(messageId);
-				 if (cacheAvailable) {      
-					 try {
-						 jedis.zadd(queue.getRelativeUrl() + "-" + shard + "-Q", System.currentTimeMillis() + (delaySeconds * 1000), memId); //insert or update already existing
-						 //expire old message
-						 jedis.zremrangeByScore(queue.getRelativeUrl() + "-" + shard + "-Q","-inf",String.valueOf(System.currentTimeMillis() -
-								 (queue.getMsgRetentionPeriod() * 1000)));
-					 } catch (JedisConnectionException e) {
-						 trySettingCacheState(queue.getRelativeUrl(), shard, QCacheState.Unavailable);
-					 }
-					 logger.debug("event=send_message_batch cache_available=true msg_id= " + memId + " queue_url=" + queue.getAbsoluteUrl() + " shard=" + shard);
-				 } else {
-					 logger.debug("event=send_message_batch cache_available=false msg_id= " + memId + " queue_url=" + queue.getAbsoluteUrl() + " shard=" + shard);
+			 } catch (JedisException e) {
+				 brokenJedis = true;
+				 throw e;
+			 } finally {
+				 if (jedis != null) {
+					 returnResource(jedis, brokenJedis);
 				 }
-				 memIds.put(clientId, memId);            
-			 }
-		 } catch (JedisException e) {
-			 brokenJedis = true;
-			 throw e;
-		 } finally {
-			 if (jedis != null) {
-				 returnResource(jedis, brokenJedis);
+				 long ts2 = System.currentTimeMillis();
+				 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts2 - ts1));
 			 }
-			 long ts2 = System.currentTimeMillis();
-			 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts2 - ts1));
 		 }
+
 		 return memIds;        
 	 }
 
@@ -966,10 +1102,13 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 				 long numDeleted = jedis.zrem(queueUrl + "-" + shard + "-Q",receiptHandle);
 				 if (numDeleted != 1) {
 					 logger.warn("event=delete_message error_code=could_not_delelete_hidden_set queue_url=" + queueUrl + " shard=" + shard + " mem_id=" + receiptHandle);
+				 } else if (CQSQueueDepthCache.getInstance().isIncremental()) {
+					 CQSQueueDepthCache.getInstance().adjust(queueUrl, -1, 0);
 				 }
 				 if (jedis.del(queueUrl + "-" + shard + "-A-" + receiptHandle) == 0) {
 					 logger.warn("event=delete_message error_code=could_not_delete_attributes queue_url=" + queueUrl + " shard=" + shard + " mem_id=" + receiptHandle);
 				 }
+				 payloadCache.remove(jedis, queueUrl, shard, receiptHandle);
 				 long ts2 = System.currentTimeMillis();
 				 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts2 - ts1));
 			 } catch (JedisConnectionException e) {
@@ -982,6 +1121,8 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 					 returnResource(jedis, brokenJedis);
 				 }
 			 }
+		 } else {
+			 evictPayloads(queueUrl, shard, receiptHandle);
 		 }
 
 		 //delete from underlying persistence layer
@@ -989,6 +1130,226 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 		 persistenceStorage.deleteMessage(queueUrl, messageId);
 	 }
 
+	 @Override
+	 public void deleteMessageBatch(String queueUrl, List<String> receiptHandles) throws PersistenceException {
+
+		 String queueUrlHash = Util.getQueueUrlHashFromCache(queueUrl);
+		 //receiptHandles are memIds
+
+		 List<String> messageIds = new ArrayList<String>(receiptHandles.size());
+		 Map<Integer, Boolean> cacheAvailableByShard = new HashMap<Integer, Boolean>();
+		 List<String> cachedMemIds = new ArrayList<String>(receiptHandles.size());
+		 List<Integer> cachedShards = new ArrayList<Integer>(receiptHandles.size());
+		 Map<Integer, List<String>> uncachedMemIdsByShard = new HashMap<Integer, List<String>>();
+
+		 for (String receiptHandle : receiptHandles) {
+			 messageIds.add(getMemQueueMessageMessageId(queueUrlHash, receiptHandle));
+			 int shard = Util.getShardFromReceiptHandle(receiptHandle);
+			 Boolean cacheAvailable = cacheAvailableByShard.get(shard);
+			 if (cacheAvailable == null) {
+				 cacheAvailable = checkCacheConsistency(queueUrl, shard, false);
+				 cacheAvailableByShard.put(shard, cacheAvailable);
+			 }
+			 if (cacheAvailable) {
+				 cachedMemIds.add(receiptHandle);
+				 cachedShards.add(shard);
+			 } else {
+				 if (!uncachedMemIdsByShard.containsKey(shard)) {
+					 uncachedMemIdsByShard.put(shard, new ArrayList<String>());
+				 }
+				 uncachedMemIdsByShard.get(shard).add(receiptHandle);
+			 }
+		 }
+
+		 for (Entry<Integer, List<String>> entry : uncachedMemIdsByShard.entrySet()) {
+			 evictPayloads(queueUrl, entry.getKey(), entry.getValue().toArray(new String[entry.getValue().size()]));
+		 }
+
+		 if (cachedMemIds.size() > 0) {
+
+			 // remove mem-ids and attributes for all messages of all shards in a single pipeline
+
+			 ShardedJedis jedis = null;
+			 boolean brokenJedis = false;
+			 try {
+				 jedis = getResource();
+				 long ts1 = System.currentTimeMillis();
+				 ShardedJedisPipeline pipeline = jedis.pipelined();
+				 List<Response<Long>> queueResponses = new ArrayList<Response<Long>>(cachedMemIds.size());
+				 List<Response<Long>> attributeResponses = new ArrayList<Response<Long>>(cachedMemIds.size());
+				 for (int i = 0; i < cachedMemIds.size(); i++) {
+					 queueResponses.add(pipeline.zrem(queueUrl + "-" + cachedShards.get(i) + "-Q", cachedMemIds.get(i)));
+					 attributeResponses.add(pipeline.del(queueUrl + "-" + cachedShards.get(i) + "-A-" + cachedMemIds.get(i)));
+					 payloadCache.remove(pipeline, queueUrl, cachedShards.get(i), cachedMemIds.get(i));
+				 }
+				 pipeline.sync();
+				 long ts2 = System.currentTimeMillis();
+				 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts2 - ts1));
+				 int numDeleted = 0;
+				 for (int i = 0; i < cachedMemIds.size(); i++) {
+					 if (queueResponses.get(i).get() != 1) {
+						 logger.warn("event=delete_message_batch error_code=could_not_delelete_hidden_set queue_url=" + queueUrl + " shard=" + cachedShards.get(i) + " mem_id=" + cachedMemIds.get(i));
+					 } else {
+						 numDeleted++;
+					 }
+					 if (attributeResponses.get(i).get() == 0) {
+						 logger.warn("event=delete_message_batch error_code=could_not_delete_attributes queue_url=" + queueUrl + " shard=" + cachedShards.get(i) + " mem_id=" + cachedMemIds.get(i));
+					 }
+				 }
+				 if (CQSQueueDepthCache.getInstance().isIncremental()) {
+					 CQSQueueDepthCache.getInstance().adjust(queueUrl, -numDeleted, 0);
+				 }
+			 } catch (JedisConnectionException e) {
+				 logger.warn("event=delete_message_batch error_code=redis_unavailable num_connections=" + numRedisConnections.get());
+				 brokenJedis = true;
+				 for (Entry<Integer, Boolean> entry : cacheAvailableByShard.entrySet()) {
+					 if (entry.getValue()) {
+						 trySettingCacheState(queueUrl, entry.getKey(), QCacheState.Unavailable);
+					 }
+				 }
+			 } finally {
+				 if (jedis != null) {
+					 returnResource(jedis, brokenJedis);
+				 }
+			 }
+		 }
+
+		 //delete from underlying persistence layer
+
+		 persistenceStorage.deleteMessageBatch(queueUrl, messageIds);
+	 }
+
+	 /**
+	  * Evict cached payloads of deleted messages of a queue shard whose cache is not in use, so a payload never
+	  * outlives its message. Connection failures are only logged, the delete itself goes to cassandra either way.
+	  */
+	 private void evictPayloads(String queueUrl, int shard, String... memIds) {
+
+		 if (!payloadCache.isEnabled() || memIds.length == 0 || redisDown.get()) {
+			 return;
+		 }
+
+		 ShardedJedis jedis = null;
+		 boolean brokenJedis = false;
+
+		 try {
+			 long ts1 = System.currentTimeMillis();
+			 jedis = getResource();
+			 payloadCache.remove(jedis, queueUrl, shard, memIds);
+			 long ts2 = System.currentTimeMillis();
+			 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts2 - ts1));
+		 } catch (JedisConnectionException e) {
+			 logger.warn("event=evict_payloads error_code=redis_unavailable queue_url=" + queueUrl + " shard=" + shard + " num_mem_ids=" + memIds.length);
+			 brokenJedis = true;
+			 redisDown.set(true);
+		 } finally {
+			 if (jedis != null) {
+				 returnResource(jedis, brokenJedis);
+			 }
+		 }
+	 }
+
+	 /**
+	  * Run the receive script
+	  * @return flat list of mem-id, first receive timestamp, receive count per message
+	  */
+	 @SuppressWarnings("unchecked")
+	 private static List<String> evalReceive(Jedis j, List<String> keys, List<String> args) {
+		 return (List<String>)evalScript(j, luaReceive, keys, args);
+	 }
+	 
+	 /**
+	  * Run a lua script by its sha, loading it first if the redis server does not know it yet
+	  * @param j redis server holding all keys
+	  * @param script
+	  * @param keys
+	  * @param args
+	  * @return script result
+	  */
+	 static Object evalScript(Jedis j, String script, List<String> keys, List<String> args) {
+		 
+		 String sha = scriptSHAs.get(script);
+		 
+		 if (sha != null) {
+			 try {
+				 return j.evalsha(sha, keys, args);
+			 } catch (JedisDataException e) {
+				 if (e.getMessage() == null || !e.getMessage().startsWith("NOSCRIPT")) {
+					 throw e;
+				 }
+			 }
+		 }
+		 
+		 sha = j.scriptLoad(script);
+		 scriptSHAs.put(script, sha);
+		 
+		 return j.evalsha(sha, keys, args);
+	 }
+	 
+	 /**
+	  * Update first receive timestamp and receive count of messages whose attribute hashes may live on other
+	  * redis servers than their queue, in one pipelined round trip
+	  * @return map of mem-id -> first receive timestamp, receive count
+	  */
+	 private static Map<String, String[]> updateReceiveAttributes(ShardedJedis jedis, String attributesPrefix, Set<String> memIds, long now) {
+		 
+		 ShardedJedisPipeline pipeline = jedis.pipelined();
+		 Map<String, Response<String>> firstRecvTimestamps = new HashMap<String, Response<String>>();
+		 Map<String, Response<Long>> recvCounts = new HashMap<String, Response<Long>>();
+		 
+		 for (String memId : memIds) {
+			 String attributesKey = attributesPrefix + memId;
+			 pipeline.hsetnx(attributesKey, CQSConstants.REDIS_APPROXIMATE_FIRST_RECEIVE_TIMESTAMP, Long.toString(now));
+			 recvCounts.put(memId, pipeline.hincrBy(attributesKey, CQSConstants.REDIS_APPROXIMATE_RECEIVE_COUNT, 1));
+			 pipeline.expire(attributesKey, ATTRIBUTES_EXPIRATION_SEC);
+			 firstRecvTimestamps.put(memId, pipeline.hget(attributesKey, CQSConstants.REDIS_APPROXIMATE_FIRST_RECEIVE_TIMESTAMP));
+		 }
+		 
+		 pipeline.sync();
+		 Map<String, String[]> attributes = new HashMap<String, String[]>();
+		 
+		 for (String memId : memIds) {
+			 attributes.put(memId, new String[] { firstRecvTimestamps.get(memId).get(), Long.toString(recvCounts.get(memId).get()) });
+		 }
+		 
+		 return attributes;
+	 }
+
+	 /**
+	  * Resolve message ids to messages, from the payload cache where possible and from the underlying layer otherwise
+	  * @return map of message id -> message, null if the underlying layer does not have the message
+	  */
+	 private Map<String, CQSMessage> getPayloads(CQSQueue queue, int shard, ShardedJedis jedis, List<String> messageIds, Map<String, String> messageIdToMemId) throws PersistenceException, NoSuchAlgorithmException, IOException, JSONException {
+		 
+		 if (!payloadCache.isEnabled()) {
+			 return persistenceStorage.getMessages(queue.getRelativeUrl(), messageIds);
+		 }
+		 
+		 long ts1 = System.currentTimeMillis();
+		 Map<String, CQSMessage> hits = payloadCache.get(jedis, queue, shard, messageIdToMemId.values());
+		 long ts2 = System.currentTimeMillis();
+		 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts2 - ts1));
+		 CQSMonitor.getInstance().registerCacheHit(queue.getRelativeUrl(), hits.size(), messageIds.size(), CacheType.PayloadCache);
+		 
+		 Map<String, CQSMessage> messages = new HashMap<String, CQSMessage>();
+		 List<String> missedMessageIds = new LinkedList<String>();
+		 
+		 for (String messageId : messageIds) {
+			 CQSMessage message = hits.get(messageIdToMemId.get(messageId));
+			 if (message != null) {
+				 messages.put(messageId, message);
+			 } else {
+				 missedMessageIds.add(messageId);
+			 }
+		 }
+		 
+		 if (missedMessageIds.size() > 0) {
+			 messages.putAll(persistenceStorage.getMessages(queue.getRelativeUrl(), missedMessageIds));
+		 }
+		 
+		 return messages;
+	 }
+
 	 @Override
 	 public List<CQSMessage> receiveMessage(CQSQueue queue, Map<String, String> receiveAttributes) throws PersistenceException, IOException, NoSuchAlgorithmException, InterruptedException,	JSONException {
 
@@ -1024,43 +1385,45 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 				 Set <String> memIds;
 				 while (!done) {
 
-					 boolean emptyQueue = false;
 					 HashMap<String, String> messageIdToMemId = new HashMap<String, String>();
+					 HashMap<String, String[]> receiveAttributesByMemId = new HashMap<String, String[]>();
 					 List<String> messageIds = new LinkedList<String>();
 
-					 //use lua script if visibilityTO > 0
-					 if (visibilityTO > 0) {
-						 List <String> keys = new LinkedList <String>();
-						 keys.add(key);
-						 List <String> args = new LinkedList <String>();
-						 args.add(String.valueOf(System.currentTimeMillis() - queue.getMsgRetentionPeriod() * 1000));//min
-						 args.add(String.valueOf(System.currentTimeMillis()));//max
-						 args.add(String.valueOf(maxNumberOfMessages));//number of message
-						 args.add(String.valueOf(System.currentTimeMillis()+visibilityTO*1000)); //new score
-						 long ts1 = System.currentTimeMillis();
-						 try {
-							 memIds = new HashSet<String>((List <String>)j.evalsha(luaChangeScoreToHigherSHA, keys, args));
-						 } catch (JedisDataException e) {
-							 if (e.getMessage().startsWith("NOSCRIPT")) {
-								 luaChangeScoreToHigherSHA = new String(j.scriptLoad(luaChangeScoreToHigher.getBytes()));
-								 memIds = new HashSet<String>((List <String>)j.evalsha(luaChangeScoreToHigherSHA, keys, args));
-							 } else {
-								 throw e;
-							 }
+					 // pick, hide and count receives in one script call, attributes are updated separately only
+					 // if they may live on other redis servers
+					 
+					 String attributesPrefix = queue.getRelativeUrl() + "-" + shard + "-A-";
+					 long now = System.currentTimeMillis();
+					 List <String> keys = new LinkedList <String>();
+					 keys.add(key);
+					 List <String> args = new LinkedList <String>();
+					 args.add(String.valueOf(now - queue.getMsgRetentionPeriod() * 1000L));//min
+					 args.add(String.valueOf(now));//max
+					 args.add(String.valueOf(maxNumberOfMessages));//number of message
+					 args.add(visibilityTO > 0 ? String.valueOf(now + visibilityTO * 1000L) : "0"); //new score
+					 args.add(singleRedisServer ? attributesPrefix : "");
+					 args.add(String.valueOf(now));
+					 args.add(String.valueOf(ATTRIBUTES_EXPIRATION_SEC));
+					 args.add(CQSConstants.REDIS_APPROXIMATE_FIRST_RECEIVE_TIMESTAMP);
+					 args.add(CQSConstants.REDIS_APPROXIMATE_RECEIVE_COUNT);
+					 long ts1 = System.currentTimeMillis();
+					 List<String> result = evalReceive(j, keys, args);
+					 memIds = new LinkedHashSet<String>();
+					 
+					 for (int i = 0; i + 2 < result.size(); i += 3) {
+						 memIds.add(result.get(i));
+						 if (result.get(i + 1) != null && result.get(i + 2) != null) {
+							 receiveAttributesByMemId.put(result.get(i), new String[] { result.get(i + 1), result.get(i + 2) });
 						 }
-						 long ts2 = System.currentTimeMillis();
-						 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts2 - ts1));
 					 }
-					 else {
-						 long ts1 = System.currentTimeMillis();
-						 memIds = jedis.zrangeByScore(key, System.currentTimeMillis() - queue.getMsgRetentionPeriod() * 1000, System.currentTimeMillis(), 0, maxNumberOfMessages);
-						 long ts2 = System.currentTimeMillis();
-						 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts2 - ts1));
-						 if (memIds == null || memIds.equals("nil")) { //done
-							 emptyQueue = true;
-						 }
-
+					 
+					 if (!singleRedisServer && memIds.size() > 0) {
+						 receiveAttributesByMemId.putAll(updateReceiveAttributes(jedis, attributesPrefix, memIds, now));
 					 }
+					 
+					 long ts2 = System.currentTimeMillis();
+					 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts2 - ts1));
+					 
 					 for (String memId: memIds) {
 						 String messageId = getMemQueueMessageMessageId(queue.getRelativeUrlHash(),memId); 
 						 messageIds.add(messageId);
@@ -1080,7 +1443,7 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 
 					 try {
 
-						 Map<String, CQSMessage> persisMap = persistenceStorage.getMessages(queue.getRelativeUrl(), messageIds);
+						 Map<String, CQSMessage> persisMap = getPayloads(queue, shard, jedis, messageIds, messageIdToMemId);
 
 						 for (Entry<String, CQSMessage> messageIdToMessage : persisMap.entrySet()) {
 
@@ -1096,33 +1459,21 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 								 logger.warn("event=message_is_null msg_id=" + messageIdToMessage.getKey());
 								 //underlying layer does not have this message, remove it from Redis layer
 								 jedis.zrem(key,memId);
+								 jedis.del(attributesPrefix + memId);
+								 payloadCache.remove(jedis, queue.getRelativeUrl(), shard, memId);
 								 continue;
 							 }
 
 							 message.setMessageId(memId);
 							 message.setReceiptHandle(memId);
 
-							 //get message-attributes and populate in message
+							 //populate message-attributes updated by the receive script
 							 Map<String, String> msgAttrs = (message.getAttributes() != null) ?  message.getAttributes() : new HashMap<String, String>();
-							 List<String> attrs = jedis.hmget(queue.getRelativeUrl() + "-" + shard + "-A-" + memId, CQSConstants.REDIS_APPROXIMATE_FIRST_RECEIVE_TIMESTAMP, CQSConstants.REDIS_APPROXIMATE_RECEIVE_COUNT);
-
-							 if (attrs.get(0) == null) {
-								 String firstRecvTS = Long.toString(System.currentTimeMillis());
-								 jedis.hset(queue.getRelativeUrl() + "-" + shard + "-A-" + memId, CQSConstants.REDIS_APPROXIMATE_FIRST_RECEIVE_TIMESTAMP, firstRecvTS);
-								 msgAttrs.put(CQSConstants.APPROXIMATE_FIRST_RECEIVE_TIMESTAMP, firstRecvTS);
-							 } else {                            
-								 msgAttrs.put(CQSConstants.APPROXIMATE_FIRST_RECEIVE_TIMESTAMP, attrs.get(0));
-							 }
-
-							 int recvCount = 1;
-
-							 if (attrs.get(1) != null) {
-								 recvCount = Integer.parseInt(attrs.get(1)) + 1;
-							 }
-
-							 jedis.hset(queue.getRelativeUrl() + "-" + shard + "-A-" + memId, CQSConstants.REDIS_APPROXIMATE_RECEIVE_COUNT, Integer.toString(recvCount));
-							 jedis.expire(queue.getRelativeUrl() + "-" + shard +  "-A-" + memId, 3600 * 24 * 14); //14 days expiration if not deleted
-							 msgAttrs.put(CQSConstants.APPROXIMATE_RECEIVE_COUNT, Integer.toString(recvCount));
+							 String[] attrs = receiveAttributesByMemId.get(memId);
+							 String firstRecvTS = attrs != null ? attrs[0] : Long.toString(System.currentTimeMillis());
+							 String recvCount = attrs != null ? attrs[1] : "1";
+							 msgAttrs.put(CQSConstants.APPROXIMATE_FIRST_RECEIVE_TIMESTAMP, firstRecvTS);
+							 msgAttrs.put(CQSConstants.APPROXIMATE_RECEIVE_COUNT, recvCount);
 							 message.setAttributes(msgAttrs);
 							 ret.add(message);
 						 }
@@ -1312,6 +1663,11 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 		 return persistenceStorage.peekQueueRandom(queueUrl, shard, length);
 	 }
 
+	 @Override
+	 public List<CQSMessage> peekQueuePartition(String queueUrl, int shard, int partition, String previousReceiptHandle, int length) throws PersistenceException, IOException, NoSuchAlgorithmException, JSONException {
+		 return persistenceStorage.peekQueuePartition(queueUrl, shard, partition, previousReceiptHandle, length);
+	 }
+
 	 @Override
 	 public void clearQueue(String queueUrl, int shard) throws PersistenceException, NoSuchAlgorithmException, UnsupportedEncodingException {
 
@@ -1331,6 +1687,8 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 				 logger.debug("num removed=" + num);
 				 num = jedis.del(queueUrl + "-" + shard + "-F");
 				 logger.debug("num removed=" + num);
+				 payloadCache.clear(jedis, queueUrl, shard);
+				 CQSQueueDepthCache.getInstance().invalidate(queueUrl);
 				 long ts2 = System.currentTimeMillis();
 				 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts2 - ts1));
 				 logger.debug("event=cleared_queue queue_url=" + queueUrl + " shard=" + shard);
@@ -1535,5 +1893,6 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 
 	 public void shutdown() {
 		 executor.shutdown();
+		 retentionSweeper.shutdown();
 	 }
 }
@@ -0,0 +1,313 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cqs.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.log4j.Logger;
+
+/**
+ * Body compression for queues with IsCompressed=true.
+ *
+ * Compressed bodies start with a codec tag character that can never start a Base64 string, so each message is
+ * decoded with the codec it was written with, regardless of the codec currently configured for writes. Bodies
+ * without a tag are legacy GZIP+Base64 ("H4sI" prefix) or were never compressed.
+ *
+ * Message columns are validated as UTF8Type, so compressed bytes are still stored Base64 encoded. The deflate codec
+ * saves the GZIP header, trailer and CRC32 pass and reuses a Deflater and Inflater per thread, and bodies that do not
+ * shrink are stored as is behind a one character tag rather than inflated by Base64.
+ *
+ * Further codecs can be added with register().
+ *
+ */
+public abstract class CQSCompressionCodec {
+
+	private static Logger logger = Logger.getLogger(CQSCompressionCodec.class);
+
+	public static final char TAG_STORED = '\u0002';
+	public static final char TAG_DEFLATE = '\u0003';
+
+	private static final String GZIP_BASE64_PREFIX = "H4sI";
+
+	private static final ConcurrentHashMap<Character, CQSCompressionCodec> codecsByTag = new ConcurrentHashMap<Character, CQSCompressionCodec>();
+	private static final ConcurrentHashMap<String, CQSCompressionCodec> codecsByName = new ConcurrentHashMap<String, CQSCompressionCodec>();
+
+	public static final CQSCompressionCodec GZIP = new GZIPCodec();
+	public static final CQSCompressionCodec DEFLATE = new DeflateCodec();
+
+	static {
+		register(GZIP);
+		register(DEFLATE);
+	}
+
+	/**
+	 * @return codec name used in cmb.properties
+	 */
+	public abstract String getName();
+
+	/**
+	 * @return tag character prepended to compressed bodies, 0 for the legacy untagged format
+	 */
+	public abstract char getTag();
+
+	/**
+	 * @param body uncompressed body, never null or empty
+	 * @return compressed body including the codec tag
+	 */
+	protected abstract String encode(String body) throws IOException;
+
+	/**
+	 * @param compressed compressed body including the codec tag
+	 * @return uncompressed body
+	 */
+	protected abstract String decode(String compressed) throws IOException;
+
+	public static void register(CQSCompressionCodec codec) {
+
+		if (codec.getTag() != 0) {
+			codecsByTag.put(codec.getTag(), codec);
+		}
+
+		codecsByName.put(codec.getName(), codec);
+	}
+
+	/**
+	 * @param name
+	 * @return codec registered under name, gzip if unknown as every api server can read it
+	 */
+	public static CQSCompressionCodec getCodec(String name) {
+
+		CQSCompressionCodec codec = name == null ? null : codecsByName.get(name.toLowerCase());
+
+		if (codec == null) {
+			logger.warn("event=unknown_compression_codec name=" + name + " action=default_to_gzip");
+			return GZIP;
+		}
+
+		return codec;
+	}
+
+	public String compress(String body) throws IOException {
+
+		if (body == null || body.length() == 0) {
+			return body;
+		}
+
+		return encode(body);
+	}
+
+	/**
+	 * Decompress a body written by any registered codec
+	 * @param compressed
+	 * @return uncompressed body
+	 * @throws IOException
+	 */
+	public static String decompress(String compressed) throws IOException {
+
+		if (compressed == null || compressed.length() == 0) {
+			return compressed;
+		}
+
+		char tag = compressed.charAt(0);
+
+		if (tag == TAG_STORED) {
+			return compressed.substring(1);
+		}
+
+		CQSCompressionCodec codec = codecsByTag.get(tag);
+
+		if (codec != null) {
+			return codec.decode(compressed);
+		}
+
+		if (compressed.startsWith(GZIP_BASE64_PREFIX)) {
+			return GZIP.decode(compressed);
+		}
+
+		String prefix = compressed;
+
+		if (compressed.length() > 100) {
+			prefix = prefix.substring(0, 99);
+		}
+
+		logger.warn("event=content_does_not_appear_to_be_compressed message=" + prefix);
+
+		return compressed;
+	}
+
+	/**
+	 * Legacy format, GZIP stream encoded as Base64 without a tag
+	 */
+	private static class GZIPCodec extends CQSCompressionCodec {
+
+		@Override
+		public String getName() {
+			return "gzip";
+		}
+
+		@Override
+		public char getTag() {
+			return 0;
+		}
+
+		@Override
+		protected String encode(String body) throws IOException {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(body.length());
+			GZIPOutputStream gzip = new GZIPOutputStream(out);
+			gzip.write(body.getBytes("UTF-8"));
+			gzip.close();
+			return Base64.encodeBase64String(out.toByteArray());
+		}
+
+		@Override
+		protected String decode(String compressed) throws IOException {
+
+			Reader reader = null;
+			StringWriter writer = new StringWriter();
+
+			try {
+
+				GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(Base64.decodeBase64(compressed)));
+				reader = new InputStreamReader(gzip, "UTF-8");
+				char[] buffer = new char[10240];
+
+				for (int length = 0; (length = reader.read(buffer)) > 0;) {
+					writer.write(buffer, 0, length);
+				}
+
+			} finally {
+				if (reader != null) {
+					reader.close();
+				}
+			}
+
+			return writer.toString();
+		}
+	}
+
+	/**
+	 * Raw deflate at BEST_SPEED, encoded as tag, uncompressed length in bytes, ':' and Base64 of the deflate stream
+	 */
+	private static class DeflateCodec extends CQSCompressionCodec {
+
+		private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+			@Override
+			protected Deflater initialValue() {
+				return new Deflater(Deflater.BEST_SPEED, true);
+			}
+		};
+
+		private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+			@Override
+			protected Inflater initialValue() {
+				return new Inflater(true);
+			}
+		};
+
+		@Override
+		public String getName() {
+			return "deflate";
+		}
+
+		@Override
+		public char getTag() {
+			return TAG_DEFLATE;
+		}
+
+		@Override
+		protected String encode(String body) throws IOException {
+
+			byte[] input = body.getBytes("UTF-8");
+			Deflater deflater = deflaters.get();
+			deflater.reset();
+			deflater.setInput(input);
+			deflater.finish();
+
+			byte[] output = new byte[input.length/2 + 64];
+			int length = 0;
+
+			while (!deflater.finished()) {
+
+				if (length == output.length) {
+					output = Arrays.copyOf(output, output.length*2);
+				}
+
+				length += deflater.deflate(output, length, output.length - length);
+			}
+
+			String header = TAG_DEFLATE + Integer.toString(input.length) + ":";
+
+			// not worth it, keep the body readable and avoid the Base64 overhead
+
+			if (header.length() + (length+2)/3*4 >= body.length() + 1) {
+				return TAG_STORED + body;
+			}
+
+			return header + Base64.encodeBase64String(Arrays.copyOf(output, length));
+		}
+
+		@Override
+		protected String decode(String compressed) throws IOException {
+
+			int separator = compressed.indexOf(':');
+
+			if (separator < 0) {
+				throw new IOException("Corrupt deflate body");
+			}
+
+			int length = Integer.parseInt(compressed.substring(1, separator));
+			byte[] input = Base64.decodeBase64(compressed.substring(separator + 1));
+			byte[] output = new byte[length];
+			Inflater inflater = inflaters.get();
+			inflater.reset();
+			inflater.setInput(input);
+
+			try {
+
+				int offset = 0;
+
+				while (offset < length) {
+
+					int n = inflater.inflate(output, offset, length - offset);
+
+					if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+						throw new IOException("Truncated deflate body expected=" + length + " actual=" + offset);
+					}
+
+					offset += n;
+				}
+
+			} catch (DataFormatException ex) {
+				throw new IOException("Corrupt deflate body: " + ex.getMessage());
+			}
+
+			return new String(output, "UTF-8");
+		}
+	}
+}
@@ -48,9 +48,13 @@ public class CQSConstants {
 	public static final String LATEST_TIMESTAMP = "latestTimestamp";
 	public static final String WAIT_TIME_SECONDS = "WaitTimeSeconds";
 	public static final String RECEIVE_MESSAGE_WAIT_TIME_SECONDS = "ReceiveMessageWaitTimeSeconds";
+	public static final String FORCE_EXACT_COUNT = "ForceExactCount";
 	public static final String NUMBER_OF_PARTITIONS = "NumberOfPartitions";
 	public static final String NUMBER_OF_SHARDS = "NumberOfShards";
 	public static final String IS_COMPRESSED = "IsCompressed";
+	public static final String MESSAGE_FORMAT = "MessageFormat";
+	public static final String MESSAGE_FORMAT_JSON = "JSON";
+	public static final String MESSAGE_FORMAT_BINARY = "Binary";
 	public static final String MESSAGE_ATTRIBUTE = "MessageAttribute";
 	public static final String MESSAGE_ATTRIBUTES = "MessageAttributes";
 
@@ -74,4 +78,5 @@ public class CQSConstants {
 	public static final String COL_NUMBER_PARTITIONS = "numPartitions";
 	public static final String COL_NUMBER_SHARDS = "numShards";
 	public static final String COL_COMPRESSED = "compressed";
+	public static final String COL_MESSAGE_FORMAT = "messageFormat";
 }
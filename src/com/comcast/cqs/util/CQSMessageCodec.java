@@ -0,0 +1,294 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cqs.util;
+
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONWriter;
+
+import com.comcast.cmb.common.util.CMBErrorCodes;
+import com.comcast.cmb.common.util.PersistenceException;
+import com.comcast.cqs.model.CQSMessage;
+import com.comcast.cqs.model.CQSMessageAttribute;
+
+/**
+ * Compact length-prefixed encoding of a message for the CQSPartitionedQueueMessages column family,
+ * used instead of JSON for queues with MessageFormat=Binary.
+ *
+ * The value column is validated as UTF8Type, so the frame is kept as text: a version character that
+ * can never start a JSON document, followed by fixed fields written as <length>:<chars> (length -1
+ * marks null) and typed message attributes. Decoding is plain substring work with no escaping.
+ *
+ * The json format used by all other queues is encoded and decoded here as well.
+ *
+ */
+public class CQSMessageCodec {
+
+	public static final char VERSION_1 = '\u0001';
+
+	private static final char TYPE_STRING = 'S';
+	private static final char TYPE_NUMBER = 'N';
+	private static final char TYPE_BINARY = 'B';
+	private static final char TYPE_CUSTOM = 'C';
+
+	/**
+	 * @param value column value read from cassandra
+	 * @return true if value was written by this codec, false for legacy json
+	 */
+	public static boolean isEncoded(String value) {
+		return value != null && value.length() > 0 && value.charAt(0) == VERSION_1;
+	}
+
+	public static String encode(CQSMessage message) {
+
+		StringBuilder sb = new StringBuilder(message.getBody() == null ? 256 : message.getBody().length() + 256);
+		Map<String, String> attributes = message.getAttributes();
+
+		sb.append(VERSION_1);
+		writeString(sb, message.getMessageId());
+		writeString(sb, message.getMD5OfBody());
+		writeString(sb, message.getBody());
+		writeString(sb, attributes == null ? null : attributes.get(CQSConstants.SENDER_ID));
+		writeString(sb, attributes == null ? null : attributes.get(CQSConstants.SENT_TIMESTAMP));
+		writeString(sb, attributes == null ? null : attributes.get(CQSConstants.APPROXIMATE_RECEIVE_COUNT));
+
+		Map<String, CQSMessageAttribute> messageAttributes = message.getMessageAttributes();
+
+		if (messageAttributes == null || messageAttributes.size() == 0) {
+			writeString(sb, null);
+			writeInt(sb, 0);
+		} else {
+
+			writeString(sb, message.getMD5OfMessageAttributes());
+			writeInt(sb, messageAttributes.size());
+
+			for (String name : messageAttributes.keySet()) {
+
+				CQSMessageAttribute messageAttribute = messageAttributes.get(name);
+				String dataType = messageAttribute.getDataType();
+				writeString(sb, name);
+
+				if (dataType.equals("String")) {
+					sb.append(TYPE_STRING);
+				} else if (dataType.equals("Number")) {
+					sb.append(TYPE_NUMBER);
+				} else if (dataType.equals("Binary")) {
+					sb.append(TYPE_BINARY);
+				} else {
+					sb.append(TYPE_CUSTOM);
+					writeString(sb, dataType);
+				}
+
+				writeString(sb, messageAttribute.getStringValue());
+			}
+		}
+
+		return sb.toString();
+	}
+
+	public static CQSMessage decode(String value) throws PersistenceException {
+
+		if (!isEncoded(value)) {
+			throw new PersistenceException(CMBErrorCodes.InternalError, "Unsupported message format version");
+		}
+
+		int[] pos = new int[] { 1 };
+		CQSMessage m = new CQSMessage();
+
+		try {
+
+			m.setMessageId(readString(value, pos));
+			m.setReceiptHandle(m.getMessageId());
+			m.setMD5OfBody(readString(value, pos));
+			m.setBody(readString(value, pos));
+
+			Map<String, String> attributes = new HashMap<String, String>();
+			putIfNotNull(attributes, CQSConstants.SENDER_ID, readString(value, pos));
+			putIfNotNull(attributes, CQSConstants.SENT_TIMESTAMP, readString(value, pos));
+			putIfNotNull(attributes, CQSConstants.APPROXIMATE_RECEIVE_COUNT, readString(value, pos));
+			m.setAttributes(attributes);
+
+			String md5OfMessageAttributes = readString(value, pos);
+			int numMessageAttributes = readInt(value, pos);
+
+			if (numMessageAttributes > 0) {
+
+				Map<String, CQSMessageAttribute> messageAttributes = new HashMap<String, CQSMessageAttribute>();
+
+				for (int i=0; i<numMessageAttributes; i++) {
+
+					String name = readString(value, pos);
+					char type = value.charAt(pos[0]++);
+					String dataType = null;
+
+					if (type == TYPE_STRING) {
+						dataType = "String";
+					} else if (type == TYPE_NUMBER) {
+						dataType = "Number";
+					} else if (type == TYPE_BINARY) {
+						dataType = "Binary";
+					} else if (type == TYPE_CUSTOM) {
+						dataType = readString(value, pos);
+					} else {
+						throw new PersistenceException(CMBErrorCodes.InternalError, "Unknown message attribute type " + type);
+					}
+
+					messageAttributes.put(name, new CQSMessageAttribute(readString(value, pos), dataType));
+				}
+
+				m.setMD5OfMessageAttributes(md5OfMessageAttributes);
+				m.setMessageAttributes(messageAttributes);
+			}
+
+		} catch (IndexOutOfBoundsException ex) {
+			throw new PersistenceException(CMBErrorCodes.InternalError, "Truncated message at position " + pos[0]);
+		} catch (NumberFormatException ex) {
+			throw new PersistenceException(CMBErrorCodes.InternalError, "Corrupt message at position " + pos[0]);
+		}
+
+		return m;
+	}
+
+	public static String encodeJSON(CQSMessage message) throws JSONException {
+		
+		Writer writer = new StringWriter(); 
+    	JSONWriter jw = new JSONWriter(writer);
+
+    	jw = jw.object();
+    	jw.key("MessageId").value(message.getMessageId());
+    	jw.key("MD5OfBody").value(message.getMD5OfBody());
+    	jw.key("Body").value(message.getBody());
+		
+		if (message.getAttributes() != null) {
+			for (String key : message.getAttributes().keySet()) {
+				String value = message.getAttributes().get(key);
+				if (value == null || value.isEmpty()) {
+					value = "";
+				}
+				jw.key(key).value(value);
+			}
+		}
+		
+		if (message.getMessageAttributes() != null && message.getMessageAttributes().size() > 0) {
+	    	jw.key("MD5OfMessageAttributes").value(message.getMD5OfMessageAttributes());
+			jw.key("MessageAttributes");
+			jw.object();
+			for (String key : message.getMessageAttributes().keySet()) {
+				jw.key(key);
+				jw.object();
+				CQSMessageAttribute messageAttribute = message.getMessageAttributes().get(key);
+				if (messageAttribute.getStringValue() != null) {
+					jw.key("StringValue").value(messageAttribute.getStringValue());
+				} else if (messageAttribute.getBinaryValue() != null) {
+					jw.key("BinaryValue").value(messageAttribute.getBinaryValue());
+				}
+				jw.key("DataType").value(messageAttribute.getDataType());
+				jw.endObject();
+			}
+			jw.endObject();
+		}
+
+		jw.endObject();
+		
+		return writer.toString();
+	}
+
+	public static CQSMessage decodeJSON(String value) throws JSONException {
+
+		CQSMessage m = new CQSMessage();
+		JSONObject json = new JSONObject(value);
+
+		m.setMessageId(json.getString("MessageId"));
+		m.setReceiptHandle(json.getString("MessageId"));
+		m.setMD5OfBody(json.getString("MD5OfBody"));
+		m.setBody(json.getString("Body"));
+		
+		if (m.getAttributes() == null) {
+			m.setAttributes(new HashMap<String, String>());
+		}
+		
+		if (json.has(CQSConstants.SENT_TIMESTAMP)) {
+			m.getAttributes().put(CQSConstants.SENT_TIMESTAMP, json.getString(CQSConstants.SENT_TIMESTAMP));
+		}
+		
+		if (json.has(CQSConstants.APPROXIMATE_RECEIVE_COUNT)) {
+			m.getAttributes().put(CQSConstants.APPROXIMATE_RECEIVE_COUNT, json.getString(CQSConstants.APPROXIMATE_RECEIVE_COUNT));
+		}
+
+		if (json.has(CQSConstants.SENDER_ID)) {
+			m.getAttributes().put(CQSConstants.SENDER_ID, json.getString(CQSConstants.SENDER_ID));
+		}
+		
+		if (json.has("MessageAttributes")) {
+			m.setMD5OfMessageAttributes(json.getString("MD5OfMessageAttributes"));
+			JSONObject messageAttributes = json.getJSONObject("MessageAttributes");
+			Map<String, CQSMessageAttribute> ma = new HashMap<String, CQSMessageAttribute>();
+			Iterator<String> iter = messageAttributes.keys();
+			while (iter.hasNext()) {
+				String key = iter.next();
+				ma.put(key, new CQSMessageAttribute(messageAttributes.getJSONObject(key).getString("StringValue"), messageAttributes.getJSONObject(key).getString("DataType")));
+			}
+			m.setMessageAttributes(ma);
+		}
+
+		return m;
+	}
+
+	private static void putIfNotNull(Map<String, String> map, String key, String value) {
+		if (value != null) {
+			map.put(key, value);
+		}
+	}
+
+	private static void writeInt(StringBuilder sb, int i) {
+		sb.append(i).append(':');
+	}
+
+	private static void writeString(StringBuilder sb, String s) {
+		if (s == null) {
+			writeInt(sb, -1);
+		} else {
+			writeInt(sb, s.length());
+			sb.append(s);
+		}
+	}
+
+	private static int readInt(String value, int[] pos) {
+		int end = value.indexOf(':', pos[0]);
+		if (end < 0) {
+			throw new IndexOutOfBoundsException();
+		}
+		int i = Integer.parseInt(value.substring(pos[0], end));
+		pos[0] = end + 1;
+		return i;
+	}
+
+	private static String readString(String value, int[] pos) {
+		int length = readInt(value, pos);
+		if (length < 0) {
+			return null;
+		}
+		String s = value.substring(pos[0], pos[0] + length);
+		pos[0] += length;
+		return s;
+	}
+}
@@ -15,12 +15,7 @@
  */
 package com.comcast.cqs.util;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.Reader;
-import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -31,12 +26,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.http.HttpServletRequest;
 
-import org.apache.commons.codec.binary.Base64;
 import org.apache.log4j.Logger;
 
 import com.comcast.cmb.common.persistence.AbstractDurablePersistence;
@@ -659,54 +651,23 @@ public class Util {
     	return Integer.parseInt(keyParts[1]);
     }
     
-    public static String compress(String decompressed) throws IOException{
-        if (decompressed == null || decompressed.equals("")) {
-            return decompressed;
-        }
-        ByteArrayOutputStream out = new ByteArrayOutputStream(decompressed.length());
-        GZIPOutputStream gzip = new GZIPOutputStream(out);
-        gzip.write(decompressed.getBytes());
-        gzip.close();
-        out.close();
-        String compressed = Base64.encodeBase64String(out.toByteArray());
-        logger.debug("event=compressed from=" + decompressed.length() + " to=" + compressed.length());
-		return compressed;
-     }
+    /**
+     * Compress body with the codec configured in cmb.cqs.compressionCodec
+     * @param decompressed
+     * @return compressed body
+     * @throws IOException
+     */
+    public static String compress(String decompressed) throws IOException {
+        return CQSCompressionCodec.getCodec(CMBProperties.getInstance().getCQSCompressionCodec()).compress(decompressed);
+    }
     
+    /**
+     * Decompress body written by any codec, including legacy GZIP+Base64
+     * @param compressed
+     * @return decompressed body
+     * @throws IOException
+     */
     public static String decompress(String compressed) throws IOException {
-        if (compressed == null || compressed.equals("")) {
-            return compressed;
-        }
-        Reader reader = null;
-        StringWriter writer = null;
-        try {
-        	if (!compressed.startsWith("H4sIA")) {
-        		String prefix = compressed;
-        		if (compressed.length() > 100) {
-        			prefix = prefix.substring(0, 99);
-        		}
-        		logger.warn("event=content_does_not_appear_to_be_zipped message=" + prefix);
-        		return compressed;
-        	}
-	        byte[] unencodedEncrypted = Base64.decodeBase64(compressed);
-	        ByteArrayInputStream in = new ByteArrayInputStream(unencodedEncrypted);
-	        GZIPInputStream gzip = new GZIPInputStream(in);
-	        reader = new InputStreamReader(gzip, "UTF-8");
-	        writer = new StringWriter();
-	        char[] buffer = new char[10240];
-	        for (int length = 0; (length = reader.read(buffer)) > 0;) {
-	            writer.write(buffer, 0, length);
-	        }
-        } finally {
-        	if (writer != null) {
-        		writer.close();
-        	}
-        	if (reader != null) {
-        		reader.close();
-        	}
-        }
-        String decompressed = writer.toString();
-        logger.info("event=decompressed from=" + compressed.length() + " to=" + decompressed.length());
-        return decompressed;
+        return CQSCompressionCodec.decompress(compressed);
     }
 }
@@ -22,6 +22,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 import org.junit.After;
@@ -31,7 +32,6 @@ import org.junit.Test;
 import com.comcast.cmb.common.controller.CMBControllerServlet;
 import com.comcast.cmb.common.util.ExpiringCache;
 import com.comcast.cmb.common.util.Util;
-import com.comcast.cmb.common.util.ExpiringCache.CacheFullException;
 
 public class ExpiringCacheTest {
 
@@ -105,12 +105,8 @@ public class ExpiringCacheTest {
         	
             while(!Thread.interrupted() && !done) {
 
-                try {
-                    cache.getAndSetIfNotPresent(1, c, 1000);
-                    count++;
-                } catch (CacheFullException e1) {
-                    log.error("Cache too small");
-                }
+                cache.getAndSetIfNotPresent(1, c, 1000);
+                count++;
 
                 if (sleep) {
                     try {
@@ -170,6 +166,90 @@ public class ExpiringCacheTest {
         }
     }
     
+    @Test
+    public void testLRUEviction() throws Exception {
+    	
+        ExpiringCache<Integer, Integer> cache = new ExpiringCache<Integer, Integer>(160);
+        TestCallable c = new TestCallable();
+        
+        // exceeding the key limit evicts instead of failing
+        
+        for (int i = 0; i < 1000; i++) {
+            cache.getAndSetIfNotPresent(i, c, 10000);
+            cache.getAndSetIfNotPresent(0, c, 10000);
+        }
+        
+        assertEquals(1000, c.numTimesCalled);
+        assertTrue("Expected at most 160 keys. Got:" + cache.size(), cache.size() <= 160);
+        assertTrue(cache.getEvictionCount() >= 840);
+        
+        // most recently used key survives
+        
+        assertTrue(cache.containsKey(0));
+        assertFalse(cache.containsKey(1));
+    }
+    
+    @Test
+    public void testRefreshAhead() throws Exception {
+    	
+        final AtomicLong now = new AtomicLong(1000000);
+        
+        ExpiringCache<Integer, Integer> cache = new ExpiringCache<Integer, Integer>(1000) {
+        	@Override
+        	protected long currentTimeMillis() {
+        		return now.get();
+        	}
+        };
+        
+        TestCallable c = new TestCallable();
+        
+        cache.getAndSetIfNotPresent(1, c, 500);
+        now.addAndGet(470);
+        
+        // served from cache but reloaded in background
+        
+        cache.getAndSetIfNotPresent(1, c, 500);
+        
+        long deadline = System.currentTimeMillis() + 10000;
+        
+        while (cache.getRefreshCount() == 0 && System.currentTimeMillis() < deadline) {
+        	Thread.sleep(10);
+        }
+        
+        assertEquals(2, c.numTimesCalled);
+        assertEquals(1, cache.getRefreshCount());
+        
+        // refreshed entry outlives the original one
+        
+        now.addAndGet(100);
+        assertTrue(cache.containsKey(1));
+        cache.getAndSetIfNotPresent(1, c, 500);
+        assertEquals(2, c.numTimesCalled);
+    }
+    
+    @Test
+    public void testFailedLoadNotCached() throws Exception {
+    	
+        ExpiringCache<Integer, Integer> cache = new ExpiringCache<Integer, Integer>(1000);
+        
+        try {
+            cache.getAndSetIfNotPresent(1, new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    throw new Exception("boom");
+                }
+            }, 10000);
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException ex) {
+        }
+        
+        assertFalse(cache.containsKey(1));
+        assertEquals(1, cache.getLoadFailureCount());
+        
+        TestCallable c = new TestCallable();
+        assertEquals(Integer.valueOf(1), cache.getAndSetIfNotPresent(1, c, 10000));
+        assertEquals(1, c.numTimesCalled);
+    }
+    
     @Test
     public void test() throws Exception {
         ConcurrentHashMap<String, String> c = new ConcurrentHashMap<String, String>();
@@ -17,6 +17,7 @@ package com.comcast.cmb.test.common.util.unit;
 
 import static org.junit.Assert.*;
 
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -31,8 +32,6 @@ import org.junit.Test;
 import com.comcast.cmb.common.controller.CMBControllerServlet;
 import com.comcast.cmb.common.util.RollingWindowCapture;
 import com.comcast.cmb.common.util.Util;
-import com.comcast.cmb.common.util.RollingWindowCapture.PayLoad;
-import com.comcast.cmb.common.util.RollingWindowCapture.Visitor;
 
 public class RollingWindowCaptureTest {
     static Logger logger = Logger.getLogger(RollingWindowCaptureTest.class);
@@ -43,49 +42,78 @@ public class RollingWindowCaptureTest {
         CMBControllerServlet.valueAccumulator.initializeAllCounters();
     }
 
-    class SimplePayload extends PayLoad {
-    }
-    
-    class CountingVisitor implements Visitor<SimplePayload> {
-        volatile int count=0;
-        @Override
-        public void processNode(SimplePayload n) {
-            count++;
-        }
-        
-    }
     @Test
     public void test() throws InterruptedException {
-        RollingWindowCapture<SimplePayload> c = new RollingWindowCapture<SimplePayload>(1,10);
-        c.addNow(new SimplePayload());
-        CountingVisitor countingV = new CountingVisitor();
-        c.visitAllNodes(countingV);
-        if (countingV.count != 1) {
-            fail("Expected to find count 1. Got:" + countingV.count);
+        RollingWindowCapture<String> c = new RollingWindowCapture<String>(1,10);
+        c.increment("a");
+        if (c.getCount("a") != 1) {
+            fail("Expected to find count 1. Got:" + c.getCount("a"));
         }
         
         Thread.sleep(1001);
-        countingV = new CountingVisitor();
-        c.visitAllNodes(countingV);
-        if (countingV.count != 0) {
-            fail("Expected to find count 0. Got:" + countingV.count);
+        if (c.getCount("a") != 0) {
+            fail("Expected to find count 0. Got:" + c.getCount("a"));
         }
         for (int i = 0; i < 100; i++) {
-            c.addNow(new SimplePayload());
+            c.increment("a");
         }
-        countingV = new CountingVisitor();
-        c.visitAllNodes(countingV);
-        if (countingV.count != 100) {
-            fail("Expected to find count 0. Got:" + countingV.count);
+        if (c.getCount("a") != 100) {
+            fail("Expected to find count 100. Got:" + c.getCount("a"));
         }
     }
+
+    @Test
+    public void testCountsPerKey() {
+        RollingWindowCapture<String> c = new RollingWindowCapture<String>(60);
+        c.add("a", 5);
+        c.add("b", 2);
+        c.increment("a");
+        c.add("b", -1);
+        
+        assertEquals(6, c.getCount("a"));
+        assertEquals(1, c.getCount("b"));
+        assertEquals(0, c.getCount("c"));
+        assertEquals(7, c.getTotal());
+        
+        Map<String, Integer> counts = c.getCounts();
+        assertEquals(2, counts.size());
+        assertEquals(6, counts.get("a").intValue());
+        assertEquals(1, counts.get("b").intValue());
+        
+        c.clear();
+        assertEquals(0, c.getTotal());
+        assertTrue(c.getCounts().isEmpty());
+    }
+
+    @Test
+    public void testConcurrentAdds() throws Exception {
+        final RollingWindowCapture<String> c = new RollingWindowCapture<String>(60);
+        ExecutorService e = Executors.newFixedThreadPool(8);
+        
+        for (int i = 0; i < 8; i++) {
+            final String key = "key" + (i % 2);
+            e.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        c.increment(key);
+                    }
+                }
+            });
+        }
+        
+        e.shutdown();
+        assertTrue(e.awaitTermination(30, TimeUnit.SECONDS));
+        assertEquals(40000, c.getCount("key0"));
+        assertEquals(40000, c.getCount("key1"));
+    }
     
 
     @Test
     public void testRWThroughput() throws Exception {
         ExecutorService e = Executors.newFixedThreadPool(5);
         final AtomicInteger in = new AtomicInteger();
-        final RollingWindowCapture<SimplePayload> c = new RollingWindowCapture<SimplePayload>(10,1000); //10 second capture
+        final RollingWindowCapture<String> c = new RollingWindowCapture<String>(10); //10 second capture
         final Random r = new Random();
         
         Future []jobs = new Future[5];
@@ -95,10 +123,10 @@ public class RollingWindowCaptureTest {
                 @Override
                 public void run() {
                     while(!Thread.interrupted()) {
-                        c.addNow(new SimplePayload());
+                        c.increment("a");
                         in.incrementAndGet();
                         if (r.nextInt() % 97 == 0) {
-                            c.visitAllNodes(new CountingVisitor());
+                            c.getCount("a");
                         }
                     }
                 }
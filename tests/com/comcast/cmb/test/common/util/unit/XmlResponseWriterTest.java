@@ -0,0 +1,88 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cmb.test.common.util.unit;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.junit.Test;
+
+import com.comcast.cmb.common.controller.XmlResponseWriter;
+
+public class XmlResponseWriterTest {
+
+	private static final String SAMPLE = "plain <tag attr='a' b=\"c\"> & \r\n ümlaut € 😀 end";
+
+	@Test
+	public void testEscaping() throws Exception {
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		XmlResponseWriter out = new XmlResponseWriter(bytes);
+		out.write("<Body>");
+		out.writeEscaped(SAMPLE);
+		out.write("</Body>");
+		out.close();
+
+		String expected = "<Body>" + StringEscapeUtils.escapeXml(SAMPLE).replaceAll("\r", "&#xD;") + "</Body>";
+		assertEquals(expected, bytes.toString("UTF-8"));
+	}
+
+	@Test
+	public void testLargeResponse() throws Exception {
+
+		// multi byte characters straddling block boundaries
+
+		StringBuilder sb = new StringBuilder();
+
+		while (sb.length() < 3*XmlResponseWriter.BLOCK_SIZE) {
+			sb.append("x😀ä€&");
+		}
+
+		String text = sb.toString();
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		XmlResponseWriter out = new XmlResponseWriter(bytes);
+		out.write(text);
+		out.writeEscaped(text);
+		out.close();
+
+		assertEquals(text + StringEscapeUtils.escapeXml(text), bytes.toString("UTF-8"));
+
+		// buffer is reused by the next writer on this thread
+
+		bytes = new ByteArrayOutputStream();
+		out = new XmlResponseWriter(bytes);
+		out.append("a").append(42L);
+		out.close();
+
+		assertEquals("a42", bytes.toString("UTF-8"));
+	}
+
+	@Test
+	public void testUnpairedSurrogate() throws Exception {
+
+		String text = "A\uD83D" + "B\uDE00C\uD83D";
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		XmlResponseWriter out = new XmlResponseWriter(bytes);
+		out.write(text);
+		out.close();
+
+		assertArrayEquals(text.getBytes("UTF-8"), bytes.toByteArray());
+	}
+}
@@ -17,6 +17,10 @@ package com.comcast.cmb.test.unit;
 
 import static org.junit.Assert.assertTrue;
 
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
 import com.comcast.cmb.common.controller.CMBControllerServlet;
 import com.comcast.cmb.common.persistence.AbstractDurablePersistence;
 import com.comcast.cmb.common.persistence.AbstractDurablePersistence.CMB_SERIALIZER;
@@ -63,6 +67,35 @@ public class CassandraTest {
 		assertTrue("Expected counter to be 3, instead found " + i, i == 3);
 	}
 	
+	@Test
+	public void testNewTimeUnique() throws Exception {
+		
+		final long now = System.currentTimeMillis();
+		final Set<Long> ids = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+		Thread[] threads = new Thread[8];
+		
+		for (int i=0; i<threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					for (int j=0; j<10000; j++) {
+						ids.add(AbstractDurablePersistence.newTime(now, false));
+					}
+				}
+			});
+			threads[i].start();
+		}
+		
+		for (Thread t : threads) {
+			t.join();
+		}
+		
+		assertTrue("Expected 80000 unique ids, instead found " + ids.size(), ids.size() == 80000);
+		
+		for (long id : ids) {
+			assertTrue("Unexpected timestamp in id " + id, AbstractDurablePersistence.getTimestampFromHash(id) == now);
+		}
+	}
+	
 	@Test	
 	/*public void testCassandraCounterBug() throws PersistenceException {
 		// this test is expected to fail on C* > 2.0.6
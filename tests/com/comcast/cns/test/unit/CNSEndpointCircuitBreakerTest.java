@@ -0,0 +1,180 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cns.test.unit;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.comcast.cmb.common.util.Util;
+import com.comcast.cns.tools.CNSEndpointCircuitBreaker;
+import com.comcast.cns.tools.CNSEndpointCircuitBreaker.State;
+
+public class CNSEndpointCircuitBreakerTest {
+
+	/**
+	 * Circuit breaker running on a clock advanced by the test
+	 */
+	private static class TestBreaker extends CNSEndpointCircuitBreaker {
+
+		long now = 1000000;
+
+		TestBreaker(int failureThreshold, long openMS, int maxConcurrency, long latencyTargetMS) {
+			super("http://localhost/test", failureThreshold, openMS, maxConcurrency, latencyTargetMS);
+		}
+
+		@Override
+		protected long currentTimeMillis() {
+			return now;
+		}
+	}
+
+	@Before
+	public void setup() throws Exception {
+		Util.initLog4jTest();
+	}
+
+	@Test
+	public void testOpenAndHalfOpen() throws Exception {
+
+		TestBreaker breaker = new TestBreaker(3, 100, 10, 1000);
+
+		for (int i=0; i<3; i++) {
+			assertTrue(breaker.tryAcquire());
+			breaker.onFailure();
+		}
+
+		assertEquals(State.OPEN, breaker.getState());
+		assertFalse("open circuit must reject deliveries", breaker.tryAcquire());
+
+		breaker.now += 99;
+		assertFalse(breaker.tryAcquire());
+		breaker.now += 1;
+
+		// one probe after the open period, further deliveries wait for its outcome
+
+		assertTrue(breaker.tryAcquire());
+		assertEquals(State.HALF_OPEN, breaker.getState());
+		assertFalse(breaker.tryAcquire());
+
+		breaker.onFailure();
+		assertEquals(State.OPEN, breaker.getState());
+		assertFalse(breaker.tryAcquire());
+
+		breaker.now += 100;
+
+		assertTrue(breaker.tryAcquire());
+		breaker.onSuccess(10);
+		assertEquals(State.CLOSED, breaker.getState());
+		assertTrue(breaker.tryAcquire());
+	}
+
+	@Test
+	public void testAdaptiveConcurrency() {
+
+		CNSEndpointCircuitBreaker breaker = new CNSEndpointCircuitBreaker("http://localhost/test", 100, 1000, 8, 100);
+
+		for (int i=0; i<8; i++) {
+			assertTrue(breaker.tryAcquire());
+		}
+
+		assertFalse("deliveries beyond the limit must be rejected", breaker.tryAcquire());
+
+		// a failure halves the limit
+
+		breaker.onFailure();
+		assertEquals(4, breaker.getLimit());
+		assertEquals(7, breaker.getInFlight());
+		assertFalse(breaker.tryAcquire());
+
+		// slow successes keep shrinking it, fast ones grow it back by one per window
+
+		breaker.onSuccess(500);
+		assertEquals(3, breaker.getLimit());
+
+		for (int i=0; i<6; i++) {
+			breaker.onSuccess(10);
+		}
+
+		assertEquals(0, breaker.getInFlight());
+		assertTrue(breaker.getLimit() > 3);
+		assertTrue(breaker.getLimit() <= 8);
+		assertEquals(State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void testDisabled() {
+
+		CNSEndpointCircuitBreaker breaker = new CNSEndpointCircuitBreaker("http://localhost/test", 0, 1000, 1, 100);
+
+		for (int i=0; i<10; i++) {
+			assertTrue(breaker.tryAcquire());
+			breaker.onFailure();
+		}
+
+		assertEquals(State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void testIdleAndHalfOpenDelay() {
+
+		TestBreaker breaker = new TestBreaker(1, 100, 10, 1000);
+
+		assertTrue(breaker.tryAcquire());
+		breaker.onFailure();
+		assertEquals(State.OPEN, breaker.getState());
+		assertEquals(100, breaker.getMillisUntilHalfOpen());
+
+		// an open circuit is never idle
+
+		breaker.now += 60;
+		assertEquals(40, breaker.getMillisUntilHalfOpen());
+		assertFalse(breaker.isIdle(50));
+
+		breaker.now += 40;
+		assertTrue(breaker.tryAcquire());
+		assertEquals(0, breaker.getMillisUntilHalfOpen());
+		breaker.onSuccess(10);
+		assertEquals(State.CLOSED, breaker.getState());
+
+		breaker.now += 49;
+		assertFalse(breaker.isIdle(50));
+		breaker.now += 1;
+		assertTrue(breaker.isIdle(50));
+
+		assertTrue(breaker.tryAcquire());
+		breaker.now += 50;
+		assertFalse("breaker with a delivery in flight must not be idle", breaker.isIdle(50));
+	}
+
+	@Test
+	public void testReleaseWithoutOutcome() {
+
+		TestBreaker breaker = new TestBreaker(1, 100, 1, 1000);
+
+		assertTrue(breaker.tryAcquire());
+		assertFalse(breaker.tryAcquire());
+
+		// a delivery that was never sent frees its slot without opening the circuit
+
+		breaker.release();
+		assertEquals(0, breaker.getInFlight());
+		assertEquals(State.CLOSED, breaker.getState());
+		assertEquals(1, breaker.getLimit());
+		assertTrue(breaker.tryAcquire());
+	}
+}
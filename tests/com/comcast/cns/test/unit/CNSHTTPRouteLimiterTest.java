@@ -0,0 +1,167 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cns.test.unit;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.HttpHost;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.comcast.cmb.common.util.Util;
+import com.comcast.cns.io.HTTPRouteLimiter;
+
+public class CNSHTTPRouteLimiterTest {
+
+	/**
+	 * Route limiter running on a clock advanced by the test
+	 */
+	private static class TestLimiter extends HTTPRouteLimiter {
+
+		long now = 1000000;
+
+		TestLimiter(int maxInFlight, int maxQueued, long timeoutMS) {
+			super(new HttpHost("localhost", 80, "http"), maxInFlight, maxQueued, timeoutMS);
+		}
+
+		@Override
+		protected long currentTimeMillis() {
+			return now;
+		}
+	}
+
+	/**
+	 * Records which requests were started and which were rejected
+	 */
+	private static class TestRequest implements HTTPRouteLimiter.Request {
+
+		final String name;
+		final List<String> events;
+
+		TestRequest(String name, List<String> events) {
+			this.name = name;
+			this.events = events;
+		}
+
+		public void start() {
+			events.add("start " + name);
+		}
+
+		public void reject(String reason) {
+			events.add("reject " + name + " " + reason);
+		}
+	}
+
+	@Before
+	public void setup() throws Exception {
+		Util.initLog4jTest();
+	}
+
+	@Test
+	public void testLimitAndRelease() throws Exception {
+
+		TestLimiter limiter = new TestLimiter(2, 10, 0);
+		List<String> events = new ArrayList<String>();
+
+		for (int i=1; i<=4; i++) {
+			limiter.submit(new TestRequest("r" + i, events));
+		}
+
+		assertEquals("[start r1, start r2]", events.toString());
+		assertEquals(2, limiter.getInFlight());
+		assertEquals(2, limiter.getQueued());
+
+		// every completed request starts exactly one queued request in submission order
+
+		limiter.release();
+		assertEquals("[start r1, start r2, start r3]", events.toString());
+		assertEquals(2, limiter.getInFlight());
+		assertEquals(1, limiter.getQueued());
+
+		limiter.release();
+		limiter.release();
+		assertEquals("[start r1, start r2, start r3, start r4]", events.toString());
+		assertEquals(1, limiter.getInFlight());
+		assertEquals(0, limiter.getQueued());
+
+		limiter.release();
+		assertEquals(0, limiter.getInFlight());
+	}
+
+	@Test
+	public void testQueueFull() throws Exception {
+
+		TestLimiter limiter = new TestLimiter(1, 2, 0);
+		List<String> events = new ArrayList<String>();
+
+		for (int i=1; i<=4; i++) {
+			limiter.submit(new TestRequest("r" + i, events));
+		}
+
+		assertEquals("[start r1, reject r4 queue_full]", events.toString());
+		assertEquals(1, limiter.getInFlight());
+		assertEquals(2, limiter.getQueued());
+
+		limiter.release();
+		limiter.release();
+		limiter.release();
+		assertEquals("[start r1, reject r4 queue_full, start r2, start r3]", events.toString());
+		assertEquals(0, limiter.getInFlight());
+	}
+
+	@Test
+	public void testQueueTimeout() throws Exception {
+
+		TestLimiter limiter = new TestLimiter(1, 10, 100);
+		List<String> events = new ArrayList<String>();
+
+		limiter.submit(new TestRequest("r1", events));
+		limiter.submit(new TestRequest("r2", events));
+		limiter.now += 50;
+		limiter.submit(new TestRequest("r3", events));
+		limiter.now += 50;
+
+		// r2 used up its timeout waiting, r3 still has time left and takes the freed slot
+
+		limiter.release();
+		assertEquals("[start r1, reject r2 queue_timeout, start r3]", events.toString());
+		assertEquals(1, limiter.getInFlight());
+		assertEquals(0, limiter.getQueued());
+	}
+
+	@Test
+	public void testRetireIfIdle() throws Exception {
+
+		TestLimiter limiter = new TestLimiter(1, 10, 0);
+		List<String> events = new ArrayList<String>();
+
+		limiter.submit(new TestRequest("r1", events));
+		limiter.now += 1000;
+		assertFalse("busy limiter must not be retired", limiter.retireIfIdle(1000));
+
+		limiter.release();
+		assertTrue(limiter.touch());
+		limiter.now += 999;
+		assertFalse(limiter.retireIfIdle(1000));
+
+		limiter.now += 1;
+		assertTrue(limiter.retireIfIdle(1000));
+		assertFalse("retired limiter must be replaced", limiter.touch());
+	}
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cqs.test.unit;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.comcast.cmb.common.util.Util;
+import com.comcast.cqs.util.CQSCompressionCodec;
+
+public class CQSCompressionCodecTest {
+
+    private static String newBody(int size) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < size) {
+            sb.append("{\"event\":\"order_shipped\",\"id\":").append(sb.length()).append(",\"note\":\"ümlaut 😀\"}");
+        }
+        return sb.toString();
+    }
+
+    @Before
+    public void setup() throws Exception {
+        Util.initLog4jTest();
+    }
+
+    @Test
+    public void testDeflateRoundTrip() throws Exception {
+
+        String body = newBody(10000);
+        String compressed = CQSCompressionCodec.DEFLATE.compress(body);
+
+        assertEquals(CQSCompressionCodec.TAG_DEFLATE, compressed.charAt(0));
+        assertTrue(compressed.length() < body.length()/2);
+        assertEquals(body, CQSCompressionCodec.decompress(compressed));
+
+        // reused per thread deflater and inflater
+        
+        String other = newBody(20000);
+        assertEquals(other, CQSCompressionCodec.decompress(CQSCompressionCodec.DEFLATE.compress(other)));
+        assertEquals(body, CQSCompressionCodec.decompress(compressed));
+    }
+
+    @Test
+    public void testSmallBodyStored() throws Exception {
+
+        String compressed = CQSCompressionCodec.DEFLATE.compress("hello");
+
+        assertEquals(CQSCompressionCodec.TAG_STORED + "hello", compressed);
+        assertEquals("hello", CQSCompressionCodec.decompress(compressed));
+        assertEquals("", CQSCompressionCodec.DEFLATE.compress(""));
+        assertNull(CQSCompressionCodec.decompress(null));
+    }
+
+    @Test
+    public void testLegacyFormats() throws Exception {
+
+        String body = newBody(5000);
+        String gzip = CQSCompressionCodec.GZIP.compress(body);
+
+        assertTrue(gzip.startsWith("H4sI"));
+        assertEquals(body, CQSCompressionCodec.decompress(gzip));
+
+        // bodies written before the queue was compressed are returned as is
+
+        assertEquals("not compressed", CQSCompressionCodec.decompress("not compressed"));
+    }
+
+    @Test
+    public void testCorruptBody() throws Exception {
+
+        String compressed = CQSCompressionCodec.DEFLATE.compress(newBody(10000));
+
+        try {
+            CQSCompressionCodec.decompress(compressed.substring(0, compressed.length()/2));
+            fail("truncated body must not decode");
+        } catch (Exception ex) {
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cqs.test.unit;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.junit.Test;
+
+import com.comcast.cqs.controller.CQSLongPollFrame;
+
+public class CQSLongPollFrameTest {
+
+    @Test
+    public void testRoundTrip() {
+
+        List<String> queueArns = Arrays.asList("arn:cmb:cqs:ccp:390328612038:test", "arn:cmb:cqs:ccp:390328612038:other_queue-1");
+        ChannelBuffer buf = CQSLongPollFrame.encode(CQSLongPollFrame.NOTIFY, queueArns);
+
+        CQSLongPollFrame frame = CQSLongPollFrame.decode(buf);
+
+        assertEquals(CQSLongPollFrame.NOTIFY, frame.getType());
+        assertEquals(queueArns, frame.getQueueArns());
+        assertFalse(buf.readable());
+    }
+
+    @Test
+    public void testSingleAndEmpty() {
+
+        CQSLongPollFrame frame = CQSLongPollFrame.decode(CQSLongPollFrame.encode(CQSLongPollFrame.INTEREST_REMOVE, "arn:cmb:cqs:ccp:1:q"));
+        assertEquals(CQSLongPollFrame.INTEREST_REMOVE, frame.getType());
+        assertEquals(1, frame.getQueueArns().size());
+        assertEquals("arn:cmb:cqs:ccp:1:q", frame.getQueueArns().get(0));
+
+        frame = CQSLongPollFrame.decode(CQSLongPollFrame.encode(CQSLongPollFrame.INTEREST_ADD, new ArrayList<String>()));
+        assertEquals(CQSLongPollFrame.INTEREST_ADD, frame.getType());
+        assertTrue(frame.getQueueArns().isEmpty());
+    }
+
+    @Test
+    public void testSplitLargeBatch() {
+
+        List<String> queueArns = new ArrayList<String>();
+
+        for (int i=0; i<40000; i++) {
+            queueArns.add("arn:cmb:cqs:ccp:390328612038:long_poll_snapshot_queue_" + i);
+        }
+
+        List<ChannelBuffer> frames = CQSLongPollFrame.encodeFrames(CQSLongPollFrame.INTEREST_ADD, queueArns);
+        assertTrue(frames.size() > 1);
+
+        List<String> decoded = new ArrayList<String>();
+
+        for (ChannelBuffer buf : frames) {
+            assertTrue(buf.readableBytes() + 4 <= CQSLongPollFrame.MAX_FRAME_LENGTH);
+            CQSLongPollFrame frame = CQSLongPollFrame.decode(buf);
+            assertEquals(CQSLongPollFrame.INTEREST_ADD, frame.getType());
+            decoded.addAll(frame.getQueueArns());
+        }
+
+        assertEquals(queueArns, decoded);
+
+        frames = CQSLongPollFrame.encodeFrames(CQSLongPollFrame.INTEREST_ADD, new ArrayList<String>());
+        assertEquals(1, frames.size());
+        assertTrue(CQSLongPollFrame.decode(frames.get(0)).getQueueArns().isEmpty());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testCorruptCount() {
+        ChannelBuffer buf = CQSLongPollFrame.encode(CQSLongPollFrame.NOTIFY, "arn:cmb:cqs:ccp:1:q");
+        buf.setInt(1, 1000);
+        CQSLongPollFrame.decode(buf);
+    }
+}
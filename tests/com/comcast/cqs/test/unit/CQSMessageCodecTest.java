@@ -0,0 +1,134 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cqs.test.unit;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.comcast.cmb.common.util.PersistenceException;
+import com.comcast.cmb.common.util.Util;
+import com.comcast.cqs.model.CQSMessage;
+import com.comcast.cqs.model.CQSMessageAttribute;
+import com.comcast.cqs.util.CQSConstants;
+import com.comcast.cqs.util.CQSMessageCodec;
+
+public class CQSMessageCodecTest {
+
+    @Before
+    public void setup() throws Exception {
+        Util.initLog4jTest();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+
+        Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put(CQSConstants.SENDER_ID, "user1");
+        attributes.put(CQSConstants.SENT_TIMESTAMP, "1400000000000");
+        attributes.put(CQSConstants.APPROXIMATE_RECEIVE_COUNT, "0");
+
+        Map<String, CQSMessageAttribute> messageAttributes = new HashMap<String, CQSMessageAttribute>();
+        messageAttributes.put("color", new CQSMessageAttribute("blue", "String"));
+        messageAttributes.put("size", new CQSMessageAttribute("42", "Number"));
+        messageAttributes.put("blob", new CQSMessageAttribute("AQID", "Binary"));
+        messageAttributes.put("custom", new CQSMessageAttribute("x:y", "String.custom"));
+
+        CQSMessage message = new CQSMessage("body with {json} \"quotes\", colons: and unicode é中", attributes, messageAttributes);
+        message.setMessageId("abc_0_1:123:456");
+
+        String value = CQSMessageCodec.encode(message);
+        assertTrue(CQSMessageCodec.isEncoded(value));
+
+        CQSMessage decoded = CQSMessageCodec.decode(value);
+
+        assertEquals(message.getMessageId(), decoded.getMessageId());
+        assertEquals(message.getMessageId(), decoded.getReceiptHandle());
+        assertEquals(message.getBody(), decoded.getBody());
+        assertEquals(message.getMD5OfBody(), decoded.getMD5OfBody());
+        assertEquals(message.getMD5OfMessageAttributes(), decoded.getMD5OfMessageAttributes());
+        assertEquals(attributes, decoded.getAttributes());
+        assertEquals(4, decoded.getMessageAttributes().size());
+
+        for (String name : messageAttributes.keySet()) {
+            assertEquals(messageAttributes.get(name).getStringValue(), decoded.getMessageAttributes().get(name).getStringValue());
+            assertEquals(messageAttributes.get(name).getDataType(), decoded.getMessageAttributes().get(name).getDataType());
+        }
+    }
+
+    @Test
+    public void testNoMessageAttributes() throws Exception {
+
+        Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put(CQSConstants.SENT_TIMESTAMP, "1400000000000");
+
+        CQSMessage message = new CQSMessage("", attributes);
+
+        CQSMessage decoded = CQSMessageCodec.decode(CQSMessageCodec.encode(message));
+
+        assertEquals(message.getMessageId(), decoded.getMessageId());
+        assertEquals("", decoded.getBody());
+        assertEquals(1, decoded.getAttributes().size());
+        assertTrue(decoded.getMessageAttributes().isEmpty());
+        assertNull(decoded.getMD5OfMessageAttributes());
+    }
+
+    @Test
+    public void testJSONRoundTrip() throws Exception {
+
+        Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put(CQSConstants.SENDER_ID, "user1");
+        attributes.put(CQSConstants.SENT_TIMESTAMP, "1400000000000");
+        attributes.put(CQSConstants.APPROXIMATE_RECEIVE_COUNT, "3");
+
+        Map<String, CQSMessageAttribute> messageAttributes = new HashMap<String, CQSMessageAttribute>();
+        messageAttributes.put("color", new CQSMessageAttribute("blue", "String"));
+
+        CQSMessage message = new CQSMessage("body with {json} \"quotes\"", attributes, messageAttributes);
+        message.setMessageId("abc_0_1:123:456");
+
+        String value = CQSMessageCodec.encodeJSON(message);
+        assertFalse(CQSMessageCodec.isEncoded(value));
+
+        CQSMessage decoded = CQSMessageCodec.decodeJSON(value);
+
+        assertEquals(message.getMessageId(), decoded.getMessageId());
+        assertEquals(message.getMessageId(), decoded.getReceiptHandle());
+        assertEquals(message.getBody(), decoded.getBody());
+        assertEquals(message.getMD5OfBody(), decoded.getMD5OfBody());
+        assertEquals(message.getMD5OfMessageAttributes(), decoded.getMD5OfMessageAttributes());
+        assertEquals(attributes, decoded.getAttributes());
+        assertEquals("blue", decoded.getMessageAttributes().get("color").getStringValue());
+    }
+
+    @Test
+    public void testLegacyJsonNotEncoded() {
+        assertFalse(CQSMessageCodec.isEncoded("{\"MessageId\":\"abc\"}"));
+        assertFalse(CQSMessageCodec.isEncoded(""));
+        assertFalse(CQSMessageCodec.isEncoded(null));
+    }
+
+    @Test(expected=PersistenceException.class)
+    public void testTruncated() throws Exception {
+        CQSMessage message = new CQSMessage("hello world", new HashMap<String, String>());
+        String value = CQSMessageCodec.encode(message);
+        CQSMessageCodec.decode(value.substring(0, value.length() - 10));
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cqs.test.unit;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.comcast.cmb.common.util.Util;
+import com.comcast.cqs.controller.CQSQueueDepthCache;
+import com.comcast.cqs.model.CQSQueueDepth;
+
+public class CQSQueueDepthCacheTest {
+
+	private static final String QUEUE_URL = "123456789012/testQueue";
+
+	/**
+	 * Cache counting bulk loads instead of asking redis, every load reports the current value of numMessages. Time
+	 * only moves when the test advances now.
+	 */
+	private static class TestCache extends CQSQueueDepthCache {
+
+		final AtomicInteger numLoads = new AtomicInteger(0);
+		volatile long numMessages = 10;
+		volatile long now = 1000000;
+
+		TestCache(long stalenessMS, boolean incremental) {
+			super(stalenessMS, incremental);
+		}
+
+		@Override
+		protected Map<String, CQSQueueDepth> loadQueueDepths(List<String> queueUrls) {
+			numLoads.incrementAndGet();
+			Map<String, CQSQueueDepth> depths = new HashMap<String, CQSQueueDepth>();
+			for (String queueUrl : queueUrls) {
+				depths.put(queueUrl, new CQSQueueDepth(numMessages, 1, 0));
+			}
+			return depths;
+		}
+
+		@Override
+		protected long currentTimeMillis() {
+			return now;
+		}
+	}
+
+	@Before
+	public void setup() throws Exception {
+		Util.initLog4jTest();
+	}
+
+	@Test
+	public void testStaleness() throws Exception {
+
+		TestCache cache = new TestCache(200, false);
+
+		assertEquals(10, cache.getQueueDepth(QUEUE_URL, false).getNumMessages());
+		assertEquals(1, cache.numLoads.get());
+
+		cache.numMessages = 20;
+
+		// fresh depth is served from the cache, an exact count always loads
+
+		assertEquals(10, cache.getQueueDepth(QUEUE_URL, false).getNumMessages());
+		assertEquals(1, cache.numLoads.get());
+		assertEquals(20, cache.getQueueDepth(QUEUE_URL, true).getNumMessages());
+		assertEquals(2, cache.numLoads.get());
+
+		cache.numMessages = 30;
+		cache.now += 250;
+
+		// stale depth is served once more while the refresh is queued
+
+		assertEquals(20, cache.getQueueDepth(QUEUE_URL, false).getNumMessages());
+		assertEquals(2, cache.numLoads.get());
+
+		cache.run();
+
+		assertEquals(3, cache.numLoads.get());
+		assertEquals(30, cache.getQueueDepth(QUEUE_URL, false).getNumMessages());
+
+		cache.numMessages = 40;
+		cache.now += 450;
+
+		// past twice the staleness bound the depth is loaded synchronously
+
+		assertEquals(40, cache.getQueueDepth(QUEUE_URL, false).getNumMessages());
+		assertEquals(4, cache.numLoads.get());
+	}
+
+	@Test
+	public void testIncremental() throws Exception {
+
+		TestCache cache = new TestCache(60000, true);
+
+		// nothing to adjust until the depth is cached
+
+		cache.adjust(QUEUE_URL, 5, 5);
+		assertEquals(0, cache.size());
+
+		assertEquals(10, cache.getQueueDepth(QUEUE_URL, false).getNumMessages());
+
+		cache.adjust(QUEUE_URL, 5, 0);
+		cache.adjust(QUEUE_URL, 0, 3);
+		cache.adjust(QUEUE_URL, -2, -2);
+
+		CQSQueueDepth depth = cache.getQueueDepth(QUEUE_URL, false);
+		assertEquals(13, depth.getNumMessages());
+		assertEquals(2, depth.getNumMessagesNotVisible());
+
+		// deletes only lower the message count, the not visible count never exceeds it
+
+		cache.adjust(QUEUE_URL, -12, 0);
+		depth = cache.getQueueDepth(QUEUE_URL, false);
+		assertEquals(1, depth.getNumMessages());
+		assertEquals(1, depth.getNumMessagesNotVisible());
+
+		cache.adjust(QUEUE_URL, -100, -100);
+		depth = cache.getQueueDepth(QUEUE_URL, false);
+		assertEquals(0, depth.getNumMessages());
+		assertEquals(0, depth.getNumMessagesNotVisible());
+		assertEquals(1, cache.numLoads.get());
+
+		cache.invalidate(QUEUE_URL);
+		assertEquals(10, cache.getQueueDepth(QUEUE_URL, false).getNumMessages());
+		assertEquals(2, cache.numLoads.get());
+	}
+
+	@Test
+	public void testDisabled() throws Exception {
+
+		TestCache cache = new TestCache(0, true);
+
+		cache.getQueueDepth(QUEUE_URL, false);
+		cache.getQueueDepth(QUEUE_URL, false);
+		cache.adjust(QUEUE_URL, 5, 5);
+
+		assertEquals(2, cache.numLoads.get());
+		assertEquals(0, cache.size());
+		assertEquals(10, cache.getQueueDepth(QUEUE_URL, false).getNumMessages());
+	}
+}
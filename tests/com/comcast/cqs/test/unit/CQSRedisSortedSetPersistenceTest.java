@@ -1,12 +1,12 @@
 /**
  * Copyright 2012 Comcast Corporation
- * 
+ *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
  * You may obtain a copy of the License at
- * 
+ *
  *   http://www.apache.org/licenses/LICENSE-2.0
- * 
+ *
  * Unless required by applicable law or agreed to in writing, software
  * distributed under the License is distributed on an "AS IS" BASIS,
  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
@@ -15,5 +15,234 @@
  */
 package com.comcast.cqs.test.unit;
 
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import redis.clients.jedis.ShardedJedis;
+
+import com.comcast.cmb.common.util.Util;
+import com.comcast.cqs.model.CQSMessage;
+import com.comcast.cqs.model.CQSQueue;
+import com.comcast.cqs.persistence.RedisPayloadCache;
+import com.comcast.cqs.persistence.RedisRetentionSweeper;
+import com.comcast.cqs.persistence.RedisSortedSetPersistence;
+import com.comcast.cqs.util.CQSConstants;
+
+/**
+ * Runs against the redis servers configured in cmb.properties
+ */
 public class CQSRedisSortedSetPersistenceTest {
+
+	private static final int RETENTION_SEC = 3600;
+
+	private CQSQueue queue;
+	private String queueKey;
+	private String payloadKey;
+	private String attributesPrefix;
+	private ShardedJedis jedis;
+
+	@Before
+	public void setup() throws Exception {
+
+		Util.initLog4jTest();
+
+		queue = new CQSQueue("redisSortedSetTestQueue", "redisSortedSetTestUser");
+		queue.setMsgRetentionPeriod(RETENTION_SEC);
+		queue.setNumberOfShards(1);
+
+		queueKey = queue.getRelativeUrl() + "-0-Q";
+		payloadKey = queue.getRelativeUrl() + "-0-P";
+		attributesPrefix = queue.getRelativeUrl() + "-0-A-";
+
+		jedis = RedisSortedSetPersistence.getResource();
+		cleanup();
+	}
+
+	@After
+	public void teardown() {
+
+		if (jedis != null) {
+			cleanup();
+			RedisSortedSetPersistence.returnResource(jedis, false);
+		}
+	}
+
+	private void cleanup() {
+		jedis.del(queueKey);
+		jedis.del(payloadKey);
+		jedis.del(queue.getRelativeUrl() + "-0-T");
+		for (String memId : Arrays.asList("m1", "m2", "m3", "m4")) {
+			jedis.del(attributesPrefix + memId);
+		}
+	}
+
+	private static CQSMessage message(String messageId, String body) throws Exception {
+		CQSMessage message = new CQSMessage(body, new HashMap<String, String>());
+		message.setMessageId(messageId);
+		return message;
+	}
+
+	@Test
+	public void testPayloadCacheCeilingAndSizeLimit() throws Exception {
+
+		RedisPayloadCache cache = new RedisPayloadCache(200, 2);
+
+		Map<String, CQSMessage> messages = new LinkedHashMap<String, CQSMessage>();
+		messages.put("m1", message("id1", "body1"));
+		messages.put("m2", message("id2", new String(new char[500]).replace('\0', 'x')));
+		messages.put("m3", message("id3", "body3"));
+		messages.put("m4", message("id4", "body4"));
+
+		// m2 is too large, m4 does not fit under the ceiling of two payloads per shard
+
+		assertEquals(2, cache.put(jedis, queue, 0, messages));
+
+		Map<String, CQSMessage> hits = cache.get(jedis, queue, 0, Arrays.asList("m1", "m2", "m3", "m4"));
+		assertEquals(2, hits.size());
+		assertEquals("body1", hits.get("m1").getBody());
+		assertEquals("id3", hits.get("m3").getMessageId());
+
+		cache.remove(jedis, queue.getRelativeUrl(), 0, "m1");
+		assertFalse(cache.get(jedis, queue, 0, Arrays.asList("m1")).containsKey("m1"));
+
+		cache.clear(jedis, queue.getRelativeUrl(), 0);
+		assertEquals(0, cache.get(jedis, queue, 0, Arrays.asList("m3")).size());
+	}
+
+	@Test
+	public void testPayloadCacheExpirationNotExtended() throws Exception {
+
+		RedisPayloadCache cache = new RedisPayloadCache(200, 10);
+
+		cache.put(jedis, queue, 0, Collections.singletonMap("m1", message("id1", "body1")));
+		long ttl = jedis.ttl(payloadKey);
+		assertTrue("hash must expire one retention period after creation", ttl > 0 && ttl <= RETENTION_SEC);
+
+		jedis.expire(payloadKey, 100);
+		cache.put(jedis, queue, 0, Collections.singletonMap("m2", message("id2", "body2")));
+		assertTrue("later writes must not extend the expiration", jedis.ttl(payloadKey) <= 100);
+	}
+
+	@Test
+	public void testPayloadCachePruneOrphans() throws Exception {
+
+		RedisPayloadCache cache = new RedisPayloadCache(200, 3);
+
+		Map<String, CQSMessage> messages = new LinkedHashMap<String, CQSMessage>();
+		messages.put("m1", message("id1", "body1"));
+		messages.put("m2", message("id2", "body2"));
+		messages.put("m3", message("id3", "body3"));
+		assertEquals(3, cache.put(jedis, queue, 0, messages));
+
+		// only m2 is still queued, the other payloads hold on to room under the ceiling
+
+		jedis.zadd(queueKey, System.currentTimeMillis(), "m2");
+		assertEquals(0, cache.put(jedis, queue, 0, Collections.singletonMap("m4", message("id4", "body4"))));
+
+		assertEquals(2, cache.pruneOrphans(jedis, queue.getRelativeUrl(), 0, 1));
+		assertEquals(1, cache.put(jedis, queue, 0, Collections.singletonMap("m4", message("id4", "body4"))));
+
+		Map<String, CQSMessage> hits = cache.get(jedis, queue, 0, Arrays.asList("m1", "m2", "m3", "m4"));
+		assertEquals(2, hits.size());
+		assertTrue(hits.containsKey("m2"));
+		assertTrue(hits.containsKey("m4"));
+	}
+
+	@Test
+	public void testRetentionSweeper() throws Exception {
+
+		long now = System.currentTimeMillis();
+		long expired = now - 2 * RETENTION_SEC * 1000L;
+
+		jedis.zadd(queueKey, expired, "m1");
+		jedis.zadd(queueKey, expired + 1, "m2");
+		jedis.zadd(queueKey, expired + 2, "m3");
+		jedis.zadd(queueKey, now, "m4");
+		jedis.hset(attributesPrefix + "m1", CQSConstants.REDIS_APPROXIMATE_RECEIVE_COUNT, "1");
+		jedis.hset(attributesPrefix + "m4", CQSConstants.REDIS_APPROXIMATE_RECEIVE_COUNT, "1");
+
+		// chunks of two so the expired members take more than one round trip
+
+		RedisRetentionSweeper sweeper = new RedisRetentionSweeper(60, 2);
+		assertEquals(3, sweeper.sweep(queue.getRelativeUrl(), 0, RETENTION_SEC));
+
+		assertEquals(1, jedis.zcard(queueKey).longValue());
+		assertNotNull(jedis.zscore(queueKey, "m4"));
+		assertFalse(jedis.exists(attributesPrefix + "m1"));
+		assertTrue(jedis.exists(attributesPrefix + "m4"));
+
+		// the lease keeps other sweeps of the shard out for one interval
+
+		jedis.zadd(queueKey, expired, "m1");
+		assertEquals(0, sweeper.sweep(queue.getRelativeUrl(), 0, RETENTION_SEC));
+		assertEquals(2, jedis.zcard(queueKey).longValue());
+
+		jedis.del(queue.getRelativeUrl() + "-0-T");
+		jedis.del(queueKey);
+		assertEquals(-1, sweeper.sweep(queue.getRelativeUrl(), 0, RETENTION_SEC));
+	}
+
+	private List<String> receive(long now, int limit, long newScore, boolean attributes) {
+		List<String> args = Arrays.asList(
+				String.valueOf(now - RETENTION_SEC * 1000L),
+				String.valueOf(now),
+				String.valueOf(limit),
+				String.valueOf(newScore),
+				attributes ? attributesPrefix : "",
+				String.valueOf(now),
+				String.valueOf(RETENTION_SEC),
+				CQSConstants.REDIS_APPROXIMATE_FIRST_RECEIVE_TIMESTAMP,
+				CQSConstants.REDIS_APPROXIMATE_RECEIVE_COUNT);
+		return RedisSortedSetPersistence.getInstance().testInterface.evalReceive(queueKey, args);
+	}
+
+	@Test
+	public void testReceiveScript() throws Exception {
+
+		long now = System.currentTimeMillis();
+
+		jedis.zadd(queueKey, now - 3000, "m1");
+		jedis.zadd(queueKey, now - 2000, "m2");
+		jedis.zadd(queueKey, now - 1000, "m3");
+		jedis.zadd(queueKey, now + 60000, "m4");
+
+		// oldest visible messages first, hidden until the new score, attributes skipped
+
+		List<String> result = receive(now, 2, now + 30000, false);
+		assertEquals(6, result.size());
+		assertEquals("m1", result.get(0));
+		assertNull(result.get(1));
+		assertNull(result.get(2));
+		assertEquals("m2", result.get(3));
+		assertEquals(now + 30000, jedis.zscore(queueKey, "m1").longValue());
+		assertEquals(now + 30000, jedis.zscore(queueKey, "m2").longValue());
+
+		// delayed and hidden messages are not received
+
+		result = receive(now, 10, now + 30000, true);
+		assertEquals(3, result.size());
+		assertEquals("m3", result.get(0));
+		assertEquals(String.valueOf(now), result.get(1));
+		assertEquals("1", result.get(2));
+
+		// a new score of 0 leaves the message visible, the first receive timestamp is kept
+
+		jedis.zadd(queueKey, now - 1000, "m3");
+		result = receive(now + 5, 1, 0, true);
+		assertEquals(3, result.size());
+		assertEquals("m3", result.get(0));
+		assertEquals(String.valueOf(now), result.get(1));
+		assertEquals("2", result.get(2));
+		assertEquals(now - 1000, jedis.zscore(queueKey, "m3").longValue());
+	}
 }